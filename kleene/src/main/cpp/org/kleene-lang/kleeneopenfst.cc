@@ -49,7 +49,15 @@
 #include "OpenFstLibraryWrapper.h"
 #include <string>
 #include <set>
+#include <map>
+#include <tuple>
 #include <vector>
+#include <unordered_map>
+#include <algorithm>		// sort()
+#include <cstring>		// memcpy()
+#include <stdint.h>
+#include <atomic>
+#include <chrono>
 
 // ICU
 #include "unicode/utypes.h"
@@ -93,6 +101,159 @@ namespace fst {
 }
 
 
+// Resource limits and cancellation for the long-running operations
+// (determinization, composition, intersection, RTN expansion).
+//
+// The limits (0 means no limit) are set from Java, see 
+// OpenFstLibraryWrapper.SetNativeLimits(); cancellation is requested
+// from any Java thread (e.g. the GUI) with CancelNativeOperations(),
+// which bumps cancelGeneration, so that the operations running at that
+// moment stop, and later ones are not affected.  They can be read by 
+// several worker threads at once, hence the atomics.
+static std::atomic<long long> maxStatesLimit(0) ;
+static std::atomic<long long> maxArcsLimit(0) ;
+static std::atomic<long long> maxMillisLimit(0) ;
+static std::atomic<int> cancelGeneration(0) ;
+
+// thrown (in C++ only) when a limit is exceeded or the operation is
+// cancelled; it must be caught before returning to Java, and turned into
+// a Java NativeLimitException with throwNativeLimitException()
+struct NativeLimitExceeded {
+	string message ;
+	NativeLimitExceeded(const string & msg) : message(msg) {}
+} ;
+
+static void throwNativeLimitException(JNIEnv * env, 
+									const NativeLimitExceeded & e)
+{
+	jclass excClass = env->FindClass("NativeLimitException") ;
+	if (excClass != NULL) {
+		env->ThrowNew(excClass, e.message.c_str()) ;
+	}
+	// else FindClass() has already thrown NoClassDefFoundError
+}
+
+// the limits, as they were when one operation started
+class LimitGuard {
+public:
+	LimitGuard()
+		: maxStates_(maxStatesLimit.load()),
+		  maxArcs_(maxArcsLimit.load()),
+		  maxMillis_(maxMillisLimit.load()),
+		  generation_(cancelGeneration.load()),
+		  start_(std::chrono::steady_clock::now()),
+		  checks_(0) {}
+
+	// called for each new state of the result
+	void Check(long long states, long long arcs) {
+		if (maxStates_ > 0 && states > maxStates_) {
+			throw NativeLimitExceeded("The result exceeds the limit of " 
+					+ std::to_string(maxStates_) + " states (#KLEENEmaxStates)") ;
+		}
+		if (maxArcs_ > 0 && arcs > maxArcs_) {
+			throw NativeLimitExceeded("The result exceeds the limit of " 
+					+ std::to_string(maxArcs_) + " arcs (#KLEENEmaxArcs)") ;
+		}
+		if (cancelGeneration.load() != generation_) {
+			throw NativeLimitExceeded("Operation cancelled") ;
+		}
+		// reading the clock is not free; look at it now and then
+		if (maxMillis_ > 0 && (++checks_ & 0xff) == 0) {
+			long long elapsed = std::chrono::duration_cast<std::chrono::milliseconds>(
+					std::chrono::steady_clock::now() - start_).count() ;
+			if (elapsed > maxMillis_) {
+				throw NativeLimitExceeded("The operation exceeds the time limit of "
+					+ std::to_string(maxMillis_) + " ms (#KLEENEmaxMillis)") ;
+			}
+		}
+	}
+
+private:
+	long long maxStates_ ;
+	long long maxArcs_ ;
+	long long maxMillis_ ;
+	int generation_ ;
+	std::chrono::steady_clock::time_point start_ ;
+	long long checks_ ;
+} ;
+
+// Copy a delayed (lazy) network such as a DeterminizeFst or ComposeFst
+// into dest, state by state, checking the limits after each state; this
+// is the same expansion that assigning it to a VectorFst does (the
+// states keep their numbers), but it can be stopped.  Throws 
+// NativeLimitExceeded, leaving dest partly built.
+static void expandLimited(const Fst<StdArc> & lazy, StdVectorFst * dest)
+{
+	LimitGuard guard ;
+
+	dest->DeleteStates() ;
+	dest->SetInputSymbols(lazy.InputSymbols()) ;
+	dest->SetOutputSymbols(lazy.OutputSymbols()) ;
+
+	StateId start = lazy.Start() ;
+	if (start == kNoStateId) {
+		return ;
+	}
+
+	vector<bool> seen ;
+	vector<StateId> queue ;
+	long long arcCount = 0 ;
+
+	seen.resize(start + 1, false) ;
+	seen[start] = true ;
+	queue.push_back(start) ;
+
+	for (size_t q = 0; q < queue.size(); q++) {
+		StateId s = queue[q] ;
+		while (dest->NumStates() <= s) {
+			dest->AddState() ;
+		}
+		dest->SetFinal(s, lazy.Final(s)) ;
+		for (ArcIterator< Fst<StdArc> > aiter(lazy, s) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			const StdArc & arc = aiter.Value() ;
+			if (arc.nextstate >= (StateId) seen.size()) {
+				seen.resize(arc.nextstate + 1, false) ;
+			}
+			if (!seen[arc.nextstate]) {
+				seen[arc.nextstate] = true ;
+				queue.push_back(arc.nextstate) ;
+			}
+			while (dest->NumStates() <= arc.nextstate) {
+				dest->AddState() ;
+			}
+			dest->AddArc(s, arc) ;
+			arcCount++ ;
+		}
+		guard.Check(dest->NumStates(), arcCount) ;
+	}
+	dest->SetStart(start) ;
+	dest->SetProperties(lazy.Properties(kCopyProperties, false), 
+						kCopyProperties) ;
+}
+
+// *fstp = DeterminizeFst(*fstp), within the limits.  If the limits are
+// exceeded, fstp is left as it was--decoded again with encoder, if the
+// caller has encoded it--so that the Java Fst stays usable.
+static void determinizeLimited(StdVectorFst * fstp,
+							EncodeMapper<StdArc> * encoder = NULL)
+{
+	StdVectorFst result ;
+	try {
+		expandLimited(DeterminizeFst<StdArc>(*fstp, 
+					DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))),
+					&result) ;
+	} catch (NativeLimitExceeded &) {
+		if (encoder != NULL) {
+			Decode(fstp, *encoder) ;
+		}
+		throw ;
+	}
+	*fstp = result ;
+}
+
+
 JNIEXPORT void JNICALL
 Java_OpenFstLibraryWrapper_helloWorldNative
   (JNIEnv *env, jclass cls)
@@ -458,11 +619,18 @@ Java_OpenFstLibraryWrapper_copyFstNative
   (JNIEnv *env, jclass cls,
    jlong fstpOrig)
 {
-	// get a ptr to a new empty Fst
-	StdVectorFst * fstpNew = new StdVectorFst() ;
-	// Map (FST, ptr to FST, a mapper)
-	// here copies the first net into the second
-	Map(*((StdVectorFst *)(uintptr_t) fstpOrig), fstpNew, IdentityMapper<StdArc>()) ;
+	// The VectorFst copy constructor does not copy the states and
+	// arcs:  the new Fst shares the reference-counted implementation
+	// of the original.  Any mutating operation (AddArc, SetFinal,
+	// MutableArcIterator, the destructive algorithms Concat, Union,
+	// RmEpsilon, etc.) goes through MutateCheck(), which makes the
+	// real copy only if the implementation is still shared.  So the
+	// defensive copies of symbol-table Fsts made in
+	// OpenFstLibraryWrapper.java (CopyFst) cost almost nothing until
+	// (and unless) the copy is actually modified.
+	// (Formerly:  Map(orig, fstpNew, IdentityMapper<StdArc>()),
+	// which always copied the whole network.)
+	StdVectorFst * fstpNew = new StdVectorFst(*((StdVectorFst *)(uintptr_t) fstpOrig)) ;
 	return (jlong)(uintptr_t) fstpNew ;
 }
 
@@ -487,6 +655,254 @@ Java_OpenFstLibraryWrapper_unionIntoFirstNative
 	return ;
 }
 
+// helper for the n-ary union and concatenation below:  append all the
+// states and arcs of src to dest (src is not changed) and return the
+// offset that was added to the src state numbers.  With a guard, the
+// limits are checked after each state (arcCount is the running count
+// of the arcs of dest); throws NativeLimitExceeded.
+static StateId appendStatesAndArcs(StdVectorFst * dest, const StdVectorFst & src,
+								LimitGuard * guard = NULL, 
+								long long * arcCount = NULL)
+{
+	StateId offset = dest->NumStates() ;
+	dest->ReserveStates(offset + src.NumStates()) ;
+
+	for (StateIterator<StdVectorFst> siter(src) ;
+			!siter.Done() ;
+			siter.Next()) {
+		StateId s_src = siter.Value() ;
+		StateId s_dest = dest->AddState() ;  // == s_src + offset
+		dest->SetFinal(s_dest, src.Final(s_src)) ;
+		dest->ReserveArcs(s_dest, src.NumArcs(s_src)) ;
+		for (ArcIterator<StdVectorFst> aiter(src, s_src) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			StdArc arc = aiter.Value() ;  // a copy of the orig. arc
+			arc.nextstate += offset ;
+			dest->AddArc(s_dest, arc) ;
+		}
+		if (guard != NULL) {
+			*arcCount += src.NumArcs(s_src) ;
+			guard->Check(dest->NumStates(), *arcCount) ;
+		}
+	}
+	return offset ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_unionFstsNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs)
+{
+	// n-ary union, non-destructive:  one new start state with an
+	// epsilon arc to the (old) start state of each operand.
+	// Pairwise Union() has to recompute the kInitialAcyclic property of
+	// the growing first argument on each call, which makes long
+	// alternations quadratic; this is one pass over the operands.
+	// Returns 0 if the array elements couldn't be accessed.
+
+	jlong *ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
+	if (ptrs == NULL) {
+		return (jlong)(uintptr_t) 0 ;  // couldn't allocate the space
+	}
+	jsize len = env->GetArrayLength(netPtrs) ;
+
+	StdVectorFst * resultp = new StdVectorFst() ;
+	StateId start = resultp->AddState() ;
+	resultp->SetStart(start) ;
+	resultp->ReserveArcs(start, len) ;
+
+	LimitGuard guard ;
+	long long arcCount = 0 ;
+	try {
+		for (int i = 0; i < len; i++) {
+			StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) ptrs[i] ;
+			StateId s0 = fstp->Start() ;
+			if (s0 == kNoStateId) {
+				// empty language, contributes nothing
+				continue ;
+			}
+			StateId offset = appendStatesAndArcs(resultp, *fstp, 
+												&guard, &arcCount) ;
+			resultp->AddArc(start, StdArc(0, 0, Weight::One(), s0 + offset)) ;
+			arcCount++ ;
+		}
+	} catch (NativeLimitExceeded & e) {
+		env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	// N.B. release the array or get a Memory Leak!
+	// (JNI_ABORT, nothing was changed)
+	env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_embedRtnNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs, jint subnetworksLabel, jintArray subnetLabels)
+{
+	// builds an embedded RTN, non-destructive:  netPtrs[0] is the base
+	// network and netPtrs[i] (i > 0) is the subnetwork whose reference
+	// label is subnetLabels[i - 1].  The result is
+	//
+	//   base | __SUBNETWORKS ( ref_1 sub_1 | ref_2 sub_2 | ... )
+	//
+	// with one new start state, an epsilon arc to the start of the
+	// base, and a single __SUBNETWORKS arc to a "hub" state that has
+	// one ref_i:ref_i arc to the start state of each subnetwork.
+	// Building it by repeated Union() of prefixed copies was quadratic
+	// in the number of subnetworks; this is one pass over them.
+	// Returns 0 if the array elements couldn't be accessed.
+
+	jlong *ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
+	if (ptrs == NULL) {
+		return (jlong)(uintptr_t) 0 ;  // couldn't allocate the space
+	}
+	jint *labels = env->GetIntArrayElements(subnetLabels, NULL) ;
+	if (labels == NULL) {
+		env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+		return (jlong)(uintptr_t) 0 ;
+	}
+	jsize len = env->GetArrayLength(netPtrs) ;
+
+	StdVectorFst * resultp = new StdVectorFst() ;
+	StateId start = resultp->AddState() ;
+	resultp->SetStart(start) ;
+	resultp->ReserveArcs(start, 2) ;
+
+	StdVectorFst * basep = (StdVectorFst *)(uintptr_t) ptrs[0] ;
+	StateId s0 = basep->Start() ;
+	if (s0 != kNoStateId) {
+		StateId offset = appendStatesAndArcs(resultp, *basep) ;
+		resultp->AddArc(start, StdArc(0, 0, Weight::One(), s0 + offset)) ;
+	}
+
+	// the hub is added only if some subnetwork is non-empty
+	StateId hub = kNoStateId ;
+	for (int i = 1; i < len; i++) {
+		StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) ptrs[i] ;
+		s0 = fstp->Start() ;
+		if (s0 == kNoStateId) {
+			// empty language, ref_i sub_i contributes nothing
+			continue ;
+		}
+		if (hub == kNoStateId) {
+			hub = resultp->AddState() ;
+			resultp->ReserveArcs(hub, len - 1) ;
+			resultp->AddArc(start, StdArc(subnetworksLabel, subnetworksLabel, 
+											Weight::One(), hub)) ;
+		}
+		StateId offset = appendStatesAndArcs(resultp, *fstp) ;
+		resultp->AddArc(hub, StdArc(labels[i - 1], labels[i - 1], 
+									Weight::One(), s0 + offset)) ;
+	}
+
+	// N.B. release the arrays or get a Memory Leak!
+	// (JNI_ABORT, nothing was changed)
+	env->ReleaseIntArrayElements(subnetLabels, labels, JNI_ABORT) ;
+	env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_concatFstsNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs)
+{
+	// n-ary concatenation, non-destructive.
+	// Pairwise Concat() loops through all the states of the growing
+	// first argument (looking for final states) on each call; here
+	// the current final states are simply remembered, and each is
+	// linked by an epsilon arc (carrying its final weight) to the
+	// start state of the next operand.
+	// Returns 0 if the array elements couldn't be accessed.
+
+	jlong *ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
+	if (ptrs == NULL) {
+		return (jlong)(uintptr_t) 0 ;  // couldn't allocate the space
+	}
+	jsize len = env->GetArrayLength(netPtrs) ;
+
+	StdVectorFst * resultp = new StdVectorFst() ;
+	// start with the empty-string language
+	StateId start = resultp->AddState() ;
+	resultp->SetStart(start) ;
+
+	// the current final states and their final weights; the final
+	// weights are set in resultp only at the very end
+	vector< pair<StateId, Weight> > finals ;
+	finals.push_back(pair<StateId, Weight>(start, Weight::One())) ;
+	vector< pair<StateId, Weight> > nextFinals ;
+
+	bool empty = false ;
+
+	LimitGuard guard ;
+	long long arcCount = 0 ;
+	try {
+		for (int i = 0; i < len; i++) {
+			StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) ptrs[i] ;
+			StateId s0 = fstp->Start() ;
+			if (s0 == kNoStateId) {
+				// concatenation with the empty language is empty
+				empty = true ;
+				break ;
+			}
+			StateId offset = appendStatesAndArcs(resultp, *fstp, 
+												&guard, &arcCount) ;
+
+			nextFinals.clear() ;
+			for (StateIterator<StdVectorFst> siter(*fstp) ;
+					!siter.Done() ;
+					siter.Next()) {
+				StateId s = siter.Value() ;
+				Weight w = fstp->Final(s) ;
+				if (w != Weight::Zero()) {
+					// appendStatesAndArcs copied the final weight; it is
+					// reset when the state stops being final
+					nextFinals.push_back(pair<StateId, Weight>(s + offset, w)) ;
+				}
+			}
+
+			for (vector< pair<StateId, Weight> >::iterator it = finals.begin() ;
+					it != finals.end() ;
+					++it) {
+				resultp->SetFinal(it->first, Weight::Zero()) ;
+				resultp->AddArc(it->first, 
+								StdArc(0, 0, it->second, s0 + offset)) ;
+				arcCount++ ;
+			}
+			finals.swap(nextFinals) ;
+		}
+	} catch (NativeLimitExceeded & e) {
+		env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	env->ReleaseLongArrayElements(netPtrs, ptrs, JNI_ABORT) ;
+
+	if (empty) {
+		delete resultp ;
+		// cf. emptyLanguageFstNative, no states at all
+		return (jlong)(uintptr_t) new StdVectorFst() ;
+	}
+
+	for (vector< pair<StateId, Weight> >::iterator it = finals.begin() ;
+			it != finals.end() ;
+			++it) {
+		resultp->SetFinal(it->first, it->second) ;
+	}
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
 JNIEXPORT jlong JNICALL
 Java_OpenFstLibraryWrapper_charRangeUnionFstNative
 	(JNIEnv *env, jclass cls,
@@ -511,21 +927,167 @@ Java_OpenFstLibraryWrapper_charRangeUnionFstNative
 	return (jlong)(uintptr_t) fstp ;
 }
 
+// Return a new network that is the epsilon-free, deterministic and
+// input-label-sorted equivalent of the (unweighted acceptor) argument,
+// for use as the subtrahend of differenceSortedNative; the argument
+// itself is not changed.  Returns NULL if the argument already has all
+// three properties and can be used as it is.
+static StdVectorFst * prepareSubtrahend(const StdVectorFst * fstp)
+{
+	uint64_t wanted = kNoEpsilons | kIDeterministic | kILabelSorted ;
+	uint64_t props = fstp->Properties(wanted, true) ;
+	if ((props & wanted) == wanted) {
+		return NULL ;
+	}
+
+	StdVectorFst * resultFstPtr = new StdVectorFst(*fstp) ;
+	if (!(props & kNoEpsilons)) {
+		RmEpsilon(resultFstPtr) ;
+	}
+	if (!resultFstPtr->Properties(kIDeterministic, true)) {
+		// unweighted acceptor, so it can always be determinized
+		DetInPlace(resultFstPtr) ;
+	}
+	ArcSort(resultFstPtr, StdILabelCompare()) ;
+	return resultFstPtr ;
+}
+
 JNIEXPORT jlong JNICALL
-Java_OpenFstLibraryWrapper_differenceNative
+Java_OpenFstLibraryWrapper_prepareSubtrahendNative
   (JNIEnv *env, jclass cls,
-   jlong first, jlong second)
+   jlong fstPtr)
 {
+	// 0 if the argument can be used as it is
+	return (jlong)(uintptr_t) prepareSubtrahend((StdVectorFst *)(uintptr_t) fstPtr) ;
+}
 
-	StdVectorFst * firstFstPtr = (StdVectorFst *)(uintptr_t) first ;
-	StdVectorFst * secondFstPtr = (StdVectorFst *)(uintptr_t) second ;
+// for differenceSortedNative:  the target of the arc labeled label
+// leaving state s of a deterministic network with input-label-sorted
+// arcs (binary search), or kNoStateId if there is no such arc
+static StateId sortedArcTarget(const StdVectorFst & fst, StateId s, Label label)
+{
+	size_t lo = 0 ;
+	size_t hi = fst.NumArcs(s) ;
+	ArcIterator<StdVectorFst> aiter(fst, s) ;
+	while (lo < hi) {
+		size_t mid = lo + (hi - lo) / 2 ;
+		aiter.Seek(mid) ;
+		const StdArc & arc = aiter.Value() ;
+		if (arc.ilabel < label) {
+			lo = mid + 1 ;
+		} else if (arc.ilabel > label) {
+			hi = mid ;
+		} else {
+			return arc.nextstate ;
+		}
+	}
+	return kNoStateId ;
+}
+
+// for differenceSortedNative:  the result state for the pair
+// (stateA, stateB), added (and queued) if it is new; result states
+// are added in queue order, so queue[s] is the pair of result state s
+static StateId differencePairState(StateId stateA, StateId stateB,
+		unordered_map<uint64_t, StateId> & pairToState,
+		vector< pair<StateId, StateId> > & queue,
+		StdVectorFst * resultFstPtr)
+{
+	// stateB can be kNoStateId (-1), so offset it by one
+	uint64_t key = ((uint64_t)(uint32_t) stateA << 32) 
+					| (uint64_t)(uint32_t)(stateB + 1) ;
+	unordered_map<uint64_t, StateId>::iterator it = pairToState.find(key) ;
+	if (it != pairToState.end()) {
+		return it->second ;
+	}
+	StateId s = resultFstPtr->AddState() ;
+	pairToState[key] = s ;
+	queue.push_back(pair<StateId, StateId>(stateA, stateB)) ;
+	return s ;
+}
 
+// Difference of the first (acceptor) network and the second, which
+// must be an epsilon-free, deterministic, unweighted acceptor with
+// input-label-sorted arcs (see prepareSubtrahendNative), so it is 
+// not re-sorted here.  The result is built directly as the product
+// of the first network and the complement of the second, with the
+// complement computed on the fly:  each result state pairs a state of
+// the first network with a state of the second, or with kNoStateId
+// once the second network has no arc for a label (its implicit,
+// non-final sink state, from which the complement accepts 
+// everything).  A result state is final iff the first network's state
+// is final and the second's is not.  Epsilon arcs of the first network
+// leave the state of the second unchanged.  Weights come from the 
+// first network.  Both networks are only read (no Copy(), so no
+// change to a shared reference count), which lets a worker thread 
+// work on copy-on-write shares of them (see differenceOptimizeNative).
+// Throws NativeLimitExceeded (after deleting the partial result).
+static StdVectorFst * differenceSorted(const StdVectorFst & a, 
+										const StdVectorFst & b)
+{
 	StdVectorFst * resultFstPtr = new StdVectorFst() ;
-	// need to sort the output arcs of the first arg, or the input arcs
-	// of the second arg
-	ArcSort(secondFstPtr, StdILabelCompare()) ;
-	Difference(*firstFstPtr, *secondFstPtr, resultFstPtr) ;
-	return (jlong)(uintptr_t) resultFstPtr ;
+	StateId startA = a.Start() ;
+	if (startA == kNoStateId) {
+		// empty minuend, empty result
+		return resultFstPtr ;
+	}
+
+	unordered_map<uint64_t, StateId> pairToState ;
+	vector< pair<StateId, StateId> > queue ;
+	resultFstPtr->SetStart(differencePairState(startA, b.Start(),
+							pairToState, queue, resultFstPtr)) ;
+
+	LimitGuard guard ;
+	long long arcCount = 0 ;
+	try {
+		for (size_t q = 0; q < queue.size(); q++) {
+			StateId s = (StateId) q ;
+			StateId stateA = queue[q].first ;
+			StateId stateB = queue[q].second ;
+
+			Weight finalA = a.Final(stateA) ;
+			if (finalA != Weight::Zero()
+					&& (stateB == kNoStateId || b.Final(stateB) == Weight::Zero())) {
+				resultFstPtr->SetFinal(s, finalA) ;
+			}
+
+			for (ArcIterator<StdVectorFst> aiter(a, stateA) ;
+					!aiter.Done() ;
+					aiter.Next()) {
+				const StdArc & arc = aiter.Value() ;
+				StateId nextB ;
+				if (arc.ilabel == 0 || stateB == kNoStateId) {
+					nextB = stateB ;
+				} else {
+					nextB = sortedArcTarget(b, stateB, arc.ilabel) ;
+				}
+				StateId nextState = differencePairState(arc.nextstate, nextB,
+										pairToState, queue, resultFstPtr) ;
+				resultFstPtr->AddArc(s, StdArc(arc.ilabel, arc.olabel,
+												arc.weight, nextState)) ;
+			}
+			arcCount += resultFstPtr->NumArcs(s) ;
+			guard.Check(resultFstPtr->NumStates(), arcCount) ;
+		}
+	} catch (NativeLimitExceeded & e) {
+		delete resultFstPtr ;
+		throw ;
+	}
+	return resultFstPtr ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_differenceSortedNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second)
+{
+	try {
+		return (jlong)(uintptr_t) differenceSorted(
+							*((StdVectorFst *)(uintptr_t) first),
+							*((StdVectorFst *)(uintptr_t) second)) ;
+	} catch (NativeLimitExceeded & e) {
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
 }
 
 JNIEXPORT jlong JNICALL
@@ -538,20 +1100,24 @@ Java_OpenFstLibraryWrapper_intersectNative
 	StdVectorFst * secondFstPtr = (StdVectorFst *)(uintptr_t) second ;
 
 	StdVectorFst * resultFstPtr = new StdVectorFst() ;
-	// need to sort the output arcs of the first arg, or the input arcs
-	// of the second arg
-	ArcSort(secondFstPtr, StdILabelCompare()) ;
-	Intersect(*firstFstPtr, *secondFstPtr, resultFstPtr) ;
+	// the output arcs of the first arg, or the input arcs of the
+	// second arg, must be sorted; that is now the responsibility of
+	// the caller (see OpenFstLibraryWrapper.sortForCompose())
+	// As Intersect(), but within the limits
+	try {
+		expandLimited(IntersectFst<StdArc>(*firstFstPtr, *secondFstPtr), 
+						resultFstPtr) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultFstPtr ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+	Connect(resultFstPtr) ;
 	return (jlong)(uintptr_t) resultFstPtr ;
 }
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_substLabelInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jint orig, jint repl)
+static void substLabelInPlace(StdVectorFst * fstp, jint orig, jint repl)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-
 	// figure out how to template <class Arc>
 	
 	//vector< pair<typename Arc::Label, typename Arc::Label> > vect ;
@@ -569,6 +1135,14 @@ Java_OpenFstLibraryWrapper_substLabelInPlaceNative
 	}
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_substLabelInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, jint orig, jint repl)
+{
+	substLabelInPlace((StdVectorFst *)(uintptr_t) fstPtr, orig, repl) ;
+}
+
 // fixOtherInputBeforeCompose
 // When composing A _o_ B, this program is called for B.
 // Changes all OTHER_ID on the input side to OTHER_NONID.
@@ -580,13 +1154,9 @@ Java_OpenFstLibraryWrapper_substLabelInPlaceNative
 // and the intersection of the intermediate levels can work
 // as it should (no distinction between OTHER_ID and OTHER_NONID).
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_fixOtherInputBeforeComposeNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jint other_id, jint other_nonid)
+static void fixOtherInputBeforeCompose(StdVectorFst * fstp,
+								jint other_id, jint other_nonid)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-
 	for (StateIterator<StdVectorFst> siter(*fstp) ;
 			!siter.Done() ;
 			siter.Next()) {
@@ -618,12 +1188,16 @@ Java_OpenFstLibraryWrapper_fixOtherInputBeforeComposeNative
 }
 
 JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_fixOtherOutputBeforeComposeNative
+Java_OpenFstLibraryWrapper_fixOtherInputBeforeComposeNative
   (JNIEnv *env, jclass cls,
    jlong fstPtr, jint other_id, jint other_nonid)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
+	fixOtherInputBeforeCompose((StdVectorFst *)(uintptr_t) fstPtr, other_id, other_nonid) ;
+}
 
+static void fixOtherOutputBeforeCompose(StdVectorFst * fstp,
+								jint other_id, jint other_nonid)
+{
 	for (StateIterator<StdVectorFst> siter(*fstp) ;
 			!siter.Done() ;
 			siter.Next()) {
@@ -654,6 +1228,14 @@ Java_OpenFstLibraryWrapper_fixOtherOutputBeforeComposeNative
 	} // end of loop through the states
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_fixOtherOutputBeforeComposeNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, jint other_id, jint other_nonid)
+{
+	fixOtherOutputBeforeCompose((StdVectorFst *)(uintptr_t) fstPtr, other_id, other_nonid) ;
+}
+
     class ArcInfo {
       public:
 	    StateId src_state_id ;
@@ -669,13 +1251,9 @@ Java_OpenFstLibraryWrapper_fixOtherOutputBeforeComposeNative
         } 
     } ;
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_fixOtherAfterComposeNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jint other_id, jint other_nonid)
+static void fixOtherAfterCompose(StdVectorFst * fstp,
+								jint other_id, jint other_nonid)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-
 	// empty vector to store pointers to ArcInfo objects
 	vector<ArcInfo *> arcsToAdd ;
 	vector<ArcInfo *>::iterator iter ;
@@ -747,18 +1325,22 @@ Java_OpenFstLibraryWrapper_fixOtherAfterComposeNative
 		ArcInfo * aip = *iter ;
 		fstp->AddArc(aip->src_state_id, 
 			StdArc(aip->ilabel, aip->olabel, aip->weight, aip->dest_state_id)) ;
+		delete aip ;
 	}
-	// should disappear at end of function
-	// arcsToAdd.clear() ;
 }
 
 JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_inputProjectionFixOtherInPlaceNative
+Java_OpenFstLibraryWrapper_fixOtherAfterComposeNative
   (JNIEnv *env, jclass cls,
    jlong fstPtr, jint other_id, jint other_nonid)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
+	fixOtherAfterCompose((StdVectorFst *)(uintptr_t) fstPtr, 
+						other_id, other_nonid) ;
+}
 
+static void inputProjectionFixOtherInPlace(StdVectorFst * fstp,
+								jint other_id, jint other_nonid)
+{
 	for (StateIterator<StdVectorFst> siter(*fstp) ;
 			!siter.Done() ;
 			siter.Next()) {
@@ -804,6 +1386,14 @@ Java_OpenFstLibraryWrapper_inputProjectionFixOtherInPlaceNative
 	} // end of loop through the states
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_inputProjectionFixOtherInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, jint other_id, jint other_nonid)
+{
+	inputProjectionFixOtherInPlace((StdVectorFst *)(uintptr_t) fstPtr, other_id, other_nonid) ;
+}
+
 JNIEXPORT void JNICALL
 Java_OpenFstLibraryWrapper_changeInputToEpsilonInPlaceNative
   (JNIEnv *env, jclass cls,
@@ -891,13 +1481,9 @@ Java_OpenFstLibraryWrapper_changeOutputToEpsilonInPlaceNative
 	} // end of loop through the states
 }
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_outputProjectionFixOtherInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jint other_id, jint other_nonid)
+static void outputProjectionFixOtherInPlace(StdVectorFst * fstp,
+								jint other_id, jint other_nonid)
 {
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-
 	for (StateIterator<StdVectorFst> siter(*fstp) ;
 			!siter.Done() ;
 			siter.Next()) {
@@ -943,6 +1529,14 @@ Java_OpenFstLibraryWrapper_outputProjectionFixOtherInPlaceNative
 	} // end of loop through the states
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_outputProjectionFixOtherInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, jint other_id, jint other_nonid)
+{
+	outputProjectionFixOtherInPlace((StdVectorFst *)(uintptr_t) fstPtr, other_id, other_nonid) ;
+}
+
 JNIEXPORT void JNICALL
 Java_OpenFstLibraryWrapper_deleteOtherArcsInPlaceNative
   (JNIEnv *env, jclass cls,
@@ -994,14 +1588,11 @@ Java_OpenFstLibraryWrapper_deleteOtherArcsInPlaceNative
 
 // cf. deleteOtherArcsInPlace
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_synchronizeAltRuleInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, 
-   jint ruleRightAngleSymVal, 
-   jint hardEpsilonSymVal,
-   jint other_id,
-   jint other_nonid)
+static void synchronizeAltRuleInPlace(StdVectorFst * fstp,
+								jint ruleRightAngleSymVal,
+								jint hardEpsilonSymVal,
+								jint other_id,
+								jint other_nonid)
 {
 	// Purpose: final cleanup of networks compiled from alternation
 	//		rules, where the "action" of a rule ab -> cd
@@ -1019,8 +1610,6 @@ Java_OpenFstLibraryWrapper_synchronizeAltRuleInPlaceNative
 
 	// first pass adding x:y arcs
 
-	// fstp is a pointer to a native OpenFst network
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
 
 	vector<ArcInfo *> arcsToAdd ;
 	vector<ArcInfo *>::iterator iter ;
@@ -1150,6 +1739,21 @@ Java_OpenFstLibraryWrapper_synchronizeAltRuleInPlaceNative
 	Connect(fstp) ;
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_synchronizeAltRuleInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, 
+   jint ruleRightAngleSymVal, 
+   jint hardEpsilonSymVal,
+   jint other_id,
+   jint other_nonid)
+{
+	// fstp is a pointer to a native OpenFst network
+	synchronizeAltRuleInPlace((StdVectorFst *)(uintptr_t) fstPtr,
+							ruleRightAngleSymVal, hardEpsilonSymVal,
+							other_id, other_nonid) ;
+}
+
 JNIEXPORT jlong JNICALL
 Java_OpenFstLibraryWrapper_composeNative
   (JNIEnv *env, jclass cls,
@@ -1159,86 +1763,532 @@ Java_OpenFstLibraryWrapper_composeNative
 	StdVectorFst * secondFstPtr = (StdVectorFst *)(uintptr_t) second ;
 
 	StdVectorFst * resultFstPtr = new StdVectorFst() ;  // on the heap
-	// need to sort the output arcs of the first, or the input
-	// arcs of the second
-	ArcSort(secondFstPtr, StdILabelCompare()) ;
-	Compose(*firstFstPtr, *secondFstPtr, resultFstPtr) ;
+	// the output arcs of the first, or the input arcs of the second,
+	// must be sorted; that is now the responsibility of the caller
+	// (see OpenFstLibraryWrapper.sortForCompose()), which knows when
+	// an operand is already sorted
+	// As Compose(), but within the limits
+	try {
+		expandLimited(ComposeFst<StdArc>(*firstFstPtr, *secondFstPtr), 
+						resultFstPtr) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultFstPtr ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+	Connect(resultFstPtr) ;
 	return (jlong)(uintptr_t) resultFstPtr ;
 }
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_kleeneStarInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr)
+// helpers for crossproductNative
+
+// find (or add) the result state for the pair (p, q), where
+// p == kNoStateId means that the first acceptor is already finished
+// and q == kNoStateId that the second one is
+static StateId crossproductState(StdVectorFst * resultp,
+					unordered_map<uint64, StateId> & stateMap,
+					vector< pair<StateId, StateId> > & queue,
+					StateId p, StateId q)
 {
-	Closure((StdVectorFst *)(uintptr_t) fstPtr, CLOSURE_STAR) ;
-	return ;
+	uint64 key = ((uint64)(uint32)(p + 1) << 32) | (uint64)(uint32)(q + 1) ;
+	unordered_map<uint64, StateId>::iterator it = stateMap.find(key) ;
+	if (it != stateMap.end()) {
+		return it->second ;
+	}
+	StateId s = resultp->AddState() ;	// == queue.size()
+	stateMap[key] = s ;
+	queue.push_back(pair<StateId, StateId>(p, q)) ;
+	return s ;
 }
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_kleenePlusInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr)
+// add the arc(s) for the label pair x:y, following the Kleene
+// conventions for OTHER:  OTHER_ID appears only in OTHER_ID:OTHER_ID
+// (identity), so a one-sided OTHER becomes OTHER_NONID, and
+// OTHER:OTHER is both OTHER_ID:OTHER_ID and OTHER_NONID:OTHER_NONID
+// (cf. universalRelationFstNative and fixOtherAfterComposeNative)
+static void addCrossproductArc(StdVectorFst * resultp, StateId src,
+					Label x, Label y, Weight w, StateId dest,
+					Label other_id, Label other_nonid)
 {
-	Closure((StdVectorFst *)(uintptr_t) fstPtr, CLOSURE_PLUS) ;
-	return ;
+	if (x == other_id && y == other_id) {
+		resultp->AddArc(src, StdArc(other_id, other_id, w, dest)) ;
+		resultp->AddArc(src, StdArc(other_nonid, other_nonid, w, dest)) ;
+		return ;
+	}
+	if (x == other_id) {
+		x = other_nonid ;
+	}
+	if (y == other_id) {
+		y = other_nonid ;
+	}
+	resultp->AddArc(src, StdArc(x, y, w, dest)) ;
 }
 
-JNIEXPORT jlong JNICALL
-Java_OpenFstLibraryWrapper_iterateLowHighNative
-	(JNIEnv *env, jclass cls,
-	 jlong fstPtr, jlong low, jlong high)
+// The crossproduct A:B of two (semantic) acceptors, built directly
+// as a product of A and B instead of as A _o_ UniversalRelation _o_ B.
+// The symbols are paired position by position; when one side is
+// finished (in a final state) the rest of the other side is
+// mapped to/from epsilon, which is the same alignment as in the
+// universal relation.  Only accessible states are built.
+// Non-destructive, and A and B are only read (cf. differenceSorted);
+// the OTHER promotion of A and B has been done in Java.
+// Throws NativeLimitExceeded (after deleting the partial result).
+static StdVectorFst * crossproduct(const StdVectorFst * ap, 
+									const StdVectorFst * bp,
+									int other_id, int other_nonid)
 {
-	// basically a kind of concatenation;
-	// start with an emptyStringLanguageFst 
-	// (which recognizes only the empty string)
-	StdVectorFst *resultFstp = new StdVectorFst() ;
-	resultFstp->AddState() ;
-	resultFstp->SetStart(0) ;
-	resultFstp->SetFinal(0, 0.0) ;
+	StdVectorFst * resultp = new StdVectorFst() ;  // on the heap
 
-	// result starts with exactly 'low' concatenations of fstPtr (low could be 0)
-	for (int i = 0; i < low; i++) {
-		Concat(resultFstp, *((StdVectorFst *)(uintptr_t) fstPtr)) ;
+	if (ap->Start() == kNoStateId || bp->Start() == kNoStateId) {
+		// empty language
+		return resultp ;
 	}
 
-	// for the rest, start with a copy of fstPtr
-	StdVectorFst fstRest ;  // not on the heap
-	// Map (FST, ptr to FST, a mapper)
-	// here copies the first net into the second
-	Map(*((StdVectorFst *)(uintptr_t) fstPtr), &fstRest, IdentityMapper<StdArc>()) ;
-
-	if (high == -1) {   // pseudo-value (see OpenFstLibraryWrapper.java)
-		// then it's open-ended; need to concatenate fstRest*
-		Closure(&fstRest, CLOSURE_STAR) ;
-		Concat(resultFstp, fstRest) ;
-	} else {
-		// there's an explicit high value
-		//
-		// need to concatenate high-low copies of _optionalized_ fstRest
-		//
+	unordered_map<uint64, StateId> stateMap ;
+	vector< pair<StateId, StateId> > queue ;
+
+	resultp->SetStart(crossproductState(resultp, stateMap, queue, 
+												ap->Start(), bp->Start())) ;
+
+	LimitGuard guard ;
+	long long arcCount = 0 ;
+	try {
+		for (size_t i = 0; i < queue.size(); i++) {
+			StateId src = (StateId) i ;
+			StateId p = queue[i].first ;
+			StateId q = queue[i].second ;
+
+			Weight pFinal = (p == kNoStateId) ? Weight::One() : ap->Final(p) ;
+			Weight qFinal = (q == kNoStateId) ? Weight::One() : bp->Final(q) ;
+
+			resultp->SetFinal(src, Times(pFinal, qFinal)) ;
+
+			if (p != kNoStateId && q != kNoStateId) {
+				// both sides still running:  pair the symbols
+				for (ArcIterator<StdVectorFst> aiter(*ap, p) ;
+						!aiter.Done() ;
+						aiter.Next()) {
+					const StdArc & aarc = aiter.Value() ;
+					if (aarc.ilabel == 0) {
+						// epsilon in A, B waits
+						StateId dest = crossproductState(resultp, stateMap, 
+													queue, aarc.nextstate, q) ;
+						resultp->AddArc(src, StdArc(0, 0, aarc.weight, dest)) ;
+						continue ;
+					}
+					for (ArcIterator<StdVectorFst> biter(*bp, q) ;
+							!biter.Done() ;
+							biter.Next()) {
+						const StdArc & barc = biter.Value() ;
+						if (barc.ilabel == 0) {
+							continue ;	// handled below
+						}
+						StateId dest = crossproductState(resultp, stateMap, 
+											queue, aarc.nextstate, barc.nextstate) ;
+						addCrossproductArc(resultp, src, aarc.ilabel, barc.ilabel,
+											Times(aarc.weight, barc.weight), dest,
+											other_id, other_nonid) ;
+					}
+				}
+				for (ArcIterator<StdVectorFst> biter(*bp, q) ;
+						!biter.Done() ;
+						biter.Next()) {
+					const StdArc & barc = biter.Value() ;
+					if (barc.ilabel == 0) {
+						// epsilon in B, A waits
+						StateId dest = crossproductState(resultp, stateMap, 
+													queue, p, barc.nextstate) ;
+						resultp->AddArc(src, StdArc(0, 0, barc.weight, dest)) ;
+					}
+				}
+			}
+
+			if (q != kNoStateId && pFinal != Weight::Zero()) {
+				// A can finish here (or has finished):  the rest of B
+				// is mapped from epsilon
+				Weight w = (p == kNoStateId) ? Weight::One() : pFinal ;
+				for (ArcIterator<StdVectorFst> biter(*bp, q) ;
+						!biter.Done() ;
+						biter.Next()) {
+					const StdArc & barc = biter.Value() ;
+					StateId dest = crossproductState(resultp, stateMap, 
+											queue, kNoStateId, barc.nextstate) ;
+					addCrossproductArc(resultp, src, 0, barc.ilabel,
+										Times(w, barc.weight), dest,
+										other_id, other_nonid) ;
+				}
+			}
 
-		// the easy way would be to get the start state of fstRest and
-		// make it final, but what about the weight?
-		// This should be safe, union in an emptyStringLanguageFst
-		StdVectorFst emptyStringFst ;  // not on the heap
-		emptyStringFst.AddState() ;    // will be 0
-		emptyStringFst.SetStart(0) ;
-		emptyStringFst.SetFinal(0, 0.0) ;
+			if (p != kNoStateId && qFinal != Weight::Zero()) {
+				// B can finish here (or has finished):  the rest of A
+				// is mapped to epsilon
+				Weight w = (q == kNoStateId) ? Weight::One() : qFinal ;
+				for (ArcIterator<StdVectorFst> aiter(*ap, p) ;
+						!aiter.Done() ;
+						aiter.Next()) {
+					const StdArc & aarc = aiter.Value() ;
+					StateId dest = crossproductState(resultp, stateMap, 
+											queue, aarc.nextstate, kNoStateId) ;
+					addCrossproductArc(resultp, src, aarc.ilabel, 0,
+										Times(w, aarc.weight), dest,
+										other_id, other_nonid) ;
+				}
+			}
 
-		Union(&fstRest, emptyStringFst) ;
-		
-		for (int i = 0; i < (high - low); i++) {
-			Concat(resultFstp, fstRest) ;
+			arcCount += resultp->NumArcs(src) ;
+			guard.Check(resultp->NumStates(), arcCount) ;
+		}
+	} catch (NativeLimitExceeded & e) {
+		delete resultp ;
+		throw ;
+	}
+
+	return resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_crossproductNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second, jint other_id, jint other_nonid)
+{
+	try {
+		return (jlong)(uintptr_t) crossproduct(
+							(StdVectorFst *)(uintptr_t) first,
+							(StdVectorFst *)(uintptr_t) second,
+							other_id, other_nonid) ;
+	} catch (NativeLimitExceeded & e) {
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_kleeneStarInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr)
+{
+	Closure((StdVectorFst *)(uintptr_t) fstPtr, CLOSURE_STAR) ;
+	return ;
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_kleenePlusInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr)
+{
+	Closure((StdVectorFst *)(uintptr_t) fstPtr, CLOSURE_PLUS) ;
+	return ;
+}
+
+// defined below, with optimizeInPlaceNative
+static void optimizeFstInPlace(StdVectorFst * fstp,
+							bool determinize,
+							bool minimize,
+							bool rmepsilon) ;
+
+// The optional part of a bounded iteration, A{0,m}, built (non-destructively,
+// into chainp) as the nested chain  ( A ( A ( ... )? )? )?  i.e. m copies
+// of A linked one after the other, where the final states of every copy 
+// stay final.  Unlike the old (A|"")^m, which allowed a string to skip
+// any subset of the copies, each string has one way through the chain.
+// The chain is built from the inside out, one link at a time,
+// chain = ( A chain )?, and each partial chain is optimized (with the
+// user's settings) before the next link is added, so the network
+// that the next copy of A is concatenated onto stays minimal.
+static void buildOptionalChain(const StdVectorFst & a, jlong m, 
+												StdVectorFst * chainp,
+												bool determinize,
+												bool minimize,
+												bool rmepsilon)
+{
+	// start with the empty string language
+	chainp->DeleteStates() ;
+	StateId start = chainp->AddState() ;
+	chainp->SetStart(start) ;
+	chainp->SetFinal(start, Weight::One()) ;
+
+	if (a.Start() == kNoStateId) {
+		// A is the empty language; A{0,m} is just the empty string
+		return ;
+	}
+
+	for (jlong i = 0; i < m; i++) {
+		// link = A chain
+		StdVectorFst link(a) ;  // shares a until link changes
+		Concat(&link, *chainp) ;
+
+		// make it optional:  a new start state, final, with an
+		// epsilon arc to the old start state
+		StateId oldStart = link.Start() ;
+		StateId newStart = link.AddState() ;
+		link.SetFinal(newStart, Weight::One()) ;
+		if (oldStart != kNoStateId) {
+			link.AddArc(newStart, StdArc(0, 0, Weight::One(), oldStart)) ;
+		}
+		link.SetStart(newStart) ;
+
+		optimizeFstInPlace(&link, determinize, minimize, rmepsilon) ;
+		*chainp = link ;
+	}
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_iterateLowHighNative
+	(JNIEnv *env, jclass cls,
+	 jlong fstPtr, jlong low, jlong high,
+	 jboolean determinize, jboolean minimize, jboolean rmepsilon)
+{
+	// A{low,high} is computed as A^low A{0,high-low}, or as A^low A*
+	// for the open-ended A{low,} (high == -1)
+	//
+	// Formerly A was concatenated onto a growing result low times and
+	// then (A|"") high-low more times; each Concat() loops through all
+	// the states of the growing result, so that was quadratic, and the
+	// result (with only a final RmEpsilon) was bloated.
+
+	// non-destructive; work on a (copy-on-write) copy of the operand
+	StdVectorFst base(*((StdVectorFst *)(uintptr_t) fstPtr)) ;
+
+	// start with an emptyStringLanguageFst 
+	// (which recognizes only the empty string)
+	StdVectorFst *resultFstp = new StdVectorFst() ;
+	resultFstp->AddState() ;
+	resultFstp->SetStart(0) ;
+	resultFstp->SetFinal(0, 0.0) ;
+
+	try {
+
+	// The mandatory part A^low, by exponentiation by squaring:
+	// base runs through A, A^2, A^4, ... and is concatenated onto the
+	// result for each 1 bit of low, so there are O(log low) 
+	// concatenations, each followed by optimization (using the user's
+	// determinize/minimize/rmepsilon settings) to keep the intermediate
+	// networks small
+	for (jlong n = low; n > 0; ) {
+		if (n & 1) {
+			Concat(resultFstp, base) ;
+			optimizeFstInPlace(resultFstp, determinize, minimize, rmepsilon) ;
 		}
+		n >>= 1 ;
+		if (n > 0) {
+			StdVectorFst square(base) ;  // shares base until base changes
+			Concat(&base, square) ;
+			optimizeFstInPlace(&base, determinize, minimize, rmepsilon) ;
+		}
+	}
+
+	// for the rest, start again from the operand itself
+	StdVectorFst fstRest(*((StdVectorFst *)(uintptr_t) fstPtr)) ;
+
+	if (high == -1) {   // pseudo-value (see OpenFstLibraryWrapper.java)
+		// then it's open-ended; need to concatenate fstRest*
+		Closure(&fstRest, CLOSURE_STAR) ;
+		Concat(resultFstp, fstRest) ;
+	} else if (high > low) {
+		// there's an explicit high value;  concatenate the
+		// chain of high-low optional copies (optimized link by link)
+		StdVectorFst chain ;  // not on the heap
+		buildOptionalChain(fstRest, high - low, &chain, 
+							determinize, minimize, rmepsilon) ;
+		Concat(resultFstp, chain) ;
+	}
+
+	} catch (NativeLimitExceeded & e) {
+		delete resultFstp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
 	}
 
 	// KRB:  keep an eye on this
+	// (the full optimization of the result is done by the caller,
+	// Iterate() in OpenFstLibraryWrapper.java)
 	RmEpsilon(resultFstp) ;
 	return (jlong)(uintptr_t) resultFstp ;
 }
 
 
+// Structural fingerprints and identity
+
+static uint64_t fingerprintMix(uint64_t h, uint64_t v)
+{
+	// FNV-1a style mixing, a 64-bit value at a time
+	h ^= v ;
+	h *= 1099511628211ULL ;
+	h ^= h >> 29 ;
+	return h ;
+}
+
+static uint64_t weightBits(Weight w)
+{
+	float f = w.Value() ;
+	uint32_t bits ;
+	memcpy(&bits, &f, sizeof(bits)) ;
+	return (uint64_t) bits ;
+}
+
+// A 64-bit hash of the network exactly as stored (state numbering,
+// arc order, labels, weights and final weights).  Networks with the
+// same structure have the same fingerprint; different fingerprints
+// mean that the networks are not identical (though they may still
+// be equivalent).  Linear in the size of the network.
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_fingerprintNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr)
+{
+	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
+
+	uint64_t h = 14695981039346656037ULL ;   // FNV offset basis
+	h = fingerprintMix(h, (uint64_t) fstp->NumStates()) ;
+	h = fingerprintMix(h, (uint64_t)(int64_t) fstp->Start()) ;
+
+	for (StateIterator<StdVectorFst> siter(*fstp) ;
+			!siter.Done() ;
+			siter.Next()) {
+		StateId s = siter.Value() ;
+		h = fingerprintMix(h, weightBits(fstp->Final(s))) ;
+		h = fingerprintMix(h, (uint64_t) fstp->NumArcs(s)) ;
+		for (ArcIterator<StdVectorFst> aiter(*fstp, s) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			const StdArc &arc = aiter.Value() ;
+			h = fingerprintMix(h, ((uint64_t)(uint32_t) arc.ilabel << 32)
+								| (uint64_t)(uint32_t) arc.olabel) ;
+			h = fingerprintMix(h, ((uint64_t)(uint32_t) arc.nextstate << 32)
+								| weightBits(arc.weight)) ;
+		}
+	}
+	return (jlong) h ;
+}
+
+// true iff the two networks are identical as stored (the same states,
+// in the same order, with the same arcs and final weights); 
+// cf. fingerprintNative
+JNIEXPORT jboolean JNICALL
+Java_OpenFstLibraryWrapper_fstsIdenticalNative
+  (JNIEnv *env, jclass cls,
+   jlong first,
+   jlong second)
+{
+	StdVectorFst * fp = (StdVectorFst *)(uintptr_t) first ;
+	StdVectorFst * sp = (StdVectorFst *)(uintptr_t) second ;
+
+	if (fp == sp) {
+		return (jboolean) true ;
+	}
+	if (fp->NumStates() != sp->NumStates() || fp->Start() != sp->Start()) {
+		return (jboolean) false ;
+	}
+
+	for (StateIterator<StdVectorFst> siter(*fp) ;
+			!siter.Done() ;
+			siter.Next()) {
+		StateId s = siter.Value() ;
+		if (fp->Final(s) != sp->Final(s) 
+				|| fp->NumArcs(s) != sp->NumArcs(s)) {
+			return (jboolean) false ;
+		}
+		ArcIterator<StdVectorFst> saiter(*sp, s) ;
+		for (ArcIterator<StdVectorFst> faiter(*fp, s) ;
+				!faiter.Done() ;
+				faiter.Next(), saiter.Next()) {
+			const StdArc &farc = faiter.Value() ;
+			const StdArc &sarc = saiter.Value() ;
+			if (farc.ilabel != sarc.ilabel 
+					|| farc.olabel != sarc.olabel
+					|| farc.nextstate != sarc.nextstate
+					|| farc.weight != sarc.weight) {
+				return (jboolean) false ;
+			}
+		}
+	}
+	return (jboolean) true ;
+}
+
+// order the arcs leaving a state of a deterministic (on label pairs)
+// network, for canonicalHashNative
+static bool canonicalArcLess(const StdArc &a, const StdArc &b)
+{
+	if (a.ilabel != b.ilabel) {
+		return a.ilabel < b.ilabel ;
+	}
+	return a.olabel < b.olabel ;
+}
+
+// A canonical hash of the unweighted language (for a transducer, the
+// language of label pairs) of a network.  The network is copied,
+// its weights removed, and the copy is reduced to the minimal 
+// deterministic network (determinized and minimized as an acceptor of 
+// encoded label pairs), whose states are then renumbered in 
+// breadth-first order, taking the arcs of each state in (input, output)
+// label order.  The minimal network is unique up to the numbering of
+// its states, so networks with the same language (of label pairs) 
+// get the same hash, whatever their original structure.  In 
+// particular, if two acceptors get different hashes, they are not
+// equivalent (whatever their weights).
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_canonicalHashNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr)
+{
+	// work on a (copy-on-write) copy
+	StdVectorFst fst(*((StdVectorFst *)(uintptr_t) fstPtr)) ;
+
+	Map(&fst, RmWeightMapper<StdArc>()) ;
+	Connect(&fst) ;
+	RmEpsilon(&fst) ;
+
+	// an unweighted acceptor (of encoded label pairs) is always safe
+	// to determinize
+	EncodeMapper<StdArc> encoder(kEncodeLabels, ENCODE) ;
+	Encode(&fst, &encoder) ;
+	fst = DeterminizeFst<StdArc>(fst, 
+			DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))) ;
+	Minimize(&fst) ;
+	Decode(&fst, encoder) ;
+	Connect(&fst) ;
+
+	uint64_t h = 14695981039346656037ULL ;   // FNV offset basis
+	StateId start = fst.Start() ;
+	if (start == kNoStateId) {
+		// the empty language
+		return (jlong) fingerprintMix(h, 0) ;
+	}
+
+	// breadth-first renumbering of the states
+	vector<StateId> newId(fst.NumStates(), kNoStateId) ;
+	vector<StateId> queue ;
+	newId[start] = 0 ;
+	queue.push_back(start) ;
+	StateId nextId = 1 ;
+	vector<StdArc> arcs ;
+
+	for (size_t q = 0; q < queue.size(); q++) {
+		StateId s = queue[q] ;
+
+		arcs.clear() ;
+		for (ArcIterator<StdVectorFst> aiter(fst, s) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			arcs.push_back(aiter.Value()) ;
+		}
+		sort(arcs.begin(), arcs.end(), canonicalArcLess) ;
+
+		h = fingerprintMix(h, (fst.Final(s) != Weight::Zero()) ? 1 : 2) ;
+		h = fingerprintMix(h, (uint64_t) arcs.size()) ;
+		for (vector<StdArc>::iterator it = arcs.begin(); it != arcs.end(); ++it) {
+			if (newId[it->nextstate] == kNoStateId) {
+				newId[it->nextstate] = nextId++ ;
+				queue.push_back(it->nextstate) ;
+			}
+			h = fingerprintMix(h, ((uint64_t)(uint32_t) it->ilabel << 32)
+								| (uint64_t)(uint32_t) it->olabel) ;
+			h = fingerprintMix(h, (uint64_t) newId[it->nextstate]) ;
+		}
+	}
+	return (jlong) h ;
+}
+
 JNIEXPORT jboolean JNICALL
 Java_OpenFstLibraryWrapper_isEquivalentNative
   (JNIEnv *env, jclass cls,
@@ -1268,6 +2318,42 @@ Java_OpenFstLibraryWrapper_isRandEquivalentNative
 }
 
 
+// The property word cached on each Java Fst (see 
+// OpenFstLibraryWrapper.hasProperty()):  the trinary OpenFst properties
+// that the wrapper and checker keep asking about, all computed in one
+// call, one bit for each pair (kAcceptor/kNotAcceptor, etc.), since after 
+// Properties(mask, true) one of each pair is known to hold.  
+// The bit values must agree with the PROP_ constants in 
+// OpenFstLibraryWrapper.java
+JNIEXPORT jint JNICALL
+Java_OpenFstLibraryWrapper_propertyWordNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr)
+{
+	uint64_t props = ((StdVectorFst *)(uintptr_t) fstPtr)->Properties(
+			  kAcceptor | kNotAcceptor
+			| kIDeterministic | kNonIDeterministic
+			| kODeterministic | kNonODeterministic
+			| kEpsilons | kNoEpsilons
+			| kWeighted | kUnweighted
+			| kCyclic | kAcyclic
+			| kString | kNotString
+			| kILabelSorted | kNotILabelSorted
+			| kOLabelSorted | kNotOLabelSorted, true) ;
+
+	jint word = 0 ;
+	if (props & kAcceptor)			word |= 0x01 ;
+	if (props & kIDeterministic)	word |= 0x02 ;
+	if (props & kODeterministic)	word |= 0x04 ;
+	if (props & kNoEpsilons)		word |= 0x08 ;
+	if (props & kWeighted)			word |= 0x10 ;
+	if (props & kCyclic)			word |= 0x20 ;
+	if (props & kString)			word |= 0x40 ;
+	if (props & kILabelSorted)		word |= 0x80 ;
+	if (props & kOLabelSorted)		word |= 0x100 ;
+	return word ;
+}
+
 JNIEXPORT jboolean JNICALL
 Java_OpenFstLibraryWrapper_isAcceptorNative
   (JNIEnv *env, jclass cls,
@@ -1665,16 +2751,21 @@ Java_OpenFstLibraryWrapper_determinizeNative
    jlong fstPtr)
 {
 	StdVectorFst * resultFst = new StdVectorFst() ;
-	Determinize(*((StdVectorFst *)(uintptr_t) fstPtr), resultFst) ;
+	try {
+		expandLimited(DeterminizeFst<StdArc>(*((StdVectorFst *)(uintptr_t) fstPtr),
+						DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))),
+						resultFst) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultFst ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
     return (jlong)(uintptr_t) resultFst ;
 }
 
 // cf to optimizeInPlaceNative; determinizeInPlaceNative just does (safe)
 // determinization
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_determinizeInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr)
+static void determinizeFstInPlace(jlong fstPtr)
 {
 	// Old
 	//DetInPlace(((StdVectorFst *)(uintptr_t) fstPtr)) ;
@@ -1702,8 +2793,7 @@ Java_OpenFstLibraryWrapper_determinizeInPlaceNative
 		//   creates a new output Fst)
 		//   KRB semiring-generalization point
 
-    	*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))) ;
+    	determinizeLimited(fstp) ;
 
 	} else if (fstp->Properties(kAcyclic, true)) {
 
@@ -1722,8 +2812,7 @@ Java_OpenFstLibraryWrapper_determinizeInPlaceNative
 		// to Encode(), need to pass a pointer to the EncodeMapper
     	Encode(fstp, &encoder) ;
 		// KRB:  semiring-generalization point
-    	*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    	determinizeLimited(fstp, &encoder) ;
 		// to Decode(), need to pass the encoder (not a ptr to it)
     	Decode(fstp, encoder) ;
 
@@ -1758,8 +2847,7 @@ Java_OpenFstLibraryWrapper_determinizeInPlaceNative
 
     		Encode(fstp, &encoder) ;
 			// KRB:  semiring-generalization point
-    		*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 	DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    		determinizeLimited(fstp, &encoder) ;
     		Decode(fstp, encoder) ;
 
 		} 
@@ -1768,24 +2856,31 @@ Java_OpenFstLibraryWrapper_determinizeInPlaceNative
     return ;
 }
 
-// cf to determinizeInPlaceNative
 JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_optimizeInPlaceNative
+Java_OpenFstLibraryWrapper_determinizeInPlaceNative
   (JNIEnv *env, jclass cls,
-   jlong fstPtr,
-   jboolean determinize,
-   jboolean minimize,
-   jboolean rmepsilon)
+   jlong fstPtr)
+{
+	try {
+		determinizeFstInPlace(fstPtr) ;
+	} catch (NativeLimitExceeded & e) {
+		// the network is left as it was (see determinizeLimited())
+		throwNativeLimitException(env, e) ;
+	}
+}
+
+// cf to determinizeInPlaceNative
+// The work of optimizeInPlaceNative, also called directly by other
+// native functions that optimize intermediate results (e.g.
+// iterateLowHighNative)
+static void optimizeFstInPlace(StdVectorFst * fstp,
+							bool determinize,
+							bool minimize,
+							bool rmepsilon)
 {
 	// KRB; semiring-generalization point
 	// figure out how to template this on <class Arc>
 
-	// StdVectorFst is a typedef for VectorFst<StdArc>
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-	//VectorFst<StdArc> * fstp = (VectorFst<StdArc> *)(uintptr_t) fstPtr ;
-	// or ???
-	//MutableFst<Arc> * fstp = (MutableFst<Arc> *)(uintptr_t) fstPtr ;
-
 	if (      fstp->Properties(kUnweighted, true)
 		   && fstp->Properties(kAcceptor, true)
 	   ) {
@@ -1803,8 +2898,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
 		//   KRB semiring-generalization point
 
 		if (determinize) {
-    		*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))) ;
+    		determinizeLimited(fstp) ;
 		}
 
 		// The Minimize() algorithm works in place
@@ -1822,8 +2916,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
 			// KRB:  semiring-generalization point
 
 			if (determinize) {
-    			*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 	DeterminizeFstOptions<StdArc>(CacheOptions(true, 0))) ;
+    			determinizeLimited(fstp) ;
 			}
 
 			if (minimize && fstp->Properties(kIDeterministic, true)) {
@@ -1851,8 +2944,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
 
 			if (determinize) {
 				// KRB:  semiring-generalization point
-    			*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    			determinizeLimited(fstp, &encoder) ;
 			}
 
 			if (minimize && fstp->Properties(kIDeterministic, true)) {
@@ -1870,8 +2962,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
     			Encode(fstp, &encoder) ;
 				if (determinize) {
 					// KRB:  semiring-generalization point
-    				*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 		DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    				determinizeLimited(fstp, &encoder) ;
 				}
 				if (minimize && fstp->Properties(kIDeterministic, true)) {
     				Minimize(fstp) ;
@@ -1914,8 +3005,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
 
 				if (determinize) {
 					// KRB:  semiring-generalization point
-    				*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 		DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    				determinizeLimited(fstp, &encoder) ;
 				}
 				if (minimize && fstp->Properties(kIDeterministic, true)) {
     				Minimize(fstp) ;
@@ -1930,8 +3020,7 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
     				Encode(fstp, &encoder) ;
 					if (determinize) {
 						// KRB: semiring-generalization point
-    					*fstp = DeterminizeFst<StdArc>(*fstp, 
-                 			DeterminizeFstOptions<StdArc>(CacheOptions(true, 0)));
+    					determinizeLimited(fstp, &encoder) ;
 					}
 					if (minimize && fstp->Properties(kIDeterministic, true)) {
     					Minimize(fstp) ;
@@ -1952,6 +3041,195 @@ Java_OpenFstLibraryWrapper_optimizeInPlaceNative
     return ;
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_optimizeInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon)
+{
+	// StdVectorFst is a typedef for VectorFst<StdArc>
+	try {
+		optimizeFstInPlace((StdVectorFst *)(uintptr_t) fstPtr, 
+						determinize, minimize, rmepsilon) ;
+	} catch (NativeLimitExceeded & e) {
+		// the network denotes the same language, perhaps only
+		// partly optimized
+		throwNativeLimitException(env, e) ;
+	}
+    return ;
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_setNativeLimitsNative
+  (JNIEnv *env, jclass cls,
+   jlong maxStates, jlong maxArcs, jlong maxMillis)
+{
+	// for the operations started from now on
+	maxStatesLimit.store(maxStates) ;
+	maxArcsLimit.store(maxArcs) ;
+	maxMillisLimit.store(maxMillis) ;
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_cancelNativeOperationsNative
+  (JNIEnv *env, jclass cls)
+{
+	// stops the operations running now (see LimitGuard)
+	cancelGeneration.fetch_add(1) ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_intersectOptimizeNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second,
+   jboolean copyFirst,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon)
+{
+	// one step of OpenFstLibraryWrapper.IntersectFsts():  intersection,
+	// Connect() and optimization in one call, non-destructive.
+	// Called from Java worker threads, several at a time.  The
+	// arguments may share a copy-on-write implementation with other
+	// networks (see copyFstNative), and that reference count is not
+	// thread-safe; so the second argument (which needs its input arcs
+	// sorted anyway) is always copied, and the first if copyFirst,
+	// with appendStatesAndArcs(), which only reads the original.
+	// A first argument built by an earlier step is private to the
+	// caller and needs no copy.
+	const StdVectorFst * firstp = (StdVectorFst *)(uintptr_t) first ;
+	const StdVectorFst * secondp = (StdVectorFst *)(uintptr_t) second ;
+
+	StdVectorFst firstCopy ;
+	if (copyFirst) {
+		appendStatesAndArcs(&firstCopy, *firstp) ;
+		firstCopy.SetStart(firstp->Start()) ;
+		firstp = &firstCopy ;
+	}
+
+	StdVectorFst secondSorted ;
+	appendStatesAndArcs(&secondSorted, *secondp) ;
+	secondSorted.SetStart(secondp->Start()) ;
+	ArcSort(&secondSorted, ILabelCompare<StdArc>()) ;
+
+	StdVectorFst * resultp = new StdVectorFst() ;
+	try {
+		expandLimited(IntersectFst<StdArc>(*firstp, secondSorted), resultp) ;
+		Connect(resultp) ;
+		optimizeFstInPlace(resultp, determinize, minimize, rmepsilon) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_composeOptimizeNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second,
+   jint other_id, jint other_nonid,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon)
+{
+	// the native work of OpenFstLibraryWrapper.ComposeAsync(), run on a
+	// worker thread:  composition, the fixing of OTHER, Connect() and
+	// optimization in one call, non-destructive.  The arguments are
+	// copy-on-write shares (copyFstNative) taken by the interpreter
+	// thread, whose reference count is not thread-safe; ComposeFst
+	// would Copy() them, and the second needs its input arcs sorted,
+	// so both are first copied here, on the worker, with 
+	// appendStatesAndArcs(), which only reads the original (cf.
+	// intersectOptimizeNative).
+	const StdVectorFst * firstp = (StdVectorFst *)(uintptr_t) first ;
+	const StdVectorFst * secondp = (StdVectorFst *)(uintptr_t) second ;
+
+	StdVectorFst firstCopy ;
+	appendStatesAndArcs(&firstCopy, *firstp) ;
+	firstCopy.SetStart(firstp->Start()) ;
+
+	StdVectorFst secondSorted ;
+	appendStatesAndArcs(&secondSorted, *secondp) ;
+	secondSorted.SetStart(secondp->Start()) ;
+	ArcSort(&secondSorted, ILabelCompare<StdArc>()) ;
+
+	StdVectorFst * resultp = new StdVectorFst() ;
+	try {
+		expandLimited(ComposeFst<StdArc>(firstCopy, secondSorted), resultp) ;
+		fixOtherAfterCompose(resultp, other_id, other_nonid) ;
+		Connect(resultp) ;
+		optimizeFstInPlace(resultp, determinize, minimize, rmepsilon) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_differenceOptimizeNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon)
+{
+	// the native work of OpenFstLibraryWrapper.DifferenceAsync(), run
+	// on a worker thread:  difference, Connect() and optimization in
+	// one call.  The arguments are copy-on-write shares, only read by
+	// differenceSorted(); the second is already the prepared
+	// subtrahend.
+	StdVectorFst * resultp = NULL ;
+	try {
+		resultp = differenceSorted(*((StdVectorFst *)(uintptr_t) first),
+									*((StdVectorFst *)(uintptr_t) second)) ;
+		Connect(resultp) ;
+		optimizeFstInPlace(resultp, determinize, minimize, rmepsilon) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_crossproductOptimizeNative
+  (JNIEnv *env, jclass cls,
+   jlong first, jlong second,
+   jint other_id, jint other_nonid,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon)
+{
+	// the native work of OpenFstLibraryWrapper.CrossproductAsync(), run
+	// on a worker thread:  crossproduct, Connect() and optimization in
+	// one call.  The arguments are copy-on-write shares, only read by
+	// crossproduct().
+	StdVectorFst * resultp = NULL ;
+	try {
+		resultp = crossproduct((StdVectorFst *)(uintptr_t) first,
+								(StdVectorFst *)(uintptr_t) second,
+								other_id, other_nonid) ;
+		Connect(resultp) ;
+		optimizeFstInPlace(resultp, determinize, minimize, rmepsilon) ;
+	} catch (NativeLimitExceeded & e) {
+		delete resultp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+
+	return (jlong)(uintptr_t) resultp ;
+}
+
 JNIEXPORT void JNICALL
 Java_OpenFstLibraryWrapper_minimizeInPlaceNative
   (JNIEnv *env, jclass cls,
@@ -2276,105 +3554,325 @@ Java_OpenFstLibraryWrapper_addStatesAndArcsNative
     return (jint) (numStatesDest + srcPtr->Start()) ;
 }
 
-JNIEXPORT jlong JNICALL
-Java_OpenFstLibraryWrapper_rrGrammarLinkNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jintArray keyarr, jintArray valarr)
-{
-	// keyarr and valarr are the same length;
-	// the values in keyarr are negative integers assigned
-	// to $>name references, and stored on Arc labels;
-	// Need to find that value in keyarr, get the index,
-	// and use that index to retrieve the new nextstate
-	// value from valarr
-
-	jint *keys ;
-	jint *vals ;
-	keys = env->GetIntArrayElements(keyarr, NULL) ;
-	if (keys == NULL) {
-		return 0L ;  // couldn't allocate the space
+// ****************************************************************
+// Incremental construction of a minimal acyclic network from a
+// sorted list of entries, after Daciuk, Mihov, Watson & Watson (2000)
+// "Incremental Construction of Minimal Acyclic Finite-State Automata".
+// Each entry is a string of label pairs (upper:lower, already padded
+// with epsilons by the Java caller); the states are kept in a simple
+// vector and only the final result is copied into a StdVectorFst, so
+// peak memory is bounded by the size of the minimal network plus the
+// one unregistered path of the most recent entry.
+// ****************************************************************
+
+struct LexBuilderState {
+	bool final ;
+	vector<Label> ilabels ;
+	vector<Label> olabels ;
+	vector<int> targets ;	// targets.back() is the most recent arc
+
+	LexBuilderState() : final(false) {}
+} ;
+
+struct LexBuilderSignatureHash {
+	size_t operator()(const vector<int> & sig) const {
+		size_t h = 0 ;
+		for (size_t i = 0; i < sig.size(); i++) {
+			h = h * 7853 + (size_t) sig[i] ;
+		}
+		return h ;
 	}
-	jsize keyLen = env->GetArrayLength(keyarr) ;
-	// N.B. release keys below
-	vals = env->GetIntArrayElements(valarr, NULL) ;
-	if (vals == NULL) {
-		return 0L ; // couldn't allocate the space
+} ;
+
+struct LexBuilder {
+	vector<LexBuilderState> states ;	// state 0 is the start state
+	vector<int> freeStates ;			// reusable (replaced) states
+	// the register of states already known to be unique,
+	// keyed by their signature (finality plus outgoing arcs)
+	unordered_map< vector<int>, int, LexBuilderSignatureHash > reg ;
+	vector<Label> prevUpper ;
+	vector<Label> prevLower ;
+	bool hasPrev ;
+
+	LexBuilder() : hasPrev(false) {
+		states.push_back(LexBuilderState()) ;
 	}
-	// N.B. release vals below
-	
-	StdVectorFst * rootFstPtr = (StdVectorFst *)(uintptr_t) fstPtr ;
+} ;
 
-	// Iterate through all the states of the passed-in Fst,
-	// and loop through the arcs exiting each state for any
-	// negative int values (corresponding to right-linear 
-	// references like $>foo)
-	for (StateIterator<StdVectorFst> siter(*rootFstPtr) ;
-			!siter.Done() ;
-			siter.Next()) {
-		// s is the int identifier of a state
-		StateId s = siter.Value() ;
+static int lexBuilderNewState(LexBuilder * b) {
+	if (!b->freeStates.empty()) {
+		int s = b->freeStates.back() ;
+		b->freeStates.pop_back() ;
+		return s ;
+	}
+	b->states.push_back(LexBuilderState()) ;
+	return (int) b->states.size() - 1 ;
+}
 
-		// Now loop through the exit arcs of s.
-		// Need to use MUTABLEArcIterator to be able to _change_
-		// the values on the orig. arcs (this constructor needs a ptr
-		// to an Fst rather than the Fst itself); the final stmt
-		// in the loop needs to be aiter.SetValue(arc) to set the
-		// new values in the Fst
+static void lexBuilderReplaceOrRegister(LexBuilder * b, int s) {
+	int child = b->states[s].targets.back() ;
+	if (!b->states[child].targets.empty()) {
+		lexBuilderReplaceOrRegister(b, child) ;
+	}
 
-		for (MutableArcIterator<StdVectorFst> aiter(rootFstPtr, s) ;
-				!aiter.Done() ;
-				aiter.Next()) {
+	const LexBuilderState & c = b->states[child] ;
+	vector<int> sig ;
+	sig.reserve(1 + 3 * c.targets.size()) ;
+	sig.push_back(c.final ? 1 : 0) ;
+	for (size_t i = 0; i < c.targets.size(); i++) {
+		sig.push_back(c.ilabels[i]) ;
+		sig.push_back(c.olabels[i]) ;
+		sig.push_back(c.targets[i]) ;
+	}
 
-			// arc is (for now) a copy of the original arc
-			StdArc arc = aiter.Value() ;
+	unordered_map< vector<int>, int, LexBuilderSignatureHash >::iterator it = 
+															b->reg.find(sig) ;
+	if (it != b->reg.end()) {
+		// an equivalent state is already registered; use it,
+		// and recycle the child
+		b->states[s].targets.back() = it->second ;
+		b->states[child] = LexBuilderState() ;
+		b->freeStates.push_back(child) ;
+	} else {
+		b->reg[sig] = child ;
+	}
+}
 
-			// if the ilabel is negative, then it corresponds to 
-			// some right-linear reference like $>foo
-			if (arc.ilabel < 0) {
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_lexiconBuilderNewNative
+  (JNIEnv *env, jclass cls)
+{
+	return (jlong)(uintptr_t) new LexBuilder() ;
+}
 
-				// The arc currently leads to a final state,
-				// and that final state has a weight
-				StateId origArcDest = arc.nextstate ;
+JNIEXPORT jint JNICALL
+Java_OpenFstLibraryWrapper_lexiconBuilderAddNative
+  (JNIEnv *env, jclass cls,
+   jlong builderPtr, jintArray upper, jintArray lower)
+{
+	// upper and lower are the same length (padded with epsilons)
+	// Returns 0 if the entry was added, 1 if it was a duplicate of the
+	// previous entry (ignored), -1 if it is out of order (nothing
+	// changed), -2 if the array elements couldn't be accessed.
+	LexBuilder * b = (LexBuilder *)(uintptr_t) builderPtr ;
+
+	jsize len = env->GetArrayLength(upper) ;
+	jint *uppers = env->GetIntArrayElements(upper, NULL) ;
+	if (uppers == NULL) {
+		return (jint) -2 ;
+	}
+	jint *lowers = env->GetIntArrayElements(lower, NULL) ;
+	if (lowers == NULL) {
+		env->ReleaseIntArrayElements(upper, uppers, JNI_ABORT) ;
+		return (jint) -2 ;
+	}
+	vector<Label> u(uppers, uppers + len) ;
+	vector<Label> l(lowers, lowers + len) ;
+	// N.B. release these arrays or get a Memory Leak!
+	env->ReleaseIntArrayElements(upper, uppers, JNI_ABORT) ;
+	env->ReleaseIntArrayElements(lower, lowers, JNI_ABORT) ;
+
+	// length of the common prefix with the previous entry
+	size_t prevLen = b->prevUpper.size() ;
+	size_t k = 0 ;
+	while (k < (size_t) len && k < prevLen
+			&& u[k] == b->prevUpper[k] && l[k] == b->prevLower[k]) {
+		k++ ;
+	}
+	if (b->hasPrev && k == (size_t) len && k == prevLen) {
+		return (jint) 1 ;	// duplicate
+	}
+	if (k < prevLen) {
+		if (k == (size_t) len 
+			|| u[k] < b->prevUpper[k]
+			|| (u[k] == b->prevUpper[k] && l[k] < b->prevLower[k])) {
+			return (jint) -1 ;	// not sorted
+		}
+	}
 
-				// Copy that that weight onto the modified arc
-				arc.weight = rootFstPtr->Final(origArcDest) ;
+	// the common prefix follows the most recent arcs from the start state
+	int s = 0 ;
+	for (size_t i = 0; i < k; i++) {
+		s = b->states[s].targets.back() ;
+	}
+	if (!b->states[s].targets.empty()) {
+		lexBuilderReplaceOrRegister(b, s) ;
+	}
 
-				int index = -1 ;
-				for (int i = 0; i < keyLen; i++) {
-					// find the index of the negative value
-					// in keys
-					if (keys[i] == arc.ilabel) {
-						index = i ;
-						break ;
-					}
-				}
-				// if index is still -1, then there's an error.
-
-				// Change this arc to an eps:eps arc and repoint it at the
-				// start state of the destination network (already
-				// "added" to the start network)
-				arc.ilabel = 0 ;  // make it an eps:eps arc
-				arc.olabel = 0 ;  
-				// (label 0 is reserved for epsilon in OpenFst)
-			
-				// repoint the arc to the start state corresponding to
-				// the $>foo arc label
-				arc.nextstate = vals[index] ;
-				
-			} // end of block handling right-linear reference
+	// add the suffix
+	for (size_t i = k; i < (size_t) len; i++) {
+		int t = lexBuilderNewState(b) ;	// may reallocate b->states
+		b->states[s].ilabels.push_back(u[i]) ;
+		b->states[s].olabels.push_back(l[i]) ;
+		b->states[s].targets.push_back(t) ;
+		s = t ;
+	}
+	b->states[s].final = true ;
 
-			// and here, the final step in the loop through the arcs,
-			// the modified arc is set in the network being processed
-			aiter.SetValue(arc) ;
+	b->prevUpper.swap(u) ;
+	b->prevLower.swap(l) ;
+	b->hasPrev = true ;
+	return (jint) 0 ;
+}
 
-		} // end of loop through the arcs of a state
-	} // end of loop through the states
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_lexiconBuilderFinishNative
+  (JNIEnv *env, jclass cls,
+   jlong builderPtr)
+{
+	// register the path of the last entry, copy the reachable states
+	// into a new StdVectorFst, and delete the builder
+	LexBuilder * b = (LexBuilder *)(uintptr_t) builderPtr ;
+
+	if (!b->states[0].targets.empty()) {
+		lexBuilderReplaceOrRegister(b, 0) ;
+	}
+	// the register is no longer needed
+	b->reg.clear() ;
+
+	StdVectorFst * fstp = new StdVectorFst() ;
+	vector<StateId> newId(b->states.size(), kNoStateId) ;
+	vector<int> todo ;
+
+	newId[0] = fstp->AddState() ;
+	fstp->SetStart(newId[0]) ;
+	todo.push_back(0) ;
+
+	while (!todo.empty()) {
+		int s = todo.back() ;
+		todo.pop_back() ;
+		const LexBuilderState & st = b->states[s] ;
+		if (st.final) {
+			fstp->SetFinal(newId[s], Weight::One()) ;
+		}
+		for (size_t i = 0; i < st.targets.size(); i++) {
+			int t = st.targets[i] ;
+			if (newId[t] == kNoStateId) {
+				newId[t] = fstp->AddState() ;
+				todo.push_back(t) ;
+			}
+			fstp->AddArc(newId[s], 
+					StdArc(st.ilabels[i], st.olabels[i], Weight::One(), newId[t])) ;
+		}
+	}
+
+	delete b ;
+	return (jlong)(uintptr_t) fstp ;
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_lexiconBuilderDeleteNative
+  (JNIEnv *env, jclass cls,
+   jlong builderPtr)
+{
+	// abandon a builder without building the network
+	delete (LexBuilder *)(uintptr_t) builderPtr ;
+}
+
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_rrGrammarLinkNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs, jintArray keyarr)
+{
+	// Link a whole right-linear grammar in one pass, into a new
+	// network (the productions are not changed).
+	// netPtrs and keyarr are the same length:  netPtrs[i] is the
+	// network of production i (netPtrs[0] is the root production),
+	// and keyarr[i] is the negative label value assigned to its 
+	// $>name references, which are stored on arc labels.
+	// The states of all the productions are copied into the result
+	// (preallocated, at known offsets), and each reference arc is
+	// resolved as it is copied, through a hash map from the negative
+	// label to the (new) start state of the production:  it becomes
+	// an eps:eps arc, pointing at that start state, with the weight 
+	// of the final state that it originally led to.  The old final
+	// states typically become unconnected.
+	// Returns 0 if the arrays couldn't be accessed, or if a reference
+	// can't be resolved.
+
+	jlong *ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
+	if (ptrs == NULL) {
+		return 0L ;  // couldn't allocate the space
+	}
+	jint *keys = env->GetIntArrayElements(keyarr, NULL) ;
+	if (keys == NULL) {
+		env->ReleaseLongArrayElements(netPtrs, ptrs, 0) ;
+		return 0L ; // couldn't allocate the space
+	}
+	jsize len = env->GetArrayLength(netPtrs) ;
+
+	vector<const StdVectorFst *> prods ;
+	vector<StateId> offsets ;
+	unordered_map<int, StateId> startOf ;
+	StateId total = 0 ;
+	for (int i = 0; i < len; i++) {
+		const StdVectorFst * fstp = (const StdVectorFst *)(uintptr_t) ptrs[i] ;
+		prods.push_back(fstp) ;
+		offsets.push_back(total) ;
+		// kNoStateId for a production with an empty network
+		startOf[(int) keys[i]] = (fstp->Start() == kNoStateId) 
+									? kNoStateId : total + fstp->Start() ;
+		total += fstp->NumStates() ;
+	}
 
 	// N.B. release these arrays or get a Memory Leak!
+	env->ReleaseLongArrayElements(netPtrs, ptrs, 0) ;
 	env->ReleaseIntArrayElements(keyarr, keys, 0) ;
-	env->ReleaseIntArrayElements(valarr, vals, 0) ;
 
-    return (jlong)(uintptr_t) rootFstPtr ;  // successful return
+	StdVectorFst * resultFstPtr = new StdVectorFst() ;
+	resultFstPtr->ReserveStates(total) ;
+
+	for (int i = 0; i < len; i++) {
+		const StdVectorFst & src = *prods[i] ;
+		StateId offset = offsets[i] ;
+
+		for (StateIterator<StdVectorFst> siter(src) ;
+				!siter.Done() ;
+				siter.Next()) {
+			StateId s_src = siter.Value() ;
+			StateId s_dest = resultFstPtr->AddState() ;  // == s_src + offset
+			resultFstPtr->SetFinal(s_dest, src.Final(s_src)) ;
+			resultFstPtr->ReserveArcs(s_dest, src.NumArcs(s_src)) ;
+
+			for (ArcIterator<StdVectorFst> aiter(src, s_src) ;
+					!aiter.Done() ;
+					aiter.Next()) {
+				StdArc arc = aiter.Value() ;  // a copy of the orig. arc
+
+				// if the ilabel is negative, then it corresponds to 
+				// some right-linear reference like $>foo
+				if (arc.ilabel < 0) {
+					unordered_map<int, StateId>::const_iterator it = 
+											startOf.find((int) arc.ilabel) ;
+					if (it == startOf.end()) {
+						// unknown production
+						delete resultFstPtr ;
+						return 0L ;
+					}
+					if (it->second == kNoStateId) {
+						// the production has an empty language, so
+						// there are no paths through this arc
+						continue ;
+					}
+					// The arc currently leads to a final state,
+					// and that final state has a weight:
+					// copy that weight onto the modified arc
+					arc.weight = src.Final(arc.nextstate) ;
+					arc.ilabel = 0 ;  // make it an eps:eps arc
+					arc.olabel = 0 ;
+					arc.nextstate = it->second ;
+				} else {
+					arc.nextstate += offset ;
+				}
+				resultFstPtr->AddArc(s_dest, arc) ;
+			}
+		}
+	}
+
+	if (len > 0 && prods[0]->Start() != kNoStateId) {
+		resultFstPtr->SetStart(offsets[0] + prods[0]->Start()) ;
+	}
+	return (jlong)(uintptr_t) resultFstPtr ;  // successful return
 }
 
 JNIEXPORT jintArray JNICALL
@@ -2476,11 +3974,14 @@ Java_OpenFstLibraryWrapper_getOutputLabelsNative
 	return retArr ;
 }
 
-JNIEXPORT jint JNICALL
-Java_OpenFstLibraryWrapper_hasCyclicDependenciesNative
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_expandRtnNative
   (JNIEnv *env, jclass cls,
    jint baseFstInt, jintArray symInts, jlongArray netPtrs)
 {
+	// hasCyclicDependencies has already been called to
+	// determine that the expansion is legal
+
 	// symInts and netPtrs are the same length;
 	// they represents the pairs needed by ReplaceFst()
 
@@ -2501,61 +4002,304 @@ Java_OpenFstLibraryWrapper_hasCyclicDependenciesNative
 
 	for (int i = 0; i < vectorLen; i++) {
 		pairlabelfsts.push_back( pair< StdArc::Label, const Fst<StdArc>* >
-						((StdArc::Label)(ints[i]), (Fst<StdArc>*)(ptrs[i])) ) ;
+							((StdArc::Label)(ints[i]), (Fst<StdArc>*)(ptrs[i])) ) ;
 	}
 
 	// N.B. release these arrays or get a Memory Leak!
 	env->ReleaseIntArrayElements(symInts, ints, 0) ;
 	env->ReleaseLongArrayElements(netPtrs, ptrs, 0) ;
 
-	// test for cyclic dependencies in a proposed replacement
-	if (ReplaceFst<StdArc>(pairlabelfsts, baseFstInt).CyclicDependencies()) {
-		return (jint)(uintptr_t) 1 ;
-	} else {
-		return (jint)(uintptr_t) 0 ;
+	StdVectorFst *fstp = new StdVectorFst() ;
+
+	// As Replace<StdArc>(pairlabelfsts, fstp, baseFstInt, true), but
+	// within the limits
+	ReplaceFstOptions<StdArc> opts(baseFstInt, true) ;
+	opts.gc_limit = 0 ;
+	try {
+		expandLimited(ReplaceFst<StdArc>(pairlabelfsts, opts), fstp) ;
+	} catch (NativeLimitExceeded & e) {
+		delete fstp ;
+		throwNativeLimitException(env, e) ;
+		return 0 ;
 	}
+
+	return (jlong)(uintptr_t) fstp ; 
 }
 
-JNIEXPORT jlong JNICALL
-Java_OpenFstLibraryWrapper_expandRtnNative
-  (JNIEnv *env, jclass cls,
-   jint baseFstInt, jintArray symInts, jlongArray netPtrs)
+// Direct application of an RTN to one input string, without the
+// Replace() expansion of expandRtnNative:  the RTN is run with a call
+// stack, and only the configurations (network, state, input position,
+// stack) actually reached by the input are built, as the states of
+// the result.  The networks are not copied or changed.  The result is
+// built within the limits #KLEENEmaxStates, #KLEENEmaxArcs and 
+// #KLEENEmaxMillis (see LimitGuard); each deeper call is a new frame,
+// and so new states, so the state limit also bounds the call depth of
+// a runaway (e.g. left-recursive) grammar.
+// See applyRtnNative below.
+class RtnApplier {
+public:
+	struct Entry {
+		int net ;
+		StateId state ;
+		Weight weight ;
+	} ;
+
+	RtnApplier(const vector<const StdVectorFst *> & nets,
+				const map< Label, vector<Entry> > & entries,
+				Label skipLabel,
+				const vector<Label> & input,
+				bool matchOutput)
+		: nets_(nets), entries_(entries), skipLabel_(skipLabel),
+		  input_(input), matchOutput_(matchOutput), 
+		  arcCount_(0), resultp_(NULL) {}
+
+	// throws NativeLimitExceeded (after deleting the partial result)
+	StdVectorFst * Apply(int net, StateId start) ;
+
+private:
+	// a frame of the call stack is (parent frame, network, return
+	// state); frames are interned, so that a whole stack is identified
+	// by the id of its top frame (-1 for the empty stack)
+	struct Frame {
+		int parent ;
+		int net ;
+		StateId returnState ;
+	} ;
+	typedef tuple<int, StateId, int, int> Config ;  // net, state, pos, frame
+
+	int FrameId(int parent, int net, StateId returnState) ;
+	StateId ConfigState(int net, StateId s, int pos, int frame) ;
+	void Expand(StateId r) ;
+
+	const vector<const StdVectorFst *> & nets_ ;
+	const map< Label, vector<Entry> > & entries_ ;
+	Label skipLabel_ ;
+	const vector<Label> & input_ ;
+	bool matchOutput_ ;		// match the input on the output side (analysis)
+	LimitGuard guard_ ;
+	long long arcCount_ ;
+
+	StdVectorFst * resultp_ ;
+	vector<Frame> frames_ ;
+	map< tuple<int, int, StateId>, int > frameIds_ ;
+	vector<Config> configs_ ;	// configs_[r] is the config of result state r
+	map<Config, StateId> configStates_ ;
+} ;
+
+int RtnApplier::FrameId(int parent, int net, StateId returnState)
 {
-	// hasCyclicDependencies has already been called to
-	// determine that the expansion is legal
-
-	// symInts and netPtrs are the same length;
-	// they represents the pairs needed by ReplaceFst()
+	tuple<int, int, StateId> key(parent, net, returnState) ;
+	map< tuple<int, int, StateId>, int >::iterator it = frameIds_.find(key) ;
+	if (it != frameIds_.end()) {
+		return it->second ;
+	}
+	Frame f ;
+	f.parent = parent ;
+	f.net = net ;
+	f.returnState = returnState ;
+	int id = (int) frames_.size() ;
+	frames_.push_back(f) ;
+	frameIds_[key] = id ;
+	return id ;
+}
 
-	jint  *ints ;
-	jlong *ptrs ;
-	ints = env->GetIntArrayElements(symInts, NULL) ;
-	if (ints == NULL) {
-		return (jint)(uintptr_t) -1 ;  // couldn't allocate the space
+StateId RtnApplier::ConfigState(int net, StateId s, int pos, int frame)
+{
+	Config config(net, s, pos, frame) ;
+	map<Config, StateId>::iterator it = configStates_.find(config) ;
+	if (it != configStates_.end()) {
+		return it->second ;
 	}
-	jsize vectorLen = env->GetArrayLength(symInts) ;
-	ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
-	if (ptrs == NULL) {
-		return (jint)(uintptr_t) -1 ; // couldn't allocate the space
+	StateId r = resultp_->AddState() ;
+	configs_.push_back(config) ;
+	configStates_[config] = r ;
+	guard_.Check(configs_.size(), arcCount_) ;
+	return r ;
+}
+
+void RtnApplier::Expand(StateId r)
+{
+	// copy:  configs_ can grow (and be reallocated) below
+	Config config = configs_[r] ;
+	int net = get<0>(config) ;
+	StateId s = get<1>(config) ;
+	int pos = get<2>(config) ;
+	int frame = get<3>(config) ;
+	const StdVectorFst & fst = *nets_[net] ;
+
+	Weight w = fst.Final(s) ;
+	if (w != Weight::Zero()) {
+		if (frame == -1) {
+			// the base network:  accept iff all the input is consumed
+			if (pos == (int) input_.size()) {
+				resultp_->SetFinal(r, w) ;
+			}
+		} else {
+			// end of a subnetwork:  return to the caller
+			const Frame & f = frames_[frame] ;
+			StateId t = ConfigState(f.net, f.returnState, pos, f.parent) ;
+			resultp_->AddArc(r, StdArc(0, 0, w, t)) ;
+			arcCount_++ ;
+		}
 	}
 
-	// ReplaceFst() must be called with a vector of pairs
-	vector< pair< StdArc::Label, const Fst<StdArc>* > > pairlabelfsts ;
+	for (ArcIterator<StdVectorFst> aiter(fst, s) ;
+			!aiter.Done() ;
+			aiter.Next()) {
+		const StdArc & arc = aiter.Value() ;
 
-	for (int i = 0; i < vectorLen; i++) {
-		pairlabelfsts.push_back( pair< StdArc::Label, const Fst<StdArc>* >
-							((StdArc::Label)(ints[i]), (Fst<StdArc>*)(ptrs[i])) ) ;
+		if (arc.ilabel == skipLabel_) {
+			// the __SUBNETWORKS part of an embedded RTN
+			continue ;
+		}
+
+		// a call of a subnetwork:  the reference label can be on
+		// either side; the call arc itself counts as epsilon:epsilon
+		// (cf. epsilon_on_replace in expandRtnNative)
+		map< Label, vector<Entry> >::const_iterator call = entries_.find(arc.olabel) ;
+		if (call == entries_.end()) {
+			call = entries_.find(arc.ilabel) ;
+		}
+		if (call != entries_.end()) {
+			int callee = FrameId(frame, net, arc.nextstate) ;
+			const vector<Entry> & ents = call->second ;
+			for (size_t i = 0; i < ents.size(); i++) {
+				StateId t = ConfigState(ents[i].net, ents[i].state, pos, callee) ;
+				resultp_->AddArc(r, StdArc(0, 0, 
+							Times(arc.weight, ents[i].weight), t)) ;
+				arcCount_++ ;
+			}
+			continue ;
+		}
+
+		Label match = matchOutput_ ? arc.olabel : arc.ilabel ;
+		Label emit  = matchOutput_ ? arc.ilabel : arc.olabel ;
+		int next ;
+		if (match == 0) {
+			next = pos ;
+		} else if (pos < (int) input_.size() && match == input_[pos]) {
+			next = pos + 1 ;
+		} else {
+			continue ;
+		}
+		StateId t = ConfigState(net, arc.nextstate, next, frame) ;
+		resultp_->AddArc(r, StdArc(emit, emit, arc.weight, t)) ;
+		arcCount_++ ;
 	}
+}
 
-	// N.B. release these arrays or get a Memory Leak!
-	env->ReleaseIntArrayElements(symInts, ints, 0) ;
+StdVectorFst * RtnApplier::Apply(int net, StateId start)
+{
+	resultp_ = new StdVectorFst() ;
+	if (start == kNoStateId) {
+		return resultp_ ;
+	}
+	try {
+		resultp_->SetStart(ConfigState(net, start, 0, -1)) ;
+		// result states are added in breadth-first order, and each one
+		// is expanded exactly once
+		for (size_t r = 0; r < configs_.size(); r++) {
+			Expand((StateId) r) ;
+		}
+	} catch (NativeLimitExceeded &) {
+		delete resultp_ ;
+		resultp_ = NULL ;
+		throw ;
+	}
+	return resultp_ ;
+}
+
+// Apply an RTN directly to one input string (code point values),
+// returning an acceptor of the other side (direction 0, generation:
+// the input is matched on the input side; direction 1, analysis:  on
+// the output side).  netPtrs[0] is the base network.  Either
+//   1. subnetworksLabel == -1, and netPtrs[i+1] is the subnetwork
+//      called by arcs labeled refLabels[i] (its start state is the
+//      entry), or
+//   2. netPtrs has only the base network, an embedded RTN (see
+//      OpenFstLibraryWrapper.EmbeddedRtn()) where the subnetwork for
+//      refLabels[i] is found at the end of the path 
+//      subnetworksLabel refLabels[i] from the start state.
+// Throws a NativeLimitException if the result would exceed the limits
+// (see RtnApplier).
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_applyRtnNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs, jintArray refLabels, jint subnetworksLabel,
+   jintArray inputCpvs, jint direction)
+{
+	vector<const StdVectorFst *> nets ;
+	jsize numNets = env->GetArrayLength(netPtrs) ;
+	jlong * ptrs = env->GetLongArrayElements(netPtrs, NULL) ;
+	for (int i = 0; i < numNets; i++) {
+		nets.push_back((const StdVectorFst *)(uintptr_t) ptrs[i]) ;
+	}
 	env->ReleaseLongArrayElements(netPtrs, ptrs, 0) ;
 
-	StdVectorFst *fstp = new StdVectorFst() ;
+	vector<Label> refs ;
+	jsize numRefs = env->GetArrayLength(refLabels) ;
+	jint * ints = env->GetIntArrayElements(refLabels, NULL) ;
+	for (int i = 0; i < numRefs; i++) {
+		refs.push_back((Label) ints[i]) ;
+	}
+	env->ReleaseIntArrayElements(refLabels, ints, 0) ;
 
-	Replace<StdArc>(pairlabelfsts, fstp, baseFstInt, true) ;
+	vector<Label> input ;
+	jsize inputLen = env->GetArrayLength(inputCpvs) ;
+	jint * cpvs = env->GetIntArrayElements(inputCpvs, NULL) ;
+	for (int i = 0; i < inputLen; i++) {
+		input.push_back((Label) cpvs[i]) ;
+	}
+	env->ReleaseIntArrayElements(inputCpvs, cpvs, 0) ;
+
+	const StdVectorFst & base = *nets[0] ;
+	map< Label, vector<RtnApplier::Entry> > entries ;
+
+	if (subnetworksLabel == -1) {
+		for (int i = 0; i < numRefs && i + 1 < numNets; i++) {
+			RtnApplier::Entry e ;
+			e.net = i + 1 ;
+			e.state = nets[i + 1]->Start() ;
+			e.weight = Weight::One() ;
+			if (e.state != kNoStateId) {
+				entries[refs[i]].push_back(e) ;
+			}
+		}
+	} else if (base.Start() != kNoStateId) {
+		set<Label> refSet(refs.begin(), refs.end()) ;
+		for (ArcIterator<StdVectorFst> aiter(base, base.Start()) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			const StdArc & prefixArc = aiter.Value() ;
+			if (prefixArc.ilabel != subnetworksLabel) {
+				continue ;
+			}
+			for (ArcIterator<StdVectorFst> biter(base, prefixArc.nextstate) ;
+					!biter.Done() ;
+					biter.Next()) {
+				const StdArc & refArc = biter.Value() ;
+				if (refSet.count(refArc.ilabel)) {
+					RtnApplier::Entry e ;
+					e.net = 0 ;
+					e.state = refArc.nextstate ;
+					e.weight = Times(prefixArc.weight, refArc.weight) ;
+					entries[refArc.ilabel].push_back(e) ;
+				}
+			}
+		}
+	}
 
-	return (jlong)(uintptr_t) fstp ; 
+	RtnApplier applier(nets, entries, 
+				(subnetworksLabel == -1) ? (Label) kNoLabel : (Label) subnetworksLabel,
+				input, (direction == 1)) ;
+	StdVectorFst * resultFstPtr ;
+	try {
+		resultFstPtr = applier.Apply(0, base.Start()) ;
+	} catch (NativeLimitExceeded & e) {
+		throwNativeLimitException(env, e) ;
+		return 0 ;
+	}
+	return (jlong)(uintptr_t) resultFstPtr ;
 }
 
 // fstDump used in debugging dump
@@ -3539,24 +5283,12 @@ Java_OpenFstLibraryWrapper_addArcNeutralWeightNative
 // N.B.  OTHER_ID:OTHER_NONID and OTHER_ID:c are illegal
 // OTHER_NONID:c does not include c:c
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_expandOtherArcsNative
-	(JNIEnv *env, jclass cls,  	// JNI boilerplate
-
-	 jlong fstPtr,			// ptr to the network to modify
-	 jintArray intArray,	// ints (symbols) to expand OTHER
-	 jint otherIDlabel,		// int used for OTHER_ID
-	 jint otherNonIDlabel)	// int used for OTHER_NONID
+// the common part of expandOtherArcsNative and expandOtherArcsCopyNative;
+// intArrayElements holds the arrSize symbols to expand OTHER to
+static void expandOtherArcs(StdVectorFst *fstp, 
+							const jint *intArrayElements, jint arrSize,
+							jint otherIDlabel, jint otherNonIDlabel)
 {
-	StdVectorFst *fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
-
-	// standard JNI boilerplate to access the int array passed from Java
-	jboolean isCopy ;
-	jint * intArrayElements = 
-			env->GetIntArrayElements(intArray, &isCopy) ;
-	jint arrSize = env->GetArrayLength(intArray) ; 
-	// index as intArrayElements[n]
-
 	int clabel ;
 	int dlabel ; 
 
@@ -3649,10 +5381,33 @@ Java_OpenFstLibraryWrapper_expandOtherArcsNative
 			ArcInfo * aip = *iter ;
 			fstp->AddArc(aip->src_state_id, 
 					StdArc(aip->ilabel, aip->olabel, aip->weight, aip->dest_state_id)) ;
+			delete aip ;
 		}
 		arcsToAdd.clear() ;
 	}  // End loop through States
 
+}
+
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_expandOtherArcsNative
+	(JNIEnv *env, jclass cls,  	// JNI boilerplate
+
+	 jlong fstPtr,			// ptr to the network to modify
+	 jintArray intArray,	// ints (symbols) to expand OTHER
+	 jint otherIDlabel,		// int used for OTHER_ID
+	 jint otherNonIDlabel)	// int used for OTHER_NONID
+{
+	StdVectorFst *fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
+
+	// standard JNI boilerplate to access the int array passed from Java
+	jboolean isCopy ;
+	jint * intArrayElements = 
+			env->GetIntArrayElements(intArray, &isCopy) ;
+	jint arrSize = env->GetArrayLength(intArray) ; 
+
+	expandOtherArcs(fstp, intArrayElements, arrSize, 
+					otherIDlabel, otherNonIDlabel) ;
+
 	// standard JNI boilerplate to release memory used to store the int array
 	if (isCopy == JNI_TRUE) {
 		env->ReleaseIntArrayElements(intArray, intArrayElements, 0) ;
@@ -3660,6 +5415,41 @@ Java_OpenFstLibraryWrapper_expandOtherArcsNative
 	// void function, no return
 }
 
+JNIEXPORT jlong JNICALL
+Java_OpenFstLibraryWrapper_expandOtherArcsCopyNative
+	(JNIEnv *env, jclass cls,  	// JNI boilerplate
+
+	 jlong fstPtr,			// ptr to the network to copy (not modified)
+	 jintArray intArray,	// ints (symbols) to expand OTHER
+	 jint otherIDlabel,		// int used for OTHER_ID
+	 jint otherNonIDlabel)	// int used for OTHER_NONID
+{
+	// Called from Java worker threads, several at a time, on networks
+	// that may share a copy-on-write implementation (see
+	// copyFstNative); the reference count of a shared VectorFst
+	// implementation is not thread-safe, so the copy here is a real
+	// one, built by reading the original only (appendStatesAndArcs),
+	// and the expansion is done on the unshared copy.
+	const StdVectorFst *srcp = (StdVectorFst *)(uintptr_t) fstPtr ;
+
+	StdVectorFst *fstp = new StdVectorFst() ;
+	appendStatesAndArcs(fstp, *srcp) ;
+	fstp->SetStart(srcp->Start()) ;
+
+	jboolean isCopy ;
+	jint * intArrayElements = 
+			env->GetIntArrayElements(intArray, &isCopy) ;
+	jint arrSize = env->GetArrayLength(intArray) ; 
+
+	expandOtherArcs(fstp, intArrayElements, arrSize, 
+					otherIDlabel, otherNonIDlabel) ;
+
+	if (isCopy == JNI_TRUE) {
+		env->ReleaseIntArrayElements(intArray, intArrayElements, JNI_ABORT) ;
+	}
+	return (jlong)(uintptr_t) fstp ;
+}
+
 bool isCombiningDiacritic(UChar32 cpv) {
 	if (
 			(cpv >= 0x0300 && cpv <= 0x036F)
@@ -4352,13 +6142,7 @@ Java_OpenFstLibraryWrapper_flattenInPlaceNative
 	return ;
 }
 
-JNIEXPORT void JNICALL
-Java_OpenFstLibraryWrapper_flatten4RuleInPlaceNative
-  (JNIEnv *env, jclass cls,
-   jlong fstPtr, jint hardEpsilonSymVal) {
-
-	// get a ptr to the orig (input Fst)
-	StdVectorFst * fstp = (StdVectorFst *)(uintptr_t) fstPtr ;
+static void flatten4RuleInPlace(StdVectorFst * fstp, jint hardEpsilonSymVal) {
 	StateId newStateId ;
 
 	// need to add new states to fstp, so avoid the use of 
@@ -4420,3 +6204,903 @@ Java_OpenFstLibraryWrapper_flatten4RuleInPlaceNative
 	return ;
 }
 
+JNIEXPORT void JNICALL
+Java_OpenFstLibraryWrapper_flatten4RuleInPlaceNative
+  (JNIEnv *env, jclass cls,
+   jlong fstPtr, jint hardEpsilonSymVal) {
+
+	// get a ptr to the orig (input Fst)
+	flatten4RuleInPlace((StdVectorFst *)(uintptr_t) fstPtr, hardEpsilonSymVal) ;
+}
+
+
+// ********************************************************************
+// Native compilation of alternation rules
+//
+// The whole of InterpreterKleeneVisitor.compileRuleSemanticParts(), 
+// for one rule or one group of parallel rules, in one call:  the CP()
+// of each rule, the restriction contexts, the max/min/oblig 
+// constraints, the Base, the Context restriction, and Hulden's 
+// CleanupRule().  Formerly each step was a separate JNI call, each 
+// with its own optimization; here all the intermediate networks stay
+// native and are only trimmed (Connect()), except where the Java code
+// forces a full optimization (the restriction context and the Two and
+// Three of the restriction expression), and the result is optimized
+// once, at the end.
+//
+// Java passes (see OpenFstLibraryWrapper.CompileRuleNative() and
+// InterpreterKleeneVisitor.compileRuleSemanticPartsNative()):
+//   - the networks, with their sigmas and containsOther flags:  first
+//     the rule-independent networks that Hulden.java keeps, in the 
+//     order of RuleKeptNet below, then the parts of the rules;
+//   - the program, which describes the rules (see RuleCompiler::Compile);
+//   - the special symbols, in the order of RuleSymbol below;
+//   - the symbols that are never added by the promotion of OTHER (see
+//     OpenFstLibraryWrapper.stripSpecialCharsOther(), which depends
+//     on the symbol names, so it is done in Java).
+// The sigma/OTHER bookkeeping of each operation is the one of the
+// corresponding Java operation in OpenFstLibraryWrapper, so the result
+// is the same network that the Java code builds.
+// ********************************************************************
+
+// indices of the networks kept by Hulden.java (must agree with
+// Hulden.KeptNetsForNative())
+enum RuleKeptNet {
+	RK_TAPE23OF3 = 0,				// [0:? ? ?]*
+	RK_TAPE1OF2,					// [? 0:?]*
+	RK_TAPE2OF2,					// [0:? ?]*
+	RK_LOWER,						// the filter of Lower()
+	RK_UPPER,						// the filter of Upper()
+	RK_UNREWRITTEN,					// [0:"@O@" ? 0:?]*
+	RK_DELETE_FIRST_SYMBOL,			// [?:0 ?*]
+	RK_NOT_CONTAIN,					// [Tape1Sig Tape2Sig Tape3Sig]*
+	RK_EPEXTEND_RIGHT_ARROW,
+	RK_EPEXTEND_LEFT_ARROW,
+	RK_NOT_LONGEST_TAPE1,
+	RK_NOT_LONGEST_TAIL_RIGHT_ARROW,
+	RK_NOT_LONGEST_TAIL_LEFT_ARROW,
+	RK_LEFTMOST_TAPE1,
+	RK_RIGHTMOST_TAPE1,
+	RK_SHORTEST_TAPE1,
+	RK_ISYMS_STAR_ON_TAPE1,
+	RK_CP_MARKERS,
+	RK_OUTSIDE,
+	RK_BOUNDARY,
+	RK_NOT_REST_DELIM_STAR,
+	RK_IOPEN,
+	RK_NOT_CONTAINS_SPECIAL_SYMBOLS_ACTION,
+	RK_REMOVE_BOUNDARY,
+	RK_PRE_PROCESS,
+	RK_COUNT
+} ;
+
+// indices of the special symbols (must agree with 
+// Hulden.SymbolsForNative())
+enum RuleSymbol {
+	RS_OTHER_ID = 0,
+	RS_OTHER_NONID,
+	RS_HARD_EPSILON,		// **@0@
+	RS_ID_MARKER,			// **@ID@
+	RS_I,					// **@I@
+	RS_IOPEN,				// **@I[@
+	RS_IOPEN_AND_CLOSE,		// **@I[]@
+	RS_ICLOSE,				// **@I]@
+	RS_OUTSIDE_MARKER,		// **@O@
+	RS_WORD_BOUNDARY,		// **@#@
+	RS_RIGHT_ANGLE,			// **@>@
+	RS_REST_DELIM,			// **@RD@
+	RS_COUNT
+} ;
+
+// the values of the rule-type fields of the program (cf. the enums
+// RuleArrowType, RuleObligType, RuleMatchType and RuleMapType in 
+// InterpreterKleeneVisitor.java)
+enum { RULE_ARROW_RIGHT = 0, RULE_ARROW_LEFT = 1 } ;
+enum { RULE_OBLIG = 0, RULE_OPT = 1 } ;
+enum { RULE_MATCH_ALL = 0, RULE_MATCH_MAX_L2R, RULE_MATCH_MIN_L2R,
+		RULE_MATCH_MAX_R2L, RULE_MATCH_MIN_R2L } ;
+enum { RULE_MAP_MAP = 0, RULE_MAP_MARKUP = 1 } ;
+
+// a network being built by the rule compiler, with the sigma and the
+// containsOther flag that the Java Fst would have
+struct RuleNet {
+	StdVectorFst fst ;
+	set<int> sigma ;
+	bool containsOther ;
+	RuleNet() : containsOther(false) {}
+} ;
+
+class RuleCompiler {
+public:
+	RuleCompiler(const vector<RuleNet> & nets,
+				const vector<jint> & symbols,
+				const set<int> & noPromote,
+				bool determinize, bool minimize, bool rmepsilon)
+		: nets_(nets), sym_(symbols), noPromote_(noPromote),
+		  otherId_(symbols[RS_OTHER_ID]), 
+		  otherNonId_(symbols[RS_OTHER_NONID]),
+		  determinize_(determinize), minimize_(minimize),
+		  rmepsilon_(rmepsilon) {}
+
+	// compile the rules described by program; throws 
+	// NativeLimitExceeded
+	RuleNet Compile(const vector<jint> & program) ;
+
+private:
+	const vector<RuleNet> & nets_ ;
+	const vector<jint> & sym_ ;
+	const set<int> & noPromote_ ;
+	jint otherId_ ;
+	jint otherNonId_ ;
+	bool determinize_ ;
+	bool minimize_ ;
+	bool rmepsilon_ ;
+
+	// a (copy-on-write) copy of network i of the arguments
+	RuleNet net(int i) { return nets_[i] ; }
+
+	// the operations, each as the Java operation of the same name
+	void promote(RuleNet & a, const set<int> & sigmaB) ;
+	void correctSigma(RuleNet & a) ;
+	RuleNet emptyString() ;
+	RuleNet emptyLanguage() ;
+	RuleNet universal() ;
+	RuleNet oneArc(jint label) ;
+	RuleNet unite(RuleNet a, RuleNet b) ;
+	RuleNet uniteAll(vector<RuleNet> & fsts) ;
+	RuleNet concat(RuleNet a, RuleNet b) ;
+	RuleNet star(RuleNet a) ;
+	RuleNet intersect(RuleNet a, RuleNet b) ;
+	RuleNet intersectAll(vector<RuleNet> & fsts) ;
+	RuleNet compose(RuleNet a, RuleNet b) ;
+	RuleNet difference(RuleNet a, RuleNet b) ;
+	RuleNet complement(RuleNet a) ;
+	RuleNet inputProjection(RuleNet a) ;
+	RuleNet outputProjection(RuleNet a) ;
+	RuleNet flatten4Rule(RuleNet a) ;
+	void substEpsilon(RuleNet & a, jint label) ;
+	void optimizeForce(RuleNet & a) ;
+
+	// Hulden.java
+	RuleNet filtered(RuleNet x, int filter) ;
+	RuleNet upper(RuleNet x) { return filtered(x, RK_UPPER) ; }
+	RuleNet lower(RuleNet x) { return filtered(x, RK_LOWER) ; }
+	RuleNet tape1of2(RuleNet x) { return filtered(x, RK_TAPE1OF2) ; }
+	RuleNet tape2of2(RuleNet x) { return filtered(x, RK_TAPE2OF2) ; }
+	RuleNet tape23of3(RuleNet x) { return filtered(x, RK_TAPE23OF3) ; }
+	RuleNet unrewritten(RuleNet x) { return filtered(x, RK_UNREWRITTEN) ; }
+	RuleNet deleteFirstSymbol(RuleNet x) { return filtered(x, RK_DELETE_FIRST_SYMBOL) ; }
+	RuleNet cleanupSpecialSymbolsAction(RuleNet x) ;
+	RuleNet notContain(RuleNet x) ;
+	RuleNet cp(RuleNet x, RuleNet y) ;
+	RuleNet cpFlatten(RuleNet t) ;
+	RuleNet cpMarkup(RuleNet x, RuleNet y, RuleNet z, bool rightArrow) ;
+	RuleNet epContextL(RuleNet x, bool rightArrow) ;
+	RuleNet epContextR(RuleNet x, bool rightArrow) ;
+	RuleNet notLongest(RuleNet x, bool rightArrow) ;
+	RuleNet leftmost(RuleNet x, bool rightArrow) ;
+	RuleNet rightmost(RuleNet x, bool rightArrow) ;
+	RuleNet shortest(RuleNet x, bool rightArrow) ;
+	RuleNet cleanupRule(RuleNet rule) ;
+
+	// InterpreterKleeneVisitor.java
+	RuleNet restrictionContext(RuleNet left, RuleNet right) ;
+	RuleNet restrictionExp(RuleNet lhs, RuleNet rhs) ;
+} ;
+
+// promoteSigmaOther():  if a contains OTHER, expand it to the symbols
+// of sigmaB that it doesn't know yet (leaving out those that are never
+// promoted)
+void RuleCompiler::promote(RuleNet & a, const set<int> & sigmaB)
+{
+	if (!a.containsOther) {
+		return ;
+	}
+	vector<jint> add ;
+	for (set<int>::const_iterator it = sigmaB.begin(); it != sigmaB.end(); ++it) {
+		if (a.sigma.count(*it) == 0 
+				&& noPromote_.count(*it) == 0
+				&& *it != otherId_ && *it != otherNonId_) {
+			add.push_back(*it) ;
+		}
+	}
+	if (add.empty()) {
+		return ;
+	}
+	a.sigma.insert(add.begin(), add.end()) ;
+	expandOtherArcs(&a.fst, &add[0], (jint) add.size(), otherId_, otherNonId_) ;
+}
+
+// CorrectSigmaOtherInPlace():  containsOther is recomputed from the 
+// labels; the sigma keeps its symbols only if there is still OTHER
+void RuleCompiler::correctSigma(RuleNet & a)
+{
+	set<int> labels ;
+	bool other = false ;
+	for (StateIterator<StdVectorFst> siter(a.fst) ;
+			!siter.Done() ;
+			siter.Next()) {
+		for (ArcIterator<StdVectorFst> aiter(a.fst, siter.Value()) ;
+				!aiter.Done() ;
+				aiter.Next()) {
+			const StdArc & arc = aiter.Value() ;
+			Label lab[2] = { arc.ilabel, arc.olabel } ;
+			for (int k = 0; k < 2; k++) {
+				if (lab[k] == otherId_ || lab[k] == otherNonId_) {
+					other = true ;
+				} else if (lab[k] > 0) {
+					labels.insert(lab[k]) ;
+				}
+			}
+		}
+	}
+	a.containsOther = other ;
+	if (!other) {
+		a.sigma.clear() ;
+	}
+	a.sigma.insert(labels.begin(), labels.end()) ;
+}
+
+RuleNet RuleCompiler::emptyString()
+{
+	RuleNet result ;
+	result.fst.AddState() ;
+	result.fst.SetStart(0) ;
+	result.fst.SetFinal(0, Weight::One()) ;
+	return result ;
+}
+
+RuleNet RuleCompiler::emptyLanguage()
+{
+	// no states at all, cf. emptyLanguageFstNative
+	return RuleNet() ;
+}
+
+RuleNet RuleCompiler::universal()
+{
+	// OTHER_ID*, with an empty sigma
+	RuleNet result ;
+	result.fst.AddState() ;
+	result.fst.SetStart(0) ;
+	result.fst.AddState() ;
+	result.fst.SetFinal(1, Weight::One()) ;
+	result.fst.AddArc(0, StdArc(otherId_, otherId_, Weight::One(), 1)) ;
+	Closure(&result.fst, CLOSURE_STAR) ;
+	result.containsOther = true ;
+	return result ;
+}
+
+RuleNet RuleCompiler::oneArc(jint label)
+{
+	RuleNet result ;
+	result.fst.AddState() ;
+	result.fst.SetStart(0) ;
+	result.fst.AddState() ;
+	result.fst.SetFinal(1, Weight::One()) ;
+	result.fst.AddArc(0, StdArc(label, label, Weight::One(), 1)) ;
+	if (label == otherId_ || label == otherNonId_) {
+		result.containsOther = true ;
+	} else if (label > 0) {
+		result.sigma.insert(label) ;
+	}
+	return result ;
+}
+
+RuleNet RuleCompiler::unite(RuleNet a, RuleNet b)
+{
+	promote(a, b.sigma) ;
+	promote(b, a.sigma) ;
+	Union(&a.fst, b.fst) ;
+	a.sigma.insert(b.sigma.begin(), b.sigma.end()) ;
+	a.containsOther = a.containsOther || b.containsOther ;
+	Connect(&a.fst) ;
+	return a ;
+}
+
+// UnionFsts():  each operand promoted relative to the combined sigma
+RuleNet RuleCompiler::uniteAll(vector<RuleNet> & fsts)
+{
+	set<int> sigmaAll ;
+	for (size_t i = 0; i < fsts.size(); i++) {
+		sigmaAll.insert(fsts[i].sigma.begin(), fsts[i].sigma.end()) ;
+	}
+	RuleNet result ;
+	for (size_t i = 0; i < fsts.size(); i++) {
+		promote(fsts[i], sigmaAll) ;
+		Union(&result.fst, fsts[i].fst) ;
+		result.sigma.insert(fsts[i].sigma.begin(), fsts[i].sigma.end()) ;
+		result.containsOther = result.containsOther || fsts[i].containsOther ;
+	}
+	Connect(&result.fst) ;
+	return result ;
+}
+
+RuleNet RuleCompiler::concat(RuleNet a, RuleNet b)
+{
+	promote(a, b.sigma) ;
+	promote(b, a.sigma) ;
+	Concat(&a.fst, b.fst) ;
+	a.sigma.insert(b.sigma.begin(), b.sigma.end()) ;
+	a.containsOther = a.containsOther || b.containsOther ;
+	Connect(&a.fst) ;
+	return a ;
+}
+
+RuleNet RuleCompiler::star(RuleNet a)
+{
+	Closure(&a.fst, CLOSURE_STAR) ;
+	return a ;
+}
+
+RuleNet RuleCompiler::intersect(RuleNet a, RuleNet b)
+{
+	promote(a, b.sigma) ;
+	promote(b, a.sigma) ;
+	ArcSort(&b.fst, StdILabelCompare()) ;
+
+	RuleNet result ;
+	expandLimited(IntersectFst<StdArc>(a.fst, b.fst), &result.fst) ;
+	Connect(&result.fst) ;
+	if (result.fst.Start() != kNoStateId) {
+		result.sigma = a.sigma ;
+		result.containsOther = a.containsOther ;
+	}
+	correctSigma(result) ;
+	return result ;
+}
+
+// the size (states + arcs) used to order the operands of intersectAll()
+static long long ruleNetSize(const RuleNet & a)
+{
+	long long size = a.fst.NumStates() ;
+	for (StateIterator<StdVectorFst> siter(a.fst) ;
+			!siter.Done() ;
+			siter.Next()) {
+		size += a.fst.NumArcs(siter.Value()) ;
+	}
+	return size ;
+}
+
+static bool ruleNetSmaller(const pair<long long, size_t> & a,
+							const pair<long long, size_t> & b)
+{
+	return a.first < b.first ;
+}
+
+// IntersectFsts():  OTHER is promoted once, against the sigma of all
+// the operands, and they are intersected as a balanced tree, smallest
+// first:  in each round they are sorted by size and intersected in
+// pairs, the largest going on as it is if their number is odd.  (Here
+// the pairs of a round are intersected one after the other; the
+// compiler runs on the interpreter thread.)
+RuleNet RuleCompiler::intersectAll(vector<RuleNet> & fsts)
+{
+	if (fsts.empty()) {
+		return universal() ;
+	}
+	set<int> sigmaAll ;
+	for (size_t i = 0; i < fsts.size(); i++) {
+		sigmaAll.insert(fsts[i].sigma.begin(), fsts[i].sigma.end()) ;
+	}
+	vector<RuleNet> round ;
+	for (size_t i = 0; i < fsts.size(); i++) {
+		round.push_back(fsts[i]) ;
+		promote(round.back(), sigmaAll) ;
+	}
+
+	while (round.size() > 1) {
+		// smallest first (stable, as Collections.sort() in Java)
+		vector< pair<long long, size_t> > order ;
+		for (size_t i = 0; i < round.size(); i++) {
+			order.push_back(pair<long long, size_t>(ruleNetSize(round[i]), i)) ;
+		}
+		stable_sort(order.begin(), order.end(), ruleNetSmaller) ;
+
+		vector<RuleNet> next ;
+		for (size_t i = 0; i + 1 < order.size(); i += 2) {
+			next.push_back(intersect(round[order[i].second], 
+									round[order[i + 1].second])) ;
+		}
+		if (order.size() % 2 == 1) {
+			next.push_back(round[order.back().second]) ;
+		}
+		round.swap(next) ;
+	}
+	return round[0] ;
+}
+
+RuleNet RuleCompiler::compose(RuleNet a, RuleNet b)
+{
+	promote(a, b.sigma) ;
+	promote(b, a.sigma) ;
+	// see fixOtherInputBeforeComposeNative
+	if (a.containsOther) {
+		fixOtherOutputBeforeCompose(&a.fst, otherId_, otherNonId_) ;
+	}
+	if (b.containsOther) {
+		fixOtherInputBeforeCompose(&b.fst, otherId_, otherNonId_) ;
+	}
+	ArcSort(&b.fst, StdILabelCompare()) ;
+
+	RuleNet result ;
+	expandLimited(ComposeFst<StdArc>(a.fst, b.fst), &result.fst) ;
+	fixOtherAfterCompose(&result.fst, otherId_, otherNonId_) ;
+	result.sigma = a.sigma ;
+	result.sigma.insert(b.sigma.begin(), b.sigma.end()) ;
+	correctSigma(result) ;
+	Connect(&result.fst) ;
+	return result ;
+}
+
+RuleNet RuleCompiler::difference(RuleNet a, RuleNet b)
+{
+	promote(a, b.sigma) ;
+	promote(b, a.sigma) ;
+
+	// NULL if b can be used as it is
+	StdVectorFst * preparedp = prepareSubtrahend(&b.fst) ;
+	StdVectorFst * resultp = NULL ;
+	try {
+		resultp = differenceSorted(a.fst, preparedp ? *preparedp : b.fst) ;
+	} catch (NativeLimitExceeded &) {
+		delete preparedp ;
+		throw ;
+	}
+	delete preparedp ;
+
+	RuleNet result ;
+	result.fst = *resultp ;
+	delete resultp ;
+	if (result.fst.Start() != kNoStateId) {
+		result.sigma = a.sigma ;
+		result.containsOther = a.containsOther ;
+	}
+	correctSigma(result) ;
+	Connect(&result.fst) ;
+	return result ;
+}
+
+RuleNet RuleCompiler::complement(RuleNet a)
+{
+	return difference(universal(), a) ;
+}
+
+RuleNet RuleCompiler::inputProjection(RuleNet a)
+{
+	inputProjectionFixOtherInPlace(&a.fst, otherId_, otherNonId_) ;
+	correctSigma(a) ;
+	return a ;
+}
+
+RuleNet RuleCompiler::outputProjection(RuleNet a)
+{
+	outputProjectionFixOtherInPlace(&a.fst, otherId_, otherNonId_) ;
+	correctSigma(a) ;
+	return a ;
+}
+
+RuleNet RuleCompiler::flatten4Rule(RuleNet a)
+{
+	flatten4RuleInPlace(&a.fst, sym_[RS_HARD_EPSILON]) ;
+	correctSigma(a) ;
+	Connect(&a.fst) ;
+	return a ;
+}
+
+// Hulden.SubstEpsilonInPlace()
+void RuleCompiler::substEpsilon(RuleNet & a, jint label)
+{
+	if (a.sigma.count(label)) {
+		substLabelInPlace(&a.fst, label, 0) ;
+		a.sigma.erase(label) ;
+	}
+}
+
+// OptimizeInPlaceForce()
+void RuleCompiler::optimizeForce(RuleNet & a)
+{
+	optimizeFstInPlace(&a.fst, true, true, true) ;
+}
+
+// Tape23of3(), Upper(), Lower(), ... :  [X .o. filter].l
+RuleNet RuleCompiler::filtered(RuleNet x, int filter)
+{
+	return outputProjection(compose(x, net(filter))) ;
+}
+
+RuleNet RuleCompiler::cleanupSpecialSymbolsAction(RuleNet x)
+{
+	if (!x.containsOther) {
+		return x ;
+	}
+	return compose(compose(net(RK_NOT_CONTAINS_SPECIAL_SYMBOLS_ACTION), x), 
+					net(RK_NOT_CONTAINS_SPECIAL_SYMBOLS_ACTION)) ;
+}
+
+// ~[[Tape1Sig Tape2Sig Tape3Sig]* X ?*]
+RuleNet RuleCompiler::notContain(RuleNet x)
+{
+	return complement(concat(concat(net(RK_NOT_CONTAIN), x), 
+							star(oneArc(otherId_)))) ;
+}
+
+// Tape1of3(ISyms*) & Tape23of3(Align2(X,Y)) & CPMarkers, where
+// Align2(X,Y) is
+// Tape1of2(X "@0@"*) & Tape2of2(Y "@0@"*) & ~[?* "@0@" "@0@" ?*]
+RuleNet RuleCompiler::cp(RuleNet x, RuleNet y)
+{
+	jint hardEps = sym_[RS_HARD_EPSILON] ;
+	RuleNet align2 = intersect(intersect(
+			tape1of2(concat(x, star(oneArc(hardEps)))),
+			tape2of2(concat(y, star(oneArc(hardEps))))),
+			complement(concat(concat(concat(
+						star(oneArc(otherId_)),
+						oneArc(hardEps)),
+						oneArc(hardEps)),
+						star(oneArc(otherId_))))) ;
+	return intersect(intersect(net(RK_ISYMS_STAR_ON_TAPE1), tape23of3(align2)),
+					net(RK_CP_MARKERS)) ;
+}
+
+// as cp(), with the flattened transducer instead of Align2
+RuleNet RuleCompiler::cpFlatten(RuleNet t)
+{
+	return intersect(intersect(net(RK_ISYMS_STAR_ON_TAPE1), 
+								tape23of3(flatten4Rule(t))),
+					net(RK_CP_MARKERS)) ;
+}
+
+// CPMarkupRightArrow(X,Y,Z) and CPMarkupLeftArrow(X,Y,Z), with
+// AlignMarkupRightArrow() and AlignMarkupLeftArrow()
+RuleNet RuleCompiler::cpMarkup(RuleNet x, RuleNet y, RuleNet z, bool rightArrow)
+{
+	RuleNet hardEpsStar = star(oneArc(sym_[RS_HARD_EPSILON])) ;
+	RuleNet left, right ;
+	if (rightArrow) {
+		left = intersect(tape1of2(hardEpsStar), tape2of2(y)) ;
+		right = intersect(tape1of2(hardEpsStar), tape2of2(z)) ;
+	} else {
+		left = intersect(tape1of2(y), tape2of2(hardEpsStar)) ;
+		right = intersect(tape1of2(z), tape2of2(hardEpsStar)) ;
+	}
+	RuleNet middle = intersect(tape1of2(x), 
+								tape2of2(star(oneArc(sym_[RS_ID_MARKER])))) ;
+	RuleNet align = concat(concat(left, middle), right) ;
+	return intersect(intersect(net(RK_ISYMS_STAR_ON_TAPE1), tape23of3(align)),
+					net(RK_CP_MARKERS)) ;
+}
+
+// [?* X & ?* EPEXTEND]
+RuleNet RuleCompiler::epContextL(RuleNet x, bool rightArrow)
+{
+	int epextend = rightArrow ? RK_EPEXTEND_RIGHT_ARROW : RK_EPEXTEND_LEFT_ARROW ;
+	return intersect(concat(universal(), x), concat(universal(), net(epextend))) ;
+}
+
+// [EPEXTEND ?* & X ?*]
+RuleNet RuleCompiler::epContextR(RuleNet x, bool rightArrow)
+{
+	int epextend = rightArrow ? RK_EPEXTEND_RIGHT_ARROW : RK_EPEXTEND_LEFT_ARROW ;
+	return intersect(concat(net(epextend), universal()), concat(x, universal())) ;
+}
+
+RuleNet RuleCompiler::notLongest(RuleNet x, bool rightArrow)
+{
+	if (rightArrow) {
+		return intersect(intersect(upper(x), net(RK_NOT_LONGEST_TAPE1)),
+						net(RK_NOT_LONGEST_TAIL_RIGHT_ARROW)) ;
+	}
+	return intersect(intersect(lower(x), net(RK_NOT_LONGEST_TAPE1)),
+					net(RK_NOT_LONGEST_TAIL_LEFT_ARROW)) ;
+}
+
+RuleNet RuleCompiler::leftmost(RuleNet x, bool rightArrow)
+{
+	return intersect(rightArrow ? upper(x) : lower(x), net(RK_LEFTMOST_TAPE1)) ;
+}
+
+RuleNet RuleCompiler::rightmost(RuleNet x, bool rightArrow)
+{
+	return intersect(rightArrow ? upper(x) : lower(x), net(RK_RIGHTMOST_TAPE1)) ;
+}
+
+RuleNet RuleCompiler::shortest(RuleNet x, bool rightArrow)
+{
+	return intersect(net(RK_SHORTEST_TAPE1), rightArrow ? upper(x) : lower(x)) ;
+}
+
+// Hulden.CleanupRule(), with the final optimization
+RuleNet RuleCompiler::cleanupRule(RuleNet rule)
+{
+	RuleNet result = outputProjection(compose(compose(rule, 
+											net(RK_REMOVE_BOUNDARY)),
+											net(RK_PRE_PROCESS))) ;
+	synchronizeAltRuleInPlace(&result.fst, sym_[RS_RIGHT_ANGLE], 
+							sym_[RS_HARD_EPSILON], otherId_, otherNonId_) ;
+
+	substEpsilon(result, sym_[RS_ID_MARKER]) ;
+	substEpsilon(result, sym_[RS_HARD_EPSILON]) ;
+	substEpsilon(result, sym_[RS_I]) ;
+	substEpsilon(result, sym_[RS_IOPEN]) ;
+	substEpsilon(result, sym_[RS_IOPEN_AND_CLOSE]) ;
+	substEpsilon(result, sym_[RS_ICLOSE]) ;
+	substEpsilon(result, sym_[RS_OUTSIDE_MARKER]) ;
+	substEpsilon(result, sym_[RS_WORD_BOUNDARY]) ;
+	substEpsilon(result, sym_[RS_RIGHT_ANGLE]) ;
+
+	// the one optimization of the rule, as set by the user
+	optimizeFstInPlace(&result.fst, determinize_, minimize_, rmepsilon_) ;
+	// the sigma, as the Java Fst would get it when next used
+	correctSigma(result) ;
+	return result ;
+}
+
+// interpRestrictionContext():  left  RD  \RD*  RD  right
+RuleNet RuleCompiler::restrictionContext(RuleNet left, RuleNet right)
+{
+	jint restDelim = sym_[RS_REST_DELIM] ;
+	if (left.containsOther) {
+		left.sigma.insert(restDelim) ;
+	}
+	if (right.containsOther) {
+		right.sigma.insert(restDelim) ;
+	}
+	RuleNet result = concat(concat(concat(concat(left, 
+										oneArc(restDelim)),
+										net(RK_NOT_REST_DELIM_STAR)),
+										oneArc(restDelim)),
+										right) ;
+	optimizeForce(result) ;
+	return result ;
+}
+
+// interpRestrictionExp(lhs, rhs, true)
+RuleNet RuleCompiler::restrictionExp(RuleNet lhs, RuleNet rhs)
+{
+	jint restDelim = sym_[RS_REST_DELIM] ;
+	if (lhs.containsOther) {
+		lhs.sigma.insert(restDelim) ;
+	}
+	// [ \x* x lhs x \x* ]
+	RuleNet oneMinuend = concat(concat(concat(concat(
+									net(RK_NOT_REST_DELIM_STAR),
+									oneArc(restDelim)),
+									lhs),
+									oneArc(restDelim)),
+									net(RK_NOT_REST_DELIM_STAR)) ;
+	RuleNet two = difference(oneMinuend, rhs) ;
+	substEpsilon(two, restDelim) ;
+	two = concat(two, emptyString()) ;
+	optimizeForce(two) ;
+
+	RuleNet three = concat(complement(two), emptyString()) ;
+	optimizeForce(three) ;
+	return three ;
+}
+
+// The program is
+//   nRules, and for each rule:
+//     arrow, oblig, match, map, epenthesis (0 or 1),
+//     the indices (in the networks) of the transducer LHS, the upper
+//       LHS, the lower LHS, the left and the right markup insertions
+//       (-1 for none),
+//     nContexts, and for each context the indices of the left upper,
+//       left lower, right upper and right lower contexts (-1 for none)
+// The parts are the ones that compileRuleSemanticParts() gets, i.e.
+// the contexts are already cleaned up.
+RuleNet RuleCompiler::Compile(const vector<jint> & program)
+{
+	vector<RuleNet> cps ;
+	vector<RuleNet> restContexts ;
+	vector<RuleNet> constraints ;
+
+	size_t pc = 0 ;
+	int nRules = program[pc++] ;
+	for (int r = 0; r < nRules; r++) {
+		bool rightArrow = (program[pc++] == RULE_ARROW_RIGHT) ;
+		bool oblig = (program[pc++] == RULE_OBLIG) ;
+		int match = program[pc++] ;
+		bool markup = (program[pc++] == RULE_MAP_MARKUP) ;
+		bool epenthesis = (program[pc++] != 0) ;
+		int transducerIdx = program[pc++] ;
+		int upperIdx = program[pc++] ;
+		int lowerIdx = program[pc++] ;
+		int leftMarkupIdx = program[pc++] ;
+		int rightMarkupIdx = program[pc++] ;
+
+		RuleNet a, b, x ;	// upper LHS, lower LHS, input side (markup)
+		RuleNet cpNet ;
+		if (transducerIdx >= 0) {
+			a = cleanupSpecialSymbolsAction(inputProjection(net(transducerIdx))) ;
+			b = cleanupSpecialSymbolsAction(outputProjection(net(transducerIdx))) ;
+			cpNet = cpFlatten(net(transducerIdx)) ;
+		} else if (markup) {
+			x = net(rightArrow ? upperIdx : lowerIdx) ;
+			cpNet = cpMarkup(x, net(leftMarkupIdx), net(rightMarkupIdx), rightArrow) ;
+		} else {
+			a = net(upperIdx) ;
+			b = net(lowerIdx) ;
+			cpNet = cp(a, b) ;
+		}
+		cps.push_back(cpNet) ;
+
+		int nContexts = program[pc++] ;
+		for (int c = 0; c < nContexts; c++) {
+			int lu = program[pc++] ;
+			int ll = program[pc++] ;
+			int ru = program[pc++] ;
+			int rl = program[pc++] ;
+
+			RuleNet finalLeft = emptyString() ;
+			RuleNet finalRight = emptyString() ;
+			if (lu >= 0) {
+				finalLeft = (ll >= 0) ? intersect(upper(net(lu)), lower(net(ll)))
+										: upper(net(lu)) ;
+			} else if (ll >= 0) {
+				finalLeft = lower(net(ll)) ;
+			}
+			if (ru >= 0) {
+				finalRight = (rl >= 0) ? intersect(upper(net(ru)), lower(net(rl)))
+										: upper(net(ru)) ;
+			} else if (rl >= 0) {
+				finalRight = lower(net(rl)) ;
+			}
+
+			RuleNet dfs = deleteFirstSymbol(cpNet) ;
+
+			if (epenthesis) {
+				finalLeft = epContextL(finalLeft, rightArrow) ;
+				finalRight = epContextR(finalRight, rightArrow) ;
+			} else {
+				// # is not covered by OTHER in the contexts
+				if (finalLeft.containsOther) {
+					finalLeft.sigma.insert(sym_[RS_WORD_BOUNDARY]) ;
+				}
+				if (finalRight.containsOther) {
+					finalRight.sigma.insert(sym_[RS_WORD_BOUNDARY]) ;
+				}
+			}
+
+			restContexts.push_back(restrictionContext(finalLeft, 
+												concat(dfs, finalRight))) ;
+
+			if (oblig || match != RULE_MATCH_ALL) {
+				RuleNet constraint = emptyLanguage() ;
+				if (epenthesis) {
+					constraint = emptyString() ;
+				} else {
+					RuleNet input ;
+					if (rightArrow) {
+						input = markup ? x : a ;
+					} else {
+						input = markup ? x : b ;
+					}
+					RuleNet diff = difference(input, emptyString()) ;
+					if (oblig) {
+						constraint = unrewritten(diff) ;
+					}
+					if (match == RULE_MATCH_MAX_L2R) {
+						constraint = unite(unite(constraint, 
+									notLongest(diff, rightArrow)),
+									leftmost(diff, rightArrow)) ;
+					} else if (match == RULE_MATCH_MIN_L2R) {
+						constraint = unite(unite(constraint, 
+									shortest(diff, rightArrow)),
+									leftmost(diff, rightArrow)) ;
+					} else if (match == RULE_MATCH_MAX_R2L) {
+						constraint = unite(unite(constraint, 
+									notLongest(diff, rightArrow)),
+									rightmost(diff, rightArrow)) ;
+					} else if (match == RULE_MATCH_MIN_R2L) {
+						constraint = unite(unite(constraint, 
+									shortest(diff, rightArrow)),
+									rightmost(diff, rightArrow)) ;
+					}
+				}
+				constraints.push_back(notContain(concat(concat(finalLeft, 
+													constraint), finalRight))) ;
+			}
+		}
+	}
+
+	// Base:  Boundary [Outside | CPs]* Boundary
+	RuleNet base = concat(concat(net(RK_BOUNDARY),
+								star(unite(net(RK_OUTSIDE), uniteAll(cps)))),
+								net(RK_BOUNDARY)) ;
+
+	// Context:  IOpen => the restriction contexts
+	RuleNet rhs = concat(concat(net(RK_NOT_REST_DELIM_STAR), 
+								uniteAll(restContexts)),
+								net(RK_NOT_REST_DELIM_STAR)) ;
+	RuleNet context = restrictionExp(net(RK_IOPEN), rhs) ;
+
+	// the constraints as the same balanced tree that the Java
+	// compilation builds (universal if there are none)
+	RuleNet rule = intersect(intersect(base, context), intersectAll(constraints)) ;
+	return cleanupRule(rule) ;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_OpenFstLibraryWrapper_compileRuleNative
+  (JNIEnv *env, jclass cls,
+   jlongArray netPtrs,
+   jintArray netSigmas,
+   jbooleanArray netContainsOther,
+   jintArray program,
+   jintArray symbols,
+   jintArray noPromote,
+   jboolean determinize,
+   jboolean minimize,
+   jboolean rmepsilon,
+   jlongArray resultPtr)
+{
+	// Compile one rule or one group of parallel rules (see RuleCompiler
+	// above).  netSigmas holds, for each network, the size of its sigma
+	// followed by the symbols.  The pointer to the new network is put
+	// in resultPtr[0]; the returned array is its containsOther (0 or 1) 
+	// followed by its sigma.  Called on the interpreter thread, so the
+	// networks can be shared copy-on-write with the Java Fsts; none of
+	// them is changed.  Returns NULL (with a Java NativeLimitException)
+	// if a limit is exceeded.
+	jsize netCount = env->GetArrayLength(netPtrs) ;
+	vector<jlong> ptrs(netCount) ;
+	vector<jboolean> others(netCount) ;
+	if (netCount > 0) {
+		env->GetLongArrayRegion(netPtrs, 0, netCount, &ptrs[0]) ;
+		env->GetBooleanArrayRegion(netContainsOther, 0, netCount, &others[0]) ;
+	}
+
+	jsize sigmasLen = env->GetArrayLength(netSigmas) ;
+	vector<jint> sigmas(sigmasLen) ;
+	if (sigmasLen > 0) {
+		env->GetIntArrayRegion(netSigmas, 0, sigmasLen, &sigmas[0]) ;
+	}
+
+	jsize programLen = env->GetArrayLength(program) ;
+	vector<jint> prog(programLen) ;
+	if (programLen > 0) {
+		env->GetIntArrayRegion(program, 0, programLen, &prog[0]) ;
+	}
+
+	vector<jint> syms(RS_COUNT) ;
+	env->GetIntArrayRegion(symbols, 0, RS_COUNT, &syms[0]) ;
+
+	jsize noPromoteLen = env->GetArrayLength(noPromote) ;
+	vector<jint> noPromoteVec(noPromoteLen) ;
+	if (noPromoteLen > 0) {
+		env->GetIntArrayRegion(noPromote, 0, noPromoteLen, &noPromoteVec[0]) ;
+	}
+	set<int> noPromoteSet(noPromoteVec.begin(), noPromoteVec.end()) ;
+
+	vector<RuleNet> nets(netCount) ;
+	size_t pos = 0 ;
+	for (jsize i = 0; i < netCount; i++) {
+		nets[i].fst = *((StdVectorFst *)(uintptr_t) ptrs[i]) ;
+		jint n = sigmas[pos++] ;
+		for (jint k = 0; k < n; k++) {
+			nets[i].sigma.insert(sigmas[pos++]) ;
+		}
+		nets[i].containsOther = others[i] ;
+	}
+
+	RuleNet result ;
+	try {
+		RuleCompiler compiler(nets, syms, noPromoteSet,
+							determinize, minimize, rmepsilon) ;
+		result = compiler.Compile(prog) ;
+	} catch (NativeLimitExceeded & e) {
+		throwNativeLimitException(env, e) ;
+		return NULL ;
+	}
+
+	StdVectorFst * resultp = new StdVectorFst(result.fst) ;
+	jlong resultPtrVal = (jlong)(uintptr_t) resultp ;
+	env->SetLongArrayRegion(resultPtr, 0, 1, &resultPtrVal) ;
+
+	vector<jint> ret ;
+	ret.push_back(result.containsOther ? 1 : 0) ;
+	ret.insert(ret.end(), result.sigma.begin(), result.sigma.end()) ;
+	jintArray retArr = env->NewIntArray((jsize) ret.size()) ;
+	env->SetIntArrayRegion(retArr, 0, (jsize) ret.size(), &ret[0]) ;
+	return retArr ;
+}
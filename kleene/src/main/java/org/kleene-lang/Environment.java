@@ -28,6 +28,11 @@ public class Environment {
 	private Frame globalFrame ;
 	private JDesktopPane desktop = null ;
 
+	// counts the (re)bindings and removals of functions, so that the
+	// results of PurityAnalysis, and the memoized calls that rest on
+	// them, can be dropped when a function called there is redefined
+	private long funcBindingChanges = 0L ;
+
     // Only one Environment object is allocated in the main
     // program.  e.g.
     // Environment env = new Environment() ;
@@ -48,6 +53,14 @@ public class Environment {
 		return currentFrame ;
     }
 
+	public long getFuncBindingChanges() {
+		return funcBindingChanges ;
+	}
+
+	public Frame getGlobalFrame() {
+		return globalFrame ;
+	}
+
 	public void setDesktop(JDesktopPane jdp) {
 		desktop = jdp ;
 	}
@@ -103,15 +116,39 @@ public class Environment {
 		currentFrame = new Frame(staticFrame, currentFrame) ;
     }
 
+	// As above, but the new Frame shares the FrameLayout of the
+	// other Frames allocated for calls of the same function (see 
+	// FuncValue.java), so that LexicalAddresses cached on the id nodes
+	// of the function body stay valid from one call to the next
+	// (Such Frames are recycled, via the pool in the FrameLayout, when
+	// they are released, unless they have been captured, e.g. as the
+	// static Frame of a FuncValue defined during the call.)
+    public void allocateFrame(Frame staticFrame, FrameLayout layout) {
+		Frame frame = layout.takePooledFrame() ;
+		if (frame == null) {
+			frame = new Frame(staticFrame, currentFrame, layout) ;
+			frame.setRecyclable(true) ;
+		} else {
+			frame.reset(staticFrame, currentFrame) ;
+		}
+		currentFrame = frame ;
+    }
+
     public void releaseFrame() {
 		// A Frame is released when a function returns.
 		// Reset currentFrame to the Frame referenced by the
 		//  dynamicMother; in the case of a function call,
 		//  the dynamicMother is the frame from which the function
 		//  was called.
+		Frame releasedFrame = currentFrame ;
 		currentFrame = currentFrame.getDynamicMother() ;
 		// the released frame will be garbage collected
-		//   (when appropriate--i.e. if no other refs to it)
+		//   (when appropriate--i.e. if no other refs to it),
+		//   or recycled if it was allocated for a function call
+		//   and nothing has captured a handle to it
+		if (releasedFrame.getRecyclable()) {
+			releasedFrame.getLayout().returnPooledFrame(releasedFrame) ;
+		}
     }
 
 	// markExternalInCurrentFrame() called during evaluation of
@@ -142,6 +179,7 @@ public class Environment {
 		// In the currentFrame, bind the key to an instance of ExternValue
 		//  containing a handle to the higher Frame containing the
 		//  existing external binding.
+		frame.setCaptured() ;
 		currentFrame.put(key, new ExternValue(frame)) ;
 	}
 
@@ -171,6 +209,10 @@ public class Environment {
 		// generally, should bind the key to the value in the currentFrame
 		// (i.e. as a local variable), but see putGlobal()
 
+		if (value instanceof FuncValue) {
+			funcBindingChanges++ ;
+		}
+
 		if (frame.containsKey(key)) {
 			// there is already a binding in this frame
 
@@ -229,6 +271,73 @@ public class Environment {
 		return get1(key, currentFrame) ;
     }
 
+	// The same lookup, for an id node that caches a LexicalAddress.
+	// If the cached address still matches the Frames, the value is
+	// retrieved directly from its slot; otherwise do the normal 
+	// lookup with get1() and re-resolve the address.
+	public Object get(String key, LexicalAddress addr) {
+		Frame frame = currentFrame ;
+		if (frame != null && addr.getLayout() == frame.getLayout()) {
+			Object obj = frame.getSlot(addr.getSlot()) ;
+			Frame higherFrame = null ;
+			if (obj instanceof FreeVariable) {
+				higherFrame = ((FreeVariable) obj).getFrame() ;
+			} else if (obj instanceof ExternValue) {
+				higherFrame = ((ExternValue) obj).getFrame() ;
+			} else if (obj != null) {
+				// a "normal" local value
+				return obj ;
+			}
+			if (higherFrame != null 
+				&& higherFrame.getLayout() == addr.getBindingLayout()) {
+				Object value = higherFrame.getSlot(addr.getBindingSlot()) ;
+				if (value != null) {
+					return value ;
+				}
+			}
+			// else fall through to the full lookup (which also 
+			// reports any errors)
+		}
+
+		Object obj = get1(key, currentFrame) ;
+		resolveAddress(key, addr) ;
+		return obj ;
+	}
+
+	// Called right after get1(), which leaves in the currentFrame
+	// either the real binding of key, or a FreeVariable (or ExternValue)
+	// handle to the Frame where key is really bound
+	private void resolveAddress(String key, LexicalAddress addr) {
+		if (currentFrame == null) {
+			addr.clear() ;
+			return ;
+		}
+		FrameLayout layout = currentFrame.getLayout() ;
+		int slot = layout.slotOf(key) ;
+		Object obj = currentFrame.getSlot(slot) ;
+		if (obj == null) {
+			// not bound (or bound to null) in the currentFrame; 
+			// nothing to cache
+			addr.clear() ;
+			return ;
+		}
+
+		Frame higherFrame = null ;
+		if (obj instanceof FreeVariable) {
+			higherFrame = ((FreeVariable) obj).getFrame() ;
+		} else if (obj instanceof ExternValue) {
+			higherFrame = ((ExternValue) obj).getFrame() ;
+		}
+
+		if (higherFrame == null) {
+			addr.set(layout, slot, null, -1) ;
+		} else {
+			FrameLayout bindingLayout = higherFrame.getLayout() ;
+			addr.set(layout, slot, 
+					bindingLayout, bindingLayout.slotOf(key)) ;
+		}
+	}
+
     private Object get1(String key, Frame frame) {
 		if (frame == null) {
 			// no environment, or reached the end of the environment chain
@@ -277,7 +386,9 @@ public class Environment {
 				// where it was found.  This binding in currentFrame
 				// will be used to block any subsequent attempt to bind key 
 				// as a local variable in currentFrame.
-				currentFrame.put(key, new FreeVariable(frame)) ;
+				// (all such handles to the same frame are the same
+				// FreeVariable object)
+				currentFrame.put(key, frame.getFreeVariable()) ;
 			}
 			return obj ;
 		} else {
@@ -361,6 +472,9 @@ public class Environment {
 			} 
 			// else the obj should be a "normal" object;
 			// remove it and pass back a handle to this frame
+			if (obj instanceof FuncValue) {
+				funcBindingChanges++ ;
+			}
 			frame.remove(key) ;
 			return frame ;
 		} else {
@@ -387,6 +501,9 @@ public class Environment {
 		
 		// get the value of the variable in the current frame, and
 		// set or re-set the key to that value in the dynamicMother Frame
+		if (currentFrame.get(key) instanceof FuncValue) {
+			funcBindingChanges++ ;
+		}
 		currentFrame.getDynamicMother().put(key, currentFrame.get(key)) ;
 	}
 }
@@ -21,11 +21,9 @@
 
 //	[short description here]
 
-import java.util.HashMap ;
+import java.util.ArrayList ;
+import java.util.Arrays ;
 import java.util.HashSet ;
-// HashMap<K,V>
-// put() get()
-// permits null key and null values
 
 public class Frame {
     private Frame staticMother ;  // follow this link up the environment
@@ -34,18 +32,70 @@ public class Frame {
                                   // function call, the static and dynamic
                                   // mothers can be different
 
-    // in the HashMap (the core of the symbol table), the keys
-    // are always String, and the values are various kinds of Object
-    private HashMap<String, Object> symtab ;
-
-    /* Constructor */
+    // The core of the symbol table:  the keys are always String, and
+	// the values are various kinds of Object.  The layout maps each key
+	// to a slot, an index into the values array (see FrameLayout.java);
+	// a null in the array means that the key is not bound in this Frame
+    private FrameLayout layout ;
+    private Object[] values ;
+
+	// Like a HashMap, a Frame may have an entry, for a local
+	// variable/name, which is not yet bound, hence has value null;
+	// such a null value is stored as NULL_VALUE
+	private static final Object NULL_VALUE = new Object() ;
+
+	// the one FreeVariable handle to this Frame, shared by all the
+	// Frames that refer to free variables bound here (see 
+	// Environment.get1())
+	private FreeVariable freeVariable = null ;
+
+	// Frames allocated for function calls are recycled when the call
+	// returns (see FrameLayout.java), unless some other object
+	// (e.g. a FuncValue defined during the call, which needs the
+	// Frame as its static Frame) has captured a handle to the Frame
+	private boolean recyclable = false ;
+	private boolean captured = false ;
+
+    /* Constructors */
     // declare constructor public?
     public Frame (Frame stat, Frame dyn) {
+		this(stat, dyn, new FrameLayout()) ;
+    }
+
+	// Frames allocated for calls of the same function share a layout
+    public Frame (Frame stat, Frame dyn, FrameLayout lay) {
 		staticMother = stat ;
 		dynamicMother = dyn ;
-		symtab = new HashMap<String, Object>() ;
+		layout = lay ;
+		values = new Object[Math.max(lay.size(), 4)] ;
     }
 
+	// re-initialize a recycled Frame (see Environment.allocateFrame())
+	public void reset(Frame stat, Frame dyn) {
+		staticMother = stat ;
+		dynamicMother = dyn ;
+		captured = false ;
+	}
+
+	// unbind everything, keeping the values array for re-use
+	public void clear() {
+		Arrays.fill(values, null) ;
+		staticMother = null ;
+		dynamicMother = null ;
+	}
+
+	public boolean getRecyclable() {
+		return recyclable && !captured ;
+	}
+
+	public void setRecyclable(boolean b) {
+		recyclable = b ;
+	}
+
+	public void setCaptured() {
+		captured = true ;
+	}
+
     public Frame getStaticMother() {
 		return staticMother ;
     }
@@ -54,49 +104,91 @@ public class Frame {
 		return dynamicMother ;
     }
 
+	public FrameLayout getLayout() {
+		return layout ;
+	}
+
+	public FreeVariable getFreeVariable() {
+		captured = true ;
+		if (freeVariable == null) {
+			freeVariable = new FreeVariable(this) ;
+		}
+		return freeVariable ;
+	}
+
     // the key should always be a String
     public void put (String key, Object value) {
 		// check here to see if the key already exists?
 		// or checked before in the Environment?
-		symtab.put(key, value) ;
+		putSlot(layout.addSlot(key), value) ;
     }
 
+	// direct binding by slot (see ParamPlan.java)
+	public void putSlot(int slot, Object value) {
+		if (slot >= values.length) {
+			Object[] newValues = new Object[Math.max(values.length * 2, slot + 1)] ;
+			System.arraycopy(values, 0, newValues, 0, values.length) ;
+			values = newValues ;
+		}
+		values[slot] = (value == null) ? NULL_VALUE : value ;
+	}
+
     // the values can be several types of Object
     // N.B. I think that containsKey(), see below, is always checked before
     // calling get(), but make sure
     public Object get(String key) {
-		if (symtab.containsKey(key)) {
-			return symtab.get(key) ;
-		} else {
-			return null;
-		}
+		return getSlot(layout.slotOf(key)) ;
     }
 
+	// direct access by slot (see LexicalAddress.java); returns null if
+	// nothing is bound in the slot
+	public Object getSlot(int slot) {
+		if (slot < 0 || slot >= values.length) {
+			return null ;
+		}
+		Object obj = values[slot] ;
+		return (obj == NULL_VALUE) ? null : obj ;
+	}
+
 	public HashSet<String> keySet() {
-		return new HashSet<String>(symtab.keySet()) ;
+		HashSet<String> keys = new HashSet<String>() ;
+		for (int slot = 0; slot < values.length; slot++) {
+			if (values[slot] != null) {
+				keys.add(layout.nameAt(slot)) ;
+			}
+		}
+		return keys ;
+	}
+
+	// the values bound in this Frame (for the marking of the live Fsts,
+	// see endStatementArena() in the interpreter)
+	public ArrayList<Object> boundValues() {
+		ArrayList<Object> list = new ArrayList<Object>() ;
+		for (int slot = 0; slot < values.length; slot++) {
+			if (values[slot] != null && values[slot] != NULL_VALUE) {
+				list.add(values[slot]) ;
+			}
+		}
+		return list ;
 	}
 
 	public void remove(String key) {
-		if (symtab.containsKey(key)) {
-			symtab.remove(key) ;
+		if (containsKey(key)) {
+			values[layout.slotOf(key)] = null ;
 		} else {
 			throw new SymtabException("Attempt to remove a non-existent entry.") ;
 		}
 	}
 
     public boolean containsKey(String key) {
-		return symtab.containsKey(key) ;
+		int slot = layout.slotOf(key) ;
+		return (slot >= 0 && slot < values.length && values[slot] != null) ;
     }
 
-    // HashMap allows null key and null values
     // It may be possible to have an entry, for a local
     // variable/name, which is not yet bound, hence has
     // value null
     public boolean isDefined(String key) {
-		if (symtab.containsKey(key)) {
-			return (symtab.get(key) != null) ;
-		} else {
-			return false ;
-		} 
+		return (getSlot(layout.slotOf(key)) != null) ;
     }
 }
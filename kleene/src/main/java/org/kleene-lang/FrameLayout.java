@@ -0,0 +1,92 @@
+//	FrameLayout.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	A FrameLayout maps variable names to slot numbers (indices into the
+//	array of values stored in a Frame).  Frames allocated for successive
+//	calls of the same function share the same FrameLayout, so a name
+//	has the same slot in every call, and a LexicalAddress cached on an
+//	AST id node remains valid from one call to the next.
+//	Slots are only ever added, never re-numbered.
+
+import java.util.ArrayList ;
+import java.util.HashMap ;
+
+public class FrameLayout {
+	private HashMap<String, Integer> slotMap ;
+	private ArrayList<String> names ;   // indexed by slot
+
+	// Frames released after function calls, for re-use by later calls
+	// (a function call allocates and releases a Frame, so for a
+	// recursive function the pool holds at most one Frame per level
+	// of recursion, up to MAX_POOLED)
+	private ArrayList<Frame> pool ;
+	private static final int MAX_POOLED = 16 ;
+
+	// Constructor
+	public FrameLayout() {
+		slotMap = new HashMap<String, Integer>() ;
+		names = new ArrayList<String>() ;
+		pool = new ArrayList<Frame>() ;
+	}
+
+	// returns -1 if the name has no slot in this layout
+	public int slotOf(String key) {
+		Integer i = slotMap.get(key) ;
+		if (i == null) {
+			return -1 ;
+		}
+		return i.intValue() ;
+	}
+
+	// returns the slot of the name, adding a new slot if necessary
+	public int addSlot(String key) {
+		int slot = slotOf(key) ;
+		if (slot < 0) {
+			slot = names.size() ;
+			names.add(key) ;
+			slotMap.put(key, slot) ;
+		}
+		return slot ;
+	}
+
+	public String nameAt(int slot) {
+		return names.get(slot) ;
+	}
+
+	public int size() {
+		return names.size() ;
+	}
+
+	// returns null if the pool is empty
+	public Frame takePooledFrame() {
+		int size = pool.size() ;
+		if (size == 0) {
+			return null ;
+		}
+		return pool.remove(size - 1) ;
+	}
+
+	public void returnPooledFrame(Frame frame) {
+		if (pool.size() < MAX_POOLED) {
+			frame.clear() ;
+			pool.add(frame) ;
+		}
+	}
+}
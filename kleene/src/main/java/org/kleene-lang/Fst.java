@@ -23,14 +23,20 @@
 //	a native OpenFst fst.  In addition, the Java Fst object stores
 //	the private sigma of the fst.
 
+import java.util.ArrayList ;
+import java.util.Collection ;
+import java.util.HashMap ;
 import java.util.HashSet ;
 import java.util.Iterator ;
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.Future ;
 
 class Fst {
 	// class variables, refer to as Fst.countOfFstsAllocated
 	private static int countOfFstsAllocated =   0 ;
 	private static int countOfCallsToFinalize = 0 ; 
 	private static int countOfFstsFinalized =   0 ;
+	private static int countOfFstsReleased =    0 ;
 
 	// instance variables
 	private long fstPtr ;   			// stores ptr to C++ FST object
@@ -42,32 +48,99 @@ class Fst {
 									// this may require working on a copy
 	private boolean containsOther ;
 	private boolean isRtn ;
+	private boolean sigmaExact ;	// if true, the sigma, containsOther
+									// and isRtn are known to be consistent
+									// with the actual arc labels, so a
+									// full native scan of the labels
+									// (CorrectSigmaOtherInPlace) can be
+									// skipped
 	
+	// mutationCount is incremented (noteMutation()) by every operation
+	// that changes the network in place; cached information about the
+	// network is stamped with the mutationCount at which it was 
+	// computed, and is valid only while the count is unchanged
+	private int mutationCount = 0 ;
+
+	// cached property word (see OpenFstLibraryWrapper.hasProperty()),
+	// valid while propertyStamp == mutationCount; knownProperties
+	// records which bits of propertyWord have been computed
+	private int propertyWord = 0 ;
+	private int knownProperties = 0 ;
+	private int propertyStamp = -1 ;
+
+	// cache for the canonical hash of the network (see 
+	// OpenFstLibraryWrapper.CanonicalHash()), valid while
+	// canonicalHashStamp == mutationCount
+	private boolean hasCanonicalHash = false ;
+	private long canonicalHash ;
+	private int canonicalHashStamp ;
+
+	// cache for the epsilon-free, determinized and arc-sorted forms of
+	// the network when it is used as the second argument of a 
+	// difference (see OpenFstLibraryWrapper.PreparedSubtrahend()), 
+	// keyed by the symbols that OTHER was promoted to for that
+	// difference (the empty set if none); valid while 
+	// preparedSubtrahendStamp == mutationCount
+	private HashMap<HashSet<Integer>, Fst> preparedSubtrahends = null ;
+	private int preparedSubtrahendStamp ;
+
+	// cache for a copy of the network with its arcs sorted by output
+	// label (see OpenFstLibraryWrapper.sortForCompose()), valid while
+	// outputSortedCopyStamp == mutationCount
+	private Fst outputSortedCopy = null ;
+	private int outputSortedCopyStamp ;
+
+	// A "pending" Fst is a placeholder for the result of a native
+	// operation still running on the worker pool (see 
+	// OpenFstLibraryWrapper.ComposeAsync()).  The first access to the 
+	// network, or to the sigma information that depends on its labels,
+	// waits for the result and then runs onArrival (on the accessing
+	// thread, normally the interpreter), which completes the Java
+	// bookkeeping, e.g. the correction of the sigma.
+	private Future<Long> pendingPtr = null ;
+	private Runnable onArrival = null ;
+	private RuntimeException pendingFailure = null ;
+
+	// A temporary Fst, created while a statement was interpreted and not
+	// live at its end, is released (see FstArena.java): its native
+	// network is deleted at once, not by finalize().  An Fst handed to
+	// an owner that the interpreter can't see (e.g. the network of a
+	// TestFstInternalFrame, or an operand copy held by a native worker
+	// thread) is marked arenaExempt and is never released.
+	private boolean released = false ;
+	private boolean arenaExempt = false ;
+
 	// Constructors
     public Fst(long ptr, boolean fromsymtab, boolean containsother, HashSet<Integer> sig) {
 		fstPtr = ptr ;
 		fromSymtab = fromsymtab ;
 		containsOther = containsother ;
 		isRtn = false ;
+		sigmaExact = false ;
 		sigma = new HashSet<Integer>() ;
 		sigma.addAll(sig) ;
 		countOfFstsAllocated++ ;
+		FstArena.register(this) ;
     }
     public Fst(long ptr, boolean fromsymtab, boolean containsother) {
 		fstPtr = ptr ;
 		fromSymtab = fromsymtab ;
 		containsOther = containsother ;
 		isRtn = false ;
+		sigmaExact = false ;
 		sigma = new HashSet<Integer>() ;
 		countOfFstsAllocated++ ;
+		FstArena.register(this) ;
     }
     public Fst(long ptr, boolean fromsymtab) {
 		fstPtr = ptr ;
 		fromSymtab = fromsymtab ;
 		containsOther = false ;
 		isRtn = false ;
+		sigmaExact = false ;
 		sigma = new HashSet<Integer>() ;
 		countOfFstsAllocated++ ;
+		FstArena.register(this) ;
     }
 	public Fst(long ptr) {
 		this(ptr, false) ;
@@ -88,36 +161,186 @@ class Fst {
 	public static int getCountOfFstsFinalized() {
 		return countOfFstsFinalized ;
 	}
+	public static int getCountOfFstsReleased() {
+		return countOfFstsReleased ;
+	}
 
 	// Instance (Object) Accessors
 	//
 	public long getFstPtr() {
+		if (released) {
+			throw new KleeneInterpreterException("Attempt to use a temporary network after the end of its statement") ;
+		}
+		awaitPending() ;
 		return fstPtr ;
 	}
 
 	public HashSet<Integer> getSigma() {
+		awaitPending() ;
 		return sigma ;
 	}
 
+	public boolean isPending() {
+		return pendingPtr != null ;
+	}
+
+	public boolean isReleased() {
+		return released ;
+	}
+
 	public boolean getFromSymtab() {
 		return fromSymtab ;
 	}
 
 	public boolean getContainsOther() {
+		awaitPending() ;
 		return containsOther ;
 	}
 
 	public boolean getIsRtn() {
+		awaitPending() ;
 		return isRtn ;
 	}
 
+	public boolean getSigmaExact() {
+		awaitPending() ;
+		return sigmaExact ;
+	}
+
+	public int getMutationCount() {
+		return mutationCount ;
+	}
+
+	// the property word, or rather the part of it that is known to
+	// be valid (the rest is zero)
+	public int getPropertyWord() {
+		return (propertyStamp == mutationCount) ? propertyWord : 0 ;
+	}
+
+	public int getKnownProperties() {
+		return (propertyStamp == mutationCount) ? knownProperties : 0 ;
+	}
+
+	public boolean getHasCanonicalHash() {
+		return hasCanonicalHash && canonicalHashStamp == mutationCount ;
+	}
+
+	public long getCanonicalHash() {
+		return canonicalHash ;
+	}
+
+	// null if there is none, or if the network has been changed since
+	public Fst getPreparedSubtrahend(HashSet<Integer> promotedTo) {
+		if (preparedSubtrahends == null || preparedSubtrahendStamp != mutationCount) {
+			return null ;
+		}
+		return preparedSubtrahends.get(promotedTo) ;
+	}
+
+	// all the prepared forms (for the marking of live Fsts, see
+	// endStatementArena() in the interpreter)
+	public Collection<Fst> getPreparedSubtrahends() {
+		if (preparedSubtrahends == null || preparedSubtrahendStamp != mutationCount) {
+			return new ArrayList<Fst>() ;
+		}
+		return preparedSubtrahends.values() ;
+	}
+
+	// null if there is none, or if the network has been changed since
+	public Fst getOutputSortedCopy() {
+		return (outputSortedCopyStamp == mutationCount) ? outputSortedCopy : null ;
+	}
+
 	// Mutators
 	
 	public void setFstPtr(long ptr) {
+		awaitPending() ;
 		fstPtr = ptr ;
+		noteMutation() ;
+	}
+
+	// make this a placeholder for the network that future will deliver
+	public void setPending(Future<Long> future, Runnable arrival) {
+		pendingPtr = future ;
+		onArrival = arrival ;
+	}
+
+	// wait, if necessary, for the network of a pending Fst.  A failure
+	// of the native operation (e.g. a NativeLimitException) is thrown
+	// here, and again on any later access.
+	private void awaitPending() {
+		if (pendingFailure != null) {
+			throw pendingFailure ;
+		}
+		if (pendingPtr == null) {
+			return ;
+		}
+		Future<Long> future = pendingPtr ;
+		Runnable arrival = onArrival ;
+		// cleared first:  onArrival itself accesses this Fst
+		pendingPtr = null ;
+		onArrival = null ;
+		try {
+			fstPtr = future.get().longValue() ;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt() ;
+			pendingFailure = new KleeneInterpreterException("Interrupted while waiting for a native worker thread") ;
+			throw pendingFailure ;
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof KleeneInterpreterException) {
+				pendingFailure = (KleeneInterpreterException) ee.getCause() ;
+			} else {
+				pendingFailure = new KleeneInterpreterException("Problem in a native worker thread: " + ee.getCause()) ;
+			}
+			throw pendingFailure ;
+		}
+		if (arrival != null) {
+			arrival.run() ;
+		}
+	}
+
+	public void setArenaExempt() {
+		arenaExempt = true ;
+	}
+
+	public boolean getArenaExempt() {
+		return arenaExempt ;
+	}
+
+	// delete the native network now; returns false if this Fst may not
+	// be released.  A pending Fst is never released, as the worker
+	// thread still has to deliver its network.  (arenaExempt only
+	// keeps the statement arena away; the owner of an exempt Fst may
+	// release it, see OpenFstLibraryWrapper.setPendingResult().)
+	public boolean release() {
+		if (released || pendingPtr != null) {
+			return false ;
+		}
+		InterpreterKleeneVisitor.jdelete(fstPtr) ;
+		fstPtr = 0L ;
+		released = true ;
+		countOfFstsReleased++ ;
+		return true ;
+	}
+
+	public void noteMutation() {
+		mutationCount++ ;
+	}
+
+	// record the values of the property bits in mask, for the 
+	// current mutationCount
+	public void setProperties(int mask, int values) {
+		if (propertyStamp != mutationCount) {
+			propertyWord = 0 ;
+			knownProperties = 0 ;
+			propertyStamp = mutationCount ;
+		}
+		propertyWord = (propertyWord & ~mask) | (values & mask) ;
+		knownProperties |= mask ;
 	}
 
 	public void setSigma(HashSet<Integer> hs) {
+		awaitPending() ;
 		sigma = hs ;
 	}
 
@@ -126,21 +349,50 @@ class Fst {
 	}
 
 	public void setContainsOther(boolean b) {
+		awaitPending() ;
 		containsOther = b ;
 	}
 
 	public void setContainsOther() {
+		awaitPending() ;
 		containsOther = true ;
 	}
 
 	public void setIsRtn(boolean b) {
+		awaitPending() ;
 		isRtn = b ;
 	}
 
 	public void setIsRtn() {
+		awaitPending() ;
 		isRtn = true ;
 	}
 
+	public void setSigmaExact(boolean b) {
+		awaitPending() ;
+		sigmaExact = b ;
+	}
+
+	public void setCanonicalHash(long hash) {
+		canonicalHash = hash ;
+		canonicalHashStamp = mutationCount ;
+		hasCanonicalHash = true ;
+	}
+
+	public void setPreparedSubtrahend(HashSet<Integer> promotedTo, Fst prepared) {
+		if (preparedSubtrahends == null || preparedSubtrahendStamp != mutationCount) {
+			// none yet, or out of date
+			preparedSubtrahends = new HashMap<HashSet<Integer>, Fst>() ;
+			preparedSubtrahendStamp = mutationCount ;
+		}
+		preparedSubtrahends.put(promotedTo, prepared) ;
+	}
+
+	public void setOutputSortedCopy(Fst sorted) {
+		outputSortedCopy = sorted ;
+		outputSortedCopyStamp = mutationCount ;
+	}
+
 	//  To access the sigma, use fstPtr.getSigma()
 	//
 	//  Methods of HashMap:
@@ -168,9 +420,25 @@ class Fst {
     protected void finalize() throws Throwable {
 		countOfCallsToFinalize++ ;
 		try {
+			if (pendingPtr != null) {
+				// never used, but the native network is (or will be)
+				// there all the same
+				try {
+					fstPtr = pendingPtr.get().longValue() ;
+				} catch (Exception e) {
+					fstPtr = 0L ;
+				}
+			}
 			// delete the native OpenFst network (a non-Java
-			// structure)
-			InterpreterKleeneVisitor.jdelete(fstPtr) ;
+			// structure), unless that was already done by release().
+			// This runs on the JVM's Finalizer thread, and the network
+			// may share its copy-on-write implementation (whose
+			// reference count is not thread-safe) with networks the
+			// interpreter is using, so the delete is only queued here
+			// and done later on the interpreter thread
+			if (!released) {
+				InterpreterKleeneVisitor.jdeleteLater(fstPtr) ;
+			}
 			countOfFstsFinalized++ ;
 		} finally {
 			// users of finalize() are encouraged to invoke
@@ -0,0 +1,96 @@
+//	FstArena.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	An FstArena collects the Fst objects created while one top-level
+//	statement is interpreted, so that the native networks of the
+//	temporaries (OneArcFst, sigma-promotion copies, optimization
+//	intermediates, Hulden helpers, ...) can be freed as soon as the
+//	statement is finished, instead of waiting for Java finalization.
+//	The decision which Fsts are still live, i.e. bound in the
+//	Environment or held by some other long-lived object, is made by the
+//	interpreter (see endStatementArena() in InterpreterKleeneVisitor).
+//
+//	Only the Fsts created on the thread that opened the arena (the
+//	interpreter thread) are collected; the GUI thread (e.g. the
+//	TestFstInternalFrame) and the native worker threads are left alone.
+//	Statements interpreted inside another statement (the statements of
+//	a 'source'd script) each get a level of their own:  at the end of
+//	a nested statement the Fsts created during it are decided on, and
+//	those still live are handed on to the enclosing statement (see
+//	keep()), so a long script does not hold all its temporaries until
+//	the 'source' statement is over.  Whether there is an arena at all
+//	is decided when the outermost statement starts.
+
+import java.util.ArrayList ;
+
+class FstArena {
+	private static int depth = 0 ;
+	// the Fsts created in each open statement, outermost first; null
+	// if inactive
+	private static ArrayList<ArrayList<Fst>> levels = null ;
+	private static Thread owner = null ;
+
+	// called at the start of each statement; if collect is false, the
+	// outermost statement is interpreted without an arena
+	public static synchronized void open(boolean collect) {
+		if (depth++ == 0 && collect) {
+			levels = new ArrayList<ArrayList<Fst>>() ;
+			owner = Thread.currentThread() ;
+		}
+		if (levels != null) {
+			levels.add(new ArrayList<Fst>()) ;
+		}
+	}
+
+	// called at the end of each statement; returns the Fsts created
+	// since the statement was started (including those kept from the
+	// statements nested in it), or null if there was no arena
+	public static synchronized ArrayList<Fst> close() {
+		if (depth == 0) {
+			return null ;
+		}
+		depth-- ;
+		if (levels == null) {
+			return null ;
+		}
+		ArrayList<Fst> result = levels.remove(levels.size() - 1) ;
+		if (depth == 0) {
+			levels = null ;
+			owner = null ;
+		}
+		return result ;
+	}
+
+	// called after close() with the Fsts that are still live at the end
+	// of a nested statement; the enclosing statement decides on them
+	// again when it is finished
+	public static synchronized void keep(ArrayList<Fst> live) {
+		if (levels != null && !levels.isEmpty()) {
+			levels.get(levels.size() - 1).addAll(live) ;
+		}
+	}
+
+	// called from the Fst constructors
+	public static synchronized void register(Fst fst) {
+		if (levels != null && Thread.currentThread() == owner) {
+			levels.get(levels.size() - 1).add(fst) ;
+		}
+	}
+}
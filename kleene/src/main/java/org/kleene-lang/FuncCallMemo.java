@@ -0,0 +1,152 @@
+//	FuncCallMemo.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	An opt-in memo table for calls of net-valued functions (and of
+//	functions returning net functions), used when #KLEENEmemoize is set
+//	(see predefined.kl).  Only the calls of functions that are pure, 
+//	i.e. whose result depends only on the arguments (not on free
+//	variables, not on random generation, and without side effects), are
+//	memoized; the interpreter decides that with a PurityAnalysis, and
+//	clears the table when a function is redefined.  A call of a pure
+//	function repeated with identical arguments, e.g. the same rule
+//	template expanded again, returns the remembered result instead of
+//	re-executing the function body.
+//
+//	The key is the FuncValue itself (identity), the optimization 
+//	settings, and the arguments:  numbers by value, and Fsts by their 
+//	structural fingerprint and sigma.  A hit is confirmed by comparing 
+//	the argument Fsts with (copies of) those remembered in the entry, so a
+//	fingerprint collision can't return a wrong result.  The table holds
+//	at most MAX_ENTRIES, evicting the least recently used.
+
+import java.util.ArrayList ;
+import java.util.HashSet ;
+import java.util.LinkedHashMap ;
+import java.util.Map ;
+import java.util.Stack ;
+
+public class FuncCallMemo {
+	private static final int MAX_ENTRIES = 256 ;
+
+	private static class Entry {
+		ArrayList<Fst> argFsts ;	// copies of the Fst args
+		Object result ;				// Fst or FuncValue
+	}
+
+	private LinkedHashMap<ArrayList<Object>, Entry> table ;
+	private OpenFstLibraryWrapper lib ;
+
+	// Constructor
+	public FuncCallMemo(OpenFstLibraryWrapper lb) {
+		lib = lb ;
+		// access-ordered, for LRU eviction
+		table = new LinkedHashMap<ArrayList<Object>, Entry>(64, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<ArrayList<Object>, Entry> eldest) {
+				return size() > MAX_ENTRIES ;
+			}
+		} ;
+	}
+
+	// Build the key for a call of funcValue; the args are the top 
+	// positional+named objects on the stack (not popped here).  The Fst
+	// args are collected in argFsts.  Returns null if the call can't be
+	// memoized (e.g. an arg is a list or a function).
+	public ArrayList<Object> makeKey(FuncValue funcValue, ArgCounts ac,
+								Stack<Object> stack, Object settings,
+								ArrayList<Fst> argFsts) {
+		ArrayList<Object> key = new ArrayList<Object>() ;
+		key.add(funcValue) ;
+		key.add(settings) ;
+
+		int count = ac.getPositionalArgsCount() + ac.getNamedArgsCount() ;
+		int top = stack.size() - 1 ;
+		for (int i = 0; i < count; i++) {
+			Object arg = stack.get(top - i) ;
+			if (arg instanceof NamedArg) {
+				key.add(((NamedArg) arg).getName()) ;
+				arg = ((NamedArg) arg).getValue() ;
+			}
+			if (arg instanceof Fst) {
+				Fst fst = (Fst) arg ;
+				key.add(Long.valueOf(lib.Fingerprint(fst))) ;
+				key.add(new HashSet<Integer>(fst.getSigma())) ;
+				argFsts.add(fst) ;
+			} else if (arg instanceof Long || arg instanceof Double) {
+				key.add(arg) ;
+			} else {
+				return null ;
+			}
+		}
+		return key ;
+	}
+
+	// returns null if there is no remembered result
+	public Object lookup(ArrayList<Object> key, ArrayList<Fst> argFsts) {
+		Entry entry = table.get(key) ;
+		if (entry == null) {
+			return null ;
+		}
+		for (int i = 0; i < argFsts.size(); i++) {
+			if (!lib.Identical(argFsts.get(i), entry.argFsts.get(i))) {
+				// a fingerprint collision
+				return null ;
+			}
+		}
+		if (entry.result instanceof Fst) {
+			// the caller may change the result; CopyFst() is a cheap
+			// copy-on-write share of the native network
+			return lib.CopyFst((Fst) entry.result) ;
+		}
+		return entry.result ;
+	}
+
+	public void store(ArrayList<Object> key, ArrayList<Fst> argFsts, Object result) {
+		Entry entry = new Entry() ;
+		// copies, in case the args or the result are later changed
+		// in place
+		entry.argFsts = new ArrayList<Fst>() ;
+		for (int i = 0; i < argFsts.size(); i++) {
+			entry.argFsts.add(lib.CopyFst(argFsts.get(i))) ;
+		}
+		if (result instanceof Fst) {
+			entry.result = lib.CopyFst((Fst) result) ;
+		} else {
+			entry.result = result ;
+		}
+		table.put(key, entry) ;
+	}
+
+	// all the objects remembered in the table, the args and the results
+	// (Fsts, or FuncValues whose static Frames hold Fsts), as roots for
+	// the marking of live Fsts (see endStatementArena() in the 
+	// interpreter)
+	public ArrayList<Object> getRoots() {
+		ArrayList<Object> list = new ArrayList<Object>() ;
+		for (Entry entry : table.values()) {
+			list.addAll(entry.argFsts) ;
+			list.add(entry.result) ;
+		}
+		return list ;
+	}
+
+	public void clear() {
+		table.clear() ;
+	}
+}
@@ -26,7 +26,6 @@
 // param.
 
 import java.util.ArrayList ;
-import java.util.Iterator ; 
 
 public class FuncValue {
 
@@ -38,11 +37,26 @@ public class FuncValue {
     private ArrayList<ParamSlot> paramArrayList ;
     private ASTfunc_block funcBlock ;
 
+	// shared by all the Frames allocated for calls of this function
+	// (see Environment.allocateFrame(Frame, FrameLayout))
+	private FrameLayout frameLayout ;
+
+	// the precompiled plan for binding the params of this function
+	// to the args of a call
+	private ParamPlan paramPlan ;
+
     // Constructor
     public FuncValue (Frame f, ArrayList<ParamSlot> pal, ASTfunc_block fb) {
 		staticFrame = f ;
 		paramArrayList = pal ;
 		funcBlock = fb ;
+		frameLayout = new FrameLayout() ;
+		paramPlan = new ParamPlan(pal, frameLayout) ;
+		// the Frame must survive (not be recycled, see Frame.java) as
+		// long as this function can be called
+		if (f != null) {
+			f.setCaptured() ;
+		}
     }
 
     public Frame getStaticFrame() {
@@ -50,15 +64,17 @@ public class FuncValue {
     }
 
     public ArrayList<ParamSlot> getParamArrayList() {
-		// need to return a new deep copy for each function call
-		ArrayList<ParamSlot> deepCopy = new ArrayList<ParamSlot>() ;
+		// no longer deep-copied for each function call; the params
+		// are bound using the ParamPlan
+		return paramArrayList ;
+    }
 
-		for (Iterator<ParamSlot> iter = paramArrayList.iterator(); iter.hasNext(); ) {
-			ParamSlot ps = iter.next() ;
-			deepCopy.add(new ParamSlot(ps.getName(), ps.getDefault())) ;
-		}
+    public ParamPlan getParamPlan() {
+		return paramPlan ;
+    }
 
-		return deepCopy ;
+    public FrameLayout getFrameLayout() {
+		return frameLayout ;
     }
 
     public ASTfunc_block getFuncBlock() {
@@ -22,6 +22,10 @@
 // Implementation of Mans Hulden's algorithms for compiling
 // alternation rules into transducers.
 
+import java.util.ArrayList ;
+import java.util.Collection ;
+import java.util.HashMap ;
+
 public class Hulden {
 
 	OpenFstLibraryWrapper lib ;
@@ -89,6 +93,91 @@ public class Hulden {
 	public String restDelimSym = "**@RD@" ;
 
 
+	// ********************************************************************
+
+	// Most of the networks built while compiling an alternation rule do
+	// not depend on the rule at all:  the sets of special symbols, the
+	// "filters" that the arguments of Tape1of3(), Lower(), Upper(), etc.
+	// are composed with, Boundary(), the marker patterns of CP(), ...
+	// Formerly each of these was rebuilt, one JNI operation (and one
+	// optimization) at a time, for every rule and every context.  Now
+	// each one is built the first time it is needed and kept here,
+	// protected, and the callers get a copy; the native copy is
+	// copy-on-write (see CopyFst()), so handing one out costs a single
+	// JNI call.  The special symbols never change, so the kept networks
+	// never need to be rebuilt.
+
+	private HashMap<String, Fst> keptFsts = new HashMap<String, Fst>() ;
+
+	// a copy of the kept network, or null if it hasn't been built yet
+	private Fst kept(String name) {
+		Fst fst = keptFsts.get(name) ;
+		return (fst == null) ? null : lib.CopyFst(fst) ;
+	}
+
+	// the kept networks themselves (they must outlive any statement,
+	// see endStatementArena() in the interpreter)
+	public Collection<Fst> getKeptFsts() {
+		return keptFsts.values() ;
+	}
+
+	// keep fst under name, and return a copy of it
+	private Fst keep(String name, Fst fst) {
+		fst.setFromSymtab(true) ;	// never to be modified in place
+		keptFsts.put(name, fst) ;
+		return lib.CopyFst(fst) ;
+	}
+
+	// For OpenFstLibraryWrapper.CompileRuleNative(), which builds a whole
+	// rule group inside C++:  the kept networks, in the order of the
+	// RuleKeptNet enum in kleeneopenfst.cc.  Each one is a copy (cheap,
+	// see above), and each is built now if it hasn't been built yet.
+
+	public ArrayList<Fst> KeptNetsForNative() {
+		ArrayList<Fst> nets = new ArrayList<Fst>() ;
+		nets.add(Tape23of3Filter()) ;
+		nets.add(Tape1of2Filter()) ;
+		nets.add(Tape2of2Filter()) ;
+		nets.add(LowerFilter()) ;
+		nets.add(UpperFilter()) ;
+		nets.add(UnrewrittenFilter()) ;
+		nets.add(DeleteFirstSymbolFilter()) ;
+		nets.add(NotContainTriples()) ;
+		nets.add(EPEXTEND_RIGHT_ARROW()) ;
+		nets.add(EPEXTEND_LEFT_ARROW()) ;
+		nets.add(NotLongestTape1()) ;
+		nets.add(NotLongestTailRightArrow()) ;
+		nets.add(NotLongestTailLeftArrow()) ;
+		nets.add(LeftmostTape1()) ;
+		nets.add(RightmostTape1()) ;
+		nets.add(ShortestTape1()) ;
+		nets.add(ISymsStarOnTape1()) ;
+		nets.add(CPMarkers()) ;
+		nets.add(Outside()) ;
+		nets.add(Boundary()) ;
+		nets.add(NotRestDelimStarFst()) ;
+		nets.add(IOpen()) ;
+		nets.add(NotContainsSpecialSymbolsAction()) ;
+		nets.add(RemoveBoundary()) ;
+		nets.add(PreProcess()) ;
+		return nets ;
+	}
+
+	// and the int codes of the special symbols, in the order of the
+	// RuleSymbol enum in kleeneopenfst.cc
+
+	public int[] SymbolsForNative() {
+		String[] syms = { lib.otherIdSym, lib.otherNonIdSym, hardEpsilonSym,
+						  idMarkerSym, ISym, IOpenSym, IOpenAndCloseSym,
+						  ICloseSym, outsideMarkerSym, ruleWordBoundarySym,
+						  ruleRightAngleSym, restDelimSym } ;
+		int[] codes = new int[syms.length] ;
+		for (int i = 0; i < syms.length; i++) {
+			codes[i] = symmap.putsym(syms[i]) ;
+		}
+		return codes ;
+	}
+
 	// ********************************************************************
 
 	public void SubstEpsilonInPlace(Fst fst, int orig) {
@@ -147,7 +236,11 @@ public class Hulden {
 	// I symbols that can open/start a mapping
 
 	public Fst IOpen() {
-		return lib.Union(lib.OneArcFst(IOpenSym), lib.OneArcFst(IOpenAndCloseSym)) ;
+		Fst fst = kept("IOpen") ;
+		if (fst == null) {
+			fst = keep("IOpen", lib.Union(lib.OneArcFst(IOpenSym), lib.OneArcFst(IOpenAndCloseSym))) ;
+		}
+		return fst ;
 	}
 
 	// Hulden
@@ -155,7 +248,11 @@ public class Hulden {
 	// I symbols that end a mapping
 
 	private Fst IClose() {
-		return lib.Union(lib.OneArcFst(ICloseSym), lib.OneArcFst(IOpenAndCloseSym)) ;
+		Fst fst = kept("IClose") ;
+		if (fst == null) {
+			fst = keep("IClose", lib.Union(lib.OneArcFst(ICloseSym), lib.OneArcFst(IOpenAndCloseSym))) ;
+		}
+		return fst ;
 	}
 
 	// Hulden
@@ -163,12 +260,16 @@ public class Hulden {
 	// covers all I-symbols
 
 	private Fst ISyms() {
-		return lib.Union4Fsts(
-					lib.OneArcFst(ISym),
-					lib.OneArcFst(IOpenSym),
-					lib.OneArcFst(ICloseSym),
-					lib.OneArcFst(IOpenAndCloseSym)
-				) ;
+		Fst fst = kept("ISyms") ;
+		if (fst == null) {
+			fst = keep("ISyms", lib.Union4Fsts(
+						lib.OneArcFst(ISym),
+						lib.OneArcFst(IOpenSym),
+						lib.OneArcFst(ICloseSym),
+						lib.OneArcFst(IOpenAndCloseSym)
+					)) ;
+		}
+		return fst ;
 	}
 
 	// *********************************************************************
@@ -181,10 +282,14 @@ public class Hulden {
 	// define Tape1Sig ["@O@"|ISyms] ;
 
 	private Fst Tape1Sig() {
-		return lib.Union(
-						lib.OneArcFst(outsideMarkerSym) ,
-						ISyms()
-					) ;
+		Fst fst = kept("Tape1Sig") ;
+		if (fst == null) {
+			fst = keep("Tape1Sig", lib.Union(
+							lib.OneArcFst(outsideMarkerSym) ,
+							ISyms()
+						)) ;
+		}
+		return fst ;
 	}
 
 	// Tape2Sig() covers all the symbols that can appear on tape 2 of a triple
@@ -193,12 +298,16 @@ public class Hulden {
 	// define Tape2Sig [?-Tape1Sig-"@ID@"] ;
 
 	public Fst Tape2Sig() {
-		return lib.Difference(
-						lib.Difference(lib.OneArcFst(lib.otherIdSym), 
-										Tape1Sig()
-						),
-						lib.OneArcFst(idMarkerSym)
-			) ;
+		Fst fst = kept("Tape2Sig") ;
+		if (fst == null) {
+			fst = keep("Tape2Sig", lib.Difference(
+							lib.Difference(lib.OneArcFst(lib.otherIdSym), 
+											Tape1Sig()
+							),
+							lib.OneArcFst(idMarkerSym)
+				)) ;
+		}
+		return fst ;
 	}
 
 	// Tape3Sig() covers all the symbols that can appear on tape 3 of a triple
@@ -207,10 +316,14 @@ public class Hulden {
 	// define Tape3Sig [?-Tape1Sig] ;
 
 	private Fst Tape3Sig() {
-		return lib.Difference(
-						lib.OneArcFst(lib.otherIdSym), 
-						Tape1Sig()
-					) ;
+		Fst fst = kept("Tape3Sig") ;
+		if (fst == null) {
+			fst = keep("Tape3Sig", lib.Difference(
+							lib.OneArcFst(lib.otherIdSym), 
+							Tape1Sig()
+						)) ;
+		}
+		return fst ;
 	}
 
 	// Hulden
@@ -218,21 +331,29 @@ public class Hulden {
 	// N.B. distinguish @O@, with letter 'O' from @0@, with zero
 
 	private Fst SpecialSymbolsAction() {
-		return lib.Union5Fsts(
-					ISyms(),
-					lib.OneArcFst(outsideMarkerSym),
-					lib.OneArcFst(idMarkerSym),
-					lib.OneArcFst(hardEpsilonSym),
-					lib.OneArcFst(ruleWordBoundarySym)
-		) ;
+		Fst fst = kept("SpecialSymbolsAction") ;
+		if (fst == null) {
+			fst = keep("SpecialSymbolsAction", lib.Union5Fsts(
+						ISyms(),
+						lib.OneArcFst(outsideMarkerSym),
+						lib.OneArcFst(idMarkerSym),
+						lib.OneArcFst(hardEpsilonSym),
+						lib.OneArcFst(ruleWordBoundarySym)
+			)) ;
+		}
+		return fst ;
 	}
 
 	// RealSig()  (Hulden's "R")
 	private Fst RealSig() {
-		return lib.Difference(
-				lib.OneArcFst(lib.otherIdSym),
-				SpecialSymbolsAction()
-			) ;
+		Fst fst = kept("RealSig") ;
+		if (fst == null) {
+			fst = keep("RealSig", lib.Difference(
+					lib.OneArcFst(lib.otherIdSym),
+					SpecialSymbolsAction()
+				)) ;
+		}
+		return fst ;
 	}
 
 	// if the "parts" of a rule,  A -> B / L _ R contain OTHER,
@@ -258,26 +379,39 @@ public class Hulden {
 	// to be a transducer
 	public Fst CleanupSpecialSymbolsAction(Fst fst) {
 		if (fst.getContainsOther()) {
-			return lib.Compose3Fsts(	notContainsFst(SpecialSymbolsAction()),
+			return lib.Compose3Fsts(	NotContainsSpecialSymbolsAction(),
 										fst, 
-							  			notContainsFst(SpecialSymbolsAction())
+							  			NotContainsSpecialSymbolsAction()
 							 		) ;
 		}
 		// else
 		return fst ;
 	}
 
+	private Fst NotContainsSpecialSymbolsAction() {
+		Fst fst = kept("NotContainsSpecialSymbolsAction") ;
+		if (fst == null) {
+			fst = keep("NotContainsSpecialSymbolsAction", 
+						notContainsFst(SpecialSymbolsAction())) ;
+		}
+		return fst ;
+	}
+
 	private Fst SpecialSymbolsContext() {
-		return lib.Union4Fsts(
-					ISyms(),
-					lib.OneArcFst(outsideMarkerSym),
-					lib.OneArcFst(idMarkerSym),
-					lib.OneArcFst(hardEpsilonSym)
-					// do not include ruleWordBoundarySym here,
-					// needs to be left in contexts, at least
-					// in cases where the contexts explicitly
-					// include #
-		) ;
+		Fst fst = kept("SpecialSymbolsContext") ;
+		if (fst == null) {
+			fst = keep("SpecialSymbolsContext", lib.Union4Fsts(
+						ISyms(),
+						lib.OneArcFst(outsideMarkerSym),
+						lib.OneArcFst(idMarkerSym),
+						lib.OneArcFst(hardEpsilonSym)
+						// do not include ruleWordBoundarySym here,
+						// needs to be left in contexts, at least
+						// in cases where the contexts explicitly
+						// include #
+			)) ;
+		}
+		return fst ;
 	}
 
 	// used to exclude special symbols from the Left and Right sides
@@ -285,12 +419,73 @@ public class Hulden {
 	public Fst CleanupSpecialSymbolsContext(Fst fst) {
 		if (fst.getContainsOther()) {
 			return lib.Intersect(	fst, 
-									notContainsFst(SpecialSymbolsContext())
+									NotContainsSpecialSymbolsContext()
 							 	) ;
 		}
 		return fst ;
 	}
 
+	// the clean-ups of many Fsts at once, e.g. of the parts of all the
+	// instantiations of a where-clause rule (see
+	// compileRuleSyntacticParts() in the interpreter); the native
+	// intersections, or compositions, of each step run concurrently.
+	// Returns a parallel list.
+	public ArrayList<Fst> CleanupSpecialSymbolsContexts(ArrayList<Fst> fsts) {
+		ArrayList<Fst> dirty = new ArrayList<Fst>() ;
+		ArrayList<Fst> filters = new ArrayList<Fst>() ;
+		for (int i = 0; i < fsts.size(); i++) {
+			if (fsts.get(i).getContainsOther()) {
+				dirty.add(fsts.get(i)) ;
+				// a copy of its own for each, as the promotion of OTHER
+				// against one operand can modify it
+				filters.add(NotContainsSpecialSymbolsContext()) ;
+			}
+		}
+		return mergeCleaned(fsts, lib.IntersectPairs(dirty, filters)) ;
+	}
+
+	public ArrayList<Fst> CleanupSpecialSymbolsActions(ArrayList<Fst> fsts) {
+		ArrayList<Fst> dirty = new ArrayList<Fst>() ;
+		ArrayList<Fst> filters = new ArrayList<Fst>() ;
+		for (int i = 0; i < fsts.size(); i++) {
+			if (fsts.get(i).getContainsOther()) {
+				dirty.add(fsts.get(i)) ;
+				filters.add(NotContainsSpecialSymbolsAction()) ;
+			}
+		}
+		// as in CleanupSpecialSymbolsAction(), filter _o_ fst _o_ filter
+		ArrayList<Fst> composed = lib.ComposePairs(filters, dirty) ;
+		filters = new ArrayList<Fst>() ;
+		for (int i = 0; i < composed.size(); i++) {
+			filters.add(NotContainsSpecialSymbolsAction()) ;
+		}
+		return mergeCleaned(fsts, lib.ComposePairs(composed, filters)) ;
+	}
+
+	// the Fsts that contained OTHER replaced, in order, by their
+	// cleaned versions
+	private ArrayList<Fst> mergeCleaned(ArrayList<Fst> fsts, ArrayList<Fst> cleaned) {
+		ArrayList<Fst> result = new ArrayList<Fst>(fsts.size()) ;
+		int j = 0 ;
+		for (int i = 0; i < fsts.size(); i++) {
+			if (fsts.get(i).getContainsOther()) {
+				result.add(cleaned.get(j++)) ;
+			} else {
+				result.add(fsts.get(i)) ;
+			}
+		}
+		return result ;
+	}
+
+	private Fst NotContainsSpecialSymbolsContext() {
+		Fst fst = kept("NotContainsSpecialSymbolsContext") ;
+		if (fst == null) {
+			fst = keep("NotContainsSpecialSymbolsContext", 
+						notContainsFst(SpecialSymbolsContext())) ;
+		}
+		return fst ;
+	}
+
 	// *************************************************************************
 						
 	// Hulden's algorithm involves creating "two-tape" and "three-tape" strings,
@@ -310,12 +505,15 @@ public class Hulden {
 		// argument should be an Acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat3Fsts(
-									lib.OneArcFst(lib.otherIdSym),
-									lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-									lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
-									)
-								) ;
+		Fst temp = kept("Tape1of3") ;
+		if (temp == null) {
+			temp = keep("Tape1of3", lib.KleeneStar(lib.Concat3Fsts(
+										lib.OneArcFst(lib.otherIdSym),
+										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
+										)
+									)) ;
+		}
 
 		return lib.OutputProjection(lib.Compose(X, temp)) ;
 	}
@@ -330,12 +528,15 @@ public class Hulden {
 		// argument should be an Acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
-										)
-								) ;
+		Fst temp = kept("Tape2of3") ;
+		if (temp == null) {
+			temp = keep("Tape2of3", lib.KleeneStar(lib.Concat3Fsts(
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+											lib.OneArcFst(lib.otherIdSym),
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
+											)
+									)) ;
+		}
 
 		return lib.OutputProjection(lib.Compose(X, temp)) ;
 	}
@@ -346,12 +547,15 @@ public class Hulden {
 		// argument should be an Acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-								) ;
+		Fst temp = kept("Tape3of3") ;
+		if (temp == null) {
+			temp = keep("Tape3of3", lib.KleeneStar(lib.Concat3Fsts(
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+											lib.OneArcFst(lib.otherIdSym)
+											)
+									)) ;
+		}
 
 		return lib.OutputProjection(lib.Compose(X, temp)) ;
 	}
@@ -367,13 +571,20 @@ public class Hulden {
 		// argument should be an acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.otherIdSym))
-								) ;
+		return lib.OutputProjection(lib.Compose(X, Tape23of3Filter())) ;
+	}
 
-		return lib.OutputProjection(lib.Compose(X, temp)) ;
+	// [0:? ? ?]*
+	private Fst Tape23of3Filter() {
+		Fst temp = kept("Tape23of3") ;
+		if (temp == null) {
+			temp = keep("Tape23of3", lib.KleeneStar(lib.Concat3Fsts(
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+											lib.OneArcFst(lib.otherIdSym),
+											lib.OneArcFst(lib.otherIdSym))
+									)) ;
+		}
+		return temp ;
 	}
 
 	// Hulden's
@@ -382,19 +593,22 @@ public class Hulden {
 	// 									  ] ;
 	// used for interpreting epenthesis rules (at least right-arrow epenthesis rules)
 	private Fst EPEXTEND_RIGHT_ARROW() {
-		Fst temp = lib.Union(
-			Tape1of3(lib.OneArcFst(outsideMarkerSym)),
-
-		 	lib.Intersect(	Tape1of3(lib.Union(	lib.Concat3Fsts(lib.OneArcFst(IOpenSym),
-										 					  	lib.KleeneStar(lib.OneArcFst(ISym)),
-															  	lib.OneArcFst(ICloseSym)
-															   ),
-									 			lib.OneArcFst(IOpenAndCloseSym)
-									          )
-							),
-							Tape2of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
-			)
-		) ;
+		Fst temp = kept("EPEXTEND_RIGHT_ARROW") ;
+		if (temp == null) {
+			temp = keep("EPEXTEND_RIGHT_ARROW", lib.Union(
+				Tape1of3(lib.OneArcFst(outsideMarkerSym)),
+
+			 	lib.Intersect(	Tape1of3(lib.Union(	lib.Concat3Fsts(lib.OneArcFst(IOpenSym),
+											 					  	lib.KleeneStar(lib.OneArcFst(ISym)),
+																  	lib.OneArcFst(ICloseSym)
+																   ),
+										 			lib.OneArcFst(IOpenAndCloseSym)
+										          )
+								),
+								Tape2of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
+				)
+			)) ;
+		}
 		return temp ;
 	}
 
@@ -435,21 +649,24 @@ public class Hulden {
 	//								  			] ;
 
 	private Fst EPEXTEND_LEFT_ARROW() {
-		Fst temp = lib.Union(
-			Tape1of3(lib.OneArcFst(outsideMarkerSym)),
-
-		 	lib.Intersect(	Tape1of3(lib.Union(	lib.Concat3Fsts(lib.OneArcFst(IOpenSym),
-										 					  	lib.KleeneStar(lib.OneArcFst(ISym)),
-															  	lib.OneArcFst(ICloseSym)
-															   ),
-									 			lib.OneArcFst(IOpenAndCloseSym)
-									          )
-							),
-							// the difference is here---Tape3of3 for a <- "" rather than Tape2of3, for "" -> a
-							//Tape2of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
-							Tape3of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
-			)
-		) ;
+		Fst temp = kept("EPEXTEND_LEFT_ARROW") ;
+		if (temp == null) {
+			temp = keep("EPEXTEND_LEFT_ARROW", lib.Union(
+				Tape1of3(lib.OneArcFst(outsideMarkerSym)),
+
+			 	lib.Intersect(	Tape1of3(lib.Union(	lib.Concat3Fsts(lib.OneArcFst(IOpenSym),
+											 					  	lib.KleeneStar(lib.OneArcFst(ISym)),
+																  	lib.OneArcFst(ICloseSym)
+																   ),
+										 			lib.OneArcFst(IOpenAndCloseSym)
+										          )
+								),
+								// the difference is here---Tape3of3 for a <- "" rather than Tape2of3, for "" -> a
+								//Tape2of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
+								Tape3of3(lib.Complement(lib.KleeneStar(lib.OneArcFst(hardEpsilonSym))))
+				)
+			)) ;
+		}
 		return temp ;
 	}
 
@@ -491,12 +708,20 @@ public class Hulden {
 		// argument should be an Acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat(
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
-										)
-								) ;
-		return lib.OutputProjection(lib.Compose(X, temp)) ;
+		return lib.OutputProjection(lib.Compose(X, Tape1of2Filter())) ;
+	}
+
+	// [? 0:?]*
+	private Fst Tape1of2Filter() {
+		Fst temp = kept("Tape1of2") ;
+		if (temp == null) {
+			temp = keep("Tape1of2", lib.KleeneStar(lib.Concat(
+											lib.OneArcFst(lib.otherIdSym),
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
+											)
+									)) ;
+		}
+		return temp ;
 	}
 
 	// given a one-tape language lang, return the two-tape language that has
@@ -509,12 +734,20 @@ public class Hulden {
 		// argument should be an Acceptor
 		// if (!lib.IsAcceptor(lang.getFstPtr()))
 
-		Fst temp = lib.KleeneStar(lib.Concat(
-										lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-								) ;
-		return lib.OutputProjection(lib.Compose(X, temp)) ;
+		return lib.OutputProjection(lib.Compose(X, Tape2of2Filter())) ;
+	}
+
+	// [0:? ?]*
+	private Fst Tape2of2Filter() {
+		Fst temp = kept("Tape2of2") ;
+		if (temp == null) {
+			temp = keep("Tape2of2", lib.KleeneStar(lib.Concat(
+											lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym),
+											lib.OneArcFst(lib.otherIdSym)
+											)
+									)) ;
+		}
+		return temp ;
 	}
 
 	// ***********************************************************************
@@ -596,40 +829,48 @@ public class Hulden {
 	//			 ].l ;
 			 
 	public Fst Lower(Fst X) {
-		Fst temp = lib.KleeneStar(
-						lib.Union3Fsts(
-							lib.Concat3Fsts(
-									lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
-									lib.Union(
-											RealSig(),
-											lib.OneArcFst(ruleWordBoundarySym)
-									),
-									lib.OneArcFst(lib.Epsilon, idMarkerSym)
-							),
-							lib.Concat3Fsts(
-									lib.Crossproduct(
-													lib.OneArcFst(lib.Epsilon),
-													ISyms()),
-									lib.Crossproduct(
-													lib.OneArcFst(lib.Epsilon),
-													lib.Union(
-															lib.OneArcFst(hardEpsilonSym),
-															RealSig())
-													),
-									RealSig()
-							),
-							lib.Concat3Fsts(
-									lib.Crossproduct(
-													lib.OneArcFst(lib.Epsilon),
-													ISyms()),
-									lib.Crossproduct(
-													lib.OneArcFst(lib.Epsilon),
-													RealSig()),
-									lib.OneArcFst(lib.Epsilon, hardEpsilonSym)
-							)
-						) 
-					) ;
-		return lib.OutputProjection(lib.Compose(X, temp)) ;
+		return lib.OutputProjection(lib.Compose(X, LowerFilter())) ;
+	}
+
+	// the filter of Lower(), see above
+	private Fst LowerFilter() {
+		Fst temp = kept("Lower") ;
+		if (temp == null) {
+			temp = keep("Lower", lib.KleeneStar(
+							lib.Union3Fsts(
+								lib.Concat3Fsts(
+										lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
+										lib.Union(
+												RealSig(),
+												lib.OneArcFst(ruleWordBoundarySym)
+										),
+										lib.OneArcFst(lib.Epsilon, idMarkerSym)
+								),
+								lib.Concat3Fsts(
+										lib.Crossproduct(
+														lib.OneArcFst(lib.Epsilon),
+														ISyms()),
+										lib.Crossproduct(
+														lib.OneArcFst(lib.Epsilon),
+														lib.Union(
+																lib.OneArcFst(hardEpsilonSym),
+																RealSig())
+														),
+										RealSig()
+								),
+								lib.Concat3Fsts(
+										lib.Crossproduct(
+														lib.OneArcFst(lib.Epsilon),
+														ISyms()),
+										lib.Crossproduct(
+														lib.OneArcFst(lib.Epsilon),
+														RealSig()),
+										lib.OneArcFst(lib.Epsilon, hardEpsilonSym)
+								)
+							) 
+						)) ;
+		}
+		return temp ;
 	}
 	
 
@@ -651,41 +892,49 @@ public class Hulden {
 	//					].l ;
 
 	public Fst Upper(Fst X) {
-		Fst temp = lib.KleeneStar( 
-					lib.Union3Fsts(
-							lib.Concat3Fsts(
-									lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
-									lib.OneArcFst(lib.otherIdSym),
-									lib.OneArcFst(lib.Epsilon, idMarkerSym)
-							),
-							lib.Concat3Fsts(
-									lib.Crossproduct(
-											lib.OneArcFst(lib.Epsilon),
-											ISyms()
-									),
-									lib.OneArcFst(lib.otherIdSym),
-									lib.Crossproduct(
-											lib.OneArcFst(lib.Epsilon),
-											Tape3Sig()
-									)
-							),
-							lib.Concat3Fsts(
-									lib.Crossproduct(
+		return lib.OutputProjection(lib.Compose(X, UpperFilter())) ;
+	}
+
+	// the filter of Upper(), see above
+	private Fst UpperFilter() {
+		Fst temp = kept("Upper") ;
+		if (temp == null) {
+			temp = keep("Upper", lib.KleeneStar( 
+						lib.Union3Fsts(
+								lib.Concat3Fsts(
+										lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
+										lib.OneArcFst(lib.otherIdSym),
+										lib.OneArcFst(lib.Epsilon, idMarkerSym)
+								),
+								lib.Concat3Fsts(
+										lib.Crossproduct(
+												lib.OneArcFst(lib.Epsilon),
+												ISyms()
+										),
+										lib.OneArcFst(lib.otherIdSym),
+										lib.Crossproduct(
+												lib.OneArcFst(lib.Epsilon),
+												Tape3Sig()
+										)
+								),
+								lib.Concat3Fsts(
+										lib.Crossproduct(
+												lib.OneArcFst(lib.Epsilon),
+												ISyms()
+										),
+										lib.OneArcFst(lib.Epsilon, hardEpsilonSym),
+										lib.Crossproduct(
 											lib.OneArcFst(lib.Epsilon),
-											ISyms()
-									),
-									lib.OneArcFst(lib.Epsilon, hardEpsilonSym),
-									lib.Crossproduct(
-										lib.OneArcFst(lib.Epsilon),
-										lib.Difference(
-												Tape3Sig(),
-												lib.OneArcFst(idMarkerSym)
+											lib.Difference(
+													Tape3Sig(),
+													lib.OneArcFst(idMarkerSym)
+											)
 										)
 									)
 								)
-							)
-					) ;
-		return lib.OutputProjection(lib.Compose(X, temp)) ;
+						)) ;
+		}
+		return temp ;
 	}
 
 	// Hulden:
@@ -817,7 +1066,24 @@ public class Hulden {
 	public Fst NotLongestRightArrow(Fst X) {
 		return lib.Intersect3Fsts(
 			Upper(X),	// will be Lower(X) in NotLongestLeftArrow
-			Tape1of3(
+			NotLongestTape1(),
+			NotLongestTailRightArrow()
+		) ;  // end of return lib.Intersect3Fsts(
+	}
+
+	public Fst NotLongestLeftArrow(Fst X) {
+		return lib.Intersect3Fsts(
+			Lower(X),	// will be Upper(X) in NotLongestRightArrow
+			NotLongestTape1(),
+			NotLongestTailLeftArrow()
+		) ;  // end of return lib.Intersect3Fsts(
+	}
+
+	// Tape1of3(IOpen Tape1Sig* ["@O@" | IOpen] Tape1Sig*)
+	private Fst NotLongestTape1() {
+		Fst fst = kept("NotLongestTape1") ;
+		if (fst == null) {
+			fst = keep("NotLongestTape1", Tape1of3(
 				lib.Concat4Fsts(
 						IOpen(),
 						lib.KleeneStar(Tape1Sig()),
@@ -827,8 +1093,16 @@ public class Hulden {
 						),
 						lib.KleeneStar(Tape1Sig())
 				)
-			) ,
-			lib.Concat(
+			)) ;
+		}
+		return fst ;
+	}
+
+	// [?^3]* [? [?-"@0@"] ?]
+	private Fst NotLongestTailRightArrow() {
+		Fst fst = kept("NotLongestTailRightArrow") ;
+		if (fst == null) {
+			fst = keep("NotLongestTailRightArrow", lib.Concat(
 				lib.KleeneStar(lib.Concat3Fsts(
 									lib.OneArcFst(lib.otherIdSym),
 									lib.OneArcFst(lib.otherIdSym),
@@ -844,25 +1118,16 @@ public class Hulden {
 					),
 					lib.OneArcFst(lib.otherIdSym)
 				)
-			)
-		) ;  // end of return lib.Intersect3Fsts(
+			)) ;
+		}
+		return fst ;
 	}
 
-	public Fst NotLongestLeftArrow(Fst X) {
-		return lib.Intersect3Fsts(
-			Lower(X),	// will be Upper(X) in NotLongestRightArrow
-			Tape1of3(
-				lib.Concat4Fsts(
-						IOpen(),
-						lib.KleeneStar(Tape1Sig()),
-						lib.Union(
-							lib.OneArcFst(outsideMarkerSym),
-							IOpen()
-						),
-						lib.KleeneStar(Tape1Sig())
-				)
-			) ,
-			lib.Concat(
+	// [?^3]* [? ? [?-"@0@"]]
+	private Fst NotLongestTailLeftArrow() {
+		Fst fst = kept("NotLongestTailLeftArrow") ;
+		if (fst == null) {
+			fst = keep("NotLongestTailLeftArrow", lib.Concat(
 				lib.KleeneStar(lib.Concat3Fsts(
 									lib.OneArcFst(lib.otherIdSym),
 									lib.OneArcFst(lib.otherIdSym),
@@ -878,11 +1143,13 @@ public class Hulden {
 							lib.OneArcFst(hardEpsilonSym)
 					)
 				)
-			)
-		) ;  // end of return lib.Intersect3Fsts(
+			)) ;
+		}
+		return fst ;
 	}
 
 
+
 	// First symbol is not [ and string contains [ (leftmost match)
 	//
 	// Beesley:  Leftmost(X) is used in Constraints when compiling
@@ -905,30 +1172,34 @@ public class Hulden {
 	public Fst LeftmostRightArrow(Fst x) {
 		return lib.Intersect(
 					Upper(x),
-					Tape1of3(lib.Concat4Fsts(
-										lib.OneArcFst(outsideMarkerSym),
-										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
-										IOpen(),
-										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
-							)
-					)
+					LeftmostTape1()
 			) ;
 	}
 
 	public Fst LeftmostLeftArrow(Fst x) {
 		return lib.Intersect(
 					Lower(x),
-					Tape1of3(lib.Concat4Fsts(
+					LeftmostTape1()
+			) ;
+	}
+
+	// Tape1of3("@O@" ?* IOpen ?*)
+	private Fst LeftmostTape1() {
+		Fst fst = kept("LeftmostTape1") ;
+		if (fst == null) {
+			fst = keep("LeftmostTape1", Tape1of3(lib.Concat4Fsts(
 										lib.OneArcFst(outsideMarkerSym),
 										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
 										IOpen(),
 										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
 							)
-					)
-			) ;
+					)) ;
+		}
+		return fst ;
 	}
 
 
+
 	// Beesley
 	// first attempt to define Rightmost(X), would be
 	// define Rightmost(X) [ Upper(X) & Tape1of3(?* IClose ?* "@O@")] ;
@@ -942,30 +1213,34 @@ public class Hulden {
 	public Fst RightmostRightArrow(Fst x) {
 		return lib.Intersect(
 				Upper(x),
-				Tape1of3(lib.Concat4Fsts(
-									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
-									IClose(),
-									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
-									lib.OneArcFst(outsideMarkerSym)
-									)
-					    )
+				RightmostTape1()
 				) ;
 	}
 
 	public Fst RightmostLeftArrow(Fst x) {
 		return lib.Intersect(
 				Lower(x),
-				Tape1of3(lib.Concat4Fsts(
+				RightmostTape1()
+				) ;
+	}
+
+	// Tape1of3(?* IClose ?* "@O@")
+	private Fst RightmostTape1() {
+		Fst fst = kept("RightmostTape1") ;
+		if (fst == null) {
+			fst = keep("RightmostTape1", Tape1of3(lib.Concat4Fsts(
 									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
 									IClose(),
 									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
 									lib.OneArcFst(outsideMarkerSym)
 									)
-					    )
-				) ;
+					    )) ;
+		}
+		return fst ;
 	}
 
 
+
 	// Last symbol is not ] (shortest match)
 
 	// Hulden
@@ -977,11 +1252,7 @@ public class Hulden {
 	// public Fst Shortest(Fst X) {
 	public Fst ShortestRightArrow(Fst X) {
 		return lib.Intersect(
-					Tape1of3(lib.Concat(
-								lib.OneArcFst(IOpenSym),
-								lib.KleeneStar(lib.SymbolComplement(IClose()))
-								)
-					),
+					ShortestTape1(),
 					// 2014-01-01 Hulden suggests use of Upper instead of Tape2of3,
 					// seems to work for LongestRightArrow
 					//Tape2of3(X)
@@ -991,11 +1262,7 @@ public class Hulden {
 
 	public Fst ShortestLeftArrow(Fst X) {
 		return lib.Intersect(
-					Tape1of3(lib.Concat(
-								lib.OneArcFst(IOpenSym),
-								lib.KleeneStar(lib.SymbolComplement(IClose()))
-								)
-					),
+					ShortestTape1(),
 					// difference here, Tape3of3 instead of Tape2of3
 					// 2014-01-01 Hulden suggests use of Lower here
 					//Tape3of3(X)
@@ -1003,6 +1270,20 @@ public class Hulden {
 				) ;
 	}
 
+	// Tape1of3("@I[@" \IClose*)
+	private Fst ShortestTape1() {
+		Fst fst = kept("ShortestTape1") ;
+		if (fst == null) {
+			fst = keep("ShortestTape1", Tape1of3(lib.Concat(
+								lib.OneArcFst(IOpenSym),
+								lib.KleeneStar(lib.SymbolComplement(IClose()))
+								)
+					)) ;
+		}
+		return fst ;
+	}
+
+
 
 	// An upper string (tape 2) X which is completely aligned with @O@ symbols,
 	// i.e. no part of it is rewritten
@@ -1015,16 +1296,21 @@ public class Hulden {
 	// then tape 3 has @ID@
 	//
 	public Fst Unrewritten(Fst X) {
-		return lib.OutputProjection(lib.Compose(
-									X,
-									lib.KleeneStar(lib.Concat3Fsts(
-													lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
-													lib.OneArcFst(lib.otherIdSym),
-													lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
-													)
+		return lib.OutputProjection(lib.Compose(X, UnrewrittenFilter())) ;
+	}
+
+	// [0:"@O@" ? 0:?]*
+	private Fst UnrewrittenFilter() {
+		Fst temp = kept("Unrewritten") ;
+		if (temp == null) {
+			temp = keep("Unrewritten", lib.KleeneStar(lib.Concat3Fsts(
+												lib.OneArcFst(lib.Epsilon, outsideMarkerSym),
+												lib.OneArcFst(lib.otherIdSym),
+												lib.OneArcFst(lib.Epsilon, lib.otherNonIdSym)
 												)
-									)
-							) ;
+											)) ;
+		}
+		return temp ;
 	}
 
 	// The language of all triple strings that do not contain triple string X
@@ -1034,15 +1320,24 @@ public class Hulden {
 
 	public Fst NotContain(Fst X) {
 		return lib.Complement(lib.Concat3Fsts(
-										lib.KleeneStar(lib.Concat3Fsts(Tape1Sig(), 
-																Tape2Sig(), 
-																Tape3Sig())),
+										NotContainTriples(),
 										X,
 										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
 										)
 							) ;
 	}
 
+	// [Tape1Sig Tape2Sig Tape3Sig]*
+	private Fst NotContainTriples() {
+		Fst triples = kept("NotContain") ;
+		if (triples == null) {
+			triples = keep("NotContain", lib.KleeneStar(lib.Concat3Fsts(Tape1Sig(), 
+																Tape2Sig(), 
+																Tape3Sig()))) ;
+		}
+		return triples ;
+	}
+
 	// CP(X,Y) yields the cross-product of two languages X and Y placed so that
 	// tape 1 contains the relevant marker symbols and tapes 2 and 3 contains the
 	// aligned strings from X and Y.
@@ -1080,6 +1375,50 @@ public class Hulden {
 					) ;
 	}
 
+	// Tape1of3(ISyms*), shared by CP(), CPflatten() and CPMarkup...()
+	private Fst ISymsStarOnTape1() {
+		Fst fst = kept("ISymsStarOnTape1") ;
+		if (fst == null) {
+			fst = keep("ISymsStarOnTape1", Tape1of3(lib.KleeneStar(ISyms()))) ;
+		}
+		return fst ;
+	}
+
+	// the third conjunct of CP(), CPflatten() and CPMarkup...():
+	//	[ "@I[@" ? ? ["@I@" ? ?]* "@I]@" ? ?  |  "@I[]@" ? ?  |  0 ]
+	private Fst CPMarkers() {
+		Fst fst = kept("CPMarkers") ;
+		if (fst == null) {
+			fst = keep("CPMarkers", lib.Union3Fsts(
+				lib.Concat3Fsts(
+					lib.Concat3Fsts(
+						lib.OneArcFst(IOpenSym),
+						lib.OneArcFst(lib.otherIdSym),
+						lib.OneArcFst(lib.otherIdSym)
+					),
+					lib.KleeneStar(lib.Concat3Fsts(
+									lib.OneArcFst(ISym),
+									lib.OneArcFst(lib.otherIdSym),
+									lib.OneArcFst(lib.otherIdSym)
+									)
+					),
+					lib.Concat3Fsts(
+						lib.OneArcFst(ICloseSym),
+						lib.OneArcFst(lib.otherIdSym),
+						lib.OneArcFst(lib.otherIdSym)
+					)
+				),
+				lib.Concat3Fsts(
+						lib.OneArcFst(IOpenAndCloseSym),
+						lib.OneArcFst(lib.otherIdSym),
+						lib.OneArcFst(lib.otherIdSym)
+				),
+				lib.OneArcFst(lib.Epsilon)
+			)) ;
+		}
+		return fst ;
+	}
+
 	//define CP(X,Y) 	Tape1of3(ISyms*) & 
 	//					Tape23of3(Align2(X,Y)) & 
 	//					[ 	"@I[@"  ? ? 
@@ -1097,36 +1436,11 @@ public class Hulden {
 
 		Fst resultFst = lib.Intersect3Fsts(
 
-				Tape1of3(lib.KleeneStar(ISyms())),
+				ISymsStarOnTape1(),
 
 				Tape23of3(align2),
 				
-				lib.Union3Fsts(
-					lib.Concat3Fsts(
-						lib.Concat3Fsts(
-							lib.OneArcFst(IOpenSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						),
-						lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(ISym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-						),
-						lib.Concat3Fsts(
-							lib.OneArcFst(ICloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						)
-					),
-					lib.Concat3Fsts(
-							lib.OneArcFst(IOpenAndCloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-					),
-					lib.OneArcFst(lib.Epsilon)
-				)
+				CPMarkers()
 			) ;
 		return resultFst ;
 	}
@@ -1138,34 +1452,9 @@ public class Hulden {
 		Fst flatBigram = lib.Flatten4Rule(T, hardEpsilonSymVal) ;
 
 		Fst resultFst = lib.Intersect3Fsts(
-				Tape1of3(lib.KleeneStar(ISyms())),
+				ISymsStarOnTape1(),
 				Tape23of3(flatBigram),
-				lib.Union3Fsts(
-					lib.Concat3Fsts(
-						lib.Concat3Fsts(
-							lib.OneArcFst(IOpenSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						),
-						lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(ISym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-						),
-						lib.Concat3Fsts(
-							lib.OneArcFst(ICloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						)
-					),
-					lib.Concat3Fsts(
-							lib.OneArcFst(IOpenAndCloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-					),
-					lib.OneArcFst(lib.Epsilon)
-				)
+				CPMarkers()
 			) ;
 		return resultFst ;
 	}
@@ -1174,14 +1463,19 @@ public class Hulden {
 	// define DeleteFirstSymbol(X) [X .o. [?:0  ?*]].l ;
 
 	public Fst DeleteFirstSymbol(Fst X) {
-		return lib.OutputProjection(lib.Compose(
-								X,
-								lib.Concat(
+		return lib.OutputProjection(lib.Compose(X, DeleteFirstSymbolFilter())) ;
+	}
+
+	// [?:0 ?*]
+	private Fst DeleteFirstSymbolFilter() {
+		Fst temp = kept("DeleteFirstSymbol") ;
+		if (temp == null) {
+			temp = keep("DeleteFirstSymbol", lib.Concat(
 									lib.OneArcFst(lib.otherNonIdSym, lib.Epsilon),
 									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
-								)
-							 )
-						   ) ;
+								)) ;
+		}
+		return temp ;
 	}
 
 	// Hulden, message 2012-09-25
@@ -1258,39 +1552,11 @@ public class Hulden {
 	public Fst CPMarkupRightArrow(Fst X, Fst Y, Fst Z) {
 		Fst resultFst = lib.Intersect3Fsts(
 				// 1
-				Tape1of3(lib.KleeneStar(ISyms())),
+				ISymsStarOnTape1(),
 				// 2
 				Tape23of3(AlignMarkupRightArrow(X, Y, Z)),
 				// 3
-				lib.Union3Fsts(
-					// 1
-					lib.Concat3Fsts(
-						lib.Concat3Fsts(
-							lib.OneArcFst(IOpenSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						),
-						lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(ISym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-						),
-						lib.Concat3Fsts(
-							lib.OneArcFst(ICloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						)
-					),
-					// 2
-					lib.Concat3Fsts(
-							lib.OneArcFst(IOpenAndCloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-					),
-					// 3
-					lib.OneArcFst(lib.Epsilon)
-				)
+				CPMarkers()
 			) ;
 		return resultFst ;
 	}
@@ -1318,53 +1584,47 @@ public class Hulden {
 	public Fst CPMarkupLeftArrow(Fst X, Fst Y, Fst Z) {
 		Fst resultFst = lib.Intersect3Fsts(
 				// 1
-				Tape1of3(lib.KleeneStar(ISyms())),
+				ISymsStarOnTape1(),
 				// 2
 				Tape23of3(AlignMarkupLeftArrow(X, Y, Z)),
 				// 3
-				lib.Union3Fsts(
-					lib.Concat3Fsts(
-						lib.Concat3Fsts(
-							lib.OneArcFst(IOpenSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						),
-						lib.KleeneStar(lib.Concat3Fsts(
-										lib.OneArcFst(ISym),
-										lib.OneArcFst(lib.otherIdSym),
-										lib.OneArcFst(lib.otherIdSym)
-										)
-						),
-						lib.Concat3Fsts(
-							lib.OneArcFst(ICloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-						)
-					),
-
-					lib.Concat3Fsts(
-							lib.OneArcFst(IOpenAndCloseSym),
-							lib.OneArcFst(lib.otherIdSym),
-							lib.OneArcFst(lib.otherIdSym)
-					),
-
-					lib.OneArcFst(lib.Epsilon)
-				)
+				CPMarkers()
 			) ;
 		return resultFst ;
 	}
 
 
+	// Outside:  "@O@" [Tape2Sig - "@#@"] "@ID@", a triple outside the
+	// action of any rule (used in the Base of an alternation rule)
+	public Fst Outside() {
+		Fst fst = kept("Outside") ;
+		if (fst == null) {
+			fst = keep("Outside", lib.Concat3Fsts(	
+									lib.OneArcFst(outsideMarkerSym),
+									lib.Difference(
+											Tape2Sig(),
+											lib.OneArcFst(ruleWordBoundarySym)
+									),
+									lib.OneArcFst(idMarkerSym)
+								 )) ;
+		}
+		return fst ;
+	}
+
 	// Hulden
 	// define Boundary  "@O@"  "@#@"  "@ID@"  ;
 	// N.B. a triple
 
 	public Fst Boundary() {
-		return lib.Concat3Fsts(
-						lib.OneArcFst(outsideMarkerSym),
-						lib.OneArcFst(ruleWordBoundarySym),
-						lib.OneArcFst(idMarkerSym)
-					) ;
+		Fst fst = kept("Boundary") ;
+		if (fst == null) {
+			fst = keep("Boundary", lib.Concat3Fsts(
+							lib.OneArcFst(outsideMarkerSym),
+							lib.OneArcFst(ruleWordBoundarySym),
+							lib.OneArcFst(idMarkerSym)
+						)) ;
+		}
+		return fst ;
 	}
 
 	public Fst NotRestDelimStarFst() {
@@ -1376,8 +1636,12 @@ public class Hulden {
 
 		// semiring generalization point
 
-		Fst notRestDelimStar = lib.UniversalLanguageFst() ;
-		notRestDelimStar.getSigma().add(restDelimCpv) ;
+		Fst notRestDelimStar = kept("NotRestDelimStar") ;
+		if (notRestDelimStar == null) {
+			notRestDelimStar = lib.UniversalLanguageFst() ;
+			notRestDelimStar.getSigma().add(restDelimCpv) ;
+			notRestDelimStar = keep("NotRestDelimStar", notRestDelimStar) ;
+		}
 		return notRestDelimStar ;
 	}
 
@@ -1385,65 +1649,12 @@ public class Hulden {
 
 		// see message 1 May 2009 from Mans Hulden
 
-		// Hulden
-		// define RemoveBoundary ["@O@":0 "@#@":0 "@ID@":0 ?* "@O@":0 "@#@":0 "@ID@":0] ;
-
-		Fst RemoveBoundary = lib.Concat7Fsts(
-									lib.OneArcFst(outsideMarkerSym, lib.Epsilon),
-									lib.OneArcFst(ruleWordBoundarySym, lib.Epsilon),
-									lib.OneArcFst(idMarkerSym, lib.Epsilon),
-									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
-									lib.OneArcFst(outsideMarkerSym, lib.Epsilon),
-									lib.OneArcFst(ruleWordBoundarySym, lib.Epsilon),
-									lib.OneArcFst(idMarkerSym, lib.Epsilon)
-							) ;
+		// RemoveBoundary() and PreProcess() are kept networks, see below
 
-		// Hulden
-		// define PreProcess 	~[?^3*  ?  "@0@"  "@ID@"  ?*]
-		//					.o.	~$[%>]
-		//					.o.	[ [?:0  ?  "@ID@":0]
-		//						| [?:0  ?  0:%>  \"@ID@"]
-		//						]* ;
-
-		Fst PreProcess = 
-			lib.Compose3Fsts(
-				lib.Complement(lib.Concat5Fsts(
-									lib.KleeneStar(lib.Concat3Fsts(
-														lib.OneArcFst(lib.otherIdSym),
-														lib.OneArcFst(lib.otherIdSym),
-														lib.OneArcFst(lib.otherIdSym)
-											 	)
-									),
-									lib.OneArcFst(lib.otherIdSym),
-									lib.OneArcFst(hardEpsilonSym),
-									lib.OneArcFst(idMarkerSym),
-									lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
-								)
-				), 
-
-				notContainsFst(lib.OneArcFst(ruleRightAngleSym)),
-
-				lib.KleeneStar(
-						lib.Union(
-							lib.Concat3Fsts(
-									lib.OneArcFst(lib.otherNonIdSym, lib.Epsilon),
-									lib.OneArcFst(lib.otherIdSym),
-									lib.OneArcFst(idMarkerSym, lib.Epsilon)
-							) ,
-							lib.Concat4Fsts(
-									lib.OneArcFst(lib.otherNonIdSym, lib.Epsilon),
-									lib.OneArcFst(lib.otherIdSym),
-									lib.OneArcFst(lib.Epsilon, ruleRightAngleSym),
-									lib.SymbolComplement(lib.OneArcFst(idMarkerSym))
-							)
-						)
-				)
-			) ;
-			
 		Fst ResultFst = lib.OutputProjection(
 							lib.Compose3Fsts(	rule,
-												RemoveBoundary,
-												PreProcess
+												RemoveBoundary(),
+												PreProcess()
 											)
 						) ;
 
@@ -1476,4 +1687,69 @@ public class Hulden {
 
 		return ResultFst ;
 	}
+
+	// Hulden
+	// define RemoveBoundary ["@O@":0 "@#@":0 "@ID@":0 ?* "@O@":0 "@#@":0 "@ID@":0] ;
+	private Fst RemoveBoundary() {
+		Fst fst = kept("RemoveBoundary") ;
+		if (fst == null) {
+			fst = keep("RemoveBoundary", lib.Concat7Fsts(
+										lib.OneArcFst(outsideMarkerSym, lib.Epsilon),
+										lib.OneArcFst(ruleWordBoundarySym, lib.Epsilon),
+										lib.OneArcFst(idMarkerSym, lib.Epsilon),
+										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym)),
+										lib.OneArcFst(outsideMarkerSym, lib.Epsilon),
+										lib.OneArcFst(ruleWordBoundarySym, lib.Epsilon),
+										lib.OneArcFst(idMarkerSym, lib.Epsilon)
+								)) ;
+		}
+		return fst ;
+	}
+
+	// Hulden
+	// define PreProcess 	~[?^3*  ?  "@0@"  "@ID@"  ?*]
+	//					.o.	~$[%>]
+	//					.o.	[ [?:0  ?  "@ID@":0]
+	//						| [?:0  ?  0:%>  \"@ID@"]
+	//						]* ;
+	private Fst PreProcess() {
+		Fst fst = kept("PreProcess") ;
+		if (fst == null) {
+			fst = keep("PreProcess", 
+				lib.Compose3Fsts(
+					lib.Complement(lib.Concat5Fsts(
+										lib.KleeneStar(lib.Concat3Fsts(
+															lib.OneArcFst(lib.otherIdSym),
+															lib.OneArcFst(lib.otherIdSym),
+															lib.OneArcFst(lib.otherIdSym)
+												 	)
+										),
+										lib.OneArcFst(lib.otherIdSym),
+										lib.OneArcFst(hardEpsilonSym),
+										lib.OneArcFst(idMarkerSym),
+										lib.KleeneStar(lib.OneArcFst(lib.otherIdSym))
+									)
+					), 
+
+					notContainsFst(lib.OneArcFst(ruleRightAngleSym)),
+
+					lib.KleeneStar(
+							lib.Union(
+								lib.Concat3Fsts(
+										lib.OneArcFst(lib.otherNonIdSym, lib.Epsilon),
+										lib.OneArcFst(lib.otherIdSym),
+										lib.OneArcFst(idMarkerSym, lib.Epsilon)
+								) ,
+								lib.Concat4Fsts(
+										lib.OneArcFst(lib.otherNonIdSym, lib.Epsilon),
+										lib.OneArcFst(lib.otherIdSym),
+										lib.OneArcFst(lib.Epsilon, ruleRightAngleSym),
+										lib.SymbolComplement(lib.OneArcFst(idMarkerSym))
+								)
+							)
+					)
+				)) ;
+		}
+		return fst ;
+	}
 }
@@ -45,6 +45,8 @@ import java.util.HashSet ;
 import java.util.Set ;
 import java.util.List ;
 import java.util.ArrayList ; 
+import java.util.Collection ;
+import java.util.IdentityHashMap ;
 import java.util.Iterator ;
 import com.sun.syndication.io.XmlReader ;
 
@@ -476,7 +478,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 	}
 
 	Fst correctSigmaOther(Fst fst) {
-		lib.CorrectSigmaOtherInPlace(fst) ;
+		lib.CorrectSigmaOtherIfNeeded(fst) ;
 		// OTHER should never match the # used in rules KRB ruleany
 		// Rethink:  2015-01-18 perhaps the OTHER in a _rule_ FST should
 		// never match the #
@@ -772,6 +774,99 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		mainFrame = env.getCurrentFrame() ;
 	}
 
+	// called before each top-level statement, to pass the current
+	// settings of #KLEENEmaxStates, #KLEENEmaxArcs and #KLEENEmaxMillis
+	// down to the native operations
+	public void applyNativeLimits() {
+		lib.ApplyNativeLimits() ;
+	}
+
+	// called before and after each statement, top-level or nested in a
+	// 'source' (see FstArena.java); with #KLEENEstatementArena set, the
+	// temporary Fsts of the statement, i.e. those not live at its end,
+	// are released at once
+	public void beginStatementArena() {
+		// a good moment to do the deletes queued by finalize()
+		OpenFstLibraryWrapper.DrainDeferredDeletes() ;
+		Object obj = env.get("#KLEENEstatementArena") ;
+		FstArena.open((obj instanceof Long || obj instanceof Double) 
+						&& lib.isTrue(obj)) ;
+	}
+
+	public void endStatementArena() {
+		ArrayList<Fst> created = FstArena.close() ;
+		if (created == null) {
+			return ;
+		}
+		// mark everything reachable from the roots: the Environment 
+		// (all the Frames, and the Frames captured by functions, free 
+		// variables and externs), the stack, the networks kept by
+		// Hulden, and the args and results (Fsts and functions) 
+		// remembered by the FuncCallMemo
+		IdentityHashMap<Object, Boolean> live = new IdentityHashMap<Object, Boolean>() ;
+		ArrayList<Object> work = new ArrayList<Object>() ;
+		work.add(env.getCurrentFrame()) ;
+		work.add(env.getGlobalFrame()) ;
+		work.addAll(stack) ;
+		work.addAll(hulden.getKeptFsts()) ;
+		if (funcCallMemo != null) {
+			work.addAll(funcCallMemo.getRoots()) ;
+		}
+		markLive(work, live) ;
+
+		ArrayList<Fst> kept = new ArrayList<Fst>() ;
+		for (int i = 0; i < created.size(); i++) {
+			Fst fst = created.get(i) ;
+			if (live.containsKey(fst)) {
+				kept.add(fst) ;
+			} else if (!fst.getArenaExempt()) {
+				fst.release() ;
+			}
+		}
+		// for a nested statement, the enclosing one decides on them again
+		FstArena.keep(kept) ;
+	}
+
+	private void markLive(ArrayList<Object> work, IdentityHashMap<Object, Boolean> live) {
+		while (!work.isEmpty()) {
+			Object obj = work.remove(work.size() - 1) ;
+			if (obj == null || live.containsKey(obj)) {
+				continue ;
+			}
+			live.put(obj, Boolean.TRUE) ;
+
+			if (obj instanceof Fst) {
+				// the cached networks (see Fst.java)
+				Fst fst = (Fst) obj ;
+				work.addAll(fst.getPreparedSubtrahends()) ;
+				work.add(fst.getOutputSortedCopy()) ;
+			} else if (obj instanceof Frame) {
+				Frame frame = (Frame) obj ;
+				work.add(frame.getStaticMother()) ;
+				work.add(frame.getDynamicMother()) ;
+				work.addAll(frame.boundValues()) ;
+			} else if (obj instanceof NetList) {
+				work.addAll(((NetList) obj).getLinkedList()) ;
+			} else if (obj instanceof FuncValue) {
+				FuncValue funcValue = (FuncValue) obj ;
+				work.add(funcValue.getStaticFrame()) ;
+				ArrayList<ParamSlot> params = funcValue.getParamArrayList() ;
+				for (int i = 0; i < params.size(); i++) {
+					work.add(params.get(i).getDefault()) ;
+					work.add(params.get(i).getValue()) ;
+				}
+			} else if (obj instanceof FreeVariable) {
+				work.add(((FreeVariable) obj).getFrame()) ;
+			} else if (obj instanceof ExternValue) {
+				work.add(((ExternValue) obj).getFrame()) ;
+			} else if (obj instanceof NamedArg) {
+				work.add(((NamedArg) obj).getValue()) ;
+			} else if (obj instanceof Collection) {
+				work.addAll((Collection<?>) obj) ;
+			}
+		}
+	}
+
 	// InterpreterKleeneVisitor.jdelete is called from
 	// the finalize() method of Fst.java; only this interpreter
 	// should know about the underlying native C++ library
@@ -780,6 +875,13 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		return ;
 	}
 
+	// the same, from the Finalizer thread:  the delete is queued, see
+	// OpenFstLibraryWrapper.CppDeleteLater()
+	public static void jdeleteLater(long ptr) {
+		OpenFstLibraryWrapper.CppDeleteLater(ptr) ;
+		return ;
+	}
+
     public void reset() {
 		stack.clear() ;
 		return ;
@@ -1088,166 +1190,627 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		return fst ;
 	}
 
-	// KRB:  refine the type checking; perhaps store the return type
-	// somehow in the FuncValue object
-	private boolean typeMatch(String id, Object obj) {
-		// check longer prefixes first
+	// bind parameters params in a function call
 
-		if (id.startsWith("$^^") && obj instanceof FuncValue) 
-			return true ;
-		else if (id.startsWith("$^") && obj instanceof FuncValue)
-			return true ;
+    private void bind_params(FuncValue funcValue, ArgCounts ac, Object data) {
+		// The ParamPlan, precompiled when the function was defined, 
+		//    indicates the parameters that the function expects
+		//    and the slots where they are bound in the new Frame
+		//    (see ParamPlan.java).
+		// The ArgCounts object was created when the arg_list was evaluated, and it
+		//    contains positional_arg_count and named_arg_count
+		// The arguments themselves should be on the stack.
+		funcValue.getParamPlan().bind(stack, ac, env.getCurrentFrame()) ;
+	}
 
-		else if (id.startsWith("$@^^") && obj instanceof FuncValue)
-			return true ;
-		else if (id.startsWith("$@^") && obj instanceof FuncValue)
-			return true ;
-		else if (id.startsWith("$@") && obj instanceof NetList)
-			return true ;
-		
-		else if (id.startsWith("$") && obj instanceof Fst)
-			return true ;
+	// Opt-in memoization of net-valued function calls 
+	// (see FuncCallMemo.java)
+	private FuncCallMemo funcCallMemo = null ;
 
-		else if (id.startsWith("#^^") && obj instanceof FuncValue)
-			return true ;
-		else if (id.startsWith("#^") && obj instanceof FuncValue)
-			return true ;
+	private FuncCallMemo getFuncCallMemo() {
+		if (funcCallMemo == null) {
+			funcCallMemo = new FuncCallMemo(lib) ;
+		}
+		return funcCallMemo ;
+	}
 
-		else if (id.startsWith("#@^^") && obj instanceof FuncValue)
-		 	return true ;
-		else if (id.startsWith("#@^") && obj instanceof FuncValue)
-			return true ;
-		else if (id.startsWith("#@") && obj instanceof NumList)
-			return true ;
-	
-		// void and voidvoid functions
-		else if (id.startsWith("^^") && obj instanceof FuncValue)
-			return true ;
-		else if (id.startsWith("^") && obj instanceof FuncValue)
-			return true ;
+	// only the calls of functions found to be pure are memoized (see
+	// PurityAnalysis.java):  not those that refer to free variables,
+	// call $^randGen() or have other side effects, or call functions
+	// that do
+	private boolean memoizeFuncCalls(FuncValue funcValue) {
+		Object obj = env.get("#KLEENEmemoize") ;
+		return (obj instanceof Long || obj instanceof Double) && lib.isTrue(obj)
+				&& getPurityAnalysis().isPureFunction(funcValue) ;
+	}
 
-		else if (id.startsWith("#") && ((obj instanceof Long) || (obj instanceof Double)))
+	private PurityAnalysis purityAnalysis = new PurityAnalysis() ;
+	private long purityFuncBindingChanges = -1L ;
+
+	// the results of the PurityAnalysis, and the memoized calls, are
+	// dropped whenever a function is (re)defined or deleted, as a
+	// function found pure may call the one redefined
+	private PurityAnalysis getPurityAnalysis() {
+		long changes = env.getFuncBindingChanges() ;
+		if (changes != purityFuncBindingChanges) {
+			purityAnalysis.clear() ;
+			if (funcCallMemo != null) {
+				funcCallMemo.clear() ;
+			}
+			purityFuncBindingChanges = changes ;
+		}
+		return purityAnalysis ;
+	}
+
+	// the settings that can change the result of a function call,
+	// without changing the arguments
+	private Long memoSettings() {
+		long settings = 0L ;
+		if (lib.isTrue(env.get("#KLEENEdeterminize"))) settings |= 1L ;
+		if (lib.isTrue(env.get("#KLEENEminimize"))) settings |= 2L ;
+		if (lib.isTrue(env.get("#KLEENErmepsilon"))) settings |= 4L ;
+		if (isOpenFstRtnConventions()) settings |= 8L ;
+		return Long.valueOf(settings) ;
+	}
+
+	// pop off the evaluated args of a function call, when a remembered
+	// result is used instead of executing the call
+	private void popArgs(ArgCounts ac) {
+		int count = ac.getPositionalArgsCount() + ac.getNamedArgsCount() ;
+		for (int i = 0; i < count; i++) {
+			stack.pop() ;
+		}
+	}
+
+	private void addToGUISymtab(String id, String iconFileName, Object data) {
+		((InterpData)data).getGUI().addSymtabIconButton(id, iconFileName) ;
+	}
+
+	private void removeFromGUISymtab(String id, Object data) {
+		((InterpData)data).getGUI().removeSymtabIconButton(id) ;
+	}
+
+	private boolean isOpenFstRtnConventions() {
+		if ( ((Long)env.get("#KLEENErtnConventions")).longValue() ==
+			 ((Long)env.get("#KLEENEopenFstRtnConventions")).longValue()
+			 ) {
 			return true ;
-		else
-			return false;
+		} else {
+			return false ;
+		}
 	}
 
-	private int getParamIndex(String id, ArrayList<ParamSlot> pal) {
-		int index = 0 ;
-		for (Iterator<ParamSlot> iter = pal.iterator(); iter.hasNext() ; ) {
-			ParamSlot ps = iter.next() ;
-			if (ps.getName().equals(id)) {
-				return index ;
-			}
-			index++ ;
+	// Unboxed numeric evaluation
+	//
+	// Numeric expressions (arithmetic, comparisons and boolean tests) 
+	// are evaluated by evalNum() into the numeric "register" below,
+	// rather than by pushing boxed Long and Double objects onto the 
+	// stack and popping them back off at each level.  A value is boxed
+	// only when it has to be an Object, e.g. when the visit method for
+	// an expression is called and must leave the value on the stack
+	// (see pushNum()), so that the tests of counting loops like
+	//     while (#i < 1000) { ... #i = #i + 1 ; }
+	// are evaluated without allocation.
+	//
+	// Internally in Kleene, all "ints" are Long and all "floats" are
+	// Double; an arithmetic operation on two Longs gives a Long, and
+	// one with any Double argument gives a Double.  Comparisons and
+	// boolean operations give 1 (true) or 0 (false), as Long.
+
+	private boolean numIsDouble ;	// else the value is a long
+	private long numLong ;
+	private double numDouble ;
+
+	// the binary operators handled by applyNumOp() (see NumOpCode)
+	private static final int NUM_ADD = 0 ;
+	private static final int NUM_SUB = 1 ;
+	private static final int NUM_MULT = 2 ;
+	private static final int NUM_DIV = 3 ;
+	private static final int NUM_MOD = 4 ;
+	private static final int NUM_LT = 5 ;
+	private static final int NUM_LE = 6 ;
+	private static final int NUM_GT = 7 ;
+	private static final int NUM_GE = 8 ;
+	private static final int NUM_EQ = 9 ;
+	private static final int NUM_NE = 10 ;
+
+	private void setNum(long l) {
+		numIsDouble = false ;
+		numLong = l ;
+	}
+
+	private void setNum(double d) {
+		numIsDouble = true ;
+		numDouble = d ;
+	}
+
+	private void setNum(boolean b) {
+		setNum(b ? 1L : 0L) ;
+	}
+
+	// from a Long or Double object
+	private void setNum(Object obj) {
+		if (obj instanceof Long) {
+			setNum(((Long)obj).longValue()) ;
+		} else {
+			// must be Double
+			setNum(((Double)obj).doubleValue()) ;
 		}
-		return -1 ;  // not found
 	}
 
-	// bind parameters params in a function call
+	// the value of the register as a Long or Double object
+	private Object boxNum() {
+		if (numIsDouble) {
+			return new Double(numDouble) ;
+		} else {
+			// Long.valueOf() re-uses cached Long objects for small values
+			return Long.valueOf(numLong) ;
+		}
+	}
 
-    private void bind_params(ArrayList<ParamSlot> pal, ArgCounts ac, Object data) {
-		// The pal (param array list) comes from the FuncObject itself, indicating
-		//    the parameters that the function expects.
-		// The ArgCounts object was created when the arg_list was evaluated, and it
-		//    contains positional_arg_count and named_arg_count
-		int positional_args_count = ac.getPositionalArgsCount() ;
-		int named_args_count = ac.getNamedArgsCount() ;
+	// leave the value of the register on the stack, as a Long or Double
+	private void pushNum() {
+		stack.push(boxNum()) ;
+	}
 
-		// the arguments should be on the stack;
-		// values (corresponding to positional args) on top
-		// with NamedArgs (corresponding to named args) underneath,
-		// so all the arguments are popped off the stack in their original
-		// syntactic order.
+	// cf. isTrue() in OpenFstLibraryWrapper
+	private boolean numIsTrue() {
+		if (numIsDouble) {
+			return numDouble != 0.0 ;
+		} else {
+			return numLong != 0L ;
+		}
+	}
 
-		int param_count = pal.size() ;  // the number of params to bind
+	// evaluate a boolean_test (or any numexp) for if, elsif, while
+	// and until
+	private boolean evalTest(Node node, Object data) {
+		evalNum(node, data) ;
+		return numIsTrue() ;
+	}
 
-		// for each positional argument, there must be a corresponding
-		// required or optional parameter (with or without a default value); 
-		// First assign params left-to-right from all positional arguments.
+	// Evaluate a numeric expression, leaving its value in the register
+	// (the expression is compiled, once, into a NumCode tree, see below)
+	private void evalNum(Node node, Object data) {
+		getNumCode(node).eval(data) ;
+	}
 
-		if (positional_args_count > param_count) {
-			throw new FuncCallException("Function called with more positional arguments than there are parameters.") ;
+	// the arithmetic and comparison operators, applied to the saved
+	// value of the first daughter and the value (in the register) of the 
+	// second
+	private void applyNumOp(int op, boolean firstIsDouble, long firstLong,
+											double firstDouble) {
+		if (!firstIsDouble && !numIsDouble) {
+			// both args are Long
+			long first = firstLong ;
+			long second = numLong ;
+			switch (op) {
+				case NUM_ADD:	setNum(first + second) ; break ;
+				case NUM_SUB:	setNum(first - second) ; break ;
+				case NUM_MULT:	setNum(first * second) ; break ;
+				case NUM_DIV:	setNum(first / second) ; break ;
+				case NUM_MOD:	setNum(first % second) ; break ;
+				case NUM_LT:	setNum(first < second) ; break ;
+				case NUM_LE:	setNum(first <= second) ; break ;
+				case NUM_GT:	setNum(first > second) ; break ;
+				case NUM_GE:	setNum(first >= second) ; break ;
+				case NUM_EQ:	setNum(first == second) ; break ;
+				default:		setNum(first != second) ; break ;
+			}
+		} else {
+			// at least one arg is Double; the other is promoted to Double
+			double first = firstIsDouble ? firstDouble : firstLong ;
+			double second = numIsDouble ? numDouble : numLong ;
+			switch (op) {
+				case NUM_ADD:	setNum(first + second) ; break ;
+				case NUM_SUB:	setNum(first - second) ; break ;
+				case NUM_MULT:	setNum(first * second) ; break ;
+				case NUM_DIV:	setNum(first / second) ; break ;
+				case NUM_MOD:	setNum(first % second) ; break ;
+				case NUM_LT:	setNum(first < second) ; break ;
+				case NUM_LE:	setNum(first <= second) ; break ;
+				case NUM_GT:	setNum(first > second) ; break ;
+				case NUM_GE:	setNum(first >= second) ; break ;
+				case NUM_EQ:	setNum(first == second) ; break ;
+				default:		setNum(first != second) ; break ;
+			}
 		}
+	}
 
-		// Loop through the positional_args, if any, and bind the
-		// corresponding ParamSlots l->r in the pal.  The positional-arg values
-		// are on the stack, pushed on in reverse syntactic order, so they
-		// can be popped off in the original syntactic order.
-		for (int i = 0; i < positional_args_count; i++) {
-			// get the i-th ParamSlot
-			ParamSlot ps = pal.get(i) ;
-			// pop the corresponding argument value off the stack
-			Object obj = stack.pop() ;
-			if (typeMatch(ps.getName(), obj)) {
-				ps.setValue(obj) ;
+	// Compiled code
+	//
+	// Function bodies (func_block), loop bodies (loop_block) and
+	// numeric expressions are compiled, the first time they are 
+	// executed, into trees of small executable objects ("closures"),
+	// cached by AST node.  Executing the compiled tree avoids re-walking
+	// the AST (jjtAccept() and jjtGetChild() at every level), and the
+	// numeric parts (loop and if tests, num assignments) run entirely
+	// in the unboxed numeric register.  Anything that is not compiled
+	// specially (e.g. net assignments, function calls, regular
+	// expressions) is wrapped in a NodeCode, which just calls the
+	// visit method for the node, so the semantics are unchanged.
+
+	private IdentityHashMap<Node, NumCode> numCodeCache = 
+									new IdentityHashMap<Node, NumCode>() ;
+	private IdentityHashMap<Node, Code> codeCache = 
+									new IdentityHashMap<Node, Code>() ;
+	// The caches keep the ASTs alive (each statement typed or read
+	// from a script is a new AST), so they are simply cleared when they
+	// get big; anything still in use is recompiled on the next call
+	private static final int MAX_CACHED_CODE = 10000 ;
+
+	// Compiled numeric expressions; eval() leaves the value in the
+	// numeric register
+	private abstract class NumCode {
+		abstract void eval(Object data) ;
+	}
+
+	private class NumLongCode extends NumCode {
+		private long value ;
+		NumLongCode(long l) { value = l ; }
+		void eval(Object data) {
+			setNum(value) ;
+		}
+	}
+
+	private class NumDoubleCode extends NumCode {
+		private double value ;
+		NumDoubleCode(double d) { value = d ; }
+		void eval(Object data) {
+			setNum(value) ;
+		}
+	}
+
+	private class NumIdCode extends NumCode {
+		private ASTnum_id node ;
+		private String num_id ;
+		NumIdCode(ASTnum_id n) { node = n ; num_id = n.getImage() ; }
+		void eval(Object data) {
+			Object obj = env.get(num_id, node.getLexicalAddress()) ;
+			if (obj instanceof Long || obj instanceof Double) {
+				setNum(obj) ;
 			} else {
-				throw new FuncCallException("Attempt to set arg named " + ps.getName() + " with a positional argument of the incorrect type.") ;
+				// let the visit method handle it (and report any error)
+				node.jjtAccept(InterpreterKleeneVisitor.this, data) ;
+				setNum(stack.pop()) ;
 			}
 		}
+	}
 
-		// Now handle the named arguments
+	private class NumOpCode extends NumCode {
+		private int op ;
+		private NumCode first ;
+		private NumCode second ;
+		NumOpCode(int o, NumCode f, NumCode s) { op = o ; first = f ; second = s ; }
+		void eval(Object data) {
+			first.eval(data) ;
+			// save the value of the first daughter
+			boolean firstIsDouble = numIsDouble ;
+			long firstLong = numLong ;
+			double firstDouble = numDouble ;
+			second.eval(data) ;
+			applyNumOp(op, firstIsDouble, firstLong, firstDouble) ;
+		}
+	}
 
-		for (int i = 0; i < named_args_count; i++) {
-			// Each named arg is represented as a NamedArg object on the stack.
-			NamedArg na = (NamedArg) stack.pop() ;
-			String id = na.getName() ;
-			// Find the parameter with that id
-			int ind = getParamIndex(id, pal) ;
-			if (ind == -1) {
-				throw new FuncCallException("Attempt to set non-existent param named " + id + ".") ;
+	private class NumMinusCode extends NumCode {
+		private NumCode daughter ;
+		NumMinusCode(NumCode d) { daughter = d ; }
+		void eval(Object data) {
+			daughter.eval(data) ;
+			if (numIsDouble) {
+				setNum(numDouble * -1.0) ;
+			} else {
+				setNum(numLong * -1) ;
 			}
-			ParamSlot ps = pal.get(ind) ;
+		}
+	}
 
-			if (ps.hasValue()) {
-				// was already set by a positional argument
-				throw new FuncCallException("Attempt to set param " + id + " twice, with both a positional and a named argument.") ;
+	// short-stop, left-to-right evaluation
+	private class NumOrCode extends NumCode {
+		private NumCode first ;
+		private NumCode second ;
+		NumOrCode(NumCode f, NumCode s) { first = f ; second = s ; }
+		void eval(Object data) {
+			first.eval(data) ;
+			if (numIsTrue()) {
+				// no need to evaluate the second daughter
+				setNum(true) ;
+			} else {
+				second.eval(data) ;
+				setNum(numIsTrue()) ;
 			}
-			// no type problem if the names matched;
-			// set the optional parameter value from the named argument
-			ps.setValue(na.getValue()) ;
 		}
+	}
 
-		// now pass through the ArrayList making sure that all Param Slots
-		// have been set, one way or another.
-		
-		for (int i = 0; i < param_count; i++) {
-			ParamSlot ps = pal.get(i) ;
-			if (!ps.hasValue()) {
-				if (ps.hasDefault()) {
-					ps.setValueToDefault() ;
-				} else {
-					throw new FuncCallException("Param " + ps.getName() + 
-					" not set by either a positional or a named argument.") ;
+	// short-stop, left-to-right evaluation
+	private class NumAndCode extends NumCode {
+		private NumCode first ;
+		private NumCode second ;
+		NumAndCode(NumCode f, NumCode s) { first = f ; second = s ; }
+		void eval(Object data) {
+			first.eval(data) ;
+			if (numIsTrue()) {
+				second.eval(data) ;
+				setNum(numIsTrue()) ;
+			} else {
+				// the first daughter was false, so the whole 
+				// boolean_and_exp is false
+				setNum(false) ;
+			}
+		}
+	}
+
+	private class NumNotCode extends NumCode {
+		private NumCode daughter ;
+		NumNotCode(NumCode d) { daughter = d ; }
+		void eval(Object data) {
+			daughter.eval(data) ;
+			setNum(!numIsTrue()) ;
+		}
+	}
+
+	// anything else, e.g. num_func_call, is evaluated by its visit
+	// method, and the value is popped back off the stack
+	private class NumNodeCode extends NumCode {
+		private Node node ;
+		NumNodeCode(Node n) { node = n ; }
+		void eval(Object data) {
+			node.jjtAccept(InterpreterKleeneVisitor.this, data) ;
+			setNum(stack.pop()) ;
+		}
+	}
+
+	private NumCode getNumCode(Node node) {
+		NumCode code = numCodeCache.get(node) ;
+		if (code == null) {
+			code = compileNum(node) ;
+			if (numCodeCache.size() >= MAX_CACHED_CODE) {
+				numCodeCache.clear() ;
+			}
+			numCodeCache.put(node, code) ;
+		}
+		return code ;
+	}
+
+	private NumCode compileNumOp(int op, Node node) {
+		// always two daughters (Long or Double), constrained syntactically
+		return new NumOpCode(op, compileNum(node.jjtGetChild(0)), 
+								compileNum(node.jjtGetChild(1))) ;
+	}
+
+	private NumCode compileNum(Node node) {
+		if (node instanceof ASTnum_id) {
+			return new NumIdCode((ASTnum_id)node) ;
+		} else if (node instanceof ASTdec_int_literal) {
+			return new NumLongCode(((ASTdec_int_literal)node).getLongValue()) ;
+		} else if (node instanceof ASThex_int_literal) {
+			return new NumLongCode(((ASThex_int_literal)node).getLongValue()) ;
+		} else if (node instanceof ASTdec_float_literal) {
+			return new NumDoubleCode(((ASTdec_float_literal)node).getDoubleValue()) ;
+		} else if (node instanceof ASTboolean_test 
+					|| node instanceof ASTnumexp) {
+			// just one daughter
+			return compileNum(node.jjtGetChild(0)) ;
+		} else if (node instanceof ASTaddition_exp) {
+			return compileNumOp(NUM_ADD, node) ;
+		} else if (node instanceof ASTsubtraction_exp) {
+			return compileNumOp(NUM_SUB, node) ;
+		} else if (node instanceof ASTmult_exp) {
+			return compileNumOp(NUM_MULT, node) ;
+		} else if (node instanceof ASTdiv_exp) {
+			return compileNumOp(NUM_DIV, node) ;
+		} else if (node instanceof ASTmod_exp) {
+			return compileNumOp(NUM_MOD, node) ;
+		} else if (node instanceof ASTless_than_exp) {
+			return compileNumOp(NUM_LT, node) ;
+		} else if (node instanceof ASTless_than_or_equal_exp) {
+			return compileNumOp(NUM_LE, node) ;
+		} else if (node instanceof ASTgreater_than_exp) {
+			return compileNumOp(NUM_GT, node) ;
+		} else if (node instanceof ASTgreater_or_equal_exp) {
+			return compileNumOp(NUM_GE, node) ;
+		} else if (node instanceof ASTequal_exp) {
+			return compileNumOp(NUM_EQ, node) ;
+		} else if (node instanceof ASTnot_equal_exp) {
+			return compileNumOp(NUM_NE, node) ;
+		} else if (node instanceof ASTunary_minus_exp) {
+			return new NumMinusCode(compileNum(node.jjtGetChild(0))) ;
+		} else if (node instanceof ASTboolean_or_exp) {
+			return new NumOrCode(compileNum(node.jjtGetChild(0)),
+								compileNum(node.jjtGetChild(1))) ;
+		} else if (node instanceof ASTboolean_and_exp) {
+			return new NumAndCode(compileNum(node.jjtGetChild(0)),
+								compileNum(node.jjtGetChild(1))) ;
+		} else if (node instanceof ASTboolean_not_exp) {
+			return new NumNotCode(compileNum(node.jjtGetChild(0))) ;
+		}
+		return new NumNodeCode(node) ;
+	}
+
+	// Compiled statements and blocks
+	private abstract class Code {
+		abstract void exec(Object data) ;
+	}
+
+	// any statement not compiled specially
+	private class NodeCode extends Code {
+		private Node node ;
+		NodeCode(Node n) { node = n ; }
+		void exec(Object data) {
+			node.jjtAccept(InterpreterKleeneVisitor.this, data) ;
+		}
+	}
+
+	// the statements of a loop_block or if_else_block, which bail 
+	// out on continue, break, return or quit (without resetting the 
+	// fields in data), or of a func_block, which stops (and resets) 
+	// on a return
+	private class BlockCode extends Code {
+		private Code[] statements ;
+		private boolean isFuncBlock ;
+		BlockCode(Code[] stmts, boolean isfb) { statements = stmts ; isFuncBlock = isfb ; }
+		void exec(Object data) {
+			InterpData interpData = (InterpData)data ;
+			for (int i = 0 ; i < statements.length ; i++) {
+				statements[i].exec(data) ;
+				if (isFuncBlock) {
+					// if it hit a return stmt during the execution of this
+					// stmt (at any depth), then .getFuncReturn() will be true
+					if (interpData.getFuncReturn()) {
+						interpData.setFuncReturn(false) ;
+						break ;
+					} else if (interpData.getQuitSession()) {
+						// don't reset the data field here
+						break ;
+					}
+				} else if (interpData.getLoopContinue() || 
+						interpData.getLoopBreak() ||
+						interpData.getFuncReturn() ||
+						interpData.getQuitSession()) {
+					break ;
 				}
 			}
 		}
+	}
 
-		// Finally, actually bind the param names to the arg values, 
-		// in the current Frame
-		
-		for (int i = 0; i < param_count; i++) {
-			ParamSlot ps = pal.get(i) ;
-			env.put(ps.getName(), ps.getValue()) ;
+	// while and until statements with a loop_block
+	private class LoopCode extends Code {
+		private NumCode test ;
+		private Code body ;
+		private boolean isUntil ;
+		LoopCode(NumCode t, Code b, boolean isu) { test = t ; body = b ; isUntil = isu ; }
+		void exec(Object data) {
+			InterpData interpData = (InterpData)data ;
+			while (true) {
+				test.eval(data) ;
+				// N.B. for until, the logical not
+				if (numIsTrue() == isUntil) {
+					// end of the loop
+					break ;
+				}
+				body.exec(data) ;
+
+				if (interpData.getLoopContinue()) {
+					interpData.setLoopContinue(false) ;
+					continue ;
+				} else if (interpData.getLoopBreak()) {
+					interpData.setLoopBreak(false) ;
+					break ;
+				} else if (interpData.getFuncReturn()) {
+					// a 'return' statement
+					// don't reset data here
+					break ;
+				} else if (interpData.getQuitSession()) {
+					// a 'quit' statement
+					// don't reset data here
+					break ;
+				}
+			}
 		}
 	}
 
-	private void addToGUISymtab(String id, String iconFileName, Object data) {
-		((InterpData)data).getGUI().addSymtabIconButton(id, iconFileName) ;
+	// an if_statement:  if_part  elsif_part*  else_part?
+	// (elseBody is null if there is no else_part)
+	private class IfCode extends Code {
+		private NumCode[] tests ;
+		private Code[] bodies ;
+		private Code elseBody ;
+		IfCode(NumCode[] t, Code[] b, Code e) { tests = t ; bodies = b ; elseBody = e ; }
+		void exec(Object data) {
+			for (int i = 0 ; i < tests.length ; i++) {
+				tests[i].eval(data) ;
+				if (numIsTrue()) {
+					bodies[i].exec(data) ;
+					return ;
+				}
+			}
+			if (elseBody != null) {
+				elseBody.exec(data) ;
+			}
+		}
 	}
 
-	private void removeFromGUISymtab(String id, Object data) {
-		((InterpData)data).getGUI().removeSymtabIconButton(id) ;
+	// a num_assignment, e.g. #i = #i + 1 ;
+	private class NumAssignmentCode extends Code {
+		private ASTnum_assignment node ;
+		private String num_id ;
+		private NumCode exp ;
+		NumAssignmentCode(ASTnum_assignment n) { 
+			node = n ;
+			num_id = ((ASTnum_id)n.jjtGetChild(0)).getImage() ;
+			exp = compileNum(n.jjtGetChild(1)) ;
+		}
+		void exec(Object data) {
+			if (((InterpData)data).getInGUI() == true 
+				&& env.getCurrentFrame() == mainFrame) {
+				// the visit method also updates the GUI
+				node.jjtAccept(InterpreterKleeneVisitor.this, data) ;
+				return ;
+			}
+			exp.eval(data) ;
+			env.put(num_id, boxNum()) ;
+		}
 	}
 
-	private boolean isOpenFstRtnConventions() {
-		if ( ((Long)env.get("#KLEENErtnConventions")).longValue() ==
-			 ((Long)env.get("#KLEENEopenFstRtnConventions")).longValue()
-			 ) {
-			return true ;
-		} else {
-			return false ;
+	private Code getCode(Node node) {
+		Code code = codeCache.get(node) ;
+		if (code == null) {
+			code = compile(node) ;
+			if (codeCache.size() >= MAX_CACHED_CODE) {
+				codeCache.clear() ;
+			}
+			codeCache.put(node, code) ;
 		}
+		return code ;
+	}
+
+	private Code[] compileDaughters(Node node) {
+		int childCount = node.jjtGetNumChildren() ;
+		Code[] codes = new Code[childCount] ;
+		for (int i = 0 ; i < childCount ; i++) {
+			codes[i] = compile(node.jjtGetChild(i)) ;
+		}
+		return codes ;
+	}
+
+	private Code compile(Node node) {
+		if (node instanceof ASTfunc_block) {
+			return new BlockCode(compileDaughters(node), true) ;
+		} else if (node instanceof ASTloop_block
+					|| node instanceof ASTif_else_block) {
+			return new BlockCode(compileDaughters(node), false) ;
+		} else if ((node instanceof ASTwhile_statement
+					|| node instanceof ASTuntil_statement)
+					&& node.jjtGetChild(1) instanceof ASTloop_block) {
+			// two daughters:  boolean_test and loop_block
+			return new LoopCode(compileNum(node.jjtGetChild(0)),
+								compile(node.jjtGetChild(1)),
+								node instanceof ASTuntil_statement) ;
+		} else if (node instanceof ASTif_statement) {
+			// daughters are if_part  elsif_part*  else_part?
+			int childCount = node.jjtGetNumChildren() ;
+			ArrayList<NumCode> tests = new ArrayList<NumCode>() ;
+			ArrayList<Code> bodies = new ArrayList<Code>() ;
+			Code elseBody = null ;
+			for (int i = 0 ; i < childCount ; i++) {
+				Node part = node.jjtGetChild(i) ;
+				if (part instanceof ASTelse_part) {
+					// one daughter:  block (or other stmt)
+					elseBody = compile(part.jjtGetChild(0)) ;
+				} else {
+					// two daughters:  boolean_test   block (or other stmt)
+					tests.add(compileNum(part.jjtGetChild(0))) ;
+					bodies.add(compile(part.jjtGetChild(1))) ;
+				}
+			}
+			return new IfCode(tests.toArray(new NumCode[tests.size()]),
+							  bodies.toArray(new Code[bodies.size()]),
+							  elseBody) ;
+		} else if (node instanceof ASTnum_assignment) {
+			return new NumAssignmentCode((ASTnum_assignment)node) ;
+		}
+		return new NodeCode(node) ;
 	}
 
 	// End of helper functions
@@ -1301,18 +1864,8 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// see ASTloop_block for the blocks in while and until
 		// see ASTfunc_block for the blocks seen in function definitions
 		// see ASTstand_alone_block for block-grouped statements
-		int childCount = node.jjtGetNumChildren() ;
-		for (int i = 0 ; i < childCount ; i++) {
-		    node.jjtGetChild(i).jjtAccept(this, data) ;
-		    if (((InterpData)data).getLoopContinue() || 
-				((InterpData)data).getLoopBreak() ||
-				((InterpData)data).getFuncReturn() ||
-				((InterpData)data).getQuitSession()) {
-				// bail out of this if-then block, but don't reset
-				// the fields in data
-				break ;
-	    	}
-		}
+		// run the compiled code for the block (see compile())
+		getCode(node).exec(data) ;
 		return data ;
     }
     public Object visit(ASTloop_block node, Object data) {
@@ -1320,37 +1873,13 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// see ASTblock for the blocks in if-then
 		// see ASTfunc_block for the blocks seen in function 
 		// definitions
-
-		int childCount = node.jjtGetNumChildren() ;
-		for (int i = 0 ; i < childCount ; i++) {
-	    	node.jjtGetChild(i).jjtAccept(this, data) ;
-	    	if (((InterpData)data).getLoopContinue() || 
-				((InterpData)data).getLoopBreak() ||
-				((InterpData)data).getFuncReturn() ||
-				((InterpData)data).getQuitSession()) {
-				// bail out of this if-then block, but don't reset
-				// the fields in data
-				break ;
-	    	}
-		}
+		// run the compiled code for the block (see compile())
+		getCode(node).exec(data) ;
 		return data ;
     }
     public Object visit(ASTfunc_block node, Object data) {
-		int childCount = node.jjtGetNumChildren() ;
-		for (int i = 0 ; i < childCount ; i++) {
-	    	node.jjtGetChild(i).jjtAccept(this, data) ;
-	    	// there shouldn't be break or next statements immediately
-	    	//   in such a block (syntactic? or semantic error?)
-	    	// if it hit a return stmt during the execution of this stmt
-	    	// (at any depth), then .getFuncReturn() will be true
-	    	if (((InterpData)data).getFuncReturn()) {
-	        	((InterpData)data).setFuncReturn(false) ;
-				break ;
-	    	} else if (((InterpData)data).getQuitSession()) {
-				// don't reset the data field here
-				break ;
-	    	}
-		}
+		// run the compiled code for the block (see compile())
+		getCode(node).exec(data) ;
 		return data ;
     }
 	public Object visit(ASTsap_rtn_conventions_statement node, Object data) {
@@ -1455,7 +1984,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		String net_id = node.getImage() ;
 
 		// with the String name, retrieve the Fst from the environment
-		Fst fst = (Fst) env.get(net_id) ;
+		Fst fst = (Fst) env.get(net_id, node.getLexicalAddress()) ;
 		if (fst != null) {
 			// The net_id was found in a symbol table.
 			//
@@ -1606,7 +2135,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// called only when the num_id is on the RHS
 		// need to look up and push the value from the environment
 		String num_id = node.getImage() ;
-		Object obj = env.get(num_id) ;
+		Object obj = env.get(num_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			if (obj instanceof Long) {
 				stack.push((Long)obj) ;
@@ -1896,7 +2425,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// an exception); for an assignment, e.g. $^^func() =
 		// this visit method is not called for the LHS id
 		String net_func_func_id = node.getImage() ;
-		Object obj = env.get(net_func_func_id) ;
+		Object obj = env.get(net_func_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -1911,7 +2440,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// an exception); for an assignment, e.g. $@^^func() =
 		// this visit method is not called for the LHS id
 		String net_list_func_func_id = node.getImage() ;
-		Object obj = env.get(net_list_func_func_id) ;
+		Object obj = env.get(net_list_func_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -1926,7 +2455,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// an exception); for an assignment, e.g. ^^func() =
 		// this visit method is not called for the LHS id
 		String void_func_func_id = node.getImage() ;
-		Object obj = env.get(void_func_func_id) ;
+		Object obj = env.get(void_func_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -1963,7 +2492,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// this method is called for a num_func_func_id on the RHS;
 		// need to look up and push the value from the environment
 		String num_func_func_id = node.getImage() ;
-		Object obj = env.get(num_func_func_id) ;
+		Object obj = env.get(num_func_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -2043,14 +2572,10 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
     }
     public Object visit(ASTif_statement node, Object data) {
 		// daughters are if_part  elsif_part*  else_part?
-		int childCount = node.jjtGetNumChildren() ;
-		for (int i = 0; i < childCount; i++) {
-			node.jjtGetChild(i).jjtAccept(this, data) ;
-			// break loop for the first daughter that succeeds (returns true)
-			if (lib.isTrue(stack.pop())) {
-				break ;
-			}
-		}
+		// run the compiled code (see compile()), which evaluates the
+		// tests in order and executes the block of the first that 
+		// succeeds
+		getCode(node).exec(data) ;
 		return data ;
     }
     public Object visit(ASTboolean_test node, Object data) {
@@ -2061,25 +2586,23 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
     }
     public Object visit(ASTif_part node, Object data) {
 		// two daughters:  boolean_test   block (or other stmt)
-		node.jjtGetChild(0).jjtAccept(this, data) ;
-		if (lib.isTrue(stack.pop())) {
+		if (evalTest(node.jjtGetChild(0), data)) {
 			node.jjtGetChild(1).jjtAccept(this, data) ;
 			// "return" true to block evaluation of elsif or else blocks
-			stack.push(new Long(1L)) ;  
+			stack.push(Long.valueOf(1L)) ;  
 		} else {
 			// "return" false
-			stack.push(new Long(0L)) ;
+			stack.push(Long.valueOf(0L)) ;
 		}
 		return data ;
     }
     public Object visit(ASTelsif_part node, Object data) {
 		// two daughters:  boolean_test   block (or other stmt)
-		node.jjtGetChild(0).jjtAccept(this, data) ;
-		if (lib.isTrue(stack.pop())) {
+		if (evalTest(node.jjtGetChild(0), data)) {
 			node.jjtGetChild(1).jjtAccept(this, data) ;
-			stack.push(new Long(1L)) ;
+			stack.push(Long.valueOf(1L)) ;
 		} else {
-			stack.push(new Long(0L)) ;
+			stack.push(Long.valueOf(0L)) ;
 		}
 		return data ;
     }
@@ -2088,7 +2611,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		node.jjtGetChild(0).jjtAccept(this, data) ;
 		// Yes, return "true" here.  ASTif_statement always pops off
 		// the value "returned"
-		stack.push(new Long(1L)) ;
+		stack.push(Long.valueOf(1L)) ;
 		return data ;
     }
 	public Object visit(ASTforeach_net_iteration_statement node, Object data) {
@@ -2198,38 +2721,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		Object obj = node.jjtGetChild(1) ;
 
 		if (obj instanceof ASTloop_block) {
-			while (true) {
-				// re-evaluate the boolean_test (an AST) each time;
-				// should leave a Long or a Double on the stack
-				boolean_test.jjtAccept(this, data) ;
-				if (lib.isTrue(stack.pop())) {
-					// then eval the block (an AST)
-					node.jjtGetChild(1).jjtAccept(this, data) ;
-
-					if (((InterpData)data).getLoopContinue()) {
-						((InterpData)data).setLoopContinue(false) ;
-						continue ;
-					} else if (((InterpData)data).getLoopBreak()) {
-						((InterpData)data).setLoopBreak(false) ;
-						break ;
-					} else if (((InterpData)data).getFuncReturn()) {
-						// a 'return' statement
-						// don't reset data here
-						break ;
-					} else if (((InterpData)data).getQuitSession()) {
-						// a 'quit' statement
-						// don't reset data here
-						break ;
-					}
-				} else {
-					// end of the while loop
-					break ;
-				}
-			}
+			// run the compiled loop (see compile())
+			getCode(node).exec(data) ;
 		} else {
 			while (true) {
-				boolean_test.jjtAccept(this, data) ;
-				if (lib.isTrue(stack.pop())) {
+				if (evalTest(boolean_test, data)) {
 					//statement.jjtAccept(this, data) ;
 					node.jjtGetChild(1).jjtAccept(this, data) ;
 				}
@@ -2244,35 +2740,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		Object obj = node.jjtGetChild(1) ;
 
 		if (obj instanceof ASTloop_block) {
-			while (true) {
-				// re-evaluate the boolean_test AST each time;
-				// should leave a Long or a Double on the stack
-				boolean_test.jjtAccept(this, data) ;
-				// N.B. the logical not (!) here, compared to while_statement above
-				if (!lib.isTrue(stack.pop())) {
-					node.jjtGetChild(1).jjtAccept(this, data) ;
-
-					if (((InterpData)data).getLoopContinue()) {
-						((InterpData)data).setLoopContinue(false) ;
-						continue ;
-					} else if (((InterpData)data).getLoopBreak()) {
-						((InterpData)data).setLoopBreak(false) ;
-						break ;
-					} else if (((InterpData)data).getFuncReturn()) {
-						// don't reset data here
-						break ;
-					} else if (((InterpData)data).getQuitSession()) {
-						// don't reset data here
-						break ;
-					}
-				} else {
-					break ;
-				}
-			}
+			// run the compiled loop (see compile())
+			getCode(node).exec(data) ;
 		} else {
 			while (true) {
-				boolean_test.jjtAccept(this, data) ;
-				if (!lib.isTrue(stack.pop())) {
+				if (!evalTest(boolean_test, data)) {
 					node.jjtGetChild(1).jjtAccept(this, data) ;
 				}
 			}
@@ -2307,255 +2779,73 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
     public Object visit(ASTboolean_or_exp node, Object data) {
 		// should be two daughters
 		// do a short-stop, left-to-right evaluation
-		node.jjtGetChild(0).jjtAccept(this, data) ;
-		if (lib.isTrue(stack.pop())) {
-			// no need to evaluate the second child
-			stack.push(new Long(1L)) ;
-		} else {
-			// evaluate the second daughter
-			node.jjtGetChild(1).jjtAccept(this, data) ;
-			if (lib.isTrue(stack.pop()))
-				stack.push(new Long(1L)) ;
-			else
-				stack.push(new Long(0L)) ;
-		} 
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTboolean_and_exp node, Object data) {
 		// should be two daughters
 		// do a short-stop, left-to-right evaluation
-		node.jjtGetChild(0).jjtAccept(this, data) ;
-		if (lib.isTrue(stack.pop())) {
-			// So far so good.
-			// now evaluate the second daughter
-			node.jjtGetChild(1).jjtAccept(this, data) ;
-			if (lib.isTrue(stack.pop()))
-				// then both are true
-				stack.push(new Long(1L)) ;  // leave "true" on the stack
-			else
-				stack.push(new Long(0L)) ;  // leave "false" on the stack
-		} else 
-			// the first daughter was false, so the whole boolean_and_exp is false
-			stack.push(new Long(0L)) ;  // leave "false" on the stack
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTboolean_not_exp node, Object data) {
 		// should be only one daughter, syntactically constrained
-		node.jjtGetChild(0).jjtAccept(this, data) ;
-		// the _not_ is handled here
-		if (lib.isTrue(stack.pop()))
-			stack.push(new Long(0L)) ;  // then return False
-		else
-			stack.push(new Long(1L)) ;  // else return True
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTless_than_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() < ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Long)first).longValue() < ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() < ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Double)first).doubleValue() < ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTless_than_or_equal_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() <= ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Long)first).longValue() <= ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() <= ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Double)first).doubleValue() <= ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTgreater_than_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() > ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Long)first).longValue() > ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() > ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Double)first).doubleValue() > ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTgreater_or_equal_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() >= ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Long)first).longValue() >= ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() >= ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Double)first).doubleValue() >= ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTequal_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() == ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else 
-				if (((Long)first).longValue() == ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() == ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else 
-				if (((Double)first).doubleValue() == ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTnot_equal_exp node, Object data) {
 		// two daughters, either Long or Double
-		node.childrenAccept(this, data) ;
-		Object second = stack.pop() ;
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long)
-				if (((Long)first).longValue() != ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else 
-				if (((Long)first).longValue() != ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		} else {
-			if (second instanceof Long)
-				if (((Double)first).doubleValue() != ((Long)second).longValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-			else
-				if (((Double)first).doubleValue() != ((Double)second).doubleValue())
-					stack.push(new Long(1L)) ;
-				else
-					stack.push(new Long(0L)) ;
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTaddition_exp node, Object data) {
 		// always two daughters (Long or Double), constrained syntactically
-		node.childrenAccept(this, data) ;
-
-		Object second = stack.pop() ;  // N.B. pop off the 2nd arg first
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long) {
-				// both args are Long
-				stack.push(new Long(((Long)first).longValue() +
-							((Long)second).longValue())) ;
-			} else {
-				// one arg Long, one Double, promoted to Double
-				stack.push(new Double(((Long)first).longValue() +
-							  ((Double)second).doubleValue())) ;
-			}
-		} else {  // first is Double
-			if (second instanceof Double) {
-				// both args are Double
-				stack.push(new Double(((Double)first).doubleValue() +
-							  ((Double)second).doubleValue())) ;
-			} else {
-				// one arg Double, one Long, promotes to Double
-				stack.push(new Double(((Double)first).doubleValue() +
-							  ((Long)second).longValue())) ;
-			}
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTsubtraction_exp node, Object data) {
@@ -2563,128 +2853,37 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// Kleene;
 		// See "difference" for subtraction of Fsts
 		// always two daughters (Long or Double), syntactically constrained
-		node.childrenAccept(this, data) ;
-
-		Object second = stack.pop() ;  // N.B. pop off the 2nd arg first
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long) {
-				// both args are Long
-				stack.push(new Long(((Long)first).longValue() -
-							((Long)second).longValue())) ;
-			} else {
-				// first arg Long, second Double, promotes to Double
-				stack.push(new Double(((Long)first).longValue() -
-							  ((Double)second).doubleValue())) ;
-			}
-		} else {  // first is Double
-			if (second instanceof Double) {
-				// both args are Double
-				stack.push(new Double(((Double)first).doubleValue() -
-							  ((Double)second).doubleValue())) ;
-			} else {
-				// first arg Double, second Long, promotes to Double
-				stack.push(new Double(((Double)first).doubleValue() -
-							  ((Long)second).longValue())) ;
-			}
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTmult_exp node, Object data) {
 		// always two daughters (Long or Double), syntactically constrained
-		node.childrenAccept(this, data) ;
-
-		Object second = stack.pop() ;  // N.B. pop off the 2nd arg first
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long) {
-				// both args are Long
-				stack.push(new Long(((Long)first).longValue() *
-							((Long)second).longValue())) ;
-			} else {
-				// first arg Long, second Double, promotes to Double
-				stack.push(new Double(((Long)first).longValue() *
-							  ((Double)second).doubleValue())) ;
-			}
-		} else {  // first is Double
-			if (second instanceof Double) {
-				// both args are Double
-				stack.push(new Double(((Double)first).doubleValue() *
-							  ((Double)second).doubleValue())) ;
-			} else {
-				// first arg Double, second Long, promotes to Double
-				stack.push(new Double(((Double)first).doubleValue() *
-							  ((Long)second).longValue())) ;
-			}
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTdiv_exp node, Object data) {
 		// always two daughters (Long or Double)
-		node.childrenAccept(this, data) ;
-
-		Object second = stack.pop() ;  // N.B. pop off the 2nd arg first
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long) {
-				// both args are Long
-				stack.push(new Long(((Long)first).longValue() /
-							((Long)second).longValue())) ;
-			} else {
-				// first arg Long, second Double, promotes to Double
-				stack.push(new Double(((Long)first).longValue() /
-							  ((Double)second).doubleValue())) ;
-			}
-		} else {  // first is Double
-			if (second instanceof Double) {
-				// both args are Double
-				stack.push(new Double(((Double)first).doubleValue() /
-							  ((Double)second).doubleValue())) ;
-			} else {
-				// first arg Double, second Long, promotes to Double
-				stack.push(new Double(((Double)first).doubleValue() /
-							  ((Long)second).longValue())) ;
-			}
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
     public Object visit(ASTmod_exp node, Object data) {
 		// always two daughters (Long or Double)
-		node.childrenAccept(this, data) ;
-
-		Object second = stack.pop() ;  // N.B. pop off the 2nd arg first
-		Object first = stack.pop() ;
-		if (first instanceof Long) {
-			if (second instanceof Long) {
-				// both args are Long
-				stack.push(new Long(((Long)first).longValue() %
-							((Long)second).longValue())) ;
-			} else {
-				// first arg Long, second Double, promotes to Double
-				stack.push(new Double(((Long)first).longValue() %
-							  ((Double)second).doubleValue())) ;
-			}
-		} else {  // first is Double
-			if (second instanceof Double) {
-				// both args are Double
-				stack.push(new Double(((Double)first).doubleValue() %
-							  ((Double)second).doubleValue())) ;
-			} else {
-				// first arg Double, second Long, promotes to Double
-				stack.push(new Double(((Double)first).doubleValue() %
-							  ((Long)second).longValue())) ;
-			}
-		}
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
     }
-    public Object visit(ASTunary_minus_exp node, Object data) {
-		node.childrenAccept(this, data) ;
-		Object obj = stack.pop() ;
-		if (obj instanceof Long) {
-			stack.push(new Long(((Long)obj).longValue() * -1)) ;
-		} else {
-			stack.push(new Double(((Double)obj).doubleValue() * -1.0)) ;
-		}
+	public Object visit(ASTunary_minus_exp node, Object data) {
+		// one daughter (Long or Double)
+		// (evaluated unboxed, see evalNum())
+		evalNum(node, data) ;
+		pushNum() ;
 		return data ;
 	}
 	public Object visit(ASTnum_func_call node, Object data) {
@@ -2706,11 +2905,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		//   in which it was originally defined.  (Free variables are
 		//   looked up starting at this static Frame, implementing
 		//   Lexical Scope.)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the args
 		try {
-			bind_params(funcValue.getParamArrayList(), ac, data) ;
+			bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch any Exceptions and release the Frame before rethrowing
 		} catch (RuntimeException re) {
@@ -2755,7 +2954,7 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// this method is called for a num_func_id on the RHS;
 		// need to look up and push the value from the environment
 		String num_func_id = node.getImage() ;
-		Object obj = env.get(num_func_id) ;
+		Object obj = env.get(num_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -2791,11 +2990,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		//   in which it was originally defined.  (Free variables are
 		//   looked up starting at this static Frame, implementing
 		//   Lexical Scope.)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the args
 		try {
-			bind_params(funcValue.getParamArrayList(), ac, data) ;
+			bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -2849,11 +3048,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		//   in which it was originally defined.  (Free variables are
 		//   looked up starting at this static Frame, implementing
 		//   Lexical Scope.)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the args
 		try {
-			bind_params(funcValue.getParamArrayList(), ac, data) ;
+			bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -2907,11 +3106,11 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		//   in which it was originally defined.  (Free variables are
 		//   looked up starting at this static Frame, implementing
 		//   Lexical Scope.)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the args
 		try {
-			bind_params(funcValue.getParamArrayList(), ac, data) ;
+			bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -3141,12 +3340,124 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		return data ;
 	}
 
+	private boolean nativeRules() {
+		Object obj = env.get("#KLEENEnativeRules") ;
+		return (obj instanceof Long || obj instanceof Double) && lib.isTrue(obj) ;
+	}
+
+	// Compile the RuleSemanticParts with one call of the native rule
+	// compiler (OpenFstLibraryWrapper.CompileRuleNative()), which builds
+	// Base, Context and Constraints exactly as compileRuleSemanticParts()
+	// below does, but keeps all the intermediate networks in C++ and
+	// optimizes only where the Java code forces it, and once at the end.
+	//
+	// The networks handed over are Hulden's kept networks (see
+	// Hulden.KeptNetsForNative()), followed by the parts of the rules;
+	// the "program" describes the rules, in the layout expected by
+	// RuleCompiler::Compile() in kleeneopenfst.cc:
+	//		number of rules, then for each rule
+	//			arrow, oblig, match, map, epenthesis,
+	//			transducer, upper, lower, leftMarkup, rightMarkup,
+	//			number of contexts, then for each context
+	//				leftUpper, leftLower, rightUpper, rightLower
+	// where the parts are indices into the networks, or -1 if missing.
+	// The codes for the enums are spelled out here (not ordinal()) to
+	// match the C++ side.
+
+	Fst compileRuleSemanticPartsNative(ArrayList<RuleSemanticParts> listOfSemanticParts) {
+		ArrayList<Fst> nets = hulden.KeptNetsForNative() ;
+		ArrayList<Integer> program = new ArrayList<Integer>() ;
+
+		program.add(new Integer(listOfSemanticParts.size())) ;
+
+		for (Iterator<RuleSemanticParts> iter = listOfSemanticParts.iterator(); 
+			 iter.hasNext() ; ) {
+			RuleSemanticParts rsempt = iter.next() ;
+
+			program.add(new Integer(
+				(rsempt.getArrowType() == RuleArrowType.RIGHT) ? 0 : 1)) ;
+			program.add(new Integer(
+				(rsempt.getObligType() == RuleObligType.OBLIG) ? 0 : 1)) ;
+
+			int match = 0 ;		// RuleMatchType.ALL
+			switch (rsempt.getMatchType()) {
+				case MAX_L2R:	match = 1 ; break ;
+				case MIN_L2R:	match = 2 ; break ;
+				case MAX_R2L:	match = 3 ; break ;
+				case MIN_R2L:	match = 4 ; break ;
+				default:		break ;
+			}
+			program.add(new Integer(match)) ;
+
+			program.add(new Integer(
+				(rsempt.getMapType() == RuleMapType.MARKUP) ? 1 : 0)) ;
+			program.add(new Integer(rsempt.getEpenthesis() ? 1 : 0)) ;
+
+			// for transducer rules only the transducer is used, for markup
+			// rules the input side and the insertions, for the others 
+			// upper and lower (as in compileRuleSemanticParts())
+			if (rsempt.getTransducerLhs() != null) {
+				program.add(new Integer(nativeRulePart(nets, rsempt.getTransducerLhs()))) ;
+				program.add(new Integer(-1)) ;
+				program.add(new Integer(-1)) ;
+				program.add(new Integer(-1)) ;
+				program.add(new Integer(-1)) ;
+			} else {
+				program.add(new Integer(-1)) ;
+				program.add(new Integer(nativeRulePart(nets, rsempt.getUpperLhs()))) ;
+				program.add(new Integer(nativeRulePart(nets, rsempt.getLowerLhs()))) ;
+				if (rsempt.getMapType() == RuleMapType.MARKUP) {
+					program.add(new Integer(nativeRulePart(nets, rsempt.getLeftMarkupInsertion()))) ;
+					program.add(new Integer(nativeRulePart(nets, rsempt.getRightMarkupInsertion()))) ;
+				} else {
+					program.add(new Integer(-1)) ;
+					program.add(new Integer(-1)) ;
+				}
+			}
+
+			ArrayList<RuleContextSemanticParts> contexts = rsempt.getContexts() ;
+			program.add(new Integer(contexts.size())) ;
+			for (Iterator<RuleContextSemanticParts> rciter = contexts.iterator(); 
+				 rciter.hasNext(); ) {
+				RuleContextSemanticParts rcsp = rciter.next() ;
+				program.add(new Integer(nativeRulePart(nets, rcsp.getLeftUpperContext()))) ;
+				program.add(new Integer(nativeRulePart(nets, rcsp.getLeftLowerContext()))) ;
+				program.add(new Integer(nativeRulePart(nets, rcsp.getRightUpperContext()))) ;
+				program.add(new Integer(nativeRulePart(nets, rcsp.getRightLowerContext()))) ;
+			}
+		}
+
+		int[] prog = new int[program.size()] ;
+		for (int i = 0; i < prog.length; i++) {
+			prog[i] = program.get(i).intValue() ;
+		}
+
+		return lib.CompileRuleNative(nets, prog, hulden.SymbolsForNative()) ;
+	}
+
+	// add a part of a rule to the networks, returning its index (-1 if
+	// the part is missing).  The part is neither copied nor marked:
+	// compileRuleNative only reads the networks, during the call, and
+	// the caller's Fst must keep its own fromSymtab flag.
+	private int nativeRulePart(ArrayList<Fst> nets, Fst part) {
+		if (part == null) {
+			return -1 ;
+		}
+		nets.add(part) ;
+		return nets.size() - 1 ;
+	}
+
 	Fst compileRuleSemanticParts(ArrayList<RuleSemanticParts> listOfSemanticParts) {
 
 		// KRB: debug
 		//System.out.println("\nEntering compileRuleSemanticParts()\n") ;
 		//System.out.println("\nNumber of RuleSemanticParts: " + listOfSemanticParts.size()) ;
 
+		if (nativeRules()) {
+			return compileRuleSemanticPartsNative(listOfSemanticParts) ;
+		}
+		// else the Java-driven compilation, one library call at a time
+
 
 		// The listOfSemanticParts contains potentially multiple RuleSemanticParts 
 		// objects, which are to be compiled in parallel.  The information in the
@@ -3170,9 +3481,9 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// or CPMarkup...(X, Y, Z)
 		// representing the LHS, for each semantic rule; the CPs for all the parallel
 		// rules are _unioned_ together in the computation of Base, so
-		// start with an empty-language fst and union all the CPs into it.
+		// collect all the CPs and union them (once, n-ary) after the loop.
 
-		Fst BaseUnionOfCPs = lib.EmptyLanguageFst() ;
+		ArrayList<Fst> cps = new ArrayList<Fst>() ;
 
 		// Rule compilation involves the calculation of a language restriction,
 		// which may have multiple context parts (one for each individual context
@@ -3182,19 +3493,20 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// one for each context, get unioned together, and then at the end
 		// the resulting unionOfContexts is surrounded with \x*, i.e. 
 		// [\x* unionOfContexts \x*]
-		// Start with a unionOfContexts that is the empty language and union all
-		// the [L x \x* x R] parts into it.  The surrounding \x* and \x* will be
-		// added later.
+		// Collect all the [L x \x* x R] parts, and union them (once, n-ary)
+		// after the loop into unionOfContexts.  The surrounding \x* and \x* 
+		// will be added later.
 
-		Fst unionOfContexts = lib.EmptyLanguageFst() ;
+		ArrayList<Fst> restContexts = new ArrayList<Fst>() ;
 
 		// The Constraints, potentially one for each context in all the parallel rules
 		// (there can be more than one context per rule) are _intersected_ together. 
-		// Start with .*, the Universal Language and intersect constraints into it.
+		// They are collected here and intersected after the loop (the intersection
+		// of none is .*, the Universal Language).
 		// Constraints are used only for obligatory rules.  (Optionality in a rule
 		// corresponds to a lack of such constraints for that particular rule.)
 
-		Fst Constraints = lib.UniversalLanguageFst() ;
+		ArrayList<Fst> constraints = new ArrayList<Fst>() ;
 
 		// iterate through the list of RuleSemanticParts objects that need to be
 		// compiled in parallel
@@ -3336,9 +3648,8 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 
 			cp.setFromSymtab(true) ;
 
-			// union this cp (one for each semantic rule) into the BaseUnionOfCPs
-			// UnionIntoFirstInPlace() is destructive of the first argument, as desired here.
-			BaseUnionOfCPs = lib.UnionIntoFirstInPlace(BaseUnionOfCPs, cp) ;
+			// save this cp (one for each semantic rule) for the BaseUnionOfCPs
+			cps.add(cp) ;
 
 			// Now get the contexts of the current rule
 			ArrayList<RuleContextSemanticParts> contexts = rsempt.getContexts() ;
@@ -3460,11 +3771,9 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 																rightRestrictionContext
 															);
 
-				// Union this restContextFst into the "unionOfContexts" used to compute
+				// Save this restContextFst for the "unionOfContexts" used to compute
 				// the "Context" Fst in Hulden's algorithm.
-				// UnionIntoFirstInPlace() is destructive of the first argument, as desired here
-				unionOfContexts = lib.UnionIntoFirstInPlace(unionOfContexts, 
-				                                       		restContextFst) ;
+				restContexts.add(restContextFst) ;
 
 				// Now see if a constraint need to be calculated for the current context
 				// A constraint, needed for non-optional rules, makes sure that if an
@@ -3604,8 +3913,8 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 							)
 					) ;
 
-					// and intersect this constraint into the total Constraints
-					Constraints = lib.Intersect(Constraints, notContain) ;
+					// and collect this constraint for the total Constraints
+					constraints.add(notContain) ;
 				}	// end of block adding a constraint for a context
 			}	// end of loop through contexts
 		}	// end of loop through RuleSemanticParts
@@ -3613,14 +3922,16 @@ public class InterpreterKleeneVisitor implements KleeneVisitor {
 		// KRB: debug
 		//System.out.println("End of loop through RuleSemanticParts") ;
 
-		Fst Outside = lib.Concat3Fsts(	
-									lib.OneArcFst(hulden.outsideMarkerSym),
-									lib.Difference(
-											hulden.Tape2Sig(),
-											lib.OneArcFst(hulden.ruleWordBoundarySym)
-									),
-									lib.OneArcFst(hulden.idMarkerSym)
-								 ) ;
+		// the n-ary unions of the parts collected in the loop, each
+		// optimized just once (UnionFsts() does not modify its arguments)
+		Fst BaseUnionOfCPs = lib.UnionFsts(cps) ;
+		Fst unionOfContexts = lib.UnionFsts(restContexts) ;
+
+		// the intersection of the constraints, smallest first, as a 
+		// balanced tree rather than a growing accumulator
+		Fst Constraints = lib.IntersectFsts(constraints) ;
+
+		Fst Outside = hulden.Outside() ;
 
 		Fst Base = lib.Concat3Fsts(
 								hulden.Boundary(), 
@@ -3825,6 +4136,121 @@ class RuleSemanticParts {
 	}
 }
 
+	// While a rule with where-clauses is being compiled (see 
+	// compileRuleSyntacticParts()), the parts of the rule (LHS, markup
+	// insertions, contexts) that are the same in every instantiation
+	// are evaluated just once, for the first instantiation, and their
+	// values are kept here, keyed on the AST of the part.
+	// null when no where-clause rule is being compiled.
+	private HashSet<String> ruleLocalVarNames = null ;
+	private IdentityHashMap<Node, Fst> invariantRuleParts = null ;
+
+	// true if the part of a where-clause rule is the same in every
+	// instantiation:  its whole AST must be pure (see PurityAnalysis;
+	// e.g. no $^randGen, which must give a new network for each 
+	// instantiation, and only calls of pure functions) and refer to
+	// none of the where-clause variables, of any type.  (Functions 
+	// called in the AST cannot see the where-clause variables, which
+	// are bound in a Frame of their own; lookup follows the static
+	// links.)
+	private boolean isInvariantRulePart(Node ast) {
+		return getPurityAnalysis().isPureExpr(ast, ruleLocalVarNames, 
+											env.getCurrentFrame()) ;
+	}
+
+	// evaluate one part of a rule, e.g. a context, and return its Fst.
+	// An invariant part of a where-clause rule is evaluated only once;
+	// each instantiation then gets a (cheap, copy-on-write) copy.
+	private Fst evalRulePart(Node ast, InterpData data) {
+		if (invariantRuleParts == null || !isInvariantRulePart(ast)) {
+			ast.jjtAccept(this, data) ;
+			return (Fst) stack.pop() ;
+		}
+		Fst fst = invariantRuleParts.get(ast) ;
+		if (fst == null) {
+			ast.jjtAccept(this, data) ;
+			fst = (Fst) stack.pop() ;
+			fst.setFromSymtab(true) ;
+			invariantRuleParts.put(ast, fst) ;
+		}
+		return lib.CopyFst(fst) ;
+	}
+
+	// While the instantiations of a where-clause rule are being
+	// compiled, the clean-ups (see Hulden.java) of the rule parts that
+	// are only stored in the RuleSemanticParts are not done one by one;
+	// the parts are collected here, keyed on the uncleaned Fst, and are
+	// cleaned up together, with the native work running concurrently,
+	// once all the instantiations have been evaluated (see
+	// cleanupDeferredRuleParts()).  null when not deferring.
+	private IdentityHashMap<Fst, Fst> deferredContextCleanups = null ;
+	private IdentityHashMap<Fst, Fst> deferredActionCleanups = null ;
+
+	private Fst cleanupRuleContext(Fst fst) {
+		if (deferredContextCleanups == null) {
+			return hulden.CleanupSpecialSymbolsContext(fst) ;
+		}
+		deferredContextCleanups.put(fst, fst) ;
+		return fst ;
+	}
+
+	private Fst cleanupRuleAction(Fst fst) {
+		if (deferredActionCleanups == null) {
+			return hulden.CleanupSpecialSymbolsAction(fst) ;
+		}
+		deferredActionCleanups.put(fst, fst) ;
+		return fst ;
+	}
+
+	// the cleaned version of a deferred part (the part itself if it was
+	// not deferred, e.g. a transducerLhs, which is cleaned at once)
+	private Fst cleanedRulePart(IdentityHashMap<Fst, Fst> cleanups, Fst fst) {
+		if (fst == null || !cleanups.containsKey(fst)) {
+			return fst ;
+		}
+		return cleanups.get(fst) ;
+	}
+
+	private void cleanupDeferredRuleParts(ArrayList<RuleSemanticParts> rsps) {
+		IdentityHashMap<Fst, Fst> contextCleanups = deferredContextCleanups ;
+		IdentityHashMap<Fst, Fst> actionCleanups = deferredActionCleanups ;
+
+		ArrayList<Fst> parts = new ArrayList<Fst>(contextCleanups.keySet()) ;
+		ArrayList<Fst> cleaned = hulden.CleanupSpecialSymbolsContexts(parts) ;
+		for (int i = 0; i < parts.size(); i++) {
+			contextCleanups.put(parts.get(i), cleaned.get(i)) ;
+		}
+
+		parts = new ArrayList<Fst>(actionCleanups.keySet()) ;
+		cleaned = hulden.CleanupSpecialSymbolsActions(parts) ;
+		for (int i = 0; i < parts.size(); i++) {
+			actionCleanups.put(parts.get(i), cleaned.get(i)) ;
+		}
+
+		// An epenthesis RuleSemanticParts shares some parts, and the
+		// list of contexts, with its basic RuleSemanticParts, so a
+		// part can be visited twice; the cleaned version of a cleaned
+		// part is itself.
+		for (int i = 0; i < rsps.size(); i++) {
+			RuleSemanticParts rsp = rsps.get(i) ;
+			rsp.setUpperLhs(cleanedRulePart(actionCleanups, rsp.getUpperLhs())) ;
+			rsp.setLowerLhs(cleanedRulePart(actionCleanups, rsp.getLowerLhs())) ;
+			rsp.setTransducerLhs(cleanedRulePart(actionCleanups, rsp.getTransducerLhs())) ;
+			rsp.setLeftMarkupInsertion(cleanedRulePart(actionCleanups, rsp.getLeftMarkupInsertion())) ;
+			rsp.setRightMarkupInsertion(cleanedRulePart(actionCleanups, rsp.getRightMarkupInsertion())) ;
+
+			ArrayList<RuleContextSemanticParts> contexts = rsp.getContexts() ;
+			for (int j = 0; j < contexts.size(); j++) {
+				RuleContextSemanticParts rcsp = contexts.get(j) ;
+				contexts.set(j, new RuleContextSemanticParts(
+					cleanedRulePart(contextCleanups, rcsp.getLeftUpperContext()),
+					cleanedRulePart(contextCleanups, rcsp.getLeftLowerContext()),
+					cleanedRulePart(contextCleanups, rcsp.getRightUpperContext()),
+					cleanedRulePart(contextCleanups, rcsp.getRightLowerContext()))) ;
+			}
+		}
+	}
+
 	ArrayList<RuleContextSemanticParts> compileRuleSyntacticContexts(RuleSyntacticParts rsynp, InterpData data) {
 		// Handle the set of contexts for one rule.
 		// Each syntactic context gets translated into one semantic context
@@ -3919,8 +4345,7 @@ class RuleSemanticParts {
 
 			if (leftRuleContextAst != null) {
 				// then evaluate it
-				leftRuleContextAst.jjtAccept(this, data) ;
-				Fst leftContext = (Fst)stack.pop() ;  // may be acceptor or transducer
+				Fst leftContext = evalRulePart(leftRuleContextAst, data) ;  // may be acceptor or transducer
 				leftContext.setFromSymtab(true) ;	// needed if TWO levels and need to extract projections
 
 				if (levels == RuleContextLevels.ONE) {
@@ -3958,8 +4383,7 @@ class RuleSemanticParts {
 
 			if (rightRuleContextAst != null) {
 				// then evaluate it
-				rightRuleContextAst.jjtAccept(this, data) ;
-				Fst rightContext = (Fst)stack.pop() ;	// may be acceptor or transducer
+				Fst rightContext = evalRulePart(rightRuleContextAst, data) ;	// may be acceptor or transducer
 				rightContext.setFromSymtab(true) ;	// needed if TWO levels and need to extract projections
 
 				if (levels == RuleContextLevels.ONE) {
@@ -3997,25 +4421,25 @@ class RuleSemanticParts {
 
 			Fst Lu = leftUpperContext ;
 			if (Lu != null) {
-				Lu = hulden.CleanupSpecialSymbolsContext(Lu) ;
+				Lu = cleanupRuleContext(Lu) ;
 			}
 			//Lu.setFromSymtab(true) ;
 
 			Fst Ll = leftLowerContext ;
 			if (Ll != null) {
-				Ll = hulden.CleanupSpecialSymbolsContext(Ll) ;
+				Ll = cleanupRuleContext(Ll) ;
 			}
 			//Ll.setFromSymtab(true) ;
 
 			Fst Ru = rightUpperContext ;
 			if (Ru != null) {
-				Ru = hulden.CleanupSpecialSymbolsContext(Ru) ;
+				Ru = cleanupRuleContext(Ru) ;
 			}
 			//Ru.setFromSymtab(true) ;
 
 			Fst Rl = rightLowerContext ;
 			if (Rl != null) {
-				Rl = hulden.CleanupSpecialSymbolsContext(Rl) ;
+				Rl = cleanupRuleContext(Rl) ;
 			}
 			//Rl.setFromSymtab(true) ;
 
@@ -4063,8 +4487,7 @@ class RuleSemanticParts {
 			// could be syntactically missing
 			Fst leftMarkupInsertion = null ;
 			if (rsynp.getLeftMarkupInsertion() != null) {
-				rsynp.getLeftMarkupInsertion().jjtAccept(this, data) ;
-				leftMarkupInsertion = (Fst)stack.pop() ;
+				leftMarkupInsertion = evalRulePart(rsynp.getLeftMarkupInsertion(), data) ;
 				if (!lib.IsSemanticAcceptor(leftMarkupInsertion) ) {
 					throw new RuleSemanticException("The left-side insertion of a markup rule compiled into a Transducer.  An Acceptor is required.") ;
 				}
@@ -4075,8 +4498,7 @@ class RuleSemanticParts {
 
 			Fst rightMarkupInsertion = null ;
 			if (rsynp.getRightMarkupInsertion() != null) {
-				rsynp.getRightMarkupInsertion().jjtAccept(this, data) ;
-				rightMarkupInsertion = (Fst)stack.pop() ;
+				rightMarkupInsertion = evalRulePart(rsynp.getRightMarkupInsertion(), data) ;
 				if ( !lib.IsSemanticAcceptor(rightMarkupInsertion) ) {
 					throw new RuleSemanticException("The right-side insertion of a markup rule compiled into a Transducer.  An Acceptor is required.") ;
 				}
@@ -4085,8 +4507,8 @@ class RuleSemanticParts {
 				rightMarkupInsertion = lib.EmptyStringLanguageFst() ;
 			}
 
-			basicRuleSemanticParts.setLeftMarkupInsertion(hulden.CleanupSpecialSymbolsAction(leftMarkupInsertion)) ;
-			basicRuleSemanticParts.setRightMarkupInsertion(hulden.CleanupSpecialSymbolsAction(rightMarkupInsertion)) ;
+			basicRuleSemanticParts.setLeftMarkupInsertion(cleanupRuleAction(leftMarkupInsertion)) ;
+			basicRuleSemanticParts.setRightMarkupInsertion(cleanupRuleAction(rightMarkupInsertion)) ;
 		}
 
 
@@ -4100,9 +4522,9 @@ class RuleSemanticParts {
 			// where the mapping is expressed in the syntax as a transducer.
 			// .getLhsTransducer() returns an ASTrule_lhs_transducer, which
 			// has one child, some kind of regexp denoting a transducer
-			rsynp.getLhsTransducer().jjtGetChild(0).jjtAccept(this, data) ;
-			// leaves an Fst on the stack
-			transducerLhs = (Fst) stack.pop() ;
+			transducerLhs = evalRulePart(rsynp.getLhsTransducer().jjtGetChild(0), data) ;
+			// cleaned at once, even for a where-clause rule, as the
+			// projections are needed below
 			transducerLhs = hulden.CleanupSpecialSymbolsAction(transducerLhs) ;
 			// .setFromSymtab because, for an oblig rule, the upper or lower language
 			// will need to be extracted
@@ -4114,22 +4536,19 @@ class RuleSemanticParts {
 			// this is a mapping rule (with separately specified upperLhs and LowerLhs),
 			// or a markup rule, in which case one of the following still needs to be set
 			if (rsynp.getLhsUpper() != null) {
-				rsynp.getLhsUpper().jjtAccept(this, data) ;
-				// leaves an Fst on the stack
-				upperLhs = (Fst) stack.pop() ;
+				upperLhs = evalRulePart(rsynp.getLhsUpper(), data) ;
 				if (!lib.IsSemanticAcceptor(upperLhs)) {
 					throw new RuleSemanticException("The upper left-hand-side expression in an alternation rule compiled into a Transducer.  An Acceptor is required.") ;
 				}
-				basicRuleSemanticParts.setUpperLhs(hulden.CleanupSpecialSymbolsAction(upperLhs)) ;
+				basicRuleSemanticParts.setUpperLhs(cleanupRuleAction(upperLhs)) ;
 			}
 
 			if (rsynp.getLhsLower() != null) {
-				rsynp.getLhsLower().jjtAccept(this, data) ;
-				lowerLhs = (Fst)stack.pop() ;
+				lowerLhs = evalRulePart(rsynp.getLhsLower(), data) ;
 				if (!lib.IsSemanticAcceptor(lowerLhs)) {
 					throw new RuleSemanticException("The lower left-hand-side expression in an alternation rule compiled into a Transducer.  An Acceptor is required.") ;
 				}
-				basicRuleSemanticParts.setLowerLhs(hulden.CleanupSpecialSymbolsAction(lowerLhs)) ;
+				basicRuleSemanticParts.setLowerLhs(cleanupRuleAction(lowerLhs)) ;
 			}
 		}
 
@@ -4213,28 +4632,28 @@ class RuleSemanticParts {
 					if (arrowType == RuleArrowType.RIGHT) {
 						// the epsilon is on the upper side; 
 						// compose the complement of the empty-string language on the upper side
-						newTransducerLhs = hulden.CleanupSpecialSymbolsAction(lib.Compose(lib.Complement(lib.EmptyStringLanguageFst()), transducerLhs)) ;
+						newTransducerLhs = cleanupRuleAction(lib.Compose(lib.Complement(lib.EmptyStringLanguageFst()), transducerLhs)) ;
 					} else {
 						// the epsilon is on the lower side;
 						// compose the complement of the empty-string language on the lower side
-						newTransducerLhs = hulden.CleanupSpecialSymbolsAction(lib.Compose(transducerLhs, lib.Complement(lib.EmptyStringLanguageFst()))) ;
+						newTransducerLhs = cleanupRuleAction(lib.Compose(transducerLhs, lib.Complement(lib.EmptyStringLanguageFst()))) ;
 					}
 					basicRuleSemanticParts.setTransducerLhs(newTransducerLhs) ;	
 					// the epenthesis is now removed from the input side of the basic rule
 
 					if (arrowType == RuleArrowType.RIGHT) {
 						// in the epenthesisRuleSemanticParts, make the upper side the empty-string language
-						epenthesisRuleSemanticParts.setTransducerLhs(hulden.CleanupSpecialSymbolsAction(lib.Compose(lib.EmptyStringLanguageFst(), transducerLhs))) ;
+						epenthesisRuleSemanticParts.setTransducerLhs(cleanupRuleAction(lib.Compose(lib.EmptyStringLanguageFst(), transducerLhs))) ;
 					} else {
 						// in the epenthesisRuleSemanticParts, make the lower side the empty-string language
-						epenthesisRuleSemanticParts.setTransducerLhs(hulden.CleanupSpecialSymbolsAction(lib.Compose(transducerLhs, lib.EmptyStringLanguageFst()))) ;
+						epenthesisRuleSemanticParts.setTransducerLhs(cleanupRuleAction(lib.Compose(transducerLhs, lib.EmptyStringLanguageFst()))) ;
 					}
 
 				} else {
 					// In basicRuleSemanticParts, _subtract_ the empty string from the
 					// LHS input expression (modify the inputFst for the basic rule)
 
-					Fst newInputFst = hulden.CleanupSpecialSymbolsAction(lib.Difference(inputFst, lib.EmptyStringLanguageFst())) ;
+					Fst newInputFst = cleanupRuleAction(lib.Difference(inputFst, lib.EmptyStringLanguageFst())) ;
 
 					// modify the basic rule
 					if (arrowType == RuleArrowType.RIGHT) {
@@ -4277,44 +4696,102 @@ class RuleSemanticParts {
 		if (localVarSettings != null) {
 			// There are local rule-var settings from where clauses.
 			//
-			// The variable settings will be done in a new Frame to prevent interference
-			// with existing variables in the current and higher frames.
-
-			env.allocateFrame() ;		// Push to a new Frame here
-										// (see env.releaseFrame() below)
-
-			ArrayList<RuleLocalVarSetting> oneSetOfSettings = null ;
+			// Each instantiation (each set of settings) is compiled in a new Frame
+			// of its own, to prevent interference with existing variables in the 
+			// current and higher frames, and with the settings of the other
+			// instantiations.
+			//
+			// The parts of the rule that are pure and do not refer to the
+			// where-clause variables are the same in every instantiation;
+			// they are evaluated only once (see evalRulePart()).
+			//
+			// The instantiations are evaluated one after the other, as
+			// the evaluation shares the interpreter stack, the Frames and
+			// the symbol map, none of which is thread-safe; but the
+			// clean-ups of their parts, independent native intersections
+			// and compositions that are much of the cost, are deferred
+			// and then run concurrently, for all the instantiations
+			// together (see cleanupDeferredRuleParts()).
+
+			HashSet<String> outerLocalVarNames = ruleLocalVarNames ;
+			IdentityHashMap<Node, Fst> outerInvariantRuleParts = invariantRuleParts ;
+			IdentityHashMap<Fst, Fst> outerContextCleanups = deferredContextCleanups ;
+			IdentityHashMap<Fst, Fst> outerActionCleanups = deferredActionCleanups ;
+
+			HashSet<String> varNames = new HashSet<String>() ;
 			for (int i = 0; i < localVarSettings.size(); i++) {
-				oneSetOfSettings = localVarSettings.get(i) ;
-
-				// set each of the local variables in the new Frame
+				ArrayList<RuleLocalVarSetting> oneSetOfSettings = localVarSettings.get(i) ;
 				for (int j = 0; j < oneSetOfSettings.size(); j++) {
-					String varName = oneSetOfSettings.get(j).getVarName() ;
-					Fst fstValue = oneSetOfSettings.get(j).getFstValue() ;
-					env.put(varName, fstValue) ;
+					varNames.add(oneSetOfSettings.get(j).getVarName()) ;
 				}
+			}
+			// a where-clause rule nested in a part of another one (e.g. in a 
+			// function called from a context) also sees the outer variables
+			if (outerLocalVarNames != null) {
+				varNames.addAll(outerLocalVarNames) ;
+			}
+			ruleLocalVarNames = varNames ;
+			invariantRuleParts = new IdentityHashMap<Node, Fst>() ;
+			deferredContextCleanups = new IdentityHashMap<Fst, Fst>() ;
+			deferredActionCleanups = new IdentityHashMap<Fst, Fst>() ;
 
-				// now compile the rule with these settings
-				// If the input expression can match the empty string,
-				// then the compilation will result in two RuleSemanticParts objects because
-				// the epenthesis part is split into a separate parallel rule
-				ArrayList<RuleSemanticParts> oneOrTwoRuleSemanticParts = compileRuleInCurrentFrame(rsynp, data) ;
-				// add the RuleSemanticParts from these variable settings to the result
-				result.addAll(oneOrTwoRuleSemanticParts) ;
+			try {
+				for (int i = 0; i < localVarSettings.size(); i++) {
+					ArrayList<RuleLocalVarSetting> oneSetOfSettings = localVarSettings.get(i) ;
+
+					env.allocateFrame() ;		// Push to a new Frame here
+												// (see env.releaseFrame() below)
+					try {
+						// set each of the local variables in the new Frame
+						for (int j = 0; j < oneSetOfSettings.size(); j++) {
+							String varName = oneSetOfSettings.get(j).getVarName() ;
+							Fst fstValue = oneSetOfSettings.get(j).getFstValue() ;
+							env.put(varName, fstValue) ;
+						}
+
+						// now compile the rule with these settings
+						// If the input expression can match the empty string,
+						// then the compilation will result in two RuleSemanticParts objects because
+						// the epenthesis part is split into a separate parallel rule
+						ArrayList<RuleSemanticParts> oneOrTwoRuleSemanticParts = compileRuleInCurrentFrame(rsynp, data) ;
+						// add the RuleSemanticParts from these variable settings to the result
+						result.addAll(oneOrTwoRuleSemanticParts) ;
+					} finally {
+						// release the Frame used for setting the 'where' variables
+						env.releaseFrame() ;		// Pop back to orig frame here
+					}
+				}
+
+				cleanupDeferredRuleParts(result) ;
+			} finally {
+				ruleLocalVarNames = outerLocalVarNames ;
+				invariantRuleParts = outerInvariantRuleParts ;
+				deferredContextCleanups = outerContextCleanups ;
+				deferredActionCleanups = outerActionCleanups ;
 			}
-			
-			// release the Frame used for setting the 'where' variables
-			env.releaseFrame() ;		// Pop back to orig frame here
 
 		} else {
 			// simple case; no local rule variables from where clauses, but there could
 			// still be an effective translation to two parallel rules if epenthesis is
 			// possible (if the input expression can match the empty string)
 
-			ArrayList<RuleSemanticParts> oneOrTwoRuleSemanticParts = compileRuleInCurrentFrame(rsynp, data) ;
+			// a rule compiled while the parts of a where-clause rule are
+			// being evaluated (e.g. in a function called from a context)
+			// is complete in itself, so its clean-ups are not deferred
+			IdentityHashMap<Fst, Fst> outerContextCleanups = deferredContextCleanups ;
+			IdentityHashMap<Fst, Fst> outerActionCleanups = deferredActionCleanups ;
+			deferredContextCleanups = null ;
+			deferredActionCleanups = null ;
+
+			try {
+				ArrayList<RuleSemanticParts> oneOrTwoRuleSemanticParts = compileRuleInCurrentFrame(rsynp, data) ;
 
-			// add the RuleSemanticParts from these variable settings to the result
-			result.addAll(oneOrTwoRuleSemanticParts) ;
+				// add the RuleSemanticParts from these variable settings to the result
+				result.addAll(oneOrTwoRuleSemanticParts) ;
+			} finally {
+				deferredContextCleanups = outerContextCleanups ;
+				deferredActionCleanups = outerActionCleanups ;
+			}
 		}
 
 		return result ;
@@ -6928,33 +7405,27 @@ class RuleSemanticParts {
 		// The args to be unioned are parsed into a flat AST 
 		//    (union is treated like an n-ary operation)
 
-		int last = node.jjtGetNumChildren() - 1 ;
+		int daughterCount = node.jjtGetNumChildren() ;
 
-		// start with a new empty FST, union all the argument Fsts into it
-		// use EmptyLanguageWithStartStateFst instead of EmptyLanguageFst,
-		// this one creates a one-state Fst (start state, not final),
-		// which gives expected results of something like a|b when
-		// optimization is turned off
-		Fst resultFst = lib.EmptyLanguageWithStartStateFst() ;
-		
 		// some unions, especially in lexicon-like right-recursive 
-		// phrase-structure grammars, can get very long, 
-		// so optimize only at intervals; KRB: magic number
-		int optimizeInterval = 1000 ;
-
-		boolean optimize ;
+		// phrase-structure grammars, can get very long (thousands of
+		// alternatives); collect all the daughter Fsts and let
+		// lib.UnionFsts() build the union natively in one pass, 
+		// optimizing just once at the end.
+		// (Formerly unioned pairwise into an
+		// EmptyLanguageWithStartStateFst, optimizing at intervals;
+		// UnionFsts also returns a one-state Fst (start state, not final)
+		// for the degenerate case, which gives expected results of 
+		// something like a|b when optimization is turned off)
+		ArrayList<Fst> daughterFsts = new ArrayList<Fst>(daughterCount) ;
 
-		for (int i = 0; i <= last; i++) {
+		for (int i = 0; i < daughterCount; i++) {
 			node.jjtGetChild(i).jjtAccept(this, data) ;
-			Fst daughterFst = (Fst)stack.pop() ;
-
-			if ((i == last) || ((i % optimizeInterval) == 0)) {
-				optimize = true ;
-			} else {
-				optimize = false ;
-			}
-			resultFst = lib.UnionIntoFirstInPlace(resultFst, daughterFst, optimize) ;
+			daughterFsts.add((Fst)stack.pop()) ;
 		}
+
+		Fst resultFst = lib.UnionFsts(daughterFsts) ;
+
 		stack.push(resultFst) ;
 		return data ;
     }
@@ -6982,20 +7453,20 @@ class RuleSemanticParts {
     }
     public Object visit(ASTconcatenation_exp node, Object data) {
 		// Concatenation is parsed/evaluated as an n-ary operation 
-		int last = node.jjtGetNumChildren() - 1 ;
+		int daughterCount = node.jjtGetNumChildren() ;
 
-		// start with an empty-string-language Fst
-		// concatenate the daughter Fsts into it
-		Fst resultFst = lib.EmptyStringLanguageFst() ;
-		boolean optimize ;
+		// collect the daughter Fsts; lib.ConcatFsts() concatenates them
+		// natively in one pass (starting from the empty-string language)
+		// and optimizes the result once
+		ArrayList<Fst> daughterFsts = new ArrayList<Fst>(daughterCount) ;
 
-		for (int i = 0; i <= last; i++) {
+		for (int i = 0; i < daughterCount; i++) {
 			node.jjtGetChild(i).jjtAccept(this, data) ;
-			Fst daughterFst = (Fst)stack.pop() ;
-
-			optimize = (i == last) ? true : false ;
-			resultFst = lib.Concat(resultFst, daughterFst, optimize) ;
+			daughterFsts.add((Fst)stack.pop()) ;
 		}		
+
+		Fst resultFst = lib.ConcatFsts(daughterFsts) ;
+
 		stack.push(resultFst) ;
 		return data ;
     }
@@ -7436,13 +7907,30 @@ class RuleSemanticParts {
 		//    leaving the evaluated args (if any) on the stack
 		ArgCounts ac = (ArgCounts) stack.pop() ;
 
+		// opt-in memoization (see FuncCallMemo.java)
+		ArrayList<Object> memoKey = null ;
+		ArrayList<Fst> memoArgFsts = new ArrayList<Fst>() ;
+		if (memoizeFuncCalls(funcValue)) {
+			memoKey = getFuncCallMemo().makeKey(funcValue, ac, stack, 
+										memoSettings(), memoArgFsts) ;
+			if (memoKey != null) {
+				Object memoResult = getFuncCallMemo().lookup(memoKey, memoArgFsts) ;
+				if (memoResult != null) {
+					// leave the remembered result instead of the args
+					popArgs(ac) ;
+					stack.push(memoResult) ;
+					return data ;
+				}
+			}
+		}
+
 		//  Now allocate a new Frame for execution of this function call
 		//  (N.B. released below when the function returns)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -7480,6 +7968,10 @@ class RuleSemanticParts {
 		} else if (!(obj instanceof Fst)) {
 			throw new FuncCallException("Net valued function call returns incorrect type.") ;
 		}
+
+		if (memoKey != null) {
+			getFuncCallMemo().store(memoKey, memoArgFsts, obj) ;
+		}
 		return data ;
     }
     public Object visit(ASTvoid_func_call node, Object data) {
@@ -7520,11 +8012,11 @@ class RuleSemanticParts {
 
 		//  Now allocate a new Frame for the execution of this function call
 		//  (N.B. released below when the function returns)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -8395,6 +8887,32 @@ class RuleSemanticParts {
 
 		return data ;
 	}
+	public Object visit(ASTnet_read_lexicon_func_call node, Object data) {
+		// just $^__readLexicon($filepath)  built-in
+		// wrapped with $^readLexicon($filepath)
+		// just one daughter (syntactically constrained by the parser)
+		node.jjtGetChild(0).jjtAccept(this, data) ;
+		// leaves an Fst object on the stack
+		Fst pathFst = (Fst) stack.pop() ;
+
+		String userTyped = lib.GetSingleString(pathFst, "First arg to readLexicon must denote a language of exactly one string, denoting a file path") ;
+
+		String fullpath = getFullpath(userTyped) ;
+
+		Fst resultFst ;
+		try {
+			// builds a minimal acyclic network directly, entry by
+			// entry, in native code
+			resultFst = lib.LexiconFromFile(fullpath) ;
+		} catch (IOException e) {
+			// catch the hard Exception and
+			// throw a RuntimeException here, so that Kleene can recover
+			throw new FuncCallException("Problem in $^readLexicon() reading indicated file.") ;
+		}
+		stack.push(resultFst) ;
+
+		return data ;
+	}
 	public Object visit(ASTnet_rand_gen_func_call node, Object data) {
 		// $^randGen($fst, npath, max_length)
 		node.jjtGetChild(0).jjtAccept(this, data) ;
@@ -8519,19 +9037,16 @@ class RuleSemanticParts {
 		// These negative code point values should not be added to
 		// the sigma.
 		
-		Fst  resultFst = null ;
-
 		// Instead of a HashMap, use two parallel ArrayLists,
-		// later converted to int[], to pass easily to a C++ 
-		// native function that stitches the network together.
+		// later converted to arrays, to pass easily (in one call) to a
+		// C++ native function that stitches the network together.
+		ArrayList<Fst> productions = new ArrayList<Fst>() ;
 
 		// ArrayLists expand as necessary; avoid any preconceived
 		// size limit.
 		ArrayList<Integer> keys = new ArrayList<Integer>() ;
-		ArrayList<Integer> vals = new ArrayList<Integer>() ;
-		//  will have neg ints (representing $>foo refs) mapped 
-		// to positive numbers corresponding to start states of the
-		// various dependencies (productions) in the overall grammar.
+		//  will have the neg ints (representing $>foo refs) of
+		// the productions, parallel to their networks
 		
 		// Again loop through the list of dependencies (the names
 		// of all the productions in the implied grammar);
@@ -8549,35 +9064,21 @@ class RuleSemanticParts {
 			// should leave an Fst object on the stack, for one production
 			Fst fst = (Fst)stack.pop() ;
 
-			int startStateNum ;
-
-			if (i == 0) {
-				// the zeroth is the root production
-				resultFst = lib.CopyFst(fst) ; 
-				startStateNum = lib.StartState(resultFst) ;
-			} else {
-				// returns the _new_ start state number of fst
-				startStateNum =
-					lib.AddStatesAndArcsInPlace(resultFst, fst) ;
-
-			}
+			// the zeroth is the root production
+			productions.add(fst) ;
 
 			// A rrprod_id like $>foo is stored with a NEGATIVE int value
 			// on an Fst arc.
 			int negcpv = symmap.getint(rrprod) ;
 
-			// effectively create a Map from neg. int keys 
-			//	(right-linear labels)to non-neg.
-			// integers that represent the new state number of the start
-			// state of this particular Fst (for one of the productions
-			// of the overall grammar); 
 		 	keys.add(negcpv) ;  // will be a negative int value
-			vals.add(startStateNum) ;
 	 	}
 
-		// Now need to "stitch" it all together
+		// Now need to "stitch" it all together, copying all the
+		// productions into one new network (the productions, 
+		// possibly from the symbol table, are not changed)
 
-		lib.RrGrammarLinkInPlace(resultFst, keys, vals) ;
+		Fst resultFst = lib.RrGrammarLink(productions, keys) ;
 
 		stack.push(resultFst) ;
 		return data ;
@@ -9200,6 +9701,36 @@ class RuleSemanticParts {
 		stack.push(element) ;
 		return data ;
 	}
+	public Object visit(ASTnet_union_list_func_call node, Object data) {
+		// $^__unionList($@list) wrapped as $^unionList($@list)
+		// one daughter
+		//		net_list_exp
+		// the union of all the nets in the list, computed natively in
+		// one pass (cf. ASTunioned_exp); an empty list gives the
+		// empty language
+
+		node.jjtGetChild(0).jjtAccept(this, data) ;
+		NetList netList = (NetList)(stack.pop()) ;
+
+		Fst resultFst = lib.UnionFsts(netList.getArrayList()) ;
+		stack.push(resultFst) ;
+		return data ;
+	}
+	public Object visit(ASTnet_concat_list_func_call node, Object data) {
+		// $^__concatList($@list) wrapped as $^concatList($@list)
+		// one daughter
+		//		net_list_exp
+		// the concatenation of all the nets in the list, in order,
+		// computed natively in one pass (cf. ASTconcatenation_exp); 
+		// an empty list gives the empty-string language
+
+		node.jjtGetChild(0).jjtAccept(this, data) ;
+		NetList netList = (NetList)(stack.pop()) ;
+
+		Fst resultFst = lib.ConcatFsts(netList.getArrayList()) ;
+		stack.push(resultFst) ;
+		return data ;
+	}
 	public Object visit(ASTnum_get_func_call node, Object data) {
 		// #^__get(#@arr, 0) wrapped as #^get(#@arr, 0)
 		// two daughters
@@ -10063,6 +10594,42 @@ class RuleSemanticParts {
 		}
 	}
 
+	// Build the dependency graph of the RTN grammar implied by baseFst:
+	// loop through the subnetworks as they are discovered, looking each
+	// one up in the symbol table (just once) and recording its own
+	// references.  outputSideOnly selects findSubnetReferences() (for
+	// $^expandRtn) rather than findDependencies().
+	private RtnDependencyGraph buildRtnDependencyGraph(Fst baseFst, boolean outputSideOnly) {
+		ArrayList<String> refs = new ArrayList<String>() ;
+		if (outputSideOnly) {
+			findSubnetReferences(baseFst, refs) ;
+		} else {
+			findDependencies(baseFst, refs) ;
+		}
+		RtnDependencyGraph graph = new RtnDependencyGraph(refs) ;
+
+		// (use a for-loop so that the size can grow during iteration)
+		for (int i = 0; i < graph.size(); i++) {
+			String name = graph.getSubnet(i) ;
+
+			// Look up the subnet name in the symbol table.
+			Fst fst = (Fst) env.get(name) ;
+			if (fst == null) {
+				// any undefined subnet is an error, reported by the caller
+				graph.setUndefined(name) ;
+				continue ;
+			}
+			refs = new ArrayList<String>() ;
+			if (outputSideOnly) {
+				findSubnetReferences(fst, refs) ;
+			} else {
+				findDependencies(fst, refs) ;
+			}
+			graph.setDefined(name, fst, refs) ;
+		}
+		return graph ;
+	}
+
 	public Object visit(ASTnet_embed_rtn_subnets_func_call node, Object data) {
 
 		// evaluate the argument, a regexp, leaving an Fst object on the stack
@@ -10070,47 +10637,14 @@ class RuleSemanticParts {
 		Fst baseFst = (Fst)(stack.pop()) ;
 
 		// Check and list dependencies (the subnetworks)
-		// for the whole implied RTN, keep them in an ArrayList
-		// (HashSet would be convenient, but you can't iterate through it
-		// and add objects to it during the iteration).  HashSet would keep
-		// out duplicates automatically--it's a bit harder with ArrayList.
-
-		ArrayList<String> dependencies = new ArrayList<String>() ;
-
-		// find all subnets referred to by the baseFst
-		findDependencies(baseFst, dependencies) ;
-
-		// The order of objects in the ArrayList is constant and starts at index 0
-
-		// Now loop through the ArrayList of dependencies, which is a set (no
-		// duplicates) adding new dependencies as they appear
-		// (use a for-loop so that the size can grow during iteration--
-		// I tried to use HashSet, but this proved impossible)
-
-		String dep ;
-
-		// keep a set of dependencies that are not defined (any
-		// undefined dependency is an error)
-		HashSet<String> not_defined = new HashSet<String>() ;
-
-		for (int i = 0; i < dependencies.size(); i++) {
-			dep = dependencies.get(i) ;
-
-			// Look up the dependency name in the symbol table.
-			Fst fst = (Fst) env.get(dep) ;
-			if (fst == null) {
-				// add it to the set of undefined dependencies
-				not_defined.add(dep) ;
-				continue ;
-		    }
-			// find any additional dependencies of this dependency
-			findDependencies(fst, dependencies) ;
-		}
+		// for the whole implied RTN, once, in a dependency graph
+		// that is then handed on to EmbeddedRtn()
+		RtnDependencyGraph graph = buildRtnDependencyGraph(baseFst, false) ;
 
 		// if any dependencies are not defined, throw an exception
-		if (!not_defined.isEmpty()) {
+		if (!graph.getUndefined().isEmpty()) {
 			throw new UndefinedIdException("Undefined networks: " +
-				not_defined.toString()) ;
+				graph.getUndefined().toString()) ;
 		}
 
 		// Reaching here, the whole RTN grammar has been defined.
@@ -10124,7 +10658,7 @@ class RuleSemanticParts {
 		// EmbeddedRtn is not destructive; copies baseFst
 		// if it comes from a symbol table
 		Fst resultFst = lib.EmbeddedRtn(baseFst, 
-											dependencies,
+											graph,
 											"__SUBNETWORKS") ;
 		stack.push(resultFst) ;
 		return data ;
@@ -10149,7 +10683,6 @@ class RuleSemanticParts {
 				netIdName = symbolName.substring(symbolName.indexOf("$")) ;
 				// avoid duplicates
 				if (!subnetReferences.contains(netIdName)) {
-					System.out.println("New reference: " + netIdName) ;
 					subnetReferences.add(netIdName) ;
 				}
 			}
@@ -10178,53 +10711,22 @@ class RuleSemanticParts {
 			baseFstInt = -1000000 ;	// KRB: magic number
 		}
 		
-		// a HashSet would be more convenient, but you can't iterate through
-		// it and add to it
-		ArrayList<String> subnetReferences = new ArrayList<String>() ;
-
-		// find subnet references in the baseFst
-		findSubnetReferences(baseFst, subnetReferences) ;
-
-
-		// The order of objects in the ArrayList is constant and starts at index 0
-
-		// Now loop through the ArrayList of subnetReferences, adding new ones 
-		// as they appear
-		// (use a for-loop so that the size can grow during iteration--
-		// I tried to use HashSet and an Iterator, but this proved impossible)
-
-		// Collect a set of undefined networks (if any)
-		HashSet<String> not_defined = new HashSet<String>() ;
-
-		String subnetName ;
-		Fst subFst ;
-
-		for (int i = 0; i < subnetReferences.size(); i++) {
-			subnetName = subnetReferences.get(i) ;
-
-			// Look up the subnet name in the symbol table.
-			subFst = (Fst) env.get(subnetName) ;
-			if (subFst == null) {
-				// add it to the list
-				not_defined.add(subnetName) ;
-				continue ;
-		    }
-			// also look for subnet references in this subnet
-			findSubnetReferences(subFst, subnetReferences) ;
-		}
+		// find the subnet references in the baseFst, and then in the
+		// subnets, collecting them (once) in a dependency graph
+		RtnDependencyGraph graph = buildRtnDependencyGraph(baseFst, true) ;
 
 		// bail out here, with a useful Exception message, if any
 		// of the required subnets are not defined.
-		if (!not_defined.isEmpty()) {
+		if (!graph.getUndefined().isEmpty()) {
 			throw new UndefinedIdException("Failed RTN expansion, undefined networks: " +
-				not_defined.toString()) ;
+				graph.getUndefined().toString()) ;
 		}
 
 		// Reaching here, the whole RTN grammar has been defined.
 		// (All the required networks are available in the
 		// symbol table.)
 
-		Fst resultFst = lib.ExpandRtn(baseFst, baseFstInt, subnetReferences) ;
+		Fst resultFst = lib.ExpandRtn(baseFst, baseFstInt, graph) ;
 
 		stack.push(resultFst) ;
 		return data ;
@@ -10413,7 +10915,7 @@ class RuleSemanticParts {
 		// this visit method is not called
 		String net_func_id = node.getImage() ;
 		// value from environment should be a FuncValue object
-		Object obj = env.get(net_func_id) ;
+		Object obj = env.get(net_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -10428,7 +10930,7 @@ class RuleSemanticParts {
 		// this visit method is not called
 		String void_func_id = node.getImage() ;
 		// value from environment should be a FuncValue object
-		Object obj = env.get(void_func_id) ;
+		Object obj = env.get(void_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 			return data ;
@@ -10476,12 +10978,29 @@ class RuleSemanticParts {
 		//		function arguments
 		ArgCounts ac = (ArgCounts) stack.pop() ;
 
+		// opt-in memoization (see FuncCallMemo.java)
+		ArrayList<Object> memoKey = null ;
+		ArrayList<Fst> memoArgFsts = new ArrayList<Fst>() ;
+		if (memoizeFuncCalls(funcValue)) {
+			memoKey = getFuncCallMemo().makeKey(funcValue, ac, stack, 
+										memoSettings(), memoArgFsts) ;
+			if (memoKey != null) {
+				Object memoResult = getFuncCallMemo().lookup(memoKey, memoArgFsts) ;
+				if (memoResult != null) {
+					// leave the remembered result instead of the args
+					popArgs(ac) ;
+					stack.push(memoResult) ;
+					return data ;
+				}
+			}
+		}
+
 		// allocate a new Frame for the execution of the function call
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the Frame before rethrowing
 		} catch (RuntimeException re) {
@@ -10515,6 +11034,10 @@ class RuleSemanticParts {
 		} else if (!(obj instanceof FuncValue)) {
 			throw new FuncCallException("NetFunc valued function call returns incorrect type.") ;
 		}
+
+		if (memoKey != null) {
+			getFuncCallMemo().store(memoKey, memoArgFsts, obj) ;
+		}
 		return data ;
     }
     public Object visit(ASTvoid_func_func_call node, Object data) {
@@ -10534,11 +11057,11 @@ class RuleSemanticParts {
 		ArgCounts ac = (ArgCounts) stack.pop() ;
 
 		// allocate a new Frame for the execution of the function call
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the Frame before rethrowing
 		} catch (RuntimeException re) {
@@ -10623,7 +11146,7 @@ class RuleSemanticParts {
 		String net_list_id = node.getImage() ;
 
 		// with the String name, retrieve the NetList from the environment
-		NetList netList = (NetList) env.get(net_list_id) ;
+		NetList netList = (NetList) env.get(net_list_id, node.getLexicalAddress()) ;
 		if (netList != null) {
 			// The net_list_id was found in a symbol table.
 			//
@@ -10707,11 +11230,11 @@ class RuleSemanticParts {
 
 		//  Now allocate a new Frame for execution of this function call
 		//  (N.B. released below when the function returns)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -10761,7 +11284,7 @@ class RuleSemanticParts {
 		// this visit method is not called on the LHS
 		String net_list_func_id = node.getImage() ;
 		// value from environment should be a FuncValue object
-		Object obj = env.get(net_list_func_id) ;
+		Object obj = env.get(net_list_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -10828,7 +11351,7 @@ class RuleSemanticParts {
 		String num_list_id = node.getImage() ;
 
 		// with the String name, retrieve the NumList from the environment
-		NumList numList = (NumList) env.get(num_list_id) ;
+		NumList numList = (NumList) env.get(num_list_id, node.getLexicalAddress()) ;
 		if (numList != null) {
 			// The num_list_id was found in a symbol table.
 			//
@@ -11037,11 +11560,11 @@ class RuleSemanticParts {
 
 		//  Now allocate a new Frame for execution of this function call
 		//  (N.B. released below when the function returns)
-		env.allocateFrame(funcValue.getStaticFrame()) ;
+		env.allocateFrame(funcValue.getStaticFrame(), funcValue.getFrameLayout()) ;
 
 		// now bind the formal params to the arg values, in the new Frame
 		try {
-	    	bind_params(funcValue.getParamArrayList(), ac, data) ;
+	    	bind_params(funcValue, ac, data) ;
 			// may throw FuncCallException, a kind of RuntimeException
 			// catch all Exceptions and release the frame before rethrowing
 		} catch (RuntimeException re) {
@@ -11091,7 +11614,7 @@ class RuleSemanticParts {
 		// this visit method is not called on the LHS
 		String num_list_func_id = node.getImage() ;
 		// value from environment should be a FuncValue object
-		Object obj = env.get(num_list_func_id) ;
+		Object obj = env.get(num_list_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -11107,7 +11630,7 @@ class RuleSemanticParts {
 		// this visit method is not called on the LHS
 		String num_list_func_func_id = node.getImage() ;
 		// value from environment should be a FuncValue object
-		Object obj = env.get(num_list_func_func_id) ;
+		Object obj = env.get(num_list_func_func_id, node.getLexicalAddress()) ;
 		if (obj != null) {
 			stack.push(obj) ;
 		} else {
@@ -12221,6 +12744,8 @@ class RuleSemanticParts {
 
 			// display special JInternalFrame where the user can type 
 			//		in input for testing
+			// the window keeps the network after the statement is over
+			fst.setArenaExempt() ;
 			TestFstInternalFrame tfif = 
 				new TestFstInternalFrame(title, 
 						env, trInput, trOutput, symmap, fst, this, data) ;
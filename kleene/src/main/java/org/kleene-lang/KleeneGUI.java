@@ -235,6 +235,13 @@ public class KleeneGUI extends JFrame implements ActionListener {
 		//preferencesItem.setEnabled(false) ;
 		
 
+		// stops a long-running native operation (e.g. a runaway
+		// determinization) of the current statement; the statement fails
+		// with a NativeLimitException, and the session goes on
+		JMenuItem cancelItem = new JMenuItem("Cancel Operation") ;
+		cancelItem.setActionCommand("cancelOperation") ;
+		cancelItem.addActionListener(this) ;
+
 		JMenuItem quitItem = new JMenuItem("Quit") ;
 		// quitItem.setMnemonic(KeyEvent.VK_Q) ;
 		// When this item is selected, the actionPerformed() method
@@ -248,6 +255,8 @@ public class KleeneGUI extends JFrame implements ActionListener {
 		kleeneMenu.addSeparator() ;
 		kleeneMenu.add(preferencesItem) ;
 		kleeneMenu.addSeparator() ;
+		kleeneMenu.add(cancelItem) ;
+		kleeneMenu.addSeparator() ;
 		kleeneMenu.add(quitItem) ;
 
 		// Another pull-down menu
@@ -326,6 +335,8 @@ public class KleeneGUI extends JFrame implements ActionListener {
 
 		} else if ("newBackground".equals(actionCommand)) {
 			desktop.setImage(getNextBackgroundImageIcon()) ;
+		} else if ("cancelOperation".equals(actionCommand)) {
+			OpenFstLibraryWrapper.CancelNativeOperations() ;
 		} else if ("quit".equals(actionCommand)) {
 			quit() ;  // see below
 		} else if ("aboutKleene".equals(actionCommand)) {
@@ -0,0 +1,74 @@
+//	LexicalAddress.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	A LexicalAddress is cached on an AST id node (e.g. ASTnet_id,
+//	ASTnum_id, ASTnet_func_id) the first time the id is looked up in
+//	the Environment, so that later lookups (inside loops, or in later 
+//	calls of the same function) can go straight to the slot where the
+//	value is stored, without hashing the name and walking up the
+//	static chain of Frames.
+//
+//	The address records the FrameLayout and slot of the id in the
+//	current Frame.  If the id is free (non-local) in the current Frame,
+//	that slot holds a FreeVariable (or ExternValue) handle to the Frame 
+//	where the id is really bound, and the address also records the 
+//	FrameLayout and slot of that binding.  The FrameLayouts are checked
+//	on every use, and if they don't match (e.g. the same AST is being
+//	evaluated in a different function or block), Environment.get() falls
+//	back to the full lookup and re-resolves the address.
+
+public class LexicalAddress {
+	private FrameLayout layout ;		// null until resolved
+	private int slot ;
+	private FrameLayout bindingLayout ;	// null unless the id is free
+	private int bindingSlot ;
+
+	// Constructor
+	public LexicalAddress() {
+		clear() ;
+	}
+
+	public void set(FrameLayout lay, int s, FrameLayout blay, int bs) {
+		layout = lay ;
+		slot = s ;
+		bindingLayout = blay ;
+		bindingSlot = bs ;
+	}
+
+	public void clear() {
+		set(null, -1, null, -1) ;
+	}
+
+	public FrameLayout getLayout() {
+		return layout ;
+	}
+
+	public int getSlot() {
+		return slot ;
+	}
+
+	public FrameLayout getBindingLayout() {
+		return bindingLayout ;
+	}
+
+	public int getBindingSlot() {
+		return bindingSlot ;
+	}
+}
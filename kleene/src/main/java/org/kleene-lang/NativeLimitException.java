@@ -0,0 +1,31 @@
+//	NativeLimitException.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	Thrown (from the native code, see LimitGuard in kleeneopenfst.cc) when
+//	a native operation exceeds one of the limits #KLEENEmaxStates,
+//	#KLEENEmaxArcs and #KLEENEmaxMillis, or is cancelled.  The operands
+//	are left usable, so the session can go on.
+
+public class NativeLimitException extends KleeneInterpreterException {
+    NativeLimitException() {}
+    NativeLimitException(String msg) {
+		super(msg) ;  // retrieve with e.getMessage()
+    }
+}
@@ -87,23 +87,10 @@ public class OpenFstLibraryChecker {
 		if (!lib.IsUnweighted(b)) {
 			throw new FstPropertyException("The second argument to an fst difference must be unweighted.") ;
 		}
-		if (!lib.IsEpsilonFree(b)) {
-			// epsilon removal done in place on the network
-			// (work on a copy?)
-			lib.RmEpsilonInPlace(b) ;
-		}
-		if (!lib.IsIDeterministic(b)) {
-			// IDeterministic is for "input" deterministic,
-			// but this is an acceptor, so IDeterministic
-			// and ODeterministic are the same here.
-
-			// It has already been determined that this FST is 
-			// (Acceptor and !Weighted)
-			// so OpenFst Determinize() (i.e. sequentialize) can be called
-
-			lib.DeterminizeInPlace(b) ;
-			// KRB:  possibly call optimizeInPlace() here?
-		} 
+		// 3) and 4) are no longer done here, in place on the second
+		// arg (which is often a symtab value):  an epsilon-free,
+		// determinized and arc-sorted form of it is made, and cached
+		// on it, by OpenFstLibraryWrapper.PreparedSubtrahend()
 	}
 
 
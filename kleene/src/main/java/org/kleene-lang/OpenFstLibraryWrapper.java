@@ -28,6 +28,21 @@ import java.util.ArrayList ;
 import java.util.HashSet ;
 import java.util.Iterator ;
 import java.util.Arrays ;
+import java.util.Collections ;
+import java.util.Comparator ;
+import java.util.HashMap ;
+import java.util.List ;
+import java.util.concurrent.Callable ;
+import java.util.concurrent.ConcurrentLinkedQueue ;
+import java.util.concurrent.ExecutionException ;
+import java.util.concurrent.ExecutorService ;
+import java.util.concurrent.Executors ;
+import java.util.concurrent.Future ;
+import java.util.concurrent.ThreadFactory ;
+import java.io.BufferedReader ;
+import java.io.FileInputStream ;
+import java.io.InputStreamReader ;
+import java.io.IOException ;
 
 import com.ibm.icu.text.UCharacterIterator ;
 
@@ -128,13 +143,47 @@ public class OpenFstLibraryWrapper
 	private static native void concatIntoFirstNative(long first, long second) ;
 	private static native void  unionIntoFirstNative(long first, long second) ;
 
+	// n-ary versions, non-destructive, return a new network
+	private static native long concatFstsNative(long[] netPtrs) ;
+	private static native long  unionFstsNative(long[] netPtrs) ;
+	private static native long embedRtnNative(long[] netPtrs, int subnetworksLabel, int[] subnetLabels) ;
+
 	private static native long charRangeUnionFstNative(int firstCpv, int lastCpv) ;
 
-	private static native long differenceNative(long first, long second) ;
+	private static native long prepareSubtrahendNative(long fst) ;
+	private static native long differenceSortedNative(long first, long second) ;
 	private static native boolean isEquivalentNative(long first, long second, double delta) ;
 	private static native boolean isRandEquivalentNative(long first, long second, long npath, float delta, int seed, int path_length) ;
+	private static native long fingerprintNative(long fst) ;
+	private static native boolean fstsIdenticalNative(long first, long second) ;
+	private static native long canonicalHashNative(long fst) ;
 	private static native long intersectNative(long first, long second) ;
+	// non-destructive, safe to call from a worker thread (see
+	// IntersectFsts())
+	private static native long intersectOptimizeNative(long first, long second, 
+												boolean copyFirst,
+												boolean determinize,
+												boolean minimize,
+												boolean rmepsilon) ;
 	private static native long composeNative(long first, long second) ;
+	// for ComposeAsync(), DifferenceAsync() and CrossproductAsync(), on
+	// copy-on-write shares of the arguments
+	private static native long composeOptimizeNative(long first, long second,
+												int other_id, int other_nonid,
+												boolean determinize,
+												boolean minimize,
+												boolean rmepsilon) ;
+	private static native long differenceOptimizeNative(long first, long second,
+												boolean determinize,
+												boolean minimize,
+												boolean rmepsilon) ;
+	private static native long crossproductOptimizeNative(long first, long second,
+												int other_id, int other_nonid,
+												boolean determinize,
+												boolean minimize,
+												boolean rmepsilon) ;
+	private static native long crossproductNative(long first, long second,
+											int other_id, int other_nonid) ;
 
 	// take the argument fst and return the network for fst*
 	private static native void kleeneStarInPlaceNative(long first) ;
@@ -143,10 +192,13 @@ public class OpenFstLibraryWrapper
 	private static native void kleenePlusInPlaceNative(long first) ;
 
 	// implementing fst{n, m}
-	private static native long iterateLowHighNative(long fst, long low, long high) ;
+	private static native long iterateLowHighNative(long fst, long low, long high,
+											boolean determinize, boolean minimize,
+											boolean rmepsilon) ;
 
 	// boolean tests
 	private static native boolean isAcceptorNative(long fst) ;
+	private static native int propertyWordNative(long fst) ;
 	private static native boolean isSemanticAcceptorNative(long fst, int other_nonid) ;
 	private static native boolean isWeightedNative(long fst) ;
 	private static native boolean isUnweightedNative(long fst) ;
@@ -193,6 +245,12 @@ public class OpenFstLibraryWrapper
 
 	private static native void optimizeInPlaceNative(long fst, boolean
 	determinize, boolean minimize, boolean rmepsilon) ;
+
+	// resource limits and cancellation of the long-running native
+	// operations (see ApplyNativeLimits() and CancelNativeOperations())
+	private static native void setNativeLimitsNative(long maxStates, 
+											long maxArcs, long maxMillis) ;
+	private static native void cancelNativeOperationsNative() ;
 	// called routinely to "optimize" networks during the interpretation
 	// of regular expressions; the goal is to minimize the states and
 	// arcs of a network as much as possible, using Determinize() and
@@ -222,7 +280,16 @@ public class OpenFstLibraryWrapper
 	private static native void fstDumpNative(long fst) ;
 
 	private static native int  addStatesAndArcsNative(long dest, long src) ; 
-	private static native long rrGrammarLinkNative(long fst, int[] ikeys, int[] ivals) ; 
+	private static native long rrGrammarLinkNative(long[] netPtrs, int[] ikeys) ; 
+
+	// incremental construction of a minimal acyclic network 
+	// from sorted entries, see LexiconFromFile()
+	private static native long lexiconBuilderNewNative() ;
+	private static native int  lexiconBuilderAddNative(long builder, 
+											int[] upper, 
+											int[] lower) ;
+	private static native long lexiconBuilderFinishNative(long builder) ;
+	private static native void lexiconBuilderDeleteNative(long builder) ;
 	// ret. 0 for error, ret. 1 for successful return
 
 	private static native void cppDeleteNative(long fst) ;
@@ -267,6 +334,10 @@ public class OpenFstLibraryWrapper
 
 	private static native void expandOtherArcsNative(long fstp, 
 		int[] intArray, int other_id, int other_nonid) ;
+	// non-destructive, returns an expanded copy; safe to call from a
+	// worker thread (see promoteSigmaOtherNaryParallel())
+	private static native long expandOtherArcsCopyNative(long fstp, 
+		int[] intArray, int other_id, int other_nonid) ;
 
 	private static native void fixOtherInputBeforeComposeNative(long fstp,
 		int other_id, int other_nonid) ;
@@ -294,12 +365,14 @@ public class OpenFstLibraryWrapper
 	private static native int[] getLabelsNative(long fstp) ;
 	private static native int[] getOutputLabelsNative(long fstp) ;
 
-	private static native int hasCyclicDependenciesNative(int baseFstInt, 
-												int[] symInts, 
-												long[] netPtrs) ;
 	private static native long expandRtnNative(int baseFstInt, 
 												int[] symInts, 
 												long[] netPtrs) ;  
+	private static native long applyRtnNative(long[] netPtrs,
+												int[] refLabels,
+												int subnetworksLabel,
+												int[] inputCpvs,
+												int direction) ;
 
 	// old nativeSubstSymbolInPlace
 	private static native void substLabelInPlaceNative(long fstp, 
@@ -312,6 +385,20 @@ public class OpenFstLibraryWrapper
 													int hardEpsilonSymVal,
 													int other_id,
 													int other_nonid) ;
+	// compiles one alternation rule, or one group of parallel rules, in
+	// one call (see CompileRuleNative()); returns the containsOther
+	// (0 or 1) of the result followed by its sigma, and puts the result
+	// itself in resultPtr[0]
+	private static native int[] compileRuleNative(long[] netPtrs,
+												int[] netSigmas,
+												boolean[] netContainsOther,
+												int[] program,
+												int[] symbols,
+												int[] noPromote,
+												boolean determinize,
+												boolean minimize,
+												boolean rmepsilon,
+												long[] resultPtr) ;
 	// add diacritic insensitivity to a network
 	private static native int[] addDiacNative(long fstp, 
 										boolean input, 	// input/upper side
@@ -379,6 +466,23 @@ public class OpenFstLibraryWrapper
 		if (fstB.getIsRtn()) {
 			fstA.setIsRtn() ;
 		}
+		// the union of two exact sigmas is exact for operations
+		// (union, concat, reverse, iteration...) that neither lose
+		// nor invent labels
+		if (!fstB.getSigmaExact()) {
+			fstA.setSigmaExact(false) ;
+		}
+	}
+
+	// For a new Fst built by an operation that keeps exactly the labels of
+	// its argument(s), e.g. Reverse(), Determinize() and Iterate(); the
+	// sigma is then computed algebraically by addSigmaOther() rather than
+	// by a native scan of the labels.
+	private Fst newFstSigmaFrom(long ptr, Fst a) {
+		Fst resultFst = new Fst(ptr) ;
+		resultFst.setSigmaExact(true) ;
+		addSigmaOther(resultFst, a) ;
+		return resultFst ;
 	}
 
 	public boolean isSapRtnConventions() {
@@ -498,51 +602,267 @@ public class OpenFstLibraryWrapper
 
 		Fst returnFst = fstA ;  // by default, return fstA
 
-		if (returnFst.getContainsOther()) {
+		int[] intArray = otherSymbolsToAdd(fstA, sigmaB) ;
+		if (intArray != null) {
+
+			// then need to expandOtherArcs of fstA, 
+			//     or a copy of it
+			if (copyIfFromSymtab && fstA.getFromSymtab()) {
+				// then need to copy it, to preserve the
+				// integrity of the Fst in the symtab;
+				//   expand the copy
+				returnFst = CopyFst(fstA) ;
+			}
+
+			// add the new symbols to the sigma of the returnFst
+			for (int n = 0; n < intArray.length; n++) {
+				returnFst.getSigma().add(intArray[n]) ;
+			}
+			expandOtherArcsNative(mutatedPtr(returnFst), 
+					intArray,
+					symmap.getint(otherIdSym),
+					symmap.getint(otherNonIdSym)) ;
+		}  // else no need to change fstA at all
+		return returnFst ;
+	}
+
+	// the symbols (ints) in sigmaB that the OTHER of fstA has to be
+	// expanded to cover, as a simple int[] array for passing to a native
+	// (C++) function; null if there are none, or if fstA has no OTHER
+	private int[] otherSymbolsToAdd(Fst fstA, HashSet<Integer> sigmaB) {
+		if (!fstA.getContainsOther()) {
+			return null ;
+		}
+
+		// Get HashSet   sigmaB - sigmaA
+		HashSet<Integer> sigmaBnotInA = new HashSet<Integer>(sigmaB) ;
+		sigmaBnotInA.removeAll(fstA.getSigma()) ;
+
+		stripSpecialCharsOther(sigmaBnotInA) ; // sensitive to the RtnConventions
+
+		// leaves a HashSet with all the symbols (ints)
+		// in sigmaB that are not in fstA
+
+		if (sigmaBnotInA.isEmpty()) {
+			return null ;
+		}
+
+		int[] intArray = new int[sigmaBnotInA.size()] ;
+		int n = 0 ;
+		for (Iterator<Integer> iter = sigmaBnotInA.iterator(); iter.hasNext(); ) {
+			intArray[n++] = iter.next().intValue() ;
+		}
+		return intArray ;
+	}
+
+	// for the n-ary operations ConcatFsts() and UnionFsts():  promote the
+	// OTHER of each operand relative to the combined sigma of all the
+	// operands, which gives the same networks as the successive pairwise
+	// promotions done by Concat() and Union(); symtab Fsts are copied as
+	// usual, so the caller's list is not changed
+	private ArrayList<Fst> promoteSigmaOtherNary(ArrayList<Fst> fsts) {
+		HashSet<Integer> sigmaAll = new HashSet<Integer>() ;
+		for (int i = 0; i < fsts.size(); i++) {
+			sigmaAll.addAll(fsts.get(i).getSigma()) ;
+		}
+		ArrayList<Fst> promoted = new ArrayList<Fst>(fsts.size()) ;
+		for (int i = 0; i < fsts.size(); i++) {
+			promoted.add(promoteSigmaOther(fsts.get(i), sigmaAll)) ;
+		}
+		return promoted ;
+	}
+
+	// Worker pool for native operations on independent networks, e.g. 
+	// the OTHER-expansion of the subnetworks of an RTN.  The threads
+	// are daemons, so an idle pool never keeps the JVM alive.  Only
+	// the native work is done on the workers; symbol table, symmap
+	// and Fst bookkeeping stay on the calling (interpreter) thread.
+	// Determinization, composition, intersection, difference, 
+	// crossproduct, the n-ary union and concatenation, and RTN 
+	// expansion check, after each state they build, the optional limits
+	// #KLEENEmaxStates, #KLEENEmaxArcs (of the result) and 
+	// #KLEENEmaxMillis (of one operation); 0 or unset means no limit.
+	// An operation that exceeds a limit, or that is cancelled, throws a
+	// NativeLimitException and leaves its operands usable.  The settings
+	// are passed down to the native code before each statement (see 
+	// Kleene.jjt), and again whenever they change (see 
+	// refreshNativeLimits()).
+	public void ApplyNativeLimits() {
+		appliedMaxStates = limitSetting("#KLEENEmaxStates") ;
+		appliedMaxArcs   = limitSetting("#KLEENEmaxArcs") ;
+		appliedMaxMillis = limitSetting("#KLEENEmaxMillis") ;
+		setNativeLimitsNative(appliedMaxStates, appliedMaxArcs, appliedMaxMillis) ;
+	}
+
+	// the limits last passed down to the native code
+	private long appliedMaxStates = 0L ;
+	private long appliedMaxArcs   = 0L ;
+	private long appliedMaxMillis = 0L ;
+
+	// The settings can also be changed in the middle of a statement,
+	// e.g. by ^setNativeLimits() called in a function or in a sourced
+	// script, so they are looked at again just before each guarded
+	// native operation, and passed down only if they have changed
+	private void refreshNativeLimits() {
+		if (limitSetting("#KLEENEmaxStates") != appliedMaxStates
+				|| limitSetting("#KLEENEmaxArcs") != appliedMaxArcs
+				|| limitSetting("#KLEENEmaxMillis") != appliedMaxMillis) {
+			ApplyNativeLimits() ;
+		}
+	}
 
-			// may need OTHER-arc expansion
-			// Get HashSet   sigmaB - sigmaA
-			HashSet<Integer> sigmaBnotInA = new HashSet<Integer>(sigmaB) ;
-			sigmaBnotInA.removeAll(fstA.getSigma()) ;
+	private long limitSetting(String name) {
+		Object obj = env.get(name) ;
+		if (obj instanceof Long) {
+			return Math.max(0L, ((Long) obj).longValue()) ;
+		} else if (obj instanceof Double) {
+			return Math.max(0L, ((Double) obj).longValue()) ;
+		}
+		return 0L ;
+	}
 
-			stripSpecialCharsOther(sigmaBnotInA) ; // sensitive to the RtnConventions
+	// Stop the native operations now running, e.g. a runaway 
+	// determinization; may be called from any thread (e.g. the GUI).
+	public static void CancelNativeOperations() {
+		cancelNativeOperationsNative() ;
+	}
 
-			// leaves a HashSet with all the symbols (ints)
-			// in fstB that are not in fstA
+	private static ExecutorService workerPool = null ;
 
-			if (!(sigmaBnotInA.isEmpty())) {
+	private static synchronized ExecutorService getWorkerPool() {
+		if (workerPool == null) {
+			workerPool = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "kleene-worker") ;
+						t.setDaemon(true) ;
+						return t ;
+					}
+				}) ;
+		}
+		return workerPool ;
+	}
 
-				// then need to expandOtherArcs of fstA, 
-				//     or a copy of it
-				if (copyIfFromSymtab && fstA.getFromSymtab()) {
-					// then need to copy it, to preserve the
-					// integrity of the Fst in the symtab;
-					//   expand the copy
-					returnFst = CopyFst(fstA) ;
+	// run native jobs that each return a new network pointer; a single
+	// job is simply run on the calling thread
+	private long[] runNativeJobs(ArrayList<Callable<Long>> jobs) {
+		long[] results = new long[jobs.size()] ;
+		try {
+			if (jobs.size() == 1) {
+				results[0] = jobs.get(0).call().longValue() ;
+				return results ;
+			}
+			List<Future<Long>> futures = getWorkerPool().invokeAll(jobs) ;
+			ExecutionException failure = null ;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results[i] = futures.get(i).get().longValue() ;
+				} catch (ExecutionException ee) {
+					if (failure == null) {
+						failure = ee ;
+					}
 				}
+			}
+			if (failure != null) {
+				// e.g. one job exceeded a limit (NativeLimitException); 
+				// the results of the others are of no use now
+				for (int i = 0; i < results.length; i++) {
+					if (results[i] != 0L) {
+						InterpreterKleeneVisitor.jdelete(results[i]) ;
+					}
+				}
+				throw failure ;
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt() ;
+			throw new KleeneInterpreterException("Interrupted while waiting for native worker threads") ;
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof KleeneInterpreterException) {
+				throw (KleeneInterpreterException) ee.getCause() ;
+			}
+			throw new KleeneInterpreterException("Problem in a native worker thread: " + ee.getCause()) ;
+		} catch (KleeneInterpreterException kie) {
+			// from a job run inline
+			throw kie ;
+		} catch (Exception e) {
+			throw new KleeneInterpreterException("Problem in a native job: " + e) ;
+		}
+		return results ;
+	}
+
+	// Like promoteSigmaOtherNary(), but the OTHER-expansions of the
+	// operands, which are independent of each other, are done
+	// concurrently on the worker pool.  Each operand that needs
+	// expansion is replaced by a new, expanded Fst (the operand itself,
+	// symtab or not, is never modified); expandOtherArcsCopyNative
+	// builds the copy without going through the (not thread-safe)
+	// reference counting of the copy-on-write VectorFst copy.
+	// An Fst object that appears more than once is expanded once.
+	private ArrayList<Fst> promoteSigmaOtherNaryParallel(ArrayList<Fst> fsts) {
+		HashSet<Integer> sigmaAll = new HashSet<Integer>() ;
+		for (int i = 0; i < fsts.size(); i++) {
+			sigmaAll.addAll(fsts.get(i).getSigma()) ;
+		}
+
+		final int otherIdCpv = symmap.getint(otherIdSym) ;
+		final int otherNonIdCpv = symmap.getint(otherNonIdSym) ;
+
+		HashMap<Fst, Fst> promotedOf = new HashMap<Fst, Fst>() ;
+		ArrayList<Fst> pending = new ArrayList<Fst>() ;
+		ArrayList<int[]> pendingSymbols = new ArrayList<int[]>() ;
+		ArrayList<Callable<Long>> jobs = new ArrayList<Callable<Long>>() ;
+
+		for (int i = 0; i < fsts.size(); i++) {
+			Fst fst = fsts.get(i) ;
+			if (promotedOf.containsKey(fst)) {
+				continue ;
+			}
+			final int[] symbols = otherSymbolsToAdd(fst, sigmaAll) ;
+			if (symbols == null) {
+				promotedOf.put(fst, fst) ;
+				continue ;
+			}
+			final long ptr = fst.getFstPtr() ;
+			promotedOf.put(fst, null) ;	// filled in below
+			pending.add(fst) ;
+			pendingSymbols.add(symbols) ;
+			jobs.add(new Callable<Long>() {
+				public Long call() {
+					return new Long(expandOtherArcsCopyNative(ptr, symbols,
+											otherIdCpv, otherNonIdCpv)) ;
+				}
+			}) ;
+		}
 
-				// convert sigmaBnotInA into a simple int[] array
-				// for passing to native (C++) function
-				int[] intArray = new int[sigmaBnotInA.size()] ;
-				int n = 0 ;
-				for (Iterator<Integer> iter =
-					sigmaBnotInA.iterator();
-					iter.hasNext() ;
-					) {
-					intArray[n++] = iter.next().intValue() ;
+		if (!jobs.isEmpty()) {
+			long[] ptrs = runNativeJobs(jobs) ;
+			for (int j = 0; j < ptrs.length; j++) {
+				Fst fst = pending.get(j) ;
+				Fst expanded = new Fst(ptrs[j], false, true, fst.getSigma()) ;
+				int[] symbols = pendingSymbols.get(j) ;
+				for (int n = 0; n < symbols.length; n++) {
+					expanded.getSigma().add(symbols[n]) ;
 				}
+				expanded.setIsRtn(fst.getIsRtn()) ;
+				expanded.setSigmaExact(fst.getSigmaExact()) ;
+				promotedOf.put(fst, expanded) ;
+			}
+		}
 
-				// add the sigmaBnotInA symbols to the sigma
-				// of the returnFst
+		ArrayList<Fst> promoted = new ArrayList<Fst>(fsts.size()) ;
+		for (int i = 0; i < fsts.size(); i++) {
+			promoted.add(promotedOf.get(fsts.get(i))) ;
+		}
+		return promoted ;
+	}
 
-				returnFst.getSigma().addAll(sigmaBnotInA) ;
-				expandOtherArcsNative(returnFst.getFstPtr(), 
-						intArray,
-						symmap.getint(otherIdSym),
-						symmap.getint(otherNonIdSym)) ;
-			} 
-		}  // else no need to change fstA at all
-		return returnFst ;
+	private long[] fstPtrArray(ArrayList<Fst> fsts) {
+		long[] netPtrs = new long[fsts.size()] ;
+		for (int i = 0; i < fsts.size(); i++) {
+			netPtrs[i] = fsts.get(i).getFstPtr() ;
+		}
+		return netPtrs ;
 	}
 
 	private Fst fixOtherBeforeCompose(Fst fst, boolean inputProj) {
@@ -564,12 +884,12 @@ public class OpenFstLibraryWrapper
 
 			if (inputProj)  // input side
 				// native function
-				fixOtherInputBeforeComposeNative(returnFst.getFstPtr(),
+				fixOtherInputBeforeComposeNative(mutatedPtr(returnFst),
 						symmap.getint(otherIdSym),
 						symmap.getint(otherNonIdSym)) ;
 			else // do the same on the output side
 				// native function
-				fixOtherOutputBeforeComposeNative(returnFst.getFstPtr(),
+				fixOtherOutputBeforeComposeNative(mutatedPtr(returnFst),
 						symmap.getint(otherIdSym),
 						symmap.getint(otherNonIdSym)) ;
 		}
@@ -605,17 +925,23 @@ public class OpenFstLibraryWrapper
 	
 	public Fst EmptyLanguageFst() {
 		// return an empty Fst (empty language)
-		return new Fst(emptyLanguageFstNative()) ;
+		Fst resultFst = new Fst(emptyLanguageFstNative()) ;
+		resultFst.setSigmaExact(true) ;
+		return resultFst ;
 	}
 
 	public Fst EmptyLanguageWithStartStateFst() {
 		// return an empty Fst (empty language)
-		return new Fst(emptyLanguageWithStartStateFstNative()) ;
+		Fst resultFst = new Fst(emptyLanguageWithStartStateFstNative()) ;
+		resultFst.setSigmaExact(true) ;
+		return resultFst ;
 	}
 
 	public Fst EmptyStringLanguageFst() {
 		// language that contains only the empty string
-		return new Fst(emptyStringLanguageFstNative()) ;
+		Fst resultFst = new Fst(emptyStringLanguageFstNative()) ;
+		resultFst.setSigmaExact(true) ;
+		return resultFst ;
 	}
 
 	// used for notion of "any", Kleene syntax .
@@ -647,6 +973,7 @@ public class OpenFstLibraryWrapper
 				)
 			) ;
 		universalLanguageFst.setContainsOther(true) ;
+		universalLanguageFst.setSigmaExact(true) ;
 		return universalLanguageFst ;
 	}
 	
@@ -663,6 +990,7 @@ public class OpenFstLibraryWrapper
 				) 
 			) ;
 		universalRelationFst.setContainsOther(true) ;
+		universalRelationFst.setSigmaExact(true) ;
 		return universalRelationFst ;
 	}
 
@@ -699,6 +1027,8 @@ public class OpenFstLibraryWrapper
 				resultFst.setIsRtn(true) ;
 			}
 		}
+		// the sigma was computed from the one label pair
+		resultFst.setSigmaExact(true) ;
 		return resultFst ;
 	}
 
@@ -732,7 +1062,12 @@ public class OpenFstLibraryWrapper
 	}
 
 	public Fst CharRangeUnionFst(int cpvFirst, int cpvLast) {
-		return new Fst(charRangeUnionFstNative(cpvFirst, cpvLast)) ;
+		Fst resultFst = new Fst(charRangeUnionFstNative(cpvFirst, cpvLast)) ;
+		for (int cpv = cpvFirst; cpv <= cpvLast; cpv++) {
+			resultFst.getSigma().add(cpv) ;
+		}
+		resultFst.setSigmaExact(true) ;
+		return resultFst ;
 	}
 
 	// handles Strings without MCSs
@@ -770,6 +1105,7 @@ public class OpenFstLibraryWrapper
 		// there should be no possibility of OTHER
 
 		resultFst.setFstPtr(oneStringFstNative(intArray)) ;
+		resultFst.setSigmaExact(true) ;
 		return resultFst ;
 	}
 
@@ -784,48 +1120,60 @@ public class OpenFstLibraryWrapper
 		// there should be no possibility of OTHER
 
 		resultFst.setFstPtr(oneStringFstNative(cpvArray)) ;
+		resultFst.setSigmaExact(true) ;
 		return resultFst ;
 	}
 
-	public Fst EmbeddedRtn(Fst baseFst, ArrayList<String> dependencies, 
+	public Fst EmbeddedRtn(Fst baseFst, RtnDependencyGraph graph, 
 									String subnetworksPrefix) {
 		// currently subnetworksPrefix is "__SUBNETWORKS"
-		Fst subnetworksFst = OneArcFst(symmap.putsym(subnetworksPrefix)) ;
+		int subnetworksLabel = symmap.putsym(subnetworksPrefix) ;
 
 		String prefix = "__" ;	// for OpenFstRtnConventions
 		if (isSapRtnConventions()) {
 			prefix = "" ;
 		} 
-		
-		int last = dependencies.size() - 1 ;
-		boolean optimize ;
-		String dep ;
-		Fst subFst ;
 
-		Fst resultFst = baseFst ;
-		if (baseFst.getFromSymtab()) {
-			resultFst = CopyFst(baseFst) ;
+		// collect the base and all the subnetworks, and promote the
+		// OTHER of each of them just once, against the sigma of the
+		// whole collection (the __SUBNETWORKS and reference labels are
+		// special symbols, never considered when promoting OTHER);
+		// the promotions are independent, and are done concurrently,
+		// without modifying the arguments
+		ArrayList<String> dependencies = graph.getSubnets() ;
+		ArrayList<Fst> fsts = new ArrayList<Fst>(dependencies.size() + 1) ;
+		fsts.add(baseFst) ;
+		int[] subnetLabels = new int[dependencies.size()] ;
+		for (int i = 0; i < dependencies.size(); i++) {
+			String dep = dependencies.get(i) ;
+			fsts.add(graph.getFst(dep)) ;
+			subnetLabels[i] = symmap.putsym(prefix + dep) ;
 		}
 
-		for (int i = 0; i <= last; i++) {
-			dep = dependencies.get(i) ;
-
-			subFst = (Fst) env.get(dep) ;
+		ArrayList<Fst> promoted = promoteSigmaOtherNaryParallel(fsts) ;
 
-			// to handle OTHER
-			resultFst = promoteSigmaOther(resultFst, subFst) ;
-			subFst = promoteSigmaOther(subFst, resultFst) ;
-
-			Fst prefixedSub = Concat3Fsts(	
-										subnetworksFst,
-										OneArcFst(symmap.putsym(prefix + dep)),
-										subFst
-									) ;
-			// FstDump(prefixedSub) ;
+		// one native pass links the base and all the prefixed
+		// subnetworks (the arguments are not modified)
+		long ptr = embedRtnNative(fstPtrArray(promoted), subnetworksLabel, subnetLabels) ;
+		if (ptr == 0L) {
+			throw new KleeneInterpreterException("Problem in EmbeddedRtn; couldn't access the array of network pointers") ;
+		}
 
-			optimize = (i == last) ? true : false ;
-			resultFst = UnionIntoFirstInPlace(resultFst, prefixedSub, optimize) ;
+		Fst resultFst = new Fst(ptr) ;
+		resultFst.setSigmaExact(true) ;
+		for (int i = 0; i < promoted.size(); i++) {
+			addSigmaOther(resultFst, promoted.get(i)) ;
+		}
+		resultFst.getSigma().add(subnetworksLabel) ;
+		for (int i = 0; i < subnetLabels.length; i++) {
+			resultFst.getSigma().add(subnetLabels[i]) ;
+		}
+		// as for OneArcFst(), a '$foo' reference label makes an RTN
+		// under the SAP conventions
+		if (prefix.length() == 0 && subnetLabels.length > 0) {
+			resultFst.setIsRtn(true) ;
 		}
+		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
 	
@@ -859,12 +1207,14 @@ public class OpenFstLibraryWrapper
 
 	// semiring generalization point (float weight)
 	public void AddArc(Fst a, int src, int i, int o, float weight, int dest) {
-		addArcNative(a.getFstPtr(), src, i, o, weight, dest) ;
+		a.setSigmaExact(false) ;	// labels added behind the back of the sigma
+		addArcNative(mutatedPtr(a), src, i, o, weight, dest) ;
 	}
 
 	// semiring generalization point (weight)
 	public void AddArcNeutralWeight(Fst a, int src, int i, int o, int dest) {
-		addArcNeutralWeightNative(a.getFstPtr(), src, i, o, dest) ;
+		a.setSigmaExact(false) ;	// labels added behind the back of the sigma
+		addArcNeutralWeightNative(mutatedPtr(a), src, i, o, dest) ;
 	}
 
 	// add cases to a network (i.e. relax the existing casing)
@@ -873,7 +1223,7 @@ public class OpenFstLibraryWrapper
 										boolean add_lc, // add lc for existing uc
 										boolean input, 	// input/upper side
 										boolean output) {
-		int[] symbolsAdded = addCaseNative(a.getFstPtr(), all, add_uc, add_lc, input, output) ;
+		int[] symbolsAdded = addCaseNative(mutatedPtr(a), all, add_uc, add_lc, input, output) ;
 		// symbolsAdded, an array of int code point values, should represent defined
 		// Unicode symbols--add them to the symmap here
 		for (int i = 0; i < symbolsAdded.length; i++) {
@@ -881,14 +1231,16 @@ public class OpenFstLibraryWrapper
 		}
 
 		promoteSigmaOther(a, symbolsAdded) ;
+		a.setSigmaExact(false) ;
 		CorrectSigmaOtherInPlace(a) ;
 		OptimizeInPlace(a) ;
 	}
 
 	// add diacritic insensitivity to a network
 	public void AddDiacInPlace(Fst a, boolean input, boolean output) {
-		int[] symbolsAdded = addDiacNative(a.getFstPtr(), input, output) ;
+		int[] symbolsAdded = addDiacNative(mutatedPtr(a), input, output) ;
 		promoteSigmaOther(a, symbolsAdded) ;
+		a.setSigmaExact(false) ;
 		CorrectSigmaOtherInPlace(a) ;
 		OptimizeInPlace(a) ;
 	}
@@ -905,7 +1257,7 @@ public class OpenFstLibraryWrapper
 
 	public void AddStates(Fst a, int numStates) {
 		// used when building a network from XML
-		addStatesNative(a.getFstPtr(), numStates) ;
+		addStatesNative(mutatedPtr(a), numStates) ;
 	}
 
 	public int AddStatesAndArcsInPlace(Fst a, Fst b) {
@@ -916,12 +1268,143 @@ public class OpenFstLibraryWrapper
 
 		// addStatesAndArcsNative is a modification of the 
 		//	Concat algorithm
-		int newStartStateB = addStatesAndArcsNative(a.getFstPtr(), b.getFstPtr()) ;
+		int newStartStateB = addStatesAndArcsNative(mutatedPtr(a), b.getFstPtr()) ;
 		addSigmaOther(a, b) ;
 		return newStartStateB ;
 	}
 
+	// true if RTNs are to be applied directly, without expansion 
+	// (see ApplyRtnToOneString()); off by default
+	private boolean applyRtnEnabled() {
+		Object obj = env.get("#KLEENEapplyRtn") ;
+		return (obj instanceof Long || obj instanceof Double) && isTrue(obj) ;
+	}
+
+	// "__$foo" for OpenFstRtnConventions, "$foo" for SapRtnConventions
+	private String rtnReferencePrefix() {
+		return isSapRtnConventions() ? "$" : "__$" ;
+	}
+
+	// add to refs the names ("$foo") of the subnetworks referred to
+	// in the sigma of fst (cf. findDependencies() in the interpreter)
+	private void addRtnReferences(Fst fst, ArrayList<String> refs) {
+		String prefix = rtnReferencePrefix() ;
+		for (Iterator<Integer> iter = fst.getSigma().iterator(); iter.hasNext(); ) {
+			String symbolName = symmap.getsym(iter.next().intValue()) ;
+			if (symbolName != null && symbolName.startsWith(prefix)) {
+				String netIdName = symbolName.substring(symbolName.indexOf("$")) ;
+				if (!refs.contains(netIdName)) {
+					refs.add(netIdName) ;
+				}
+			}
+		}
+	}
+
+	// true iff fst is an RTN built by EmbeddedRtn()
+	private boolean isEmbeddedRtn(Fst fst) {
+		return symmap.containsKey("__SUBNETWORKS")
+			&& fst.getSigma().contains(symmap.getint("__SUBNETWORKS")) ;
+	}
+
+	private Fst promoteForApply(Fst fst, Fst inputFst) {
+		// see the comments in ApplyToOneString()
+		if (fst.getContainsOther()) {
+			fst = CopyFst(fst) ;
+		}
+		return promoteSigmaOther(fst, inputFst) ;
+	}
+
+	// Apply an RTN to one string without expanding it:  testFst is
+	// either a base network whose references to subnetworks are
+	// looked up in the symbol table (as for $^expandRtn()) or an 
+	// embedded RTN (as built by $^embedRtnSubnets()).  The RTN is run
+	// directly, with a call stack, in native code (applyRtnNative),
+	// building only the part of the expansion actually reached by the 
+	// input, so big grammars can be applied without the memory needed
+	// for the Replace() expansion.  The expansion is built within the
+	// limits #KLEENEmaxStates, #KLEENEmaxArcs and #KLEENEmaxMillis 
+	// (see ApplyNativeLimits()), which also stop a left-recursive 
+	// grammar.  Returns null if testFst does not refer to any 
+	// subnetworks.
+	public Fst ApplyRtnToOneString(Fst testFst, int[] cpvArray, int direction) {
+		boolean embedded = isEmbeddedRtn(testFst) ;
+		ArrayList<String> deps = new ArrayList<String>() ;
+		addRtnReferences(testFst, deps) ;
+		if (deps.isEmpty()) {
+			return null ;
+		}
+
+		Fst inputFst = FstFromCpvArray(cpvArray) ;
+		ArrayList<Fst> nets = new ArrayList<Fst>() ;
+		nets.add(promoteForApply(testFst, inputFst)) ;
+
+		if (!embedded) {
+			// collect the subnetworks, and their own references 
+			// (the list grows during the loop)
+			HashSet<String> not_defined = new HashSet<String>() ;
+			for (int i = 0; i < deps.size(); i++) {
+				Fst subFst = (Fst) env.get(deps.get(i)) ;
+				if (subFst == null) {
+					not_defined.add(deps.get(i)) ;
+					continue ;
+				}
+				addRtnReferences(subFst, deps) ;
+			}
+			if (!not_defined.isEmpty()) {
+				throw new UndefinedIdException("Failed RTN application, undefined networks: " +
+					not_defined.toString()) ;
+			}
+		}
+
+		// for both conventions, the reference symbol in the base network
+		// is also the label of the subnetwork in an embedded RTN
+		String prefix = isSapRtnConventions() ? "" : "__" ;
+		int[] refLabels = new int[deps.size()] ;
+		HashSet<Integer> sigma = new HashSet<Integer>(nets.get(0).getSigma()) ;
+		boolean containsOther = nets.get(0).getContainsOther() ;
+		for (int i = 0; i < deps.size(); i++) {
+			refLabels[i] = symmap.getint(prefix + deps.get(i)) ;
+			if (!embedded) {
+				Fst subFst = promoteForApply((Fst) env.get(deps.get(i)), inputFst) ;
+				nets.add(subFst) ;
+				sigma.addAll(subFst.getSigma()) ;
+				containsOther = containsOther || subFst.getContainsOther() ;
+			}
+		}
+		int subnetworksLabel = -1 ;
+		if (embedded) {
+			subnetworksLabel = symmap.getint("__SUBNETWORKS") ;
+		}
+
+		// throws NativeLimitException if the limits are exceeded
+		refreshNativeLimits() ;
+		long resultPtr = applyRtnNative(fstPtrArray(nets), refLabels, 
+							subnetworksLabel, cpvArray, direction) ;
+
+		// the result is an acceptor of the other side; the calls
+		// and the __SUBNETWORKS paths leave no labels in it
+		Fst resultFst = new Fst(resultPtr) ;
+		for (int i = 0; i < refLabels.length; i++) {
+			sigma.remove(refLabels[i]) ;
+		}
+		sigma.remove(subnetworksLabel) ;
+		resultFst.setSigma(sigma) ;
+		resultFst.setContainsOther(containsOther) ;
+		CorrectSigmaOtherInPlace(resultFst) ;
+		ConnectInPlace(resultFst) ;	// calls OptimizeInPlace
+		return resultFst ;
+	}
+
 	public Fst ApplyToOneString(Fst testFst, int[] cpvArray, int direction) {
+		// with #KLEENEapplyRtn, RTNs are applied directly, without 
+		// expansion
+		if (applyRtnEnabled()) {
+			Fst rtnResult = ApplyRtnToOneString(testFst, cpvArray, direction) ;
+			if (rtnResult != null) {
+				return rtnResult ;
+			}
+		}
+
 		checker.ApplyToOneString(testFst) ;  // cannot be an SAP RTN
 		// direction 0 means generate
 		// direction 1 means analyze
@@ -978,7 +1461,9 @@ public class OpenFstLibraryWrapper
 		// promote the sigma of a, relative to b
 		a = promoteSigmaOther(a, b) ;
 
-		deleteOtherArcsInPlaceNative(a.getFstPtr(), symmap.getint(otherIdSym), symmap.getint(otherNonIdSym)) ;
+		deleteOtherArcsInPlaceNative(mutatedPtr(a), symmap.getint(otherIdSym), symmap.getint(otherNonIdSym)) ;
+		// the OTHER arcs are gone, but containsOther is still set
+		a.setSigmaExact(false) ;
 		OptimizeInPlace(a) ;
 	}
 
@@ -1018,16 +1503,21 @@ public class OpenFstLibraryWrapper
 		// them to OTHER_NONID
 		b = fixOtherBeforeCompose(b, inputProj) ;
 
+		if (asyncEnabled()) {
+			return ComposeAsync(a, b) ;
+		}
+
 		// The required sorting of the Input arcs of the second arg 
-		// (or the output arcs of the first arg) is now done in 
-		// C++ in the native function.
+		// (or the output arcs of the first arg) is done, only
+		// when needed, by sortForCompose().
 		// Note that the native Compose() function is non-destructive and 
 		//		returns a ptr to a completely new OpenFst (C++/Native) object.
 
-		Fst resultFst = new Fst(composeNative(a.getFstPtr(), 
+		refreshNativeLimits() ;
+		Fst resultFst = new Fst(composeNative(sortForCompose(a, b).getFstPtr(), 
 										b.getFstPtr())) ;
 		// native
-		fixOtherAfterComposeNative(resultFst.getFstPtr(),
+		fixOtherAfterComposeNative(mutatedPtr(resultFst),
 			symmap.getint(otherIdSym), symmap.getint(otherNonIdSym)) ;
 
 		addSigma(resultFst, a) ;
@@ -1039,6 +1529,156 @@ public class OpenFstLibraryWrapper
 		return resultFst ;
 	}
 
+	// Asynchronous operations (opt-in, #KLEENEasync = 1):  Compose(),
+	// Intersect(), Difference() and Crossproduct() submit their native
+	// work (the product, Connect() and optimization, in one call) to
+	// the worker pool and return at once a "pending" placeholder Fst
+	// (see Fst.java), so the interpreter goes on with the rest of the
+	// statement, or with the next statements, e.g. compiling $b while
+	// $a = $x _o_ $y is still being composed.  Any access to the
+	// placeholder's network or sigma waits for the result; the sigma is
+	// then corrected on the accessing thread.
+	//
+	// The worker gets copy-on-write shares of the operands, taken here
+	// in constant time, so the operands can go on being used (and
+	// copied, modified or garbage-collected) meanwhile:  a change to an
+	// operand copies its (shared) implementation first, leaving the
+	// worker's share alone.  The reference count of a shared
+	// implementation is not thread-safe, so the shares are taken, and
+	// released (when the result arrives), on the interpreter thread,
+	// and the worker only reads them; any copying that the operation
+	// needs is done natively, on the worker (see composeOptimizeNative).
+	private boolean asyncEnabled() {
+		Object obj = env.get("#KLEENEasync") ;
+		return (obj instanceof Long || obj instanceof Double) && isTrue(obj) ;
+	}
+
+	// a copy-on-write share of fst for a worker thread; never released
+	// by the statement arena, as the worker may still be reading it
+	// when the statement is over
+	private Fst shareForWorker(Fst fst) {
+		Fst share = new Fst(copyFstNative(fst.getFstPtr())) ;
+		share.setArenaExempt() ;
+		return share ;
+	}
+
+	// submit job and make resultFst (whose sigma has been set) the
+	// placeholder for its result; when the result arrives, the shares
+	// are released and the sigma is corrected
+	private void setPendingResult(final Fst resultFst, Callable<Long> job,
+									final Fst first, final Fst second) {
+		Future<Long> future = getWorkerPool().submit(job) ;
+		resultFst.setPending(future, new Runnable() {
+			public void run() {
+				first.release() ;
+				second.release() ;
+				CorrectSigmaOtherInPlace(resultFst) ;
+			}
+		}) ;
+	}
+
+	// a and b have already been promoted and fixed for composition
+	// (see Compose())
+	private Fst ComposeAsync(Fst a, Fst b) {
+		final Fst first = shareForWorker(a) ;
+		final Fst second = shareForWorker(b) ;
+		final int otherId = symmap.getint(otherIdSym) ;
+		final int otherNonId = symmap.getint(otherNonIdSym) ;
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+		refreshNativeLimits() ;
+
+		Fst resultFst = new Fst(0L) ;
+		addSigma(resultFst, a) ;
+		addSigma(resultFst, b) ;
+		setPendingResult(resultFst, new Callable<Long>() {
+			public Long call() {
+				// first and second, referred to here, stay alive
+				// (not finalized) until the job is done
+				return new Long(composeOptimizeNative(first.getFstPtr(), 
+											second.getFstPtr(),
+											otherId, otherNonId,
+											determinize, minimize, rmepsilon)) ;
+			}
+		}, first, second) ;
+		return resultFst ;
+	}
+
+	// a and b have already been promoted (see Intersect())
+	private Fst IntersectAsync(Fst a, Fst b) {
+		final Fst first = shareForWorker(a) ;
+		final Fst second = shareForWorker(b) ;
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+		refreshNativeLimits() ;
+
+		// as in Intersect(), the sigma of a; if the intersection turns
+		// out to be empty, the correction clears it again
+		Fst resultFst = new Fst(0L) ;
+		addSigmaOther(resultFst, a) ;
+		setPendingResult(resultFst, new Callable<Long>() {
+			public Long call() {
+				// both are shares, so both are copied natively
+				return new Long(intersectOptimizeNative(first.getFstPtr(), 
+											second.getFstPtr(), true,
+											determinize, minimize, rmepsilon)) ;
+			}
+		}, first, second) ;
+		return resultFst ;
+	}
+
+	// a and b have already been promoted, and subtrahend is the 
+	// prepared form of b (see Difference())
+	private Fst DifferenceAsync(Fst a, Fst subtrahend) {
+		final Fst first = shareForWorker(a) ;
+		final Fst second = shareForWorker(subtrahend) ;
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+		refreshNativeLimits() ;
+
+		// as in Difference(), the sigma of a; cleared again by the
+		// correction if the difference is empty
+		Fst resultFst = new Fst(0L) ;
+		addSigmaOther(resultFst, a) ;
+		setPendingResult(resultFst, new Callable<Long>() {
+			public Long call() {
+				return new Long(differenceOptimizeNative(first.getFstPtr(), 
+											second.getFstPtr(),
+											determinize, minimize, rmepsilon)) ;
+			}
+		}, first, second) ;
+		return resultFst ;
+	}
+
+	// a and b are semantic acceptors and have already been promoted
+	// (see Crossproduct())
+	private Fst CrossproductAsync(Fst a, Fst b) {
+		final Fst first = shareForWorker(a) ;
+		final Fst second = shareForWorker(b) ;
+		final int otherId = symmap.getint(otherIdSym) ;
+		final int otherNonId = symmap.getint(otherNonIdSym) ;
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+		refreshNativeLimits() ;
+
+		Fst resultFst = new Fst(0L) ;
+		addSigmaOther(resultFst, a) ;
+		addSigmaOther(resultFst, b) ;
+		setPendingResult(resultFst, new Callable<Long>() {
+			public Long call() {
+				return new Long(crossproductOptimizeNative(first.getFstPtr(), 
+											second.getFstPtr(),
+											otherId, otherNonId,
+											determinize, minimize, rmepsilon)) ;
+			}
+		}, first, second) ;
+		return resultFst ;
+	}
+
 	public Fst Compose3Fsts(Fst one, Fst two, Fst three) {
 		return Compose(
 					Compose(one, two),
@@ -1063,7 +1703,7 @@ public class OpenFstLibraryWrapper
 		resultFst = promoteSigmaOther(resultFst, b) ;
 		b = promoteSigmaOther(b, resultFst) ;
 
-		concatIntoFirstNative(resultFst.getFstPtr(), b.getFstPtr()) ;
+		concatIntoFirstNative(mutatedPtr(resultFst), b.getFstPtr()) ;
 		addSigmaOther(resultFst, b) ;
 		if (optimize) {
 			OptimizeInPlace(resultFst) ;
@@ -1085,7 +1725,7 @@ public class OpenFstLibraryWrapper
 		a = promoteSigmaOther(a, b) ;
 		b = promoteSigmaOther(b, a) ;
 
-		concatIntoFirstNative(a.getFstPtr(), b.getFstPtr()) ;
+		concatIntoFirstNative(mutatedPtr(a), b.getFstPtr()) ;
 		addSigmaOther(a, b) ;
 		if (optimize) {
 			OptimizeInPlace(a) ;
@@ -1094,6 +1734,37 @@ public class OpenFstLibraryWrapper
 		return a ;
 	}
 
+	// n-ary concatenation of a list of networks (e.g. the daughters of
+	// a concatenation_exp, or a NetList), built natively in one pass and
+	// optimized (once) at the end; the arguments are not modified
+	public Fst ConcatFsts(ArrayList<Fst> fsts) {
+		return ConcatFsts(fsts, true) ;
+	}
+
+	public Fst ConcatFsts(ArrayList<Fst> fsts, boolean optimize) {
+		for (int i = 1; i < fsts.size(); i++) {
+			checker.Concat(fsts.get(i - 1), fsts.get(i)) ;
+		}
+
+		ArrayList<Fst> promoted = promoteSigmaOtherNary(fsts) ;
+
+		refreshNativeLimits() ;
+		long ptr = concatFstsNative(fstPtrArray(promoted)) ;
+		if (ptr == 0L) {
+			throw new KleeneInterpreterException("Problem in ConcatFsts; couldn't access the array of network pointers") ;
+		}
+
+		Fst resultFst = new Fst(ptr) ;
+		resultFst.setSigmaExact(true) ;
+		for (int i = 0; i < promoted.size(); i++) {
+			addSigmaOther(resultFst, promoted.get(i)) ;
+		}
+		if (optimize) {
+			OptimizeInPlace(resultFst) ;
+		}
+		return resultFst ;
+	}
+
 	public Fst Concat3Fsts(Fst one, Fst two, Fst three) {
 		// native concatenation is destructive of the first argument
 		Fst resultFst = EmptyStringLanguageFst() ;
@@ -1139,7 +1810,7 @@ public class OpenFstLibraryWrapper
 	}
 
 	public void ConnectInPlace(Fst a) {
-		connectInPlaceNative(a.getFstPtr()) ;
+		connectInPlaceNative(mutatedPtr(a)) ;
 		OptimizeInPlace(a) ;
 	}
 
@@ -1148,7 +1819,7 @@ public class OpenFstLibraryWrapper
 										boolean to_lc,	// convert uc to lc
 										boolean input, 
 										boolean output) {
-		int[] symbolsAdded = convertCaseNative(a.getFstPtr(), all, to_uc, 
+		int[] symbolsAdded = convertCaseNative(mutatedPtr(a), all, to_uc, 
 												to_lc, input, output) ;
 		// symbolsAdded, an array of int code point values, should represent defined
 		// Unicode symbols--add them to the symmap here
@@ -1157,24 +1828,45 @@ public class OpenFstLibraryWrapper
 		}
 
 		promoteSigmaOther(a, symbolsAdded) ;
+		a.setSigmaExact(false) ;
 		CorrectSigmaOtherInPlace(a) ;
 		OptimizeInPlace(a) ;
 		
 	}
 
-	// copy a whole Fst, with sigma and OTHER
+	// copy a whole Fst, with sigma and OTHER;
+	// the native copy is copy-on-write (see copyFstNative in
+	// kleeneopenfst.cc), so the states and arcs are really duplicated
+	// only when one of the two Fsts is later modified
 	public Fst CopyFst(Fst fst) {
+		DrainDeferredDeletes() ;
 		Fst newFst = new Fst(copyFstNative(fst.getFstPtr()), 
 			false,  // not from the symbol table
 			fst.getContainsOther(), 
 			fst.getSigma()) ;
+		newFst.setIsRtn(fst.getIsRtn()) ;
+		newFst.setSigmaExact(fst.getSigmaExact()) ;
+		// the copy has the same (known) properties
+		newFst.setProperties(fst.getKnownProperties(), fst.getPropertyWord()) ;
+		if (fst.getHasCanonicalHash()) {
+			newFst.setCanonicalHash(fst.getCanonicalHash()) ;
+		}
 		return newFst ;
 	}
 
-	// In the interpreter, called only from ASTregexp;
+	// In the interpreter, called (via correctSigmaOther()) from ASTregexp
+	// and after operations that modify labels in place, but only when the
+	// sigma is not already known to be exact--see addSigmaOther();
 	// for OTHER, still needs work to detect cases where
 	// a symbol c always acts like OTHER and can be conflated with
 	// OTHER
+	void CorrectSigmaOtherIfNeeded(Fst fst) {
+		if (!fst.getSigmaExact()) {
+			CorrectSigmaOtherInPlace(fst) ;
+		}
+	}
+
+	// the full native scan of the labels; always done here
 	void CorrectSigmaOtherInPlace(Fst fst) {
 		// native function to retrieve all actual labels,
 		// including OTHER_ID and OTHER_NONID
@@ -1223,16 +1915,41 @@ public class OpenFstLibraryWrapper
 				}
 			}
 		}
+		fst.setSigmaExact(true) ;
 	}
 
 	public static void CppDelete(long aptr) {
 		// called from jdelete method in the interpreter,
-		// which is called from the finalize() method in
-		// Fst.java, does self-deletion of OpenFst networks
-		// when they are garbage-collected
+		// which is called from Fst.release(), on the interpreter
+		// thread
 		cppDeleteNative(aptr) ;
 	}
 
+	// The networks of Fsts that are garbage-collected.  finalize() runs
+	// on the JVM's Finalizer thread, but a network may share its
+	// copy-on-write implementation (see CopyFst()) with others, and
+	// OpenFst's reference count is not thread-safe:  deleting the
+	// network there, while the interpreter thread copies or modifies
+	// another share, could free the implementation twice or never.
+	// So finalize() only queues the pointer, and the interpreter
+	// thread does the deletes, in CopyFst() and before each statement.
+	private static final ConcurrentLinkedQueue<Long> deferredDeletes = 
+									new ConcurrentLinkedQueue<Long>() ;
+
+	public static void CppDeleteLater(long aptr) {
+		if (aptr != 0L) {
+			deferredDeletes.add(new Long(aptr)) ;
+		}
+	}
+
+	// call on the interpreter thread only
+	public static void DrainDeferredDeletes() {
+		Long ptr ;
+		while ((ptr = deferredDeletes.poll()) != null) {
+			cppDeleteNative(ptr.longValue()) ;
+		}
+	}
+
 	public Fst Crossproduct(Fst a, Fst b) {
 		checker.Crossproduct(a, b) ;  // semiring and acceptor check
 
@@ -1249,9 +1966,10 @@ public class OpenFstLibraryWrapper
 					if (a.getFromSymtab()) {
 						resultFst = CopyFst(a) ;
 					}
-					changeOutputToEpsilonInPlaceNative(resultFst.getFstPtr(), 
+					changeOutputToEpsilonInPlaceNative(mutatedPtr(resultFst), 
 													symmap.getint(otherIdSym), 
 													symmap.getint(otherNonIdSym)) ;
+					resultFst.setSigmaExact(false) ;
 				} else if (isTrivialRtnRefCrossproduct(a, b)) {
 					resultFst = a ;
 				} else {
@@ -1263,14 +1981,41 @@ public class OpenFstLibraryWrapper
 					if (b.getFromSymtab()) {
 						resultFst = CopyFst(b) ;
 					}
-					changeInputToEpsilonInPlaceNative(resultFst.getFstPtr(),
+					changeInputToEpsilonInPlaceNative(mutatedPtr(resultFst),
 													symmap.getint(otherIdSym) ,
 													symmap.getint(otherNonIdSym)) ;
+					resultFst.setSigmaExact(false) ;
 				} else {
 					throw new FstPropertyException("In SapRtnConventions, crossproduct A:B is illegal when B contains references to subnets, and A is not the empty string language.") ;
 				}
 			}
+		} else if (IsSemanticAcceptor(a) && IsSemanticAcceptor(b)) {
+			// the usual case:  build the crossproduct directly as a
+			// product of the two acceptors (see crossproductNative in 
+			// kleeneopenfst.cc), avoiding two compositions through the
+			// universal relation, whose OTHER arcs would have to be
+			// expanded to all the pairs of symbols in the two sigmas
+
+			// to handle OTHER
+			a = promoteSigmaOther(a, b) ;
+			b = promoteSigmaOther(b, a) ;
+
+			if (asyncEnabled()) {
+				return CrossproductAsync(a, b) ;
+			}
+
+			refreshNativeLimits() ;
+			resultFst = new Fst(crossproductNative(a.getFstPtr(), 
+										b.getFstPtr(),
+										symmap.getint(otherIdSym),
+										symmap.getint(otherNonIdSym))) ;
+			resultFst.setSigmaExact(true) ;
+			addSigmaOther(resultFst, a) ;
+			addSigmaOther(resultFst, b) ;
+			ConnectInPlace(resultFst) ;	// calls OptimizeInPlace
 		} else {
+			// an arg contains OTHER_NONID:OTHER_NONID, so only looks like
+			// an acceptor to OpenFst; 
 			// Crossproduct is computed as
 			// a _o_ UniversalRelation _o_ b
 			resultFst = Compose3Fsts(a, UniversalRelationFst(), b) ;
@@ -1280,26 +2025,90 @@ public class OpenFstLibraryWrapper
 
 	public Fst Determinize(Fst a) {
 		// non-destructive
-		Fst resultFst = new Fst(determinizeNative(a.getFstPtr())) ;
-		addSigmaOther(resultFst, a) ;
+		refreshNativeLimits() ;
+		Fst resultFst = newFstSigmaFrom(determinizeNative(a.getFstPtr()), a) ;
 		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
 
+	// for Difference():  the epsilon-free, deterministic form of the 
+	// (unweighted acceptor) network b, with its OTHER promoted relative
+	// to sigmaA and its arcs sorted by input label.  It is cached on b,
+	// keyed by the symbols that OTHER is promoted to, and re-used until
+	// b is modified in place; so a network subtracted repeatedly from
+	// networks with new symbols is promoted and prepared once, not once
+	// per call.  b itself is never changed.
+	Fst PreparedSubtrahend(Fst b, HashSet<Integer> sigmaA) {
+		HashSet<Integer> promotedTo = new HashSet<Integer>() ;
+		int[] added = otherSymbolsToAdd(b, sigmaA) ;
+		if (added != null) {
+			for (int i = 0; i < added.length; i++) {
+				promotedTo.add(new Integer(added[i])) ;
+			}
+		}
+
+		Fst prepared = b.getPreparedSubtrahend(promotedTo) ;
+		if (prepared != null) {
+			return prepared ;
+		}
+
+		Fst a = b ;
+		if (!promotedTo.isEmpty()) {
+			// promote a (cheap, copy-on-write) copy
+			a = promoteSigmaOther(CopyFst(b), promotedTo, false) ;
+		}
+		prepared = prepareSubtrahend(a) ;
+		b.setPreparedSubtrahend(promotedTo, prepared) ;
+		return prepared ;
+	}
+
+	// the prepared form of a; a is its own prepared form if it already
+	// qualifies
+	private Fst prepareSubtrahend(Fst a) {
+		Fst prepared ;
+		if (IsEpsilonFree(a) && IsIDeterministic(a)) {
+			// only the sorting (if any) is needed; a may be held by the
+			// user (e.g. a symtab value), so even its arc order is left
+			// alone, and a (cheap, copy-on-write) copy is sorted instead
+			if (hasProperty(a, PROP_ILABEL_SORTED)) {
+				prepared = a ;
+			} else {
+				prepared = CopyFst(a) ;
+				sortInputArcs(prepared) ;
+			}
+			return prepared ;
+		}
+		long ptr = prepareSubtrahendNative(a.getFstPtr()) ;
+		if (ptr == 0L) {
+			prepared = a ;
+		} else {
+			prepared = new Fst(ptr) ;
+		}
+		return prepared ;
+	}
+
 	public void DeterminizeInPlace(Fst a) {
-		determinizeInPlaceNative(a.getFstPtr()) ;
+		refreshNativeLimits() ;
+		determinizeInPlaceNative(mutatedPtr(a)) ;
 	}
 
 	public Fst Difference(Fst a, Fst b) {
 		checker.Difference(a, b) ;
 
 		a = promoteSigmaOther(a, b) ;
-		b = promoteSigmaOther(b, a) ;
 
-		// The required sorting of Input arcs on the second arg (or the
-		// output arcs of the first arg) is now done in C++ in the 
-		// native function
-		Fst resultFst = new Fst(differenceNative(a.getFstPtr(), b.getFstPtr())) ; 
+		// b itself is not changed, nor promoted here:  its promoted,
+		// epsilon-free, deterministic, arc-sorted form is made once and
+		// cached on it, so a network that is subtracted repeatedly 
+		// (typically a symtab value) is promoted and prepared only once
+		// for each set of new symbols
+		Fst subtrahend = PreparedSubtrahend(b, a.getSigma()) ;
+		if (asyncEnabled()) {
+			return DifferenceAsync(a, subtrahend) ;
+		}
+		refreshNativeLimits() ;
+		Fst resultFst = new Fst(differenceSortedNative(a.getFstPtr(), 
+										subtrahend.getFstPtr())) ; 
 
 		// N.B. difference can leave the result empty
 		if (!isEmptyLanguageNative(resultFst.getFstPtr())) {
@@ -1316,6 +2125,17 @@ public class OpenFstLibraryWrapper
 	public boolean Equivalent(Fst a, Fst b, double delta) {
 		checker.Equivalent(a, b) ;  // must be acceptors
 
+		// cheap rejection:  acceptors with different canonical
+		// hashes have different languages, so they can't be 
+		// equivalent; equal hashes still need the full test.
+		// Only when both hashes are already cached:  computing one
+		// costs a determinization and minimization, more than it
+		// saves when the networks do turn out to be equivalent
+		if (a.getHasCanonicalHash() && b.getHasCanonicalHash()
+			&& a.getCanonicalHash() != b.getCanonicalHash()) {
+			return false ;
+		}
+
 		return isEquivalentNative(a.getFstPtr(), b.getFstPtr(), delta) ;
 	}
 
@@ -1326,61 +2146,76 @@ public class OpenFstLibraryWrapper
 		return isRandEquivalentNative(a.getFstPtr(), b.getFstPtr(), npath, delta, seed, path_length) ;
 	}
 
-	public int Epsilon = 0 ;// in OpenFst, 0 wired in as epsilon
-
-	public Fst ExpandRtn(Fst baseFst, int baseFstInt, ArrayList<String> subnetReferences) {
-		// Loop through the list of dependencies (the names
-		// of all the networks in the implied grammar) collecting
-		// information to be sent to a native function that checks
-		// for (illegal) cyclic dependencies
-
-		// create long[] arrays for easy passing to native C++
-		int[]  symInts = new int[subnetReferences.size() + 1] ;
-		long[] netPtrs = new long[subnetReferences.size() + 1] ;
-
-		String subnetName ;
-		Fst subFst ;
+	// a 64-bit hash of the structure of the network, as stored;
+	// identical networks have the same fingerprint
+	public long Fingerprint(Fst a) {
+		return fingerprintNative(a.getFstPtr()) ;
+	}
 
-		int arraySize = subnetReferences.size() ;
-		for (int i = 0; i < arraySize; i++) {
-			subnetName = subnetReferences.get(i) ;	// a String like "$foo"
-			subFst = (Fst) env.get(subnetName) ;	// look it up
-			symInts[i] = symmap.getint("__" + subnetName) ;
-			netPtrs[i] = (long) subFst.getFstPtr() ;
+	// a 64-bit hash of the unweighted language of the network (for a
+	// transducer, the language of label pairs), independent of how
+	// the network happens to be built--see canonicalHashNative() in
+	// kleeneopenfst.cc.  It costs a determinization and minimization
+	// of a copy, so it is cached on the Fst and re-used until the
+	// network is modified in place
+	public long CanonicalHash(Fst a) {
+		if (a.getHasCanonicalHash()) {
+			return a.getCanonicalHash() ;
 		}
-		// now add the information for the baseFst
-		symInts[arraySize] = baseFstInt ;
+		long hash = canonicalHashNative(a.getFstPtr()) ;
+		a.setCanonicalHash(hash) ;
+		return hash ;
+	}
 
-		netPtrs[arraySize] = (long) baseFst.getFstPtr() ;
+	// true iff the two networks are identical as stored (not just
+	// equivalent), and have the same sigma
+	public boolean Identical(Fst a, Fst b) {
+		return a.getContainsOther() == b.getContainsOther()
+			&& a.getSigma().equals(b.getSigma())
+			&& fstsIdenticalNative(a.getFstPtr(), b.getFstPtr()) ;
+	}
 
-		int cycRet = HasCyclicDependencies(baseFstInt, symInts, netPtrs) ; 
+	public int Epsilon = 0 ;// in OpenFst, 0 wired in as epsilon
 
-		if (cycRet == -1) {
-			throw new KleeneInterpreterException("Failed RTN expansion, problem allocating storage in HasCyclicDependencies.") ;
-		} else if (cycRet == 1) {
+	public Fst ExpandRtn(Fst baseFst, int baseFstInt, RtnDependencyGraph graph) {
+		// the dependency graph (the names of all the networks in the
+		// implied grammar, with their references) has been built once
+		// by the interpreter; (illegal) cyclic dependencies are found
+		// directly in it, without building a native ReplaceFst just
+		// for the check
+		if (graph.hasCycle()) {
 			throw new KleeneInterpreterException("Failed RTN expansion, cyclic dependencies.") ;
 		}
 
 		// else no cyclic dependencies, proceed with the expansion
-		Fst resultFst = baseFst ;
 
-		if (baseFst.getFromSymtab()) {
-			resultFst = CopyFst(baseFst) ;
-			netPtrs[arraySize] = resultFst.getFstPtr() ;
-		}
+		// the subnetworks, then the baseFst; the OTHER of each is 
+		// promoted against the sigma of the whole grammar, concurrently
+		// (the networks are independent), without modifying the
+		// arguments
+		ArrayList<String> subnetReferences = graph.getSubnets() ;
+		int arraySize = subnetReferences.size() ;
+		int[] symInts = new int[arraySize + 1] ;
+		ArrayList<Fst> fsts = new ArrayList<Fst>(arraySize + 1) ;
 
 		for (int i = 0; i < arraySize; i++) {
-			subnetName = subnetReferences.get(i) ;	// a String like "$foo"
-			subFst = (Fst) env.get(subnetName) ;	// look it up
+			String subnetName = subnetReferences.get(i) ;	// a String like "$foo"
+			symInts[i] = symmap.getint("__" + subnetName) ;
+			fsts.add(graph.getFst(subnetName)) ;
+		}
+		// now add the information for the baseFst
+		symInts[arraySize] = baseFstInt ;
+		fsts.add(baseFst) ;
 
-			// to handle OTHER
-			resultFst = promoteSigmaOther(resultFst, subFst) ;
-			subFst = promoteSigmaOther(subFst, resultFst) ;
+		ArrayList<Fst> promoted = promoteSigmaOtherNaryParallel(fsts) ;
 
-			addSigmaOther(resultFst, subFst) ;
+		// only the final stitching is serial
+		refreshNativeLimits() ;
+		Fst resultFst = new Fst(expandRtnNative(baseFstInt, symInts, fstPtrArray(promoted))) ;
+		for (int i = 0; i < promoted.size(); i++) {
+			addSigmaOther(resultFst, promoted.get(i)) ;
 		}
-
-		resultFst.setFstPtr(expandRtnNative(baseFstInt, symInts, netPtrs)) ;
+		resultFst.setSigmaExact(false) ;
 
 		// strips references like __$foo; works only for
 		// OpenFstRtnConventions at present
@@ -1443,15 +2278,11 @@ public class OpenFstLibraryWrapper
 		return sb.toString() ;
 	}
 		
-	private int HasCyclicDependencies(int baseFstInt, int[] symInts, long[] netPtrs) {
-		return hasCyclicDependenciesNative(baseFstInt, symInts, netPtrs) ;
-	}
-
 	// see also OutputProjectionInPlace()
 	// forces optimization, used to extract a projection
 	// after application (e.g. in 'test' in the GUI)
 	public void InputProjectionInPlaceOptimize(Fst a) {
-		inputProjectionInPlaceNative(a.getFstPtr()) ;
+		inputProjectionInPlaceNative(mutatedPtr(a)) ;
 		CorrectSigmaOtherInPlace(a) ;
 		OptimizeInPlaceForce(a) ;
 	}
@@ -1464,7 +2295,7 @@ public class OpenFstLibraryWrapper
 			a = CopyFst(a) ;
 		}
 
-		inputProjectionFixOtherInPlaceNative(a.getFstPtr(), 
+		inputProjectionFixOtherInPlaceNative(mutatedPtr(a), 
 			symmap.putsym(otherIdSym), symmap.putsym(otherNonIdSym)) ;
 		CorrectSigmaOtherInPlace(a) ;
 
@@ -1473,7 +2304,7 @@ public class OpenFstLibraryWrapper
 	}
 
 	public void InputProjectionInPlace(Fst a) {
-		inputProjectionFixOtherInPlaceNative(a.getFstPtr(), 
+		inputProjectionFixOtherInPlaceNative(mutatedPtr(a), 
 			symmap.putsym(otherIdSym), symmap.putsym(otherNonIdSym)) ;
 		CorrectSigmaOtherInPlace(a) ;
 
@@ -1486,13 +2317,19 @@ public class OpenFstLibraryWrapper
 		a = promoteSigmaOther(a, b) ;
 		b = promoteSigmaOther(b, a) ;
 
+		if (asyncEnabled()) {
+			return IntersectAsync(a, b) ;
+		}
+
 		// The required sorting of the Input arcs of the second arg 
-		// (or the output arcs of the first arg) is now done in 
-		// C++ in the native function.
+		// (or the output arcs of the first arg) is done, only
+		// when needed, by sortForCompose().
 		// Note that intersect() is non-destructive and returns a 
 		//		ptr to a completely new OpenFst (C++/Native) object.
 
-		Fst resultFst = new Fst(intersectNative(a.getFstPtr(), b.getFstPtr())) ;
+		refreshNativeLimits() ;
+		Fst resultFst = new Fst(intersectNative(sortForCompose(a, b).getFstPtr(), 
+										b.getFstPtr())) ;
 
 		// N.B. intersect can leave the result empty
 		if (!isEmptyLanguageNative(resultFst.getFstPtr())) {
@@ -1507,6 +2344,269 @@ public class OpenFstLibraryWrapper
 		return resultFst ;
 	}
 
+	// n-ary intersection, e.g. of the Constraints of a group of parallel
+	// rules.  Rather than intersecting each operand, in source order,
+	// into a growing accumulator, the operands are combined as a
+	// balanced tree, smallest first:  in each round the networks are
+	// sorted by size (states + arcs) and intersected in pairs, and the
+	// pairwise intersections of a round, which are independent, run
+	// concurrently on the worker pool.  OTHER is promoted just once,
+	// against the sigma of all the operands, so the intermediate
+	// results need no further promotion.  The arguments are not
+	// modified; an empty list yields the universal language.
+	public Fst IntersectFsts(ArrayList<Fst> fsts) {
+		if (fsts.isEmpty()) {
+			return UniversalLanguageFst() ;
+		}
+		for (int i = 1; i < fsts.size(); i++) {
+			checker.Intersect(fsts.get(i - 1), fsts.get(i)) ;
+		}
+
+		ArrayList<Fst> round = promoteSigmaOtherNaryParallel(fsts) ;
+
+		HashSet<Integer> sigmaAll = new HashSet<Integer>() ;
+		boolean containsOther = false ;
+		for (int i = 0; i < round.size(); i++) {
+			sigmaAll.addAll(round.get(i).getSigma()) ;
+			if (round.get(i).getContainsOther()) {
+				containsOther = true ;
+			}
+		}
+
+		if (round.size() == 1) {
+			Fst resultFst = CopyFst(round.get(0)) ;
+			OptimizeInPlace(resultFst) ;
+			return resultFst ;
+		}
+
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+		refreshNativeLimits() ;
+
+		// the results of earlier rounds, which no other Fst can share
+		HashSet<Fst> intermediate = new HashSet<Fst>() ;
+
+		while (round.size() > 1) {
+			// smallest first
+			final HashMap<Fst, Integer> size = new HashMap<Fst, Integer>() ;
+			for (int i = 0; i < round.size(); i++) {
+				Fst fst = round.get(i) ;
+				size.put(fst, new Integer(NumStates(fst) + NumArcs(fst))) ;
+			}
+			Collections.sort(round, new Comparator<Fst>() {
+				public int compare(Fst a, Fst b) {
+					return size.get(a).compareTo(size.get(b)) ;
+				}
+			}) ;
+
+			ArrayList<Callable<Long>> jobs = new ArrayList<Callable<Long>>() ;
+			for (int i = 0; i + 1 < round.size(); i += 2) {
+				final long first = round.get(i).getFstPtr() ;
+				final long second = round.get(i + 1).getFstPtr() ;
+				final boolean copyFirst = !intermediate.contains(round.get(i)) ;
+				jobs.add(new Callable<Long>() {
+					public Long call() {
+						return new Long(intersectOptimizeNative(first, second, copyFirst,
+											determinize, minimize, rmepsilon)) ;
+					}
+				}) ;
+			}
+			long[] ptrs = runNativeJobs(jobs) ;
+
+			ArrayList<Fst> next = new ArrayList<Fst>(ptrs.length + 1) ;
+			for (int j = 0; j < ptrs.length; j++) {
+				Fst resultFst = new Fst(ptrs[j], false, containsOther, sigmaAll) ;
+				intermediate.add(resultFst) ;
+				next.add(resultFst) ;
+			}
+			if (round.size() % 2 == 1) {
+				// the largest goes on to the next round as it is
+				next.add(round.get(round.size() - 1)) ;
+			}
+			round = next ;
+		}
+
+		// as in Intersect(), the sigma is reduced to the labels that
+		// survive the intersection
+		Fst resultFst = round.get(0) ;
+		CorrectSigmaOtherInPlace(resultFst) ;
+		return resultFst ;
+	}
+
+	// pairwise intersection:  returns the list of Intersect(as[i], bs[i]),
+	// e.g. the clean-ups of the contexts of all the instantiations of a
+	// where-clause rule.  The pairs are independent of each other, so
+	// (after the checks and the promotion of OTHER, done here on the
+	// interpreter thread) they are intersected concurrently on the
+	// worker pool.  The arguments are not modified.
+	public ArrayList<Fst> IntersectPairs(ArrayList<Fst> as, ArrayList<Fst> bs) {
+		ArrayList<Fst> firsts = new ArrayList<Fst>(as.size()) ;
+		ArrayList<Callable<Long>> jobs = new ArrayList<Callable<Long>>() ;
+
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+
+		for (int i = 0; i < as.size(); i++) {
+			Fst a = as.get(i) ;
+			Fst b = bs.get(i) ;
+			checker.Intersect(a, b) ;
+
+			a = promoteSigmaOther(a, b) ;
+			b = promoteSigmaOther(b, a) ;
+			firsts.add(a) ;
+
+			final long first = a.getFstPtr() ;
+			final long second = b.getFstPtr() ;
+			jobs.add(new Callable<Long>() {
+				public Long call() {
+					// the operands may be shared, so both are copied
+					return new Long(intersectOptimizeNative(first, second, true,
+										determinize, minimize, rmepsilon)) ;
+				}
+			}) ;
+		}
+
+		ArrayList<Fst> results = new ArrayList<Fst>(jobs.size()) ;
+		if (jobs.isEmpty()) {
+			return results ;
+		}
+		refreshNativeLimits() ;
+		long[] ptrs = runNativeJobs(jobs) ;
+
+		for (int j = 0; j < ptrs.length; j++) {
+			Fst resultFst = new Fst(ptrs[j]) ;
+			// as in Intersect()
+			if (!isEmptyLanguageNative(resultFst.getFstPtr())) {
+				addSigmaOther(resultFst, firsts.get(j)) ;
+			}
+			CorrectSigmaOtherInPlace(resultFst) ;
+			results.add(resultFst) ;
+		}
+		return results ;
+	}
+
+	// pairwise composition:  returns the list of Compose(as[i], bs[i]);
+	// like IntersectPairs(), the compositions are run concurrently
+	public ArrayList<Fst> ComposePairs(ArrayList<Fst> as, ArrayList<Fst> bs) {
+		// static constants (used in call to fixOtherBeforeCompose()
+		final boolean inputProj = true ;
+		final boolean outputProj = false ;
+
+		ArrayList<Fst> firsts = new ArrayList<Fst>(as.size()) ;
+		ArrayList<Fst> seconds = new ArrayList<Fst>(as.size()) ;
+		ArrayList<Callable<Long>> jobs = new ArrayList<Callable<Long>>() ;
+
+		final int otherId = symmap.getint(otherIdSym) ;
+		final int otherNonId = symmap.getint(otherNonIdSym) ;
+		final boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		final boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		final boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+
+		for (int i = 0; i < as.size(); i++) {
+			Fst a = as.get(i) ;
+			Fst b = bs.get(i) ;
+			checker.Compose(a, b) ;
+
+			// as in Compose()
+			a = promoteSigmaOther(a, b) ;
+			b = promoteSigmaOther(b, a) ;
+			a = fixOtherBeforeCompose(a, outputProj) ;
+			b = fixOtherBeforeCompose(b, inputProj) ;
+			firsts.add(a) ;
+			seconds.add(b) ;
+
+			final long first = a.getFstPtr() ;
+			final long second = b.getFstPtr() ;
+			jobs.add(new Callable<Long>() {
+				public Long call() {
+					return new Long(composeOptimizeNative(first, second,
+										otherId, otherNonId,
+										determinize, minimize, rmepsilon)) ;
+				}
+			}) ;
+		}
+
+		ArrayList<Fst> results = new ArrayList<Fst>(jobs.size()) ;
+		if (jobs.isEmpty()) {
+			return results ;
+		}
+		refreshNativeLimits() ;
+		long[] ptrs = runNativeJobs(jobs) ;
+
+		for (int j = 0; j < ptrs.length; j++) {
+			Fst resultFst = new Fst(ptrs[j]) ;
+			addSigma(resultFst, firsts.get(j)) ;
+			addSigma(resultFst, seconds.get(j)) ;
+			CorrectSigmaOtherInPlace(resultFst) ;
+			results.add(resultFst) ;
+		}
+		return results ;
+	}
+
+	// The native compilation of alternation rules, see 
+	// InterpreterKleeneVisitor.compileRuleSemanticPartsNative() and the
+	// rule compiler in kleeneopenfst.cc:  nets are the networks that the
+	// program refers to (by index), symbols the special symbols of the
+	// rule compiler.
+	// The native code does the promotion of OTHER itself, but which
+	// symbols are never promoted (see stripSpecialCharsOther()) depends
+	// on their names, so those are picked out here, among all the 
+	// symbols that can turn up in the sigmas.
+	public Fst CompileRuleNative(ArrayList<Fst> nets, int[] program, int[] symbols) {
+		long[] netPtrs = fstPtrArray(nets) ;
+		boolean[] netContainsOther = new boolean[nets.size()] ;
+		ArrayList<Integer> sigmas = new ArrayList<Integer>() ;
+		HashSet<Integer> noPromote = new HashSet<Integer>() ;
+
+		for (int i = 0; i < nets.size(); i++) {
+			HashSet<Integer> sigma = nets.get(i).getSigma() ;
+			netContainsOther[i] = nets.get(i).getContainsOther() ;
+			// the size, then the symbols
+			sigmas.add(new Integer(sigma.size())) ;
+			sigmas.addAll(sigma) ;
+			noPromote.addAll(sigma) ;
+		}
+		for (int i = 0; i < symbols.length; i++) {
+			noPromote.add(new Integer(symbols[i])) ;
+		}
+		HashSet<Integer> promotable = new HashSet<Integer>(noPromote) ;
+		stripSpecialCharsOther(promotable) ;
+		noPromote.removeAll(promotable) ;
+
+		int[] netSigmas = new int[sigmas.size()] ;
+		for (int i = 0; i < netSigmas.length; i++) {
+			netSigmas[i] = sigmas.get(i).intValue() ;
+		}
+		int[] noPromoteArray = new int[noPromote.size()] ;
+		int n = 0 ;
+		for (Iterator<Integer> iter = noPromote.iterator(); iter.hasNext(); ) {
+			noPromoteArray[n++] = iter.next().intValue() ;
+		}
+
+		boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		boolean minimize    = isTrue(env.get("#KLEENEminimize")) ;
+		boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
+
+		long[] resultPtr = new long[1] ;
+		refreshNativeLimits() ;
+		int[] sigmaOut = compileRuleNative(netPtrs, netSigmas, netContainsOther,
+										program, symbols, noPromoteArray,
+										determinize, minimize, rmepsilon,
+										resultPtr) ;
+
+		Fst resultFst = new Fst(resultPtr[0]) ;
+		resultFst.setContainsOther(sigmaOut[0] != 0) ;
+		for (int j = 1; j < sigmaOut.length; j++) {
+			resultFst.getSigma().add(sigmaOut[j]) ;
+		}
+		// the native code has already corrected the sigma; this also
+		// sets isRtn and makes sure that the labels are in the symmap
+		CorrectSigmaOtherInPlace(resultFst) ;
+		return resultFst ;
+	}
+
 	public Fst Intersect3Fsts(Fst one, Fst two, Fst three) {
 		Fst resultFst = Intersect(
 								Intersect(one, two),
@@ -1516,16 +2616,17 @@ public class OpenFstLibraryWrapper
 	}
 
 	public void InvertInPlace(Fst a) {
-		invertInPlaceNative(a.getFstPtr()) ;
+		invertInPlaceNative(mutatedPtr(a)) ;
 	}
 
 	public void FlattenInPlace(Fst a, int hardEpsilonSymVal, int otherIdSymVal, int otherNonIdSymVal) {
-		flattenInPlaceNative(a.getFstPtr(), hardEpsilonSymVal, otherIdSymVal, otherNonIdSymVal) ;
+		flattenInPlaceNative(mutatedPtr(a), hardEpsilonSymVal, otherIdSymVal, otherNonIdSymVal) ;
+		a.setSigmaExact(false) ;
 	}
 	
 	public void Flatten4RuleInPlace(Fst a, int hardEpsilonSymVal) {
 		Fst result = a ;
-		flatten4RuleInPlaceNative(result.getFstPtr(), hardEpsilonSymVal) ;
+		flatten4RuleInPlaceNative(mutatedPtr(result), hardEpsilonSymVal) ;
 		// Flatten4Rule is used for transducer rules, instead of Hulden's
 		// Align2, which uses Intersect.  And Intersect calls the following
 		// two clean-up functions.
@@ -1538,7 +2639,7 @@ public class OpenFstLibraryWrapper
 		if (a.getFromSymtab()) {
 			result = CopyFst(a) ;
 		}
-		flatten4RuleInPlaceNative(result.getFstPtr(), hardEpsilonSymVal) ;
+		flatten4RuleInPlaceNative(mutatedPtr(result), hardEpsilonSymVal) ;
 		// Flatten4Rule is used for transducer rules, instead of Hulden's
 		// Align2, which uses Intersect.  And Intersect calls the following
 		// two clean-up functions.
@@ -1547,14 +2648,126 @@ public class OpenFstLibraryWrapper
 		return result ;
 	}
 
+	// Bits of the property word cached on each Fst.  PROP_BASIC is the
+	// set computed together, in one native call, by propertyWordNative
+	// (see kleeneopenfst.cc, which must agree on the values); the
+	// others are computed separately, when first asked for.
+	// A clear bit means that the (known) property does not hold, e.g.
+	// IsUnweighted() is !PROP_WEIGHTED, IsAcyclic() is !PROP_CYCLIC
+	private static final int PROP_ACCEPTOR =		0x0001 ;
+	private static final int PROP_IDETERMINISTIC =	0x0002 ;
+	private static final int PROP_ODETERMINISTIC =	0x0004 ;
+	private static final int PROP_NO_EPSILONS =		0x0008 ;
+	private static final int PROP_WEIGHTED =		0x0010 ;
+	private static final int PROP_CYCLIC =			0x0020 ;
+	private static final int PROP_STRING =			0x0040 ;
+	private static final int PROP_ILABEL_SORTED =	0x0080 ;
+	private static final int PROP_OLABEL_SORTED =	0x0100 ;
+	private static final int PROP_BASIC =			0x01ff ;
+	private static final int PROP_UBOUNDED =		0x1000 ;
+	private static final int PROP_LBOUNDED =		0x2000 ;
+
+	// Many operations (and the checker, before each operation) ask
+	// about properties of their operands, typically the same ones
+	// over and over for the same symtab networks; the answers are
+	// cached on the Fst, and remain valid until the network is changed
+	// in place (see mutatedPtr())
+	private boolean hasProperty(Fst a, int prop) {
+		if ((a.getKnownProperties() & prop) == 0) {
+			if ((prop & PROP_BASIC) != 0) {
+				a.setProperties(PROP_BASIC, 
+								propertyWordNative(a.getFstPtr())) ;
+			} else if (prop == PROP_UBOUNDED) {
+				// acyclic networks are trivially bounded
+				a.setProperties(PROP_UBOUNDED, 
+					(!hasProperty(a, PROP_CYCLIC) 
+					 || isUBoundedNative(a.getFstPtr())) ? PROP_UBOUNDED : 0) ;
+			} else if (prop == PROP_LBOUNDED) {
+				a.setProperties(PROP_LBOUNDED, 
+					(!hasProperty(a, PROP_CYCLIC) 
+					 || isLBoundedNative(a.getFstPtr())) ? PROP_LBOUNDED : 0) ;
+			}
+		}
+		return (a.getPropertyWord() & prop) != 0 ;
+	}
+
+	// Sort the arcs of a by input (output) label, in place, unless they
+	// are known to be sorted already.  The order of the arcs doesn't 
+	// affect the language, or anything else cached on the Fst, so
+	// this is allowed even on symtab networks and is not counted as a
+	// mutation--only the sortedness bits of the property word change
+	// (for a transducer, sorting one side unsorts the other side).
+	private void sortInputArcs(Fst a) {
+		if (!hasProperty(a, PROP_ILABEL_SORTED)) {
+			sortInputArcsInPlaceNative(a.getFstPtr()) ;
+			a.setProperties(PROP_ILABEL_SORTED | PROP_OLABEL_SORTED,
+				hasProperty(a, PROP_ACCEPTOR) 
+					? (PROP_ILABEL_SORTED | PROP_OLABEL_SORTED)
+					: PROP_ILABEL_SORTED) ;
+		}
+	}
+
+	private void sortOutputArcs(Fst a) {
+		if (!hasProperty(a, PROP_OLABEL_SORTED)) {
+			sortOutputArcsInPlaceNative(a.getFstPtr()) ;
+			a.setProperties(PROP_ILABEL_SORTED | PROP_OLABEL_SORTED,
+				hasProperty(a, PROP_ACCEPTOR) 
+					? (PROP_ILABEL_SORTED | PROP_OLABEL_SORTED)
+					: PROP_OLABEL_SORTED) ;
+		}
+	}
+
+	// composeNative() and intersectNative() need the output arcs of
+	// the first operand, or the input arcs of the second, to be sorted.
+	// Called just before the native call; nothing is sorted if either
+	// is already known to hold, else the second operand is sorted,
+	// and typically stays sorted for the next call (symtab networks
+	// are re-used).  A symtab transducer that is composed as the
+	// first operand with unsorted second operands can be kept sorted 
+	// "both ways" by setting #KLEENEpresortArcs:  the output-sorted
+	// copy of it cached on the Fst is then returned to be used in 
+	// its place, at the cost of the memory for the copy.
+	private Fst sortForCompose(Fst a, Fst b) {
+		if (hasProperty(b, PROP_ILABEL_SORTED) 
+				|| hasProperty(a, PROP_OLABEL_SORTED)) {
+			return a ;
+		}
+		Object presort = env.get("#KLEENEpresortArcs") ;
+		if (a.getFromSymtab() && presort != null && isTrue(presort)) {
+			if (hasProperty(a, PROP_ACCEPTOR)) {
+				// the input and output sides are the same
+				sortInputArcs(a) ;
+				return a ;
+			}
+			Fst sorted = a.getOutputSortedCopy() ;
+			if (sorted == null) {
+				sorted = CopyFst(a) ;
+				sortOutputArcs(sorted) ;
+				a.setOutputSortedCopy(sorted) ;
+			}
+			return sorted ;
+		}
+		sortInputArcs(b) ;
+		return a ;
+	}
+
+	// The pointer to the native network of a, to be passed to a native
+	// function that will change the network in place:  invalidates the
+	// information cached on a (property word, etc.).  Every call of a
+	// native function that modifies its argument must go through here.
+	private long mutatedPtr(Fst a) {
+		a.noteMutation() ;
+		return a.getFstPtr() ;
+	}
+
 	public boolean IsAcceptor(Fst a) {
-		// isAcceptorNative is True iff the Fst looks
+		// True iff the Fst looks
 		// like an acceptor to OpenFst, i.e. all the
 		// labels look like x:x
 		// Note that if the Fst contains OTHER_NONID:OTHER_NONID
 		// then it will look like an acceptor to OpenFst but
 		// it's semantically a transducer.
-		return isAcceptorNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_ACCEPTOR) ;
 	}
 	public boolean IsSemanticAcceptor(Fst a) {
 		return isSemanticAcceptorNative(a.getFstPtr(), symmap.getint(otherNonIdSym)) ;
@@ -1571,41 +2784,41 @@ public class OpenFstLibraryWrapper
 		}
 	}
 	public boolean IsWeighted(Fst a) {
-		return isWeightedNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_WEIGHTED) ;
 	}
 	public boolean IsUnweighted(Fst a) {
-		return isUnweightedNative(a.getFstPtr()) ;
+		return !hasProperty(a, PROP_WEIGHTED) ;
 	}
 	public boolean IsEpsilonFree(Fst a) {
-		return isEpsilonFreeNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_NO_EPSILONS) ;
 	}
 	public boolean IsIDeterministic(Fst a) {
-		return isIDeterministicNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_IDETERMINISTIC) ;
 	}
 	public boolean IsODeterministic(Fst a) {
-		return isODeterministicNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_ODETERMINISTIC) ;
 	}
 	public boolean IsEmptyLanguage(Fst a) {
 		return isEmptyLanguageNative(a.getFstPtr()) ;
 	}
 	public boolean IsCyclic(Fst a) {
-		return isCyclicNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_CYCLIC) ;
 	}
 	public boolean IsAcyclic(Fst a) {
-		return isAcyclicNative(a.getFstPtr()) ;
+		return !hasProperty(a, PROP_CYCLIC) ;
 	}
 	public boolean IsUBounded(Fst a) {
-		return isUBoundedNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_UBOUNDED) ;
 	}
 	public boolean IsLBounded(Fst a) {
-		return isLBoundedNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_LBOUNDED) ;
 	}
 	public boolean IsString(Fst a) {
 		// encodes a language of 1 string
-		return isStringNative(a.getFstPtr()) ;
+		return hasProperty(a, PROP_STRING) ;
 	}
 	public boolean IsNotString(Fst a) {
-		return isNotStringNative(a.getFstPtr()) ;
+		return !hasProperty(a, PROP_STRING) ;
 	}
 
 	public Fst Iterate(Fst a, long low, long high) {
@@ -1613,8 +2826,17 @@ public class OpenFstLibraryWrapper
 		long tempHigh = (high == -1L) ? low : high ;
 		checker.Iterate(a, low, tempHigh) ;
 
-		Fst resultFst = new Fst(iterateLowHighNative(a.getFstPtr(), low, high)) ;
-		addSigmaOther(resultFst, a) ;
+		// the native code optimizes its intermediate results (A^2, A^4,
+		// ..., and each link of the optional chain) according to the 
+		// same settings as OptimizeInPlace()
+		boolean determinize = isTrue(env.get("#KLEENEdeterminize")) ;
+		boolean minimize = isTrue(env.get("#KLEENEminimize")) ;
+		boolean rmepsilon = isTrue(env.get("#KLEENErmepsilon")) ;
+
+		refreshNativeLimits() ;
+		Fst resultFst = newFstSigmaFrom(iterateLowHighNative(a.getFstPtr(), 
+										low, high, determinize, minimize,
+										rmepsilon), a) ;
 		OptimizeInPlace(resultFst) ;
 
 		return resultFst ;
@@ -1630,7 +2852,7 @@ public class OpenFstLibraryWrapper
 			resultFst = CopyFst(a) ;
 		}
 
-		kleenePlusInPlaceNative(resultFst.getFstPtr()) ;
+		kleenePlusInPlaceNative(mutatedPtr(resultFst)) ;
 		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
@@ -1641,7 +2863,7 @@ public class OpenFstLibraryWrapper
 			resultFst = CopyFst(a) ;
 		}
 
-		kleeneStarInPlaceNative(resultFst.getFstPtr()) ;
+		kleeneStarInPlaceNative(mutatedPtr(resultFst)) ;
 		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
@@ -1656,7 +2878,7 @@ public class OpenFstLibraryWrapper
 	public void MinimizeInPlace(Fst a) {
 		checker.MinimizeInPlace(a) ;
 
-		minimizeInPlaceNative(a.getFstPtr()) ;
+		minimizeInPlaceNative(mutatedPtr(a)) ;
 	}
 
 	void OptimizeInPlace(Fst fst) {
@@ -1665,7 +2887,8 @@ public class OpenFstLibraryWrapper
 		boolean rmepsilon   = isTrue(env.get("#KLEENErmepsilon")) ;
 
 		if (determinize || minimize || rmepsilon) {
-			optimizeInPlaceNative(fst.getFstPtr(), determinize, minimize, rmepsilon) ;
+			refreshNativeLimits() ;
+			optimizeInPlaceNative(mutatedPtr(fst), determinize, minimize, rmepsilon) ;
 		} 
 	}
 
@@ -1675,7 +2898,8 @@ public class OpenFstLibraryWrapper
 	// forces the optimization even if the user has turned
 	// off #KLEENEdeterminize, #KLEENEminimize, #KLEENErmepsilon
 	public void OptimizeInPlaceForce(Fst a) {
-		optimizeInPlaceNative(a.getFstPtr(), true, true, true) ;
+		refreshNativeLimits() ;
+		optimizeInPlaceNative(mutatedPtr(a), true, true, true) ;
 	}
 
 	public int NumArcs(Fst a) {
@@ -1683,6 +2907,11 @@ public class OpenFstLibraryWrapper
 	}
 
 	public long NumPaths(Fst a) {
+		// a cyclic network (with a start state) encodes an infinite
+		// language or relation, -1 as in numPathsNative
+		if (startStateNative(a.getFstPtr()) != -1 && hasProperty(a, PROP_CYCLIC)) {
+			return -1L ;
+		}
 		return numPathsNative(a.getFstPtr()) ;
 	}
 
@@ -1695,7 +2924,7 @@ public class OpenFstLibraryWrapper
 	// forces optimization, used to extract a projection
 	// after application (e.g. 'test' in the GUI)
 	public void OutputProjectionInPlaceOptimize(Fst a) {
-		outputProjectionInPlaceNative(a.getFstPtr()) ;
+		outputProjectionInPlaceNative(mutatedPtr(a)) ;
 		CorrectSigmaOtherInPlace(a) ;
 		OptimizeInPlaceForce(a) ;
 	}
@@ -1708,7 +2937,7 @@ public class OpenFstLibraryWrapper
 			a = CopyFst(a) ;
 		}
 
-		outputProjectionFixOtherInPlaceNative(a.getFstPtr(), 
+		outputProjectionFixOtherInPlaceNative(mutatedPtr(a), 
 			symmap.putsym(otherIdSym), symmap.putsym(otherNonIdSym)) ;
 		CorrectSigmaOtherInPlace(a) ;
 
@@ -1717,7 +2946,7 @@ public class OpenFstLibraryWrapper
 	}
 
 	public void OutputProjectionInPlace(Fst a) {
-		outputProjectionFixOtherInPlaceNative(a.getFstPtr(), 
+		outputProjectionFixOtherInPlaceNative(mutatedPtr(a), 
 			symmap.putsym(otherIdSym), symmap.putsym(otherNonIdSym)) ;
 		CorrectSigmaOtherInPlace(a) ;
 
@@ -1726,21 +2955,20 @@ public class OpenFstLibraryWrapper
 
 	public Fst Reverse(Fst a) {
 		// the OpenFst Reverse() is not destructive
-		Fst resultFst = new Fst(reverseNative(a.getFstPtr())) ;
-		addSigmaOther(resultFst, a) ;
+		Fst resultFst = newFstSigmaFrom(reverseNative(a.getFstPtr()), a) ;
 		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
 
 	public void RmEpsilonInPlace(Fst a) {
-		rmEpsilonInPlaceNative(a.getFstPtr()) ;
+		rmEpsilonInPlaceNative(mutatedPtr(a)) ;
 	}
 		
 	// take whole Fst, modify in place to have neutral weights
 	// semiring generalization point
 	public void RmWeightDestFst(Fst fst) {
 		// do not make a copy, just work in place
-		rmWeightDestFstNative(fst.getFstPtr()) ;
+		rmWeightDestFstNative(mutatedPtr(fst)) ;
 		OptimizeInPlace(fst) ;
 	}
 
@@ -1759,60 +2987,73 @@ public class OpenFstLibraryWrapper
 				false, // not from the symbol table
 				fst.getContainsOther(),
 				fst.getSigma()) ;
+			resultFst.setIsRtn(fst.getIsRtn()) ;
+			resultFst.setSigmaExact(fst.getSigmaExact()) ;
 		} else {
 			// remove the weights in place.
 			// native rmWeightDestFstNative() calls a destructive
 			//	version of Map() that modifies the OpenFst network
 			//	in place
-			rmWeightDestFstNative(resultFst.getFstPtr()) ;
+			rmWeightDestFstNative(mutatedPtr(resultFst)) ;
 		}
 		OptimizeInPlace(resultFst) ;
 		return resultFst ;
 	}
 
-	public void RrGrammarLinkInPlace(Fst a, ArrayList<Integer> keys, 
-											ArrayList<Integer> vals) {
+	// Link a whole right-linear grammar:  productions.get(i) is the
+	// network of production i (the root production first), and
+	// keys.get(i) is the negative label value of its $>name 
+	// references.  The productions are not changed; returns a new Fst.
+	public Fst RrGrammarLink(ArrayList<Fst> productions, 
+								ArrayList<Integer> keys) {
+		// promote OTHER over the combined sigma (same result as
+		// adding the productions one at a time)
+		ArrayList<Fst> promoted = promoteSigmaOtherNary(productions) ;
+
 		// For simplicity in passing values to rrGrammarLinkNative, convert
-		// keys and vals to simple int[] arrays
+		// keys to a simple int[] array
 		int ikeys[] = new int[keys.size()] ;
 		for (int j = 0; j < keys.size(); j++) {
 			ikeys[j] = keys.get(j).intValue() ;
 		}
-		int ivals[] = new int[vals.size()] ;
-		for (int j = 0; j < vals.size(); j++) {
-			ivals[j] = vals.get(j).intValue() ;
-		}
-
-		// rrGrammarLinkNative is a native function (see kleeneopenfst.cc)
-		// a return of 0 indicates an error
-		long res = rrGrammarLinkNative(a.getFstPtr(), ikeys, ivals) ;
-		// this native func will loop through all the states, then
-		//   through all the arcs for each state, searching for
-		//   arcs with negative labels: (replace the labels with eps,
-		//   replace the nextstate with the corresponding ivals value);
-		//   will typically leave some states unconnected (old final states
-		//	 that are no longer accessible)
 
+		// rrGrammarLinkNative is a native function (see kleeneopenfst.cc);
+		// it copies all the productions into one new network in a
+		// single call, resolving the arcs with negative labels
+		// (references) through a hash map:  their labels become eps,
+		// their nextstate the start state of the referenced 
+		// production; a return of 0 indicates an error
+		long res = rrGrammarLinkNative(fstPtrArray(promoted), ikeys) ;
 		if (res == 0L) {
-			throw new RightLinearGrammarException("Problem in rrGrammarLink; couldn't allocate space for IntArrayElements") ;
+			throw new RightLinearGrammarException("Problem in rrGrammarLink; couldn't allocate space for the arrays, or unresolved production reference") ;
+		}
+
+		Fst resultFst = new Fst(res) ;
+		for (int i = 0; i < promoted.size(); i++) {
+			addSigmaOther(resultFst, promoted.get(i)) ;
 		}
+		// the negative (link) labels are now epsilons
+		resultFst.setSigmaExact(false) ;
 
-		ConnectInPlace(a) ;
+		// the old final states reached by the links are typically
+		// left unconnected
+		ConnectInPlace(resultFst) ;
+		return resultFst ;
 	}
 
 	// semiring generalization point (weight)
 	public void SetFinal(Fst a, int state, float weight) {
-		setFinalNative(a.getFstPtr(), state, weight) ;
+		setFinalNative(mutatedPtr(a), state, weight) ;
 	}
 
 	// semiring generalization point (weight)
 	public void SetFinalNeutralWeight(Fst a, int state) {
-		setFinalNeutralWeightNative(a.getFstPtr(), state) ;
+		setFinalNeutralWeightNative(mutatedPtr(a), state) ;
 	}
 
 	public void SetStart(Fst a, int start) {
 		// used when creating an Fst from XML
-		setStartNative(a.getFstPtr(), start) ;
+		setStartNative(mutatedPtr(a), start) ;
 	}
 
 	public Fst ShortestPath(Fst a, int nshortest) {
@@ -1824,13 +3065,146 @@ public class OpenFstLibraryWrapper
 		return resultFst ;
 	}
 
+	// Build a minimal acyclic network from a word-list file (UTF-8), one
+	// entry per line:  either a single word, or an upper word and a 
+	// lower word separated by a tab; each character is one symbol.
+	// The network is built incrementally in native code (see
+	// lexiconBuilderAddNative in kleeneopenfst.cc), which requires 
+	// sorted entries; if the file turns out not to be sorted, it is 
+	// read again, the entries are sorted in memory, and the network is
+	// built from the sorted entries.
+	public Fst LexiconFromFile(String fullpath) throws IOException {
+		Fst resultFst = lexiconFromFile(fullpath, false) ;
+		if (resultFst == null) {
+			// the file was not sorted
+			resultFst = lexiconFromFile(fullpath, true) ;
+		}
+		return resultFst ;
+	}
+
+	// returns null if sortFirst is false and the entries are not sorted
+	private Fst lexiconFromFile(String fullpath, boolean sortFirst) 
+												throws IOException {
+		HashSet<Integer> sigma = new HashSet<Integer>() ;
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(new FileInputStream(fullpath), "UTF-8")) ;
+		long builder = lexiconBuilderNewNative() ;
+
+		try {
+			String line ;
+			int[][] entry ;
+			int ret ;
+			if (sortFirst) {
+				ArrayList<int[][]> entries = new ArrayList<int[][]>() ;
+				while ((line = in.readLine()) != null) {
+					entry = lexiconEntry(line, sigma) ;
+					if (entry != null) {
+						entries.add(entry) ;
+					}
+				}
+				Collections.sort(entries, lexiconEntryComparator) ;
+				for (int i = 0; i < entries.size(); i++) {
+					entry = entries.get(i) ;
+					ret = lexiconBuilderAddNative(builder, entry[0], entry[1]) ;
+					if (ret < -1) {
+						throw new KleeneInterpreterException("Problem in LexiconFromFile; couldn't access the entry arrays") ;
+					}
+				}
+			} else {
+				while ((line = in.readLine()) != null) {
+					entry = lexiconEntry(line, sigma) ;
+					if (entry == null) {
+						continue ;
+					}
+					ret = lexiconBuilderAddNative(builder, entry[0], entry[1]) ;
+					if (ret == -1) {
+						// not sorted; the builder is deleted below
+						return null ;
+					} else if (ret < -1) {
+						throw new KleeneInterpreterException("Problem in LexiconFromFile; couldn't access the entry arrays") ;
+					}
+				}
+			}
+
+			Fst resultFst = new Fst(lexiconBuilderFinishNative(builder)) ;
+			builder = 0L ;	// deleted by lexiconBuilderFinishNative
+			resultFst.getSigma().addAll(sigma) ;
+			resultFst.setSigmaExact(true) ;
+			return resultFst ;
+		} finally {
+			in.close() ;
+			if (builder != 0L) {
+				lexiconBuilderDeleteNative(builder) ;
+			}
+		}
+	}
+
+	// convert one line of a word-list file into a pair of int[] arrays
+	// of the same length (upper and lower, the shorter padded with
+	// epsilons); return null for a blank line
+	private int[][] lexiconEntry(String line, HashSet<Integer> sigma) {
+		if (line.length() > 0 && line.charAt(0) == '\uFEFF') {
+			// a BOM
+			line = line.substring(1) ;
+		}
+		if (line.trim().length() == 0) {
+			return null ;
+		}
+		String upper = line ;
+		String lower = line ;
+		int tab = line.indexOf('\t') ;
+		if (tab >= 0) {
+			upper = line.substring(0, tab) ;
+			lower = line.substring(tab + 1) ;
+		}
+		int[] upperSyms = lexiconSymbols(upper, sigma) ;
+		int[] lowerSyms = (tab >= 0) ? lexiconSymbols(lower, sigma) : upperSyms ;
+
+		int len = Math.max(upperSyms.length, lowerSyms.length) ;
+		// Arrays.copyOf pads with 0, i.e. with epsilons
+		return new int[][] { Arrays.copyOf(upperSyms, len), 
+							 Arrays.copyOf(lowerSyms, len) } ;
+	}
+
+	private int[] lexiconSymbols(String str, HashSet<Integer> sigma) {
+		int[] syms = new int[str.codePointCount(0, str.length())] ;
+		int index = 0 ;
+		int cpv ;
+		UCharacterIterator iter = UCharacterIterator.getInstance(str) ;
+		while ((cpv = iter.nextCodePoint()) != UCharacterIterator.DONE) {
+			int sym = symmap.putsym(stringFromCpv(cpv)) ;
+			sigma.add(sym) ;
+			syms[index++] = sym ;
+		}
+		return syms ;
+	}
+
+	// the order required by lexiconBuilderAddNative:  compare the
+	// entries as strings of (upper, lower) label pairs
+	private static final Comparator<int[][]> lexiconEntryComparator = 
+												new Comparator<int[][]>() {
+		public int compare(int[][] a, int[][] b) {
+			int len = Math.min(a[0].length, b[0].length) ;
+			for (int i = 0; i < len; i++) {
+				if (a[0][i] != b[0][i]) {
+					return (a[0][i] < b[0][i]) ? -1 : 1 ;
+				}
+				if (a[1][i] != b[1][i]) {
+					return (a[1][i] < b[1][i]) ? -1 : 1 ;
+				}
+			}
+			return a[0].length - b[0].length ;
+		}
+	} ;
+
 	public int StartState(Fst a) {
 		return startStateNative(a.getFstPtr()) ;
 	}
 
 	public void SubstLabelInPlace(Fst fst, int orig, int repl) {
 		if (fst.getSigma().contains(orig)) {
-			substLabelInPlaceNative(fst.getFstPtr(), orig, repl) ;
+			substLabelInPlaceNative(mutatedPtr(fst), orig, repl) ;
+			fst.setSigmaExact(false) ;
 
 			if (!fst.getContainsOther()) {
 				// remove the orig symbol from the sigma
@@ -1974,7 +3348,8 @@ public class OpenFstLibraryWrapper
 
 	public void SynchronizeAltRuleInPlace(Fst a, int ruleRightAngleSymVal, 
 									int hardEpsilonSymVal) {
-		synchronizeAltRuleInPlaceNative(a.getFstPtr(), 
+		a.setSigmaExact(false) ;
+		synchronizeAltRuleInPlaceNative(mutatedPtr(a), 
 									ruleRightAngleSymVal,
 									hardEpsilonSymVal,
 									symmap.getint(otherIdSym),
@@ -1983,7 +3358,7 @@ public class OpenFstLibraryWrapper
 
 	public void SynchronizeInPlace(Fst a) {
 		checker.SynchronizeInPlace(a) ;
-		synchronizeInPlaceNative(a.getFstPtr()) ;
+		synchronizeInPlaceNative(mutatedPtr(a)) ;
 	}
 
 	public Fst RandGen(Fst fst, long npathval, long max_lengthval) {
@@ -2025,7 +3400,7 @@ public class OpenFstLibraryWrapper
 		resultFst = promoteSigmaOther(resultFst, b) ;
 		b = promoteSigmaOther(b, resultFst) ;
 
-		unionIntoFirstNative(resultFst.getFstPtr(), b.getFstPtr()) ;
+		unionIntoFirstNative(mutatedPtr(resultFst), b.getFstPtr()) ;
 		addSigmaOther(resultFst, b) ;
 		if (optimize) {
 			OptimizeInPlace(resultFst) ;
@@ -2047,7 +3422,7 @@ public class OpenFstLibraryWrapper
 		a = promoteSigmaOther(a, b) ;
 		b = promoteSigmaOther(b, a) ;
 
-		unionIntoFirstNative(a.getFstPtr(), b.getFstPtr()) ;
+		unionIntoFirstNative(mutatedPtr(a), b.getFstPtr()) ;
 		addSigmaOther(a, b) ;
 		if (optimize) {
 			OptimizeInPlace(a) ;
@@ -2055,6 +3430,37 @@ public class OpenFstLibraryWrapper
 		return a ;
 	}
 
+	// n-ary union of a list of networks (e.g. the daughters of a
+	// unioned_exp, or a NetList), built natively in one pass and
+	// optimized (once) at the end; the arguments are not modified
+	public Fst UnionFsts(ArrayList<Fst> fsts) {
+		return UnionFsts(fsts, true) ;
+	}
+
+	public Fst UnionFsts(ArrayList<Fst> fsts, boolean optimize) {
+		for (int i = 1; i < fsts.size(); i++) {
+			checker.Union(fsts.get(i - 1), fsts.get(i)) ;
+		}
+
+		ArrayList<Fst> promoted = promoteSigmaOtherNary(fsts) ;
+
+		refreshNativeLimits() ;
+		long ptr = unionFstsNative(fstPtrArray(promoted)) ;
+		if (ptr == 0L) {
+			throw new KleeneInterpreterException("Problem in UnionFsts; couldn't access the array of network pointers") ;
+		}
+
+		Fst resultFst = new Fst(ptr) ;
+		resultFst.setSigmaExact(true) ;
+		for (int i = 0; i < promoted.size(); i++) {
+			addSigmaOther(resultFst, promoted.get(i)) ;
+		}
+		if (optimize) {
+			OptimizeInPlace(resultFst) ;
+		}
+		return resultFst ;
+	}
+
 	public Fst Union3Fsts(Fst one, Fst two, Fst three) {
 		// native union is destructive of the first argument
 		Fst resultFst = EmptyLanguageFst() ; 
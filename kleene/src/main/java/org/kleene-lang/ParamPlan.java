@@ -0,0 +1,182 @@
+//	ParamPlan.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	A ParamPlan is the precompiled plan for binding the parameters of a
+//	function (see FuncValue.java) to the arguments of a call.  It is
+//	built once, when the function is defined, from the ArrayList of
+//	ParamSlot objects: the type test implied by each param name (e.g.
+//	$foo takes an Fst, #foo a Long or Double) is decoded once from the
+//	name prefix, and each param is assigned a fixed slot in the 
+//	FrameLayout of the function, so that the values can be stored
+//	directly into the new Frame.  (Formerly the ArrayList<ParamSlot> was
+//	deep-copied for each call, the type was re-checked by string prefix
+//	tests for each argument, and each param was bound with env.put().)
+
+import java.util.ArrayList ;
+import java.util.HashMap ;
+import java.util.Stack ;
+
+public class ParamPlan {
+	// bits for the types of value that a param accepts
+	private static final int FUNC_VALUE = 1 ;
+	private static final int FST = 2 ;
+	private static final int NET_LIST = 4 ;
+	private static final int NUMBER = 8 ;
+	private static final int NUM_LIST = 16 ;
+
+	private String[] names ;
+	private Object[] defaults ;		// null if no default
+	private int[] types ;			// bitmask of accepted types
+	private int[] slots ;			// in the FrameLayout of the function
+	private HashMap<String, Integer> indexMap ;  // for named args
+
+	// Constructor
+	public ParamPlan(ArrayList<ParamSlot> pal, FrameLayout layout) {
+		int count = pal.size() ;
+		names = new String[count] ;
+		defaults = new Object[count] ;
+		types = new int[count] ;
+		slots = new int[count] ;
+		indexMap = new HashMap<String, Integer>() ;
+
+		for (int i = 0; i < count; i++) {
+			ParamSlot ps = pal.get(i) ;
+			names[i] = ps.getName() ;
+			defaults[i] = ps.getDefault() ;
+			types[i] = acceptedTypes(names[i]) ;
+			slots[i] = layout.addSlot(names[i]) ;
+			indexMap.put(names[i], i) ;
+		}
+	}
+
+	public int getParamCount() {
+		return names.length ;
+	}
+
+	// KRB:  refine the type checking; perhaps store the return type
+	// somehow in the FuncValue object
+	// (formerly typeMatch() in InterpreterKleeneVisitor, which tested the
+	// prefixes in order, longer prefixes first, accepting the value if
+	// any prefix-type pair matched; here the same tests are folded into
+	// a bitmask of the accepted types)
+	private static int acceptedTypes(String id) {
+		int mask = 0 ;
+
+		// net, net-list, num, num-list and void functions,
+		// and functions returning functions
+		if (id.startsWith("$^") || id.startsWith("$@^")
+			|| id.startsWith("#^") || id.startsWith("#@^")
+			|| id.startsWith("^")) {
+			mask |= FUNC_VALUE ;
+		}
+		if (id.startsWith("$@")) {
+			mask |= NET_LIST ;
+		}
+		if (id.startsWith("$")) {
+			mask |= FST ;
+		}
+		if (id.startsWith("#@")) {
+			mask |= NUM_LIST ;
+		}
+		if (id.startsWith("#")) {
+			mask |= NUMBER ;
+		}
+		return mask ;
+	}
+
+	private static boolean typeMatch(int mask, Object obj) {
+		if (obj instanceof FuncValue) 
+			return (mask & FUNC_VALUE) != 0 ;
+		if (obj instanceof Fst) 
+			return (mask & FST) != 0 ;
+		if (obj instanceof NetList) 
+			return (mask & NET_LIST) != 0 ;
+		if ((obj instanceof Long) || (obj instanceof Double)) 
+			return (mask & NUMBER) != 0 ;
+		if (obj instanceof NumList) 
+			return (mask & NUM_LIST) != 0 ;
+		return false ;
+	}
+
+	// Bind the params to the args of a function call, in frame (the
+	// newly allocated Frame for the call).
+	//
+	// The arguments should be on the stack;
+	// values (corresponding to positional args) on top
+	// with NamedArgs (corresponding to named args) underneath,
+	// so all the arguments are popped off the stack in their original
+	// syntactic order.
+	public void bind(Stack<Object> stack, ArgCounts ac, Frame frame) {
+		int positional_args_count = ac.getPositionalArgsCount() ;
+		int named_args_count = ac.getNamedArgsCount() ;
+		int param_count = names.length ;
+
+		// for each positional argument, there must be a corresponding
+		// required or optional parameter (with or without a default value)
+		if (positional_args_count > param_count) {
+			throw new FuncCallException("Function called with more positional arguments than there are parameters.") ;
+		}
+
+		// a fresh array for each call; the stack is shared, and this plan 
+		// may be in use by a recursive call
+		Object[] values = new Object[param_count] ;
+
+		// First assign params left-to-right from all positional arguments.
+		for (int i = 0; i < positional_args_count; i++) {
+			Object obj = stack.pop() ;
+			if (typeMatch(types[i], obj)) {
+				values[i] = obj ;
+			} else {
+				throw new FuncCallException("Attempt to set arg named " + names[i] + " with a positional argument of the incorrect type.") ;
+			}
+		}
+
+		// Now handle the named arguments
+		for (int i = 0; i < named_args_count; i++) {
+			// Each named arg is represented as a NamedArg object on the stack.
+			NamedArg na = (NamedArg) stack.pop() ;
+			String id = na.getName() ;
+			Integer ind = indexMap.get(id) ;
+			if (ind == null) {
+				throw new FuncCallException("Attempt to set non-existent param named " + id + ".") ;
+			}
+			if (values[ind] != null) {
+				// was already set by a positional argument
+				throw new FuncCallException("Attempt to set param " + id + " twice, with both a positional and a named argument.") ;
+			}
+			// no type problem if the names matched
+			values[ind] = na.getValue() ;
+		}
+
+		// make sure that all params have been set, one way or another,
+		// and bind them directly in their slots in the Frame
+		for (int i = 0; i < param_count; i++) {
+			if (values[i] == null) {
+				if (defaults[i] != null) {
+					values[i] = defaults[i] ;
+				} else {
+					throw new FuncCallException("Param " + names[i] + 
+					" not set by either a positional or a named argument.") ;
+				}
+			}
+			frame.putSlot(slots[i], values[i]) ;
+		}
+	}
+}
@@ -0,0 +1,281 @@
+//	PurityAnalysis.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	A conservative, syntactic test of whether evaluating an AST (an
+//	expression, or the body of a function) can give a different value
+//	when repeated with the same arguments.  Used by the memoization of
+//	function calls (see FuncCallMemo.java) and by the evaluation, just
+//	once, of the parts of a where-clause rule that are the same in every
+//	instantiation (see evalRulePart() in the interpreter).
+//
+//	An AST is pure if it contains
+//		- none of the statements and built-ins with side effects or
+//		  results that vary:  random generation, reading files,
+//		  printing, drawing, writing, deleting, external and export,
+//		  the destructive (!) functions, the in-place optimization
+//		  statements, etc. (see IMPURE below);
+//		- no definition or assignment of a function, no anonymous
+//		  function, and no call of a function returned by a call;
+//		- no reference to a variable outside the allowed ones;
+//		- calls only of functions that are themselves pure.
+//
+//	A function is pure if its body is, where the allowed variables are
+//	its params and the variables assigned in its body (Kleene does not
+//	allow a variable referenced as free in a block to be bound later
+//	in the same block, see Environment.put()), plus #true and #false.
+//	So a function that refers to a global variable is not pure:  the
+//	global might be changed between two calls.
+//
+//	The functions called are looked up without side effects, through
+//	the static links, in the Frame where the AST is evaluated (for a
+//	function body, the static Frame of the function).  The results for
+//	functions are cached; the cache must be cleared (clear()) when a
+//	function binding changes (see Environment.getFuncBindingChanges()).
+
+import java.util.HashSet ;
+import java.util.IdentityHashMap ;
+
+class PurityAnalysis {
+
+	// AST node types (class names) that are never pure
+	private static final HashSet<String> IMPURE = new HashSet<String>() ;
+	static {
+		String[] names = {
+			"ASTexternal_statement", "ASTexport_statement",
+			"ASTnet_rand_gen_func_call", "ASTlng_rand_equivalent_func_call",
+			"ASTrand_input_statement", "ASTrand_output_statement",
+			"ASTnet_read_lexicon_func_call", "ASTnet_read_xml_func_call",
+			"ASTsource_statement",
+			"ASTprint_statement", "ASTprintln_statement", "ASTpr_statement",
+			"ASTsys_print_statement", "ASTsys_println_statement",
+			"ASTinfo_statement", "ASTdraw_statement",
+			"ASTtest_statement", "ASTtest",
+			"ASTwritedot_statement", "ASTwritexml_statement",
+			"ASTwritexml_state_oriented_statement",
+			"ASTdelete_statement", "ASTdelete_selected_statement",
+			"ASTdelete_all_statement",
+			"ASTsymtab_report_statement", "ASTgsymtab_report_statement",
+			"ASTfsts_report_statement", "ASTmemory_report_statement",
+			"ASTgarbage_collect_statement", "ASTquit_statement",
+			"ASTsap_rtn_conventions_statement", "ASTsigma_statement",
+			"ASToptimize_statement", "ASTdeterminize_statement",
+			"ASTminimize_statement", "ASTsynchronize_statement",
+			"ASTrrprod_definition", "ASTrrprod_id"
+		} ;
+		for (int i = 0; i < names.length; i++) {
+			IMPURE.add(names[i]) ;
+		}
+	}
+
+	// numeric "constants" that may be referenced freely
+	private static final HashSet<String> CONSTANTS = new HashSet<String>() ;
+	static {
+		CONSTANTS.add("#true") ;
+		CONSTANTS.add("#false") ;
+	}
+
+	// results for functions:  TRUE or FALSE
+	private IdentityHashMap<FuncValue, Boolean> funcResults =
+								new IdentityHashMap<FuncValue, Boolean>() ;
+
+	// the functions being analysed (assumed pure, for recursion)
+	private IdentityHashMap<FuncValue, Boolean> inProgress =
+								new IdentityHashMap<FuncValue, Boolean>() ;
+
+	public void clear() {
+		funcResults.clear() ;
+	}
+
+	// true if every call of the function with the same arguments gives
+	// the same result, without side effects
+	public boolean isPureFunction(FuncValue funcValue) {
+		Boolean known = funcResults.get(funcValue) ;
+		if (known != null) {
+			return known.booleanValue() ;
+		}
+		if (inProgress.containsKey(funcValue)) {
+			// a recursive call; pure unless something else isn't
+			return true ;
+		}
+		inProgress.put(funcValue, Boolean.TRUE) ;
+		boolean pure ;
+		try {
+			HashSet<String> locals = new HashSet<String>(CONSTANTS) ;
+			pure = true ;
+			for (ParamSlot param : funcValue.getParamArrayList()) {
+				String name = param.getName() ;
+				if (isFuncName(name)) {
+					// a function passed in (or a default function)
+					// could be anything
+					pure = false ;
+				}
+				locals.add(name) ;
+			}
+			Node body = funcValue.getFuncBlock() ;
+			if (pure) {
+				collectAssigned(body, locals) ;
+				pure = isPure(body, locals, true, funcValue.getStaticFrame()) ;
+			}
+		} finally {
+			inProgress.remove(funcValue) ;
+		}
+		// a "pure" found while another function was still in progress
+		// rests on an assumption; cache it only at the top level
+		if (!pure || inProgress.isEmpty()) {
+			funcResults.put(funcValue, Boolean.valueOf(pure)) ;
+		}
+		return pure ;
+	}
+
+	// true if the AST, evaluated in frame, is pure and refers to none of
+	// the forbidden variables (other variables may be referenced)
+	public boolean isPureExpr(Node ast, HashSet<String> forbidden, Frame frame) {
+		return isPure(ast, forbidden, false, frame) ;
+	}
+
+	// With onlyNames, names are the only variables that may be referenced;
+	// otherwise names are the variables that may not be referenced.
+	private boolean isPure(Node node, HashSet<String> names, boolean onlyNames,
+							Frame frame) {
+		String type = node.getClass().getName() ;
+		if (IMPURE.contains(type)
+			|| type.endsWith("_dest_func_call")
+			|| type.endsWith("_anon_exp")
+			|| type.endsWith("_func_definition")
+			|| type.endsWith("_func_assignment")
+			|| type.endsWith("_func_id_with_assignment")
+			|| type.endsWith("_func_func_call")) {
+			return false ;
+		}
+
+		String varName = variableName(node) ;
+		if (varName != null) {
+			if (onlyNames != names.contains(varName)) {
+				return false ;
+			}
+		}
+
+		String funcName = functionName(node) ;
+		if (funcName != null) {
+			if (!onlyNames && names.contains(funcName)) {
+				return false ;
+			}
+			if (!(onlyNames && names.contains(funcName))) {
+				// a function from outside
+				Object obj = lookup(funcName, frame) ;
+				if (!(obj instanceof FuncValue)
+					|| !isPureFunction((FuncValue) obj)) {
+					return false ;
+				}
+			}
+		}
+
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			if (!isPure(node.jjtGetChild(i), names, onlyNames, frame)) {
+				return false ;
+			}
+		}
+		return true ;
+	}
+
+	// the names of the variables assigned in the AST (the left-hand
+	// sides of assignments, and the iterator variables of foreach)
+	private void collectAssigned(Node node, HashSet<String> names) {
+		if (node instanceof ASTnet_assignment
+			|| node instanceof ASTnum_assignment
+			|| node instanceof ASTnet_list_assignment
+			|| node instanceof ASTnum_list_assignment
+			|| node instanceof ASTforeach_net_iteration_statement
+			|| node instanceof ASTforeach_num_iteration_statement) {
+			String name = variableName(node.jjtGetChild(0)) ;
+			if (name != null) {
+				names.add(name) ;
+			}
+		}
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			collectAssigned(node.jjtGetChild(i), names) ;
+		}
+	}
+
+	private String variableName(Node node) {
+		if (node instanceof ASTnet_id) {
+			return ((ASTnet_id) node).getImage() ;
+		} else if (node instanceof ASTnum_id) {
+			return ((ASTnum_id) node).getImage() ;
+		} else if (node instanceof ASTnet_list_id) {
+			return ((ASTnet_list_id) node).getImage() ;
+		} else if (node instanceof ASTnum_list_id) {
+			return ((ASTnum_list_id) node).getImage() ;
+		} else if (node instanceof ASTiterator_net_id) {
+			return ((ASTiterator_net_id) node).getImage() ;
+		} else if (node instanceof ASTiterator_num_id) {
+			return ((ASTiterator_num_id) node).getImage() ;
+		}
+		return null ;
+	}
+
+	private String functionName(Node node) {
+		if (node instanceof ASTnet_func_id) {
+			return ((ASTnet_func_id) node).getImage() ;
+		} else if (node instanceof ASTnum_func_id) {
+			return ((ASTnum_func_id) node).getImage() ;
+		} else if (node instanceof ASTvoid_func_id) {
+			return ((ASTvoid_func_id) node).getImage() ;
+		} else if (node instanceof ASTnet_list_func_id) {
+			return ((ASTnet_list_func_id) node).getImage() ;
+		} else if (node instanceof ASTnum_list_func_id) {
+			return ((ASTnum_list_func_id) node).getImage() ;
+		} else if (node instanceof ASTnet_func_func_id) {
+			return ((ASTnet_func_func_id) node).getImage() ;
+		} else if (node instanceof ASTnum_func_func_id) {
+			return ((ASTnum_func_func_id) node).getImage() ;
+		} else if (node instanceof ASTvoid_func_func_id) {
+			return ((ASTvoid_func_func_id) node).getImage() ;
+		} else if (node instanceof ASTnet_list_func_func_id) {
+			return ((ASTnet_list_func_func_id) node).getImage() ;
+		} else if (node instanceof ASTnum_list_func_func_id) {
+			return ((ASTnum_list_func_func_id) node).getImage() ;
+		}
+		return null ;
+	}
+
+	// function names start with $^ #^ ^ $@^ #@^
+	private boolean isFuncName(String name) {
+		return name.indexOf('^') >= 0 ;
+	}
+
+	// the value bound to name, looked up through the static links from
+	// frame, without the side effects of Environment.get() (which
+	// records free variables)
+	private Object lookup(String name, Frame frame) {
+		for (Frame f = frame; f != null; f = f.getStaticMother()) {
+			if (f.containsKey(name)) {
+				Object obj = f.get(name) ;
+				if (obj instanceof ExternValue) {
+					return lookup(name, ((ExternValue) obj).getFrame()) ;
+				} else if (obj instanceof FreeVariable) {
+					return lookup(name, ((FreeVariable) obj).getFrame()) ;
+				}
+				return obj ;
+			}
+		}
+		return null ;
+	}
+}
@@ -1045,6 +1045,10 @@ public class RrKleeneVisitor implements KleeneVisitor
 	  node.childrenAccept(this, new Boolean(false)) ;
 	  return data ;
   }
+  public Object visit(ASTnet_read_lexicon_func_call node, Object data) {
+	  node.childrenAccept(this, new Boolean(false)) ;
+	  return data ;
+  }
   public Object visit(ASTnet_rand_gen_func_call node, Object data) {
 	  node.childrenAccept(this, new Boolean(false)) ;
 	  return data ;
@@ -1203,6 +1207,14 @@ public class RrKleeneVisitor implements KleeneVisitor
 	  node.childrenAccept(this, new Boolean(false)) ;
 	  return data ;
   }
+  public Object visit(ASTnet_union_list_func_call node, Object data) {
+	  node.childrenAccept(this, new Boolean(false)) ;
+	  return data ;
+  }
+  public Object visit(ASTnet_concat_list_func_call node, Object data) {
+	  node.childrenAccept(this, new Boolean(false)) ;
+	  return data ;
+  }
   public Object visit(ASTnum_get_func_call node, Object data) {
 	  node.childrenAccept(this, new Boolean(false)) ;
 	  return data ;
@@ -0,0 +1,149 @@
+//	RtnDependencyGraph.java
+//
+//	The Kleene Programming Language
+
+//   Copyright 2006-2012 SAP AG
+
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+
+//   Author: ken.beesley@sap.com (Kenneth R. Beesley)
+
+//	An RtnDependencyGraph records, for the RTN grammar implied by a base
+//	network, all the subnetworks (names like "$foo") reachable from
+//	the base, in order of discovery, with the Fst found for each one in
+//	the symbol table and its direct references to other subnetworks.
+//	It is built just once (see buildRtnDependencyGraph() in the
+//	interpreter) and then serves for the check of undefined subnetworks,
+//	the check of cyclic dependencies, and the construction of the
+//	embedded or expanded RTN, with no further scans of the networks
+//	and no further symbol-table lookups.
+
+import java.util.ArrayList ;
+import java.util.HashMap ;
+import java.util.HashSet ;
+
+class RtnDependencyGraph {
+	// the direct references of the base network
+	private ArrayList<String> baseReferences ;
+
+	// all the subnetworks reachable from the base, in order of discovery
+	private ArrayList<String> subnets = new ArrayList<String>() ;
+	private HashSet<String> known = new HashSet<String>() ;
+
+	// for each defined subnetwork, its Fst and its direct references
+	private HashMap<String, Fst> fsts = new HashMap<String, Fst>() ;
+	private HashMap<String, ArrayList<String>> references =
+								new HashMap<String, ArrayList<String>>() ;
+
+	private HashSet<String> undefined = new HashSet<String>() ;
+
+	public RtnDependencyGraph(ArrayList<String> baseRefs) {
+		baseReferences = baseRefs ;
+		addSubnets(baseRefs) ;
+	}
+
+	private void addSubnets(ArrayList<String> refs) {
+		for (int i = 0; i < refs.size(); i++) {
+			String name = refs.get(i) ;
+			if (known.add(name)) {
+				subnets.add(name) ;
+			}
+		}
+	}
+
+	// the number of subnetworks discovered so far; this grows as
+	// setDefined() adds the references of each subnetwork, so loop
+	// with a for-loop that re-checks size()
+	public int size() {
+		return subnets.size() ;
+	}
+
+	public String getSubnet(int i) {
+		return subnets.get(i) ;
+	}
+
+	public ArrayList<String> getSubnets() {
+		return subnets ;
+	}
+
+	public void setDefined(String name, Fst fst, ArrayList<String> refs) {
+		fsts.put(name, fst) ;
+		references.put(name, refs) ;
+		addSubnets(refs) ;
+	}
+
+	public void setUndefined(String name) {
+		undefined.add(name) ;
+	}
+
+	public HashSet<String> getUndefined() {
+		return undefined ;
+	}
+
+	public Fst getFst(String name) {
+		return fsts.get(name) ;
+	}
+
+	// true if some subnetwork reachable from the base refers (directly
+	// or indirectly) to itself; such a grammar cannot be expanded into
+	// a finite-state network.  Depth-first search with the usual
+	// white/grey/black marking, done iteratively (with an explicit
+	// stack) so that a long chain of subnetworks cannot overflow the
+	// Java stack.
+	public boolean hasCycle() {
+		final Integer GREY = new Integer(1) ;
+		final Integer BLACK = new Integer(2) ;
+		HashMap<String, Integer> color = new HashMap<String, Integer>() ;
+
+		ArrayList<String> stackNames = new ArrayList<String>() ;
+		ArrayList<Integer> stackNext = new ArrayList<Integer>() ;
+
+		for (int r = 0; r < baseReferences.size(); r++) {
+			String root = baseReferences.get(r) ;
+			if (color.get(root) != null) {
+				continue ;
+			}
+			color.put(root, GREY) ;
+			stackNames.add(root) ;
+			stackNext.add(new Integer(0)) ;
+
+			while (!stackNames.isEmpty()) {
+				int top = stackNames.size() - 1 ;
+				String name = stackNames.get(top) ;
+				int next = stackNext.get(top).intValue() ;
+				ArrayList<String> refs = references.get(name) ;
+
+				if (refs == null || next >= refs.size()) {
+					// all the references of name have been explored
+					color.put(name, BLACK) ;
+					stackNames.remove(top) ;
+					stackNext.remove(top) ;
+					continue ;
+				}
+				stackNext.set(top, new Integer(next + 1)) ;
+
+				String ref = refs.get(next) ;
+				Integer c = color.get(ref) ;
+				if (c == null) {
+					color.put(ref, GREY) ;
+					stackNames.add(ref) ;
+					stackNext.add(new Integer(0)) ;
+				} else if (c == GREY) {
+					// a back edge, ref is still on the stack
+					return true ;
+				}
+			}
+		}
+		return false ;
+	}
+}
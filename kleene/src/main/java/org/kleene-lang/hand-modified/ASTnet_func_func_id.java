@@ -34,6 +34,14 @@ public class ASTnet_func_func_id extends SimpleNode {
 	return image ;
     }
 
+    // cached by Environment.get(String, LexicalAddress) for fast
+    // lookup of the value of this id
+    private LexicalAddress lexicalAddress = new LexicalAddress() ;
+
+    public LexicalAddress getLexicalAddress() {
+	return lexicalAddress ;
+    }
+
     // for better dump() results for nodes with String image stored
     // overrides method in SimpleNode.java
 